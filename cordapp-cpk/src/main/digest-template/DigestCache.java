@@ -0,0 +1,278 @@
+package @root_package@.digest;
+
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * !!! GENERATED FILE - DO NOT EDIT !!!
+ * See cordapp-cpk/src/main/digest-template/DigestCache.java instead.
+ */
+
+/**
+ * Remembers the digests of files, keyed by each file's absolute path, size and last modification
+ * time, so that a file is only hashed again after it has changed. A file whose size or timestamp
+ * no longer matches is always hashed again, and so is a file that was modified so close to when
+ * we hashed it that its timestamp cannot tell us whether it has changed since.
+ * <p>
+ * The digests can be persisted to a file, which every process and plugin using this class shares.
+ * Saving merges our digests with any that other processes have saved in the meantime, and discards
+ * the digests of files that no longer exist or that no build has asked about for a while.
+ */
+public final class DigestCache {
+    /**
+     * This "algorithm" is the file's CRC32, as a 4 byte big-endian value.
+     */
+    public static final String CRC32 = "CRC32";
+
+    private static final Logger logger = Logging.getLogger(DigestCache.class);
+    private static final int FORMAT_VERSION = 2;
+    private static final int BUFFER_SIZE = 0x10000;
+
+    /**
+     * Some file systems only record modification times to the nearest couple of seconds.
+     */
+    private static final long TIMESTAMP_RESOLUTION_MILLIS = 2000;
+    private static final long MAX_UNUSED_MILLIS = TimeUnit.DAYS.toMillis(30);
+    private static final long LOCK_RETRY_MILLIS = 10;
+
+    private static final class Entry {
+        final long size;
+        final long lastModified;
+        final long recordedAt;
+        final byte[] digest;
+        volatile long lastUsed;
+
+        Entry(long size, long lastModified, long recordedAt, byte[] digest, long lastUsed) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.recordedAt = recordedAt;
+            this.digest = digest;
+            this.lastUsed = lastUsed;
+        }
+
+        boolean matches(long size, long lastModified) {
+            return this.size == size
+                && this.lastModified == lastModified
+                && lastModified + TIMESTAMP_RESOLUTION_MILLIS < recordedAt;
+        }
+    }
+
+    private final Path storeFile;
+    private final ConcurrentMap<String, Entry> entries;
+    private volatile boolean isModified;
+
+    public DigestCache(Path storeFile) {
+        this.storeFile = storeFile;
+        this.entries = new ConcurrentHashMap<>(load(storeFile));
+    }
+
+    private static String keyOf(Path path, String algorithm) {
+        return algorithm + '\u0000' + path;
+    }
+
+    private static Path pathOf(String key) {
+        return Paths.get(key.substring(key.indexOf('\u0000') + 1));
+    }
+
+    public byte[] digestOf(File file, String algorithm) throws IOException {
+        return digestsOf(file, Collections.singletonList(algorithm)).get(algorithm);
+    }
+
+    /**
+     * Computes all of the missing digests with a single read of the file.
+     * This method is thread-safe.
+     */
+    public Map<String, byte[]> digestsOf(File file, Collection<String> algorithms) throws IOException {
+        Path path = file.toPath().toAbsolutePath().normalize();
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        long size = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        Map<String, byte[]> result = new LinkedHashMap<>();
+        List<String> missing = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (String algorithm : algorithms) {
+            Entry entry = entries.get(keyOf(path, algorithm));
+            if (entry != null && entry.matches(size, lastModified)) {
+                entry.lastUsed = now;
+                result.put(algorithm, entry.digest.clone());
+            } else {
+                missing.add(algorithm);
+            }
+        }
+        if (!missing.isEmpty()) {
+            for (Map.Entry<String, byte[]> digest : compute(path, missing).entrySet()) {
+                entries.put(keyOf(path, digest.getKey()), new Entry(size, lastModified, now, digest.getValue(), now));
+                result.put(digest.getKey(), digest.getValue().clone());
+            }
+        }
+        isModified = true;
+        return result;
+    }
+
+    private static Map<String, byte[]> compute(Path path, List<String> algorithms) throws IOException {
+        List<MessageDigest> digests = new ArrayList<>();
+        CRC32 crc32 = null;
+        for (String algorithm : algorithms) {
+            if (CRC32.equals(algorithm)) {
+                crc32 = new CRC32();
+            } else {
+                try {
+                    digests.add(MessageDigest.getInstance(algorithm));
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalArgumentException("Hash algorithm " + algorithm + " not available", e);
+                }
+            }
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream input = Files.newInputStream(path)) {
+            int length;
+            while ((length = input.read(buffer)) >= 0) {
+                for (MessageDigest digest : digests) {
+                    digest.update(buffer, 0, length);
+                }
+                if (crc32 != null) {
+                    crc32.update(buffer, 0, length);
+                }
+            }
+        }
+        Map<String, byte[]> result = new HashMap<>();
+        for (int i = 0, d = 0; i < algorithms.size(); ++i) {
+            String algorithm = algorithms.get(i);
+            if (CRC32.equals(algorithm)) {
+                result.put(algorithm, ByteBuffer.allocate(Integer.BYTES).putInt((int) crc32.getValue()).array());
+            } else {
+                result.put(algorithm, digests.get(d++).digest());
+            }
+        }
+        return result;
+    }
+
+    private static Map<String, Entry> load(Path storeFile) {
+        Map<String, Entry> result = new HashMap<>();
+        try (DataInputStream input = new DataInputStream(Files.newInputStream(storeFile))) {
+            if (input.readInt() != FORMAT_VERSION) {
+                return result;
+            }
+            int count = input.readInt();
+            for (int i = 0; i < count; ++i) {
+                String key = input.readUTF();
+                long size = input.readLong();
+                long lastModified = input.readLong();
+                long recordedAt = input.readLong();
+                long lastUsed = input.readLong();
+                byte[] digest = new byte[input.readUnsignedShort()];
+                input.readFully(digest);
+                result.put(key, new Entry(size, lastModified, recordedAt, digest, lastUsed));
+            }
+        } catch (NoSuchFileException e) {
+            return result;
+        } catch (IOException e) {
+            logger.info("Discarding digest cache {}: {}", storeFile, e.getMessage());
+            result.clear();
+        }
+        return result;
+    }
+
+    /**
+     * Merges our digests into the store file, while holding a lock that
+     * stops any other process from saving at the same time. Entries for
+     * files that no longer exist, or that no build has asked about for
+     * {@link #MAX_UNUSED_MILLIS}, are discarded.
+     */
+    public synchronized void save() throws IOException {
+        if (!isModified) {
+            return;
+        }
+        Files.createDirectories(storeFile.getParent());
+        Path lockFile = storeFile.resolveSibling(storeFile.getFileName() + ".lock");
+        try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock ignored = lock(channel)) {
+            Map<String, Entry> merged = load(storeFile);
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                Entry existing = merged.get(entry.getKey());
+                Entry ours = entry.getValue();
+                // Entries recorded at the same time are the same digest, but we may have used it since.
+                if (existing == null || existing.recordedAt < ours.recordedAt
+                        || (existing.recordedAt == ours.recordedAt && existing.lastUsed < ours.lastUsed)) {
+                    merged.put(entry.getKey(), ours);
+                }
+            }
+            long oldest = System.currentTimeMillis() - MAX_UNUSED_MILLIS;
+            merged.entrySet().removeIf(entry -> entry.getValue().lastUsed < oldest || !Files.exists(pathOf(entry.getKey())));
+
+            Path tmpFile = Files.createTempFile(storeFile.getParent(), null, ".tmp");
+            try {
+                try (DataOutputStream output = new DataOutputStream(Files.newOutputStream(tmpFile))) {
+                    output.writeInt(FORMAT_VERSION);
+                    output.writeInt(merged.size());
+                    for (Map.Entry<String, Entry> entry : merged.entrySet()) {
+                        Entry value = entry.getValue();
+                        output.writeUTF(entry.getKey());
+                        output.writeLong(value.size);
+                        output.writeLong(value.lastModified);
+                        output.writeLong(value.recordedAt);
+                        output.writeLong(value.lastUsed);
+                        output.writeShort(value.digest.length);
+                        output.write(value.digest);
+                    }
+                }
+                Files.move(tmpFile, storeFile, REPLACE_EXISTING, ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmpFile);
+            }
+        }
+        isModified = false;
+    }
+
+    /**
+     * Each plugin has its own copy of this class, and so another copy inside
+     * this JVM may be holding the lock. The JVM refuses to let us wait for that.
+     */
+    private static FileLock lock(FileChannel channel) throws IOException {
+        while (true) {
+            try {
+                return channel.lock();
+            } catch (OverlappingFileLockException e) {
+                try {
+                    Thread.sleep(LOCK_RETRY_MILLIS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting to lock the digest cache");
+                }
+            }
+        }
+    }
+}
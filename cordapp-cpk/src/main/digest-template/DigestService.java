@@ -0,0 +1,59 @@
+package @root_package@.digest;
+
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.invocation.Gradle;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * !!! GENERATED FILE - DO NOT EDIT !!!
+ * See cordapp-cpk/src/main/digest-template/DigestService.java instead.
+ */
+
+/**
+ * Shares a single {@link DigestCache} between every task in the build,
+ * and saves it into Gradle's user home when the build finishes.
+ */
+public abstract class DigestService implements BuildService<DigestService.Parameters>, AutoCloseable {
+    public interface Parameters extends BuildServiceParameters {
+        RegularFileProperty getStoreFile();
+    }
+
+    private static final String STORE_FILE = "caches/corda-digests/digests.bin";
+
+    /**
+     * Each plugin registers its own service, because plugins cannot share classes.
+     * Their services still share the same store file.
+     */
+    public static Provider<DigestService> register(Gradle gradle) {
+        File storeFile = new File(gradle.getGradleUserHomeDir(), STORE_FILE);
+        return gradle.getSharedServices().registerIfAbsent(DigestService.class.getName(), DigestService.class, spec ->
+            spec.getParameters().getStoreFile().set(storeFile)
+        );
+    }
+
+    private DigestCache cache;
+
+    public synchronized DigestCache getCache() {
+        if (cache == null) {
+            cache = new DigestCache(getParameters().getStoreFile().get().getAsFile().toPath());
+        }
+        return cache;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (cache != null) {
+            try {
+                cache.save();
+            } catch (IOException e) {
+                Logging.getLogger(DigestService.class).warn("Unable to save digest cache: {}", e.getMessage());
+            }
+        }
+    }
+}
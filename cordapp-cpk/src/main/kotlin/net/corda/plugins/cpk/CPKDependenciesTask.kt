@@ -1,5 +1,6 @@
 package net.corda.plugins.cpk
 
+import net.corda.plugins.cpk.digest.DigestService
 import org.gradle.api.DefaultTask
 import org.gradle.api.InvalidUserDataException
 import org.gradle.api.file.ConfigurableFileCollection
@@ -21,49 +22,14 @@ import org.osgi.framework.Constants.BUNDLE_SYMBOLICNAME
 import org.osgi.framework.Constants.BUNDLE_VERSION
 import org.w3c.dom.Document
 import org.w3c.dom.Element
-import java.io.File
-import java.io.IOException
-import java.io.InputStream
-import java.nio.file.Paths
-import java.security.CodeSigner
 import java.security.MessageDigest
 import java.security.cert.Certificate
 import java.util.Base64
-import java.util.jar.JarEntry
-import java.util.jar.JarFile
+import java.util.jar.Manifest
 import javax.inject.Inject
 
 @Suppress("UnstableApiUsage", "MemberVisibilityCanBePrivate")
 open class CPKDependenciesTask @Inject constructor(objects: ObjectFactory) : DefaultTask() {
-    private companion object {
-        private const val EOF = -1
-
-        /**
-         * Additionally accepting *.EC as it's valid for [JarVerifier][java.util.jar.JarVerifier].
-         * Temporally treating `META-INF/INDEX.LIST` as unsignable entry because
-         * [JarVerifier][java.util.jar.JarVerifier] doesn't load its signers.
-         *
-         * @see [Jar](https://docs.oracle.com/javase/8/docs/technotes/guides/jar/jar.html#Signed_JAR_File)
-         * @see [JarSigner](https://docs.oracle.com/javase/8/docs/technotes/tools/windows/jarsigner.html)
-         */
-        private val UNSIGNED = "^META-INF/(?:(?:.+\\.(?:SF|DSA|RSA|EC)|SIG-.+)|INDEX\\.LIST)\$".toRegex()
-
-        @Throws(IOException::class)
-        private fun consume(input: InputStream, buffer: ByteArray) {
-            while (input.read(buffer) != EOF) {
-                continue
-            }
-        }
-
-        private val JarEntry.isSignable: Boolean get() {
-            return !isDirectory && !UNSIGNED.matches(name)
-        }
-
-        private fun signerCertificate(codeSigner: CodeSigner): Certificate? {
-            return codeSigner.signerCertPath.certificates.firstOrNull()
-        }
-    }
-
     init {
         description = "Records this CorDapp's CPK dependencies."
         group = CORDAPP_TASK_GROUP
@@ -84,6 +50,26 @@ open class CPKDependenciesTask @Inject constructor(objects: ObjectFactory) : Def
         @InputFiles
         get() = _remoteCpks
 
+    /**
+     * Remembers the CPK hashes, so that we need not
+     * hash the same unchanged CPKs for every build.
+     */
+    @get:Internal
+    val digestService: Property<DigestService> = objects.property(DigestService::class.java)
+
+    /**
+     * Remembers the signers of every remote CPK that we have verified,
+     * and verifies the others on threads that every task shares.
+     */
+    @get:Internal
+    val signersService: Property<CPKSignersService> = objects.property(CPKSignersService::class.java)
+
+    /**
+     * Shares the manifests that other tasks have already read.
+     */
+    @get:Internal
+    val jarMetadataService: Property<JarMetadataService> = objects.property(JarMetadataService::class.java)
+
     @get:Internal
     val outputDir: DirectoryProperty = objects.directoryProperty()
 
@@ -105,6 +91,7 @@ open class CPKDependenciesTask @Inject constructor(objects: ObjectFactory) : Def
     @TaskAction
     fun generate() {
         val digest = digestFor(hashAlgorithm.get().toUpperCase())
+        val jarMetadata = jarMetadataService.get()
 
         try {
             val xmlDocument = createXmlDocument()
@@ -112,12 +99,13 @@ open class CPKDependenciesTask @Inject constructor(objects: ObjectFactory) : Def
 
             projectCpks.forEach { cpk ->
                 logger.info("Project CorDapp CPK dependency: {}", cpk.name)
-                JarFile(cpk).use(writer::writeProjectDependency)
+                writer.writeProjectDependency(jarMetadata.manifestOf(cpk))
             }
 
+            val remoteSigners = signersService.get().signersOf(remoteCpks.files, digestService.get().cache)
             remoteCpks.forEach { cpk ->
                 logger.info("Remote CorDapp CPK dependency: {}", cpk.name)
-                JarFile(cpk).use(writer::writeRemoteDependency)
+                writer.writeRemoteDependency(cpk.name, jarMetadata.manifestOf(cpk), remoteSigners.getValue(cpk))
             }
 
             // Write CPK dependency information as XML document.
@@ -134,9 +122,8 @@ open class CPKDependenciesTask @Inject constructor(objects: ObjectFactory) : Def
         private val cpkDependencies = xmlDocument.createRootElement(CPK_XML_NAMESPACE, "cpkDependencies")
         private val encoder = Base64.getEncoder()
 
-        @Throws(IOException::class)
-        private fun writeCommonElements(jar: JarFile): Element {
-            val mainAttributes = jar.manifest.mainAttributes
+        private fun writeCommonElements(manifest: Manifest): Element {
+            val mainAttributes = manifest.mainAttributes
             val cpkDependency = cpkDependencies.appendElement("cpkDependency")
             cpkDependency.appendElement("name", mainAttributes.getValue(BUNDLE_SYMBOLICNAME))
             cpkDependency.appendElement("version", mainAttributes.getValue(BUNDLE_VERSION))
@@ -146,17 +133,17 @@ open class CPKDependenciesTask @Inject constructor(objects: ObjectFactory) : Def
             return cpkDependency.appendElement("signers")
         }
 
-        @Throws(IOException::class)
-        fun writeProjectDependency(jar: JarFile) {
-            val signers = writeCommonElements(jar)
+        fun writeProjectDependency(manifest: Manifest) {
+            val signers = writeCommonElements(manifest)
             signers.appendElement("sameAsMe")
         }
 
-        @Throws(IOException::class)
-        fun writeRemoteDependency(jar: JarFile) {
-            val signerCertificates = signerCertificatesFor(jar)
+        fun writeRemoteDependency(cpkName: String, manifest: Manifest, cpkSigners: CPKSignersService.Signers) {
+            cpkSigners.unsignedEntries.forEach { entryName ->
+                logger.warn("{}:{} is unsigned", cpkName, entryName)
+            }
+            val signerCertificates = cpkSigners.certificates
             if (signerCertificates.size != 1) {
-                val cpkName = File(jar.name).name
                 logger.error(
                     "CPK {} signed by {} sets of signers:{}",
                     cpkName, signerCertificates.size,
@@ -169,7 +156,7 @@ open class CPKDependenciesTask @Inject constructor(objects: ObjectFactory) : Def
                 throw InvalidUserDataException("CPK $cpkName must be signed by exactly one set of signers")
             }
 
-            val signers = writeCommonElements(jar)
+            val signers = writeCommonElements(manifest)
             signerCertificates.single().sortedWith(CompareCertificates()).forEach { certificate ->
                 val signingKeyHash = digest.digest(certificate.publicKey.encoded)
                 signers.appendElement("signer", encoder.encodeToString(signingKeyHash))
@@ -185,25 +172,6 @@ open class CPKDependenciesTask @Inject constructor(objects: ObjectFactory) : Def
         )
     }
 
-    @Throws(IOException::class)
-    private fun signerCertificatesFor(jar: JarFile): Set<Set<Certificate>> {
-        val buffer = ByteArray(DEFAULT_BUFFER_SIZE)
-        return jar.entries().asSequence().mapNotNullTo(HashSet()) { entry ->
-            consume(jar.getInputStream(entry), buffer)
-            val certificates = entry.codeSigners?.mapNotNullTo(HashSet(), ::signerCertificate)
-            if (certificates.isNullOrEmpty()) {
-                if (entry.isSignable) {
-                    logger.warn("{}:{} is unsigned", Paths.get(jar.name).fileName, entry.name)
-                    emptySet<Certificate>()
-                } else {
-                    null
-                }
-            } else {
-                certificates
-            }
-        }
-    }
-
     private class CompareCertificates : Comparator<Certificate> {
         // This can be replaced by
         //    Arrays.compare(cert1.encoded, cert2.encoded)
@@ -0,0 +1,339 @@
+package net.corda.plugins.cpk
+
+import net.corda.plugins.cpk.digest.DigestCache
+import org.gradle.api.file.RegularFileProperty
+import org.gradle.api.invocation.Gradle
+import org.gradle.api.logging.Logging
+import org.gradle.api.provider.Property
+import org.gradle.api.provider.Provider
+import org.gradle.api.services.BuildService
+import org.gradle.api.services.BuildServiceParameters
+import java.io.ByteArrayInputStream
+import java.io.DataInputStream
+import java.io.File
+import java.io.IOException
+import java.io.InputStream
+import java.nio.file.Files
+import java.nio.file.NoSuchFileException
+import java.nio.file.Path
+import java.security.CodeSigner
+import java.security.cert.Certificate
+import java.security.cert.CertificateException
+import java.security.cert.CertificateFactory
+import java.util.Base64
+import java.util.Collections.unmodifiableList
+import java.util.Collections.unmodifiableSet
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit.DAYS
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.jar.JarEntry
+import java.util.jar.JarFile
+import kotlin.math.max
+
+/**
+ * Remembers the signers of each remote CPK, keyed by the CPK's SHA-256 digest.
+ * Verifying a CPK's signatures means reading every one of its entries, and so
+ * this cache is saved into Gradle's user home when the build finishes. We then
+ * never need to verify an unchanged CPK again. Every task verifies its CPKs using
+ * this service's threads, of which there are no more than Gradle's --max-workers.
+ */
+@Suppress("UnstableApiUsage")
+abstract class CPKSignersService : BuildService<CPKSignersService.Parameters>, AutoCloseable {
+    interface Parameters : BuildServiceParameters {
+        val storeFile: RegularFileProperty
+        val maxWorkers: Property<Int>
+    }
+
+    /**
+     * The sets of certificates that signed this CPK's entries, where
+     * any unsigned entries contribute an empty set. We also remember
+     * which entries were unsigned, so that we can warn about them.
+     */
+    class Signers(val certificates: Set<Set<Certificate>>, val unsignedEntries: List<String>)
+
+    private class EncodedCertificate(val type: String, val encoded: ByteArray) {
+        constructor(certificate: Certificate) : this(certificate.type, certificate.encoded)
+
+        @Throws(CertificateException::class)
+        fun decode(): Certificate {
+            return CertificateFactory.getInstance(type).generateCertificate(ByteArrayInputStream(encoded))
+        }
+    }
+
+    private class Entry(
+        val certificates: List<List<EncodedCertificate>>,
+        val unsignedEntries: List<String>,
+        @Volatile var lastUsed: Long
+    )
+
+    companion object {
+        private const val STORE_FILE = "caches/corda-cpk-signers/signers.bin"
+        private const val FORMAT_VERSION = 1
+        private const val DIGEST_ALGORITHM = "SHA-256"
+        private const val EOF = -1
+        private const val MIN_ENTRIES_PER_SLICE = 256
+        private val MAX_UNUSED_MILLIS = DAYS.toMillis(30)
+
+        /**
+         * Additionally accepting *.EC as it's valid for [JarVerifier][java.util.jar.JarVerifier].
+         * Temporally treating `META-INF/INDEX.LIST` as unsignable entry because
+         * [JarVerifier][java.util.jar.JarVerifier] doesn't load its signers.
+         *
+         * @see [Jar](https://docs.oracle.com/javase/8/docs/technotes/guides/jar/jar.html#Signed_JAR_File)
+         * @see [JarSigner](https://docs.oracle.com/javase/8/docs/technotes/tools/windows/jarsigner.html)
+         */
+        private val UNSIGNED = "^META-INF/(?:(?:.+\\.(?:SF|DSA|RSA|EC)|SIG-.+)|INDEX\\.LIST)\$".toRegex()
+
+        private val logger = Logging.getLogger(CPKSignersService::class.java)
+
+        fun register(gradle: Gradle): Provider<CPKSignersService> {
+            val storeFile = File(gradle.gradleUserHomeDir, STORE_FILE)
+            return gradle.sharedServices.registerIfAbsent(CPKSignersService::class.java.name, CPKSignersService::class.java) { spec ->
+                spec.parameters.storeFile.set(storeFile)
+                spec.parameters.maxWorkers.set(gradle.startParameter.maxWorkerCount)
+            }
+        }
+
+        private fun load(storeFile: Path): MutableMap<String, Entry> {
+            val result = mutableMapOf<String, Entry>()
+            try {
+                DataInputStream(Files.newInputStream(storeFile).buffered()).use { input ->
+                    if (input.readInt() != FORMAT_VERSION) {
+                        return result
+                    }
+                    repeat(input.readInt()) {
+                        val key = input.readUTF()
+                        val lastUsed = input.readLong()
+                        val certificates = (1..input.readInt()).map {
+                            (1..input.readInt()).map {
+                                EncodedCertificate(input.readUTF(), ByteArray(input.readInt()).also(input::readFully))
+                            }
+                        }
+                        val unsignedEntries = (1..input.readInt()).map { input.readUTF() }
+                        result[key] = Entry(certificates, unsignedEntries, lastUsed)
+                    }
+                }
+            } catch (_: NoSuchFileException) {
+            } catch (e: IOException) {
+                logger.info("Discarding CPK signers {}: {}", storeFile, e.message)
+                result.clear()
+            }
+            return result
+        }
+
+        @Throws(IOException::class)
+        private fun consume(input: InputStream, buffer: ByteArray) {
+            while (input.read(buffer) != EOF) {
+                continue
+            }
+        }
+
+        private val JarEntry.isSignable: Boolean get() {
+            return !isDirectory && !UNSIGNED.matches(name)
+        }
+
+        private fun signerCertificate(codeSigner: CodeSigner): Certificate? {
+            return codeSigner.signerCertPath.certificates.firstOrNull()
+        }
+
+        @Throws(IOException::class)
+        private fun signersOf(cpk: File, entryNames: List<String>): Signers {
+            val buffer = ByteArray(DEFAULT_BUFFER_SIZE)
+            val unsignedEntries = mutableListOf<String>()
+            val certificates = JarFile(cpk).use { jar ->
+                entryNames.mapNotNullTo(HashSet()) { entryName ->
+                    val entry = jar.getJarEntry(entryName)
+                    consume(jar.getInputStream(entry), buffer)
+                    val certificates = entry.codeSigners?.mapNotNullTo(HashSet(), ::signerCertificate)
+                    if (certificates.isNullOrEmpty()) {
+                        if (entry.isSignable) {
+                            unsignedEntries.add(entryName)
+                            emptySet<Certificate>()
+                        } else {
+                            null
+                        }
+                    } else {
+                        certificates
+                    }
+                }
+            }
+            return Signers(certificates, unsignedEntries)
+        }
+
+        private fun <T> await(future: Future<T>): T {
+            return try {
+                future.get()
+            } catch (e: ExecutionException) {
+                throw e.cause ?: e
+            }
+        }
+    }
+
+    private val storeFile: Path get() = parameters.storeFile.get().asFile.toPath()
+    private val entries by lazy { ConcurrentHashMap(load(storeFile)) }
+    private val verifierThreads: Int get() = max(1, parameters.maxWorkers.get())
+    private var verifiers: ExecutorService? = null
+
+    @Volatile
+    private var isModified: Boolean = false
+
+    @Synchronized
+    private fun verifiers(): ExecutorService {
+        return verifiers ?: run {
+            val threadCount = AtomicInteger()
+            Executors.newFixedThreadPool(verifierThreads) { task ->
+                Thread(task, "cpk-verifier-${threadCount.incrementAndGet()}").apply { isDaemon = true }
+            }.also { verifiers = it }
+        }
+    }
+
+    /**
+     * The [DigestCache] means that we need not hash an unchanged CPK again.
+     */
+    @Throws(IOException::class)
+    private fun keyOf(cpk: File, digestCache: DigestCache): String {
+        return Base64.getEncoder().encodeToString(digestCache.digestOf(cpk, DIGEST_ALGORITHM))
+    }
+
+    /**
+     * Only verify those CPKs whose signers we don't already know. [JarVerifier][java.util.jar.JarVerifier]
+     * must read a [JarFile]'s entries sequentially, but a CPK's entries can still be verified in parallel
+     * by giving each thread its own [JarFile]. Every [JarFile] must parse the CPK's signature files again,
+     * and so we only split a CPK into slices of at least [MIN_ENTRIES_PER_SLICE] entries.
+     * This function is thread-safe.
+     */
+    @Throws(IOException::class)
+    fun signersOf(cpks: Set<File>, digestCache: DigestCache): Map<File, Signers> {
+        val result = LinkedHashMap<File, Signers>()
+        val missing = LinkedHashMap<File, String>()
+        for (cpk in cpks) {
+            val key = keyOf(cpk, digestCache)
+            val signers = find(key)
+            if (signers == null) {
+                missing[cpk] = key
+            } else {
+                result[cpk] = signers
+            }
+        }
+        if (missing.isEmpty()) {
+            return result
+        }
+
+        val threads = verifierThreads
+        val pool = verifiers()
+        val pending = LinkedHashMap<File, List<Future<Signers>>>()
+        try {
+            for (cpk in missing.keys) {
+                val entryNames = JarFile(cpk, false).use { jar -> jar.entries().asSequence().map(JarEntry::getName).toList() }
+                val sliceSize = max(MIN_ENTRIES_PER_SLICE, (entryNames.size + threads - 1) / threads)
+                pending[cpk] = entryNames.chunked(sliceSize).map { slice ->
+                    pool.submit(Callable { signersOf(cpk, slice) })
+                }
+            }
+            for ((cpk, slices) in pending) {
+                val certificates = LinkedHashSet<Set<Certificate>>()
+                val unsignedEntries = mutableListOf<String>()
+                slices.map(::await).forEach { slice ->
+                    certificates.addAll(slice.certificates)
+                    unsignedEntries.addAll(slice.unsignedEntries)
+                }
+                val signers = Signers(unmodifiableSet(certificates), unmodifiableList(unsignedEntries))
+                put(missing.getValue(cpk), signers)
+                result[cpk] = signers
+            }
+        } finally {
+            // Other tasks share this pool, and so we can only cancel our own work.
+            pending.values.forEach { slices -> slices.forEach { it.cancel(true) } }
+        }
+        return result
+    }
+
+    /**
+     * Returns the signers of a CPK that we have verified before,
+     * or `null` if we have not. This function is thread-safe.
+     */
+    private fun find(key: String): Signers? {
+        val entry = entries[key] ?: return null
+        val certificates = try {
+            entry.certificates.mapTo(LinkedHashSet<Set<Certificate>>()) { encoded ->
+                unmodifiableSet(encoded.mapTo(LinkedHashSet(), EncodedCertificate::decode))
+            }
+        } catch (e: CertificateException) {
+            logger.info("Discarding signers for CPK {}: {}", key, e.message)
+            entries.remove(key, entry)
+            return null
+        }
+        entry.lastUsed = System.currentTimeMillis()
+        isModified = true
+        return Signers(unmodifiableSet(certificates), entry.unsignedEntries)
+    }
+
+    /**
+     * This function is thread-safe.
+     */
+    private fun put(key: String, signers: Signers) {
+        val certificates = signers.certificates.map { certificateSet ->
+            certificateSet.map(::EncodedCertificate)
+        }
+        entries[key] = Entry(certificates, unmodifiableList(ArrayList(signers.unsignedEntries)), System.currentTimeMillis())
+        isModified = true
+    }
+
+    /**
+     * Merges our signers into the store file. Entries for CPKs that
+     * no build has used for [MAX_UNUSED_MILLIS] are discarded.
+     */
+    @Throws(IOException::class)
+    private fun save() {
+        val storeFile = storeFile
+        rewriteStoreFile(storeFile) { output ->
+            val merged = load(storeFile)
+            for ((key, entry) in entries) {
+                val existing = merged[key]
+                if (existing == null || existing.lastUsed < entry.lastUsed) {
+                    merged[key] = entry
+                }
+            }
+            val oldest = System.currentTimeMillis() - MAX_UNUSED_MILLIS
+            merged.values.removeIf { it.lastUsed < oldest }
+
+            output.writeInt(FORMAT_VERSION)
+            output.writeInt(merged.size)
+            for ((key, entry) in merged) {
+                output.writeUTF(key)
+                output.writeLong(entry.lastUsed)
+                output.writeInt(entry.certificates.size)
+                for (certificateSet in entry.certificates) {
+                    output.writeInt(certificateSet.size)
+                    for (certificate in certificateSet) {
+                        output.writeUTF(certificate.type)
+                        output.writeInt(certificate.encoded.size)
+                        output.write(certificate.encoded)
+                    }
+                }
+                output.writeInt(entry.unsignedEntries.size)
+                entry.unsignedEntries.forEach(output::writeUTF)
+            }
+        }
+        isModified = false
+    }
+
+    override fun close() {
+        synchronized(this) {
+            verifiers?.shutdownNow()
+            verifiers = null
+        }
+        if (isModified) {
+            try {
+                save()
+            } catch (e: IOException) {
+                logger.warn("Unable to save CPK signers: {}", e.message)
+            }
+        }
+    }
+}
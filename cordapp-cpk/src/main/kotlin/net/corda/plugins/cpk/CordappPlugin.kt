@@ -3,6 +3,7 @@ package net.corda.plugins.cpk
 import aQute.bnd.gradle.BndBuilderPlugin
 import aQute.bnd.gradle.BundleTaskExtension
 import net.corda.plugins.cpk.SignJar.Companion.sign
+import net.corda.plugins.cpk.digest.DigestService
 import org.gradle.api.Action
 import org.gradle.api.GradleException
 import org.gradle.api.InvalidUserCodeException
@@ -206,7 +207,9 @@ class CordappPlugin @Inject constructor(private val layouts: ProjectLayout): Plu
      * JAR is reproducible, i.e. that its hash is stable!
      */
     private fun configureCordappTasks(project: Project) {
+        val calculatorDir = layouts.buildDirectory.dir("cordapp-dependencies")
         val calculatorTask = project.tasks.register(DEPENDENCY_CALCULATOR_TASK_NAME, DependencyCalculator::class.java) { task ->
+            task.outputDir.set(calculatorDir)
             task.setDependsOn(
                 /**
                  * Every CorDapp configuration is a super-configuration of at least one of these
@@ -222,8 +225,11 @@ class CordappPlugin @Inject constructor(private val layouts: ProjectLayout): Plu
          * Generate an extra resource file containing constraints for all of this CorDapp's dependencies.
          */
         val constraintsDir = layouts.buildDirectory.dir("generated-constraints")
+        val digestService = DigestService.register(project.gradle)
         val constraintsTask = project.tasks.register(DEPENDENCY_CONSTRAINTS_TASK_NAME, DependencyConstraintsTask::class.java) { task ->
             task.setLibrariesFrom(calculatorTask)
+            task.digestService.set(digestService)
+            task.usesService(digestService)
             task.constraintsDir.set(constraintsDir)
             task.hashAlgorithm.set(cordapp.hashAlgorithm)
         }
@@ -232,10 +238,18 @@ class CordappPlugin @Inject constructor(private val layouts: ProjectLayout): Plu
          * Generate an extra resource file listing this CorDapp's CPK dependencies.
          */
         val cpkDependenciesDir = layouts.buildDirectory.dir("cpk-dependencies")
+        val jarMetadataService = JarMetadataService.register(project.gradle)
+        val signersService = CPKSignersService.register(project.gradle)
         val cpkDependenciesTask = project.tasks.register(CPK_DEPENDENCIES_TASK_NAME, CPKDependenciesTask::class.java) { task ->
             task.setCPKsFrom(calculatorTask)
             task.outputDir.set(cpkDependenciesDir)
             task.hashAlgorithm.set(cordapp.hashAlgorithm)
+            task.jarMetadataService.set(jarMetadataService)
+            task.usesService(jarMetadataService)
+            task.digestService.set(digestService)
+            task.usesService(digestService)
+            task.signersService.set(signersService)
+            task.usesService(signersService)
         }
 
         val sourceSets = project.convention.getPlugin(JavaPluginConvention::class.java).sourceSets
@@ -277,6 +291,8 @@ class CordappPlugin @Inject constructor(private val layouts: ProjectLayout): Plu
                 properties.convention(emptyMap())
             }
 
+            jar.usesService(jarMetadataService)
+
             val allCordaProvided = objects.fileCollection()
                 .from(calculatorTask.flatMap(DependencyCalculator::providedJars))
             val allCordapps = objects.fileCollection().from(
@@ -304,9 +320,10 @@ class CordappPlugin @Inject constructor(private val layouts: ProjectLayout): Plu
 
                 // Compute the maximum platform version used by any "corda-provided"
                 // dependencies, or by any CorDapp dependencies.
+                val jarMetadata = jarMetadataService.get()
                 val platformVersion = max(
-                    allCordaProvided.maxOf(CORDA_PLATFORM_VERSION) ?: UNKNOWN_PLATFORM_VERSION,
-                    allCordapps.maxOf(CORDAPP_PLATFORM_VERSION) ?: UNKNOWN_PLATFORM_VERSION
+                    jarMetadata.maxOf(allCordaProvided, CORDA_PLATFORM_VERSION) ?: UNKNOWN_PLATFORM_VERSION,
+                    jarMetadata.maxOf(allCordapps, CORDAPP_PLATFORM_VERSION) ?: UNKNOWN_PLATFORM_VERSION
                 )
                 if (platformVersion > UNKNOWN_PLATFORM_VERSION) {
                     attributes[CORDAPP_PLATFORM_VERSION] = platformVersion
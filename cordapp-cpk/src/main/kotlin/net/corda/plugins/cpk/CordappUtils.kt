@@ -58,6 +58,7 @@ const val CORDA_CPK_CONFIGURATION_NAME = "cordaCPK"
 
 const val DEPENDENCY_CONSTRAINTS = "META-INF/DependencyConstraints"
 const val CPK_DEPENDENCIES = "META-INF/CPKDependencies"
+const val CORDAPP_DEPENDENCIES = "cordapp-dependencies.txt"
 
 // These tags are for the CPK file.
 const val CPK_PLATFORM_VERSION = "Corda-CPK-Built-Platform-Version"
@@ -168,8 +169,8 @@ val File.manifest: Manifest get() = JarFile(this).use(JarFile::getManifest)
  * or `null` if no such value can be derived. The attribute is assumed
  * to have an integer value.
  */
-fun Iterable<File>.maxOf(attributeName: String): Int? {
-    return mapNotNull { it.manifest.mainAttributes.getValue(attributeName)?.toIntOrNull() }.max()
+fun Iterable<File>.maxOf(attributeName: String, manifestOf: (File) -> Manifest = File::manifest): Int? {
+    return mapNotNull { manifestOf(it).mainAttributes.getValue(attributeName)?.toIntOrNull() }.max()
 }
 
 /**
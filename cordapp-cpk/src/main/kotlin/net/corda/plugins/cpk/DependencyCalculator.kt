@@ -5,18 +5,24 @@ import org.gradle.api.InvalidUserDataException
 import org.gradle.api.artifacts.Configuration
 import org.gradle.api.artifacts.Dependency
 import org.gradle.api.artifacts.FileCollectionDependency
+import org.gradle.api.artifacts.ModuleDependency
 import org.gradle.api.artifacts.ModuleVersionIdentifier
 import org.gradle.api.artifacts.ProjectDependency
 import org.gradle.api.artifacts.ResolvedArtifact
 import org.gradle.api.artifacts.ResolvedConfiguration
 import org.gradle.api.file.ConfigurableFileCollection
+import org.gradle.api.file.DirectoryProperty
 import org.gradle.api.file.FileSystemLocation
+import org.gradle.api.file.RegularFile
 import org.gradle.api.model.ObjectFactory
 import org.gradle.api.provider.Provider
-import org.gradle.api.specs.Specs.satisfyNone
-import org.gradle.api.tasks.OutputFiles
+import org.gradle.api.tasks.Input
+import org.gradle.api.tasks.Internal
+import org.gradle.api.tasks.OutputFile
 import org.gradle.api.tasks.TaskAction
 import java.io.File
+import java.io.Writer
+import java.util.Collections.unmodifiableList
 import java.util.Collections.unmodifiableSet
 import javax.inject.Inject
 
@@ -26,6 +32,27 @@ open class DependencyCalculator @Inject constructor(objects: ObjectFactory) : De
         private const val NON_CORDA = false
         private const val CORDA = true
 
+        private const val LIBRARIES = "libraries"
+        private const val PROJECT_CORDAPPS = "projectCordapps"
+        private const val REMOTE_CORDAPPS = "remoteCordapps"
+        private const val PROVIDED_JARS = "providedJars"
+        private const val EMBEDDED_JARS = "embeddedJars"
+        private const val UNBUNDLED_JARS = "unbundledJars"
+
+        /**
+         * The calculation only uses the dependencies declared by these
+         * configurations and their parents, and only resolves the first
+         * two of them.
+         */
+        private val INPUT_CONFIGURATION_NAMES: List<String> = unmodifiableList(listOf(
+            CORDAPP_PACKAGING_CONFIGURATION_NAME,
+            CORDAPP_EXTERNAL_CONFIGURATION_NAME,
+            CORDA_EMBEDDED_CONFIGURATION_NAME,
+            ALL_CORDAPPS_CONFIGURATION_NAME,
+            CORDA_ALL_PROVIDED_CONFIGURATION_NAME
+        ))
+        private const val RESOLVED_CONFIGURATIONS = 2
+
         private val HARDCODED_EXCLUDES: Set<Pair<String, String>> = unmodifiableSet(setOf(
             "org.jetbrains" to "annotations",
             "org.jetbrains.kotlin" to "*",
@@ -42,9 +69,6 @@ open class DependencyCalculator @Inject constructor(objects: ObjectFactory) : De
     init {
         description = "Computes this CorDapp's dependencies."
         group = CORDAPP_TASK_GROUP
-
-        // Force this task to execute!
-        outputs.upToDateWhen(satisfyNone())
     }
 
     /**
@@ -55,35 +79,53 @@ open class DependencyCalculator @Inject constructor(objects: ObjectFactory) : De
      */
     private val configurations = project.configurations
 
+    /**
+     * The declared dependencies of every configuration that the calculation uses,
+     * followed by the components and files that those configurations resolve to.
+     * The calculation is up-to-date unless one of these has changed.
+     */
+    @get:Input
+    val dependencyGraph: Provider<List<String>> = project.provider { describeDependencies() }
+
+    @get:Internal
+    val outputDir: DirectoryProperty = objects.directoryProperty()
+
+    /**
+     * Stores the results of the calculation, so that they remain
+     * available for later builds where this task is up-to-date.
+     */
+    @get:OutputFile
+    val dependenciesOutput: Provider<RegularFile> = outputDir.file(CORDAPP_DEPENDENCIES)
+
     /**
      * These jars are added to the CPK's lib/ folder.
      */
-    private val _libraries: ConfigurableFileCollection = objects.fileCollection()
+    private val _libraries: ConfigurableFileCollection = calculated(objects, LIBRARIES)
     val libraries: Provider<Set<FileSystemLocation>>
-        @OutputFiles
+        @Internal
         get() = _libraries.elements
 
     /**
      * These are the "main" jars from all of our dependent CorDapp CPKs,
      * including any transitive CPK dependencies.
      */
-    private val _projectCordapps: ConfigurableFileCollection = objects.fileCollection()
+    private val _projectCordapps: ConfigurableFileCollection = calculated(objects, PROJECT_CORDAPPS)
     val projectCordapps: Provider<Set<FileSystemLocation>>
-        @OutputFiles
+        @Internal
         get() = _projectCordapps.elements
 
-    private val _remoteCordapps: ConfigurableFileCollection = objects.fileCollection()
+    private val _remoteCordapps: ConfigurableFileCollection = calculated(objects, REMOTE_CORDAPPS)
     val remoteCordapps: Provider<Set<FileSystemLocation>>
-        @OutputFiles
+        @Internal
         get() = _remoteCordapps.elements
 
     /**
      * This is the resolved contents of the `cordaAllProvided` configuration,
      * which should contain all of the Corda API jars that this CorDapp uses.
      */
-    private val _providedJars: ConfigurableFileCollection = objects.fileCollection()
+    private val _providedJars: ConfigurableFileCollection = calculated(objects, PROVIDED_JARS)
     val providedJars: Provider<Set<FileSystemLocation>>
-        @OutputFiles
+        @Internal
         get() = _providedJars.elements
 
     /**
@@ -91,9 +133,9 @@ open class DependencyCalculator @Inject constructor(objects: ObjectFactory) : De
      * then added to its Bundle-Classpath. Used for jars
      * whose OSGi metadata is either broken or missing.
      */
-    private val _embeddedJars: ConfigurableFileCollection = objects.fileCollection()
+    private val _embeddedJars: ConfigurableFileCollection = calculated(objects, EMBEDDED_JARS)
     val embeddedJars: Provider<Set<FileSystemLocation>>
-        @OutputFiles
+        @Internal
         get() = _embeddedJars.elements
 
     /**
@@ -101,11 +143,80 @@ open class DependencyCalculator @Inject constructor(objects: ObjectFactory) : De
      * and restored to Bnd's regular classpath. (We only use
      * this property internally.)
      */
-    private val _unbundledJars: ConfigurableFileCollection = objects.fileCollection()
+    private val _unbundledJars: ConfigurableFileCollection = calculated(objects, UNBUNDLED_JARS)
     val unbundledJars: Provider<Set<FileSystemLocation>>
-        @OutputFiles
+        @Internal
         get() = _unbundledJars.elements
 
+    /**
+     * Reads one group of results from the output file only when someone
+     * needs them, by which time this task has always executed.
+     */
+    private fun calculated(objects: ObjectFactory, key: String): ConfigurableFileCollection {
+        return objects.fileCollection().apply {
+            from(dependenciesOutput.map { output -> readResults(output.asFile, key) })
+            builtBy(this@DependencyCalculator)
+            disallowChanges()
+        }
+    }
+
+    private fun readResults(output: File, key: String): List<File> {
+        if (!output.isFile) {
+            return emptyList()
+        }
+        return output.readLines().mapNotNull { line ->
+            val idx = line.indexOf(' ')
+            if (idx > 0 && line.substring(0, idx) == key) {
+                File(line.substring(idx + 1))
+            } else {
+                null
+            }
+        }
+    }
+
+    private fun Writer.writeResults(key: String, files: Iterable<File>) {
+        for (file in files) {
+            append(key).append(' ').append(file.absolutePath).append('\n')
+        }
+    }
+
+    private fun describeDependencies(): List<String> {
+        val result = mutableListOf<String>()
+        val visited = mutableSetOf<String>()
+        INPUT_CONFIGURATION_NAMES.forEach { name ->
+            describeDeclared(configurations.getByName(name), visited, result)
+        }
+        INPUT_CONFIGURATION_NAMES.take(RESOLVED_CONFIGURATIONS).forEach { name ->
+            configurations.getByName(name).resolvedConfiguration.resolvedArtifacts.mapTo(result) { artifact ->
+                "$name ${artifact.id.componentIdentifier.displayName} ${artifact.classifier ?: ""} ${artifact.file.absolutePath}"
+            }
+        }
+        return result
+    }
+
+    private fun describeDeclared(configuration: Configuration, visited: MutableSet<String>, result: MutableList<String>) {
+        if (!visited.add(configuration.name)) {
+            return
+        }
+        configuration.dependencies.mapTo(result) { dep ->
+            "${configuration.name} ${describe(dep)}"
+        }
+        for (parent in configuration.extendsFrom) {
+            describeDeclared(parent, visited, result)
+        }
+    }
+
+    private fun describe(dependency: Dependency): String {
+        return when (dependency) {
+            is ProjectDependency -> "project ${dependency.dependencyProject.path} ${dependency.targetConfiguration ?: ""}"
+            is FileCollectionDependency -> "files ${dependency.files.files.joinToString(File.pathSeparator)}"
+            is ModuleDependency -> "module ${dependency.toMaven()} ${dependency.isTransitive}" +
+                dependency.artifacts.joinToString(separator = "") { artifact -> " ${artifact.classifier}.${artifact.extension}" } +
+                dependency.excludeRules.joinToString(separator = "") { rule -> " -${rule.group}:${rule.module}" }
+            else -> "other ${dependency.toMaven()}"
+        }
+    }
+
     @TaskAction
     fun calculate() {
         // Compute the (unresolved) dependencies on the packaging classpath
@@ -143,18 +254,6 @@ open class DependencyCalculator @Inject constructor(objects: ObjectFactory) : De
         val mustEmbedFiles = packagingConfiguration.resolveFirstLevelFilesFor(embeddedDeps)
 
         val bundledFiles = embeddedFiles - packageFiles + mustEmbedFiles
-        _embeddedJars.apply {
-            setFrom(bundledFiles)
-            disallowChanges()
-        }
-        _unbundledJars.apply {
-            setFrom(embeddedFiles - bundledFiles)
-            disallowChanges()
-        }
-        _libraries.apply {
-            setFrom(packageFiles - bundledFiles)
-            disallowChanges()
-        }
 
         // Finally, work out which jars we have used that have not been packaged into our CPK.
         // We still ignore anything that was for "compile only", because we only want to validate packages
@@ -164,21 +263,17 @@ open class DependencyCalculator @Inject constructor(objects: ObjectFactory) : De
         val cordappFiles = externalConfiguration.resolveFirstLevelFilesFor(cordappDeps)
         val projectCordappDeps = cordappDeps.filterIsInstance<ProjectDependency>()
         val projectCordappFiles = externalConfiguration.resolveFirstLevel(projectCordappDeps).toFiles()
-        _projectCordapps.apply {
-            setFrom(projectCordappFiles)
-            disallowChanges()
-        }
-
-        _remoteCordapps.apply {
-            setFrom(cordappFiles - projectCordappFiles)
-            disallowChanges()
-        }
 
         val providedDeps = configurations.getByName(CORDA_ALL_PROVIDED_CONFIGURATION_NAME).allDependencies
         val providedFiles = externalConfiguration.resolveAllFilesFor(providedDeps)
-        _providedJars.apply {
-            setFrom(providedFiles)
-            disallowChanges()
+
+        dependenciesOutput.get().asFile.bufferedWriter().use { writer ->
+            writer.writeResults(EMBEDDED_JARS, bundledFiles)
+            writer.writeResults(UNBUNDLED_JARS, embeddedFiles - bundledFiles)
+            writer.writeResults(LIBRARIES, packageFiles - bundledFiles)
+            writer.writeResults(PROJECT_CORDAPPS, projectCordappFiles)
+            writer.writeResults(REMOTE_CORDAPPS, cordappFiles - projectCordappFiles)
+            writer.writeResults(PROVIDED_JARS, providedFiles)
         }
     }
 
@@ -1,5 +1,6 @@
 package net.corda.plugins.cpk
 
+import net.corda.plugins.cpk.digest.DigestService
 import org.gradle.api.DefaultTask
 import org.gradle.api.InvalidUserDataException
 import org.gradle.api.file.ConfigurableFileCollection
@@ -17,8 +18,6 @@ import org.gradle.api.tasks.PathSensitive
 import org.gradle.api.tasks.PathSensitivity.RELATIVE
 import org.gradle.api.tasks.TaskAction
 import org.gradle.api.tasks.TaskProvider
-import java.io.File
-import java.security.MessageDigest
 import java.util.Base64
 import javax.inject.Inject
 
@@ -38,6 +37,13 @@ open class DependencyConstraintsTask @Inject constructor(objects: ObjectFactory)
     @get:Input
     val hashAlgorithm: Property<String> = objects.property(String::class.java)
 
+    /**
+     * Remembers the library hashes, so that we need not
+     * hash the same unchanged libraries for every build.
+     */
+    @get:Internal
+    val digestService: Property<DigestService> = objects.property(DigestService::class.java)
+
     @get:Internal
     val constraintsDir: DirectoryProperty = objects.directoryProperty()
 
@@ -57,6 +63,7 @@ open class DependencyConstraintsTask @Inject constructor(objects: ObjectFactory)
     @TaskAction
     fun generate() {
         val digest = digestFor(hashAlgorithm.get().toUpperCase())
+        val digestCache = digestService.get().cache
 
         try {
             val xmlDocument = createXmlDocument()
@@ -67,7 +74,7 @@ open class DependencyConstraintsTask @Inject constructor(objects: ObjectFactory)
                 logger.info("CorDapp library dependency: {}", library.name)
                 dependencyConstraints.appendElement("dependencyConstraint").also { constraint ->
                     constraint.appendElement("fileName", library.name)
-                    val jarHash = digest.hashOf(library)
+                    val jarHash = digestCache.digestOf(library, digest.algorithm)
                     constraint.appendElement("hash", encoder.encodeToString(jarHash))
                         .setAttribute("algorithm", digest.algorithm)
                 }
@@ -79,11 +86,4 @@ open class DependencyConstraintsTask @Inject constructor(objects: ObjectFactory)
             throw (e as? RuntimeException) ?: InvalidUserDataException(e.message ?: "", e)
         }
     }
-
-    /**
-     * For computing file hashes.
-     */
-    private fun MessageDigest.hashOf(file: File): ByteArray {
-        return file.inputStream().use(::hashFor)
-    }
 }
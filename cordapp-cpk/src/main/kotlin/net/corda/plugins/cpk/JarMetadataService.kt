@@ -0,0 +1,57 @@
+package net.corda.plugins.cpk
+
+import org.gradle.api.invocation.Gradle
+import org.gradle.api.provider.Provider
+import org.gradle.api.services.BuildService
+import org.gradle.api.services.BuildServiceParameters
+import java.io.File
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.BasicFileAttributes
+import java.util.concurrent.ConcurrentHashMap
+import java.util.jar.Manifest
+
+/**
+ * Reads each jar's [Manifest] at most once per build, no matter how many
+ * tasks ask for it. A jar is read again if its size or last modification
+ * time changes, e.g. because another task has rebuilt it in the meantime.
+ * This service is thread-safe, and so tasks may share it in parallel.
+ */
+@Suppress("UnstableApiUsage")
+abstract class JarMetadataService : BuildService<BuildServiceParameters.None> {
+    companion object {
+        fun register(gradle: Gradle): Provider<JarMetadataService> {
+            return gradle.sharedServices.registerIfAbsent(JarMetadataService::class.java.name, JarMetadataService::class.java) {}
+        }
+    }
+
+    private class Entry(val size: Long, val lastModified: Long, val manifest: Manifest)
+
+    private val manifests = ConcurrentHashMap<Path, Entry>()
+
+    /**
+     * Returns a copy of the jar's manifest, which the caller may modify.
+     */
+    fun manifestOf(jar: File): Manifest {
+        val path = jar.toPath().toAbsolutePath().normalize()
+        val attributes = Files.readAttributes(path, BasicFileAttributes::class.java)
+        val size = attributes.size()
+        val lastModified = attributes.lastModifiedTime().toMillis()
+        val entry = manifests.compute(path) { _, existing ->
+            if (existing != null && existing.size == size && existing.lastModified == lastModified) {
+                existing
+            } else {
+                Entry(size, lastModified, jar.manifest)
+            }
+        }!!
+        return Manifest(entry.manifest)
+    }
+
+    /**
+     * Computes the maximum value of [attributeName] from all of these jars'
+     * [Manifest]s, or `null` if no such value can be derived.
+     */
+    fun maxOf(jars: Iterable<File>, attributeName: String): Int? {
+        return jars.maxOf(attributeName, ::manifestOf)
+    }
+}
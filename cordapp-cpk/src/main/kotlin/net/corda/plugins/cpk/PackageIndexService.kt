@@ -0,0 +1,176 @@
+package net.corda.plugins.cpk
+
+import aQute.bnd.osgi.Constants.EXPORT_PACKAGE
+import net.corda.plugins.cpk.digest.DigestCache
+import org.gradle.api.file.RegularFileProperty
+import org.gradle.api.invocation.Gradle
+import org.gradle.api.logging.Logging
+import org.gradle.api.provider.Provider
+import org.gradle.api.services.BuildService
+import org.gradle.api.services.BuildServiceParameters
+import java.io.DataInputStream
+import java.io.File
+import java.io.IOException
+import java.io.InputStream
+import java.nio.file.Files
+import java.nio.file.NoSuchFileException
+import java.nio.file.Path
+import java.security.MessageDigest
+import java.util.Base64
+import java.util.Collections.unmodifiableSet
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit.DAYS
+
+/**
+ * Remembers the packages inside each jar, and the packages that its manifest exports,
+ * keyed by the jar's SHA-256 digest. Every [VerifyBundle] task in the build shares this
+ * index, which is saved into Gradle's user home when the build finishes. We therefore
+ * only need to open a jar the first time that any build verifies a bundle against it.
+ * The store file also records a hash of the code that indexed its jars, and we discard
+ * every index that different code created.
+ */
+@Suppress("UnstableApiUsage")
+abstract class PackageIndexService : BuildService<PackageIndexService.Parameters>, AutoCloseable {
+    interface Parameters : BuildServiceParameters {
+        val storeFile: RegularFileProperty
+    }
+
+    class JarIndex(val packages: Set<String>, val exportPackage: String?) {
+        internal constructor(jar: File) : this(unmodifiableSet(jar.packages), jar.manifest.mainAttributes.getValue(EXPORT_PACKAGE))
+    }
+
+    private class Entry(val index: JarIndex, @Volatile var lastUsed: Long)
+
+    companion object {
+        private const val STORE_FILE = "caches/corda-package-index/packages.bin"
+        private const val FORMAT_VERSION = 2
+        private const val DIGEST_ALGORITHM = "SHA-256"
+        private val MAX_UNUSED_MILLIS = DAYS.toMillis(30)
+
+        /**
+         * [JarIndex] reads each jar using the [packages] and [manifest]
+         * extensions, which belong to the CordappUtils file facade.
+         */
+        private val ANALYSIS_CLASSES = listOf(JarIndex::class.java.name, "net.corda.plugins.cpk.CordappUtils")
+
+        /**
+         * Identifies the code that indexes each jar, even between snapshot
+         * builds of this plugin that all have the same version.
+         */
+        internal val analysisHash: String by lazy {
+            val digest = MessageDigest.getInstance(DIGEST_ALGORITHM)
+            for (className in ANALYSIS_CLASSES) {
+                val resourceName = className.replace('.', '/') + ".class"
+                val bytes = PackageIndexService::class.java.classLoader.getResourceAsStream(resourceName)?.use(InputStream::readBytes)
+                    ?: throw IllegalStateException("Class $className not found")
+                digest.update(bytes)
+            }
+            Base64.getEncoder().encodeToString(digest.digest())
+        }
+
+        private val logger = Logging.getLogger(PackageIndexService::class.java)
+
+        fun register(gradle: Gradle): Provider<PackageIndexService> {
+            val storeFile = File(gradle.gradleUserHomeDir, STORE_FILE)
+            return gradle.sharedServices.registerIfAbsent(PackageIndexService::class.java.name, PackageIndexService::class.java) { spec ->
+                spec.parameters.storeFile.set(storeFile)
+            }
+        }
+
+        private fun load(storeFile: Path): MutableMap<String, Entry> {
+            val result = mutableMapOf<String, Entry>()
+            try {
+                DataInputStream(Files.newInputStream(storeFile).buffered()).use { input ->
+                    if (input.readInt() != FORMAT_VERSION || input.readUTF() != analysisHash) {
+                        return result
+                    }
+                    repeat(input.readInt()) {
+                        val key = input.readUTF()
+                        val lastUsed = input.readLong()
+                        val packages = (1..input.readInt()).mapTo(LinkedHashSet()) { input.readUTF() }
+                        val exportPackage = if (input.readBoolean()) {
+                            String(ByteArray(input.readInt()).also(input::readFully), Charsets.UTF_8)
+                        } else {
+                            null
+                        }
+                        result[key] = Entry(JarIndex(unmodifiableSet(packages), exportPackage), lastUsed)
+                    }
+                }
+            } catch (_: NoSuchFileException) {
+            } catch (e: IOException) {
+                logger.info("Discarding package index {}: {}", storeFile, e.message)
+                result.clear()
+            }
+            return result
+        }
+    }
+
+    private val storeFile: Path get() = parameters.storeFile.get().asFile.toPath()
+    private val entries by lazy { ConcurrentHashMap(load(storeFile)) }
+
+    @Volatile
+    private var isModified: Boolean = false
+
+    /**
+     * Indexes this jar, unless we have already indexed another jar with the same contents.
+     * The [DigestCache] means that we need not hash an unchanged jar again either.
+     * This function is thread-safe.
+     */
+    fun indexOf(jar: File, digestCache: DigestCache): JarIndex {
+        val key = Base64.getEncoder().encodeToString(digestCache.digestOf(jar, DIGEST_ALGORITHM))
+        val now = System.currentTimeMillis()
+        val entry = entries.computeIfAbsent(key) { Entry(JarIndex(jar), now) }
+        entry.lastUsed = now
+        isModified = true
+        return entry.index
+    }
+
+    /**
+     * Merges our index into the store file. Entries for jars that
+     * no build has used for [MAX_UNUSED_MILLIS] are discarded.
+     */
+    @Throws(IOException::class)
+    private fun save() {
+        val storeFile = storeFile
+        rewriteStoreFile(storeFile) { output ->
+            val merged = load(storeFile)
+            for ((key, entry) in entries) {
+                val existing = merged[key]
+                if (existing == null || existing.lastUsed < entry.lastUsed) {
+                    merged[key] = entry
+                }
+            }
+            val oldest = System.currentTimeMillis() - MAX_UNUSED_MILLIS
+            merged.values.removeIf { it.lastUsed < oldest }
+
+            output.writeInt(FORMAT_VERSION)
+            output.writeUTF(analysisHash)
+            output.writeInt(merged.size)
+            for ((key, entry) in merged) {
+                output.writeUTF(key)
+                output.writeLong(entry.lastUsed)
+                output.writeInt(entry.index.packages.size)
+                entry.index.packages.forEach(output::writeUTF)
+                val exportPackage = entry.index.exportPackage
+                output.writeBoolean(exportPackage != null)
+                if (exportPackage != null) {
+                    // Export-Package headers can be longer than writeUTF allows.
+                    val bytes = exportPackage.toByteArray(Charsets.UTF_8)
+                    output.writeInt(bytes.size)
+                    output.write(bytes)
+                }
+            }
+        }
+        isModified = false
+    }
+
+    override fun close() {
+        if (isModified) {
+            try {
+                save()
+            } catch (e: IOException) {
+                logger.warn("Unable to save package index: {}", e.message)
+            }
+        }
+    }
+}
@@ -8,8 +8,10 @@ import org.gradle.api.file.FileCollection
 import org.gradle.api.file.RegularFile
 import org.gradle.api.file.RegularFileProperty
 import org.gradle.api.model.ObjectFactory
+import org.gradle.api.provider.Property
 import org.gradle.api.tasks.InputFile
 import org.gradle.api.tasks.InputFiles
+import org.gradle.api.tasks.Internal
 import org.gradle.api.tasks.PathSensitive
 import org.gradle.api.tasks.TaskAction
 import org.gradle.api.tasks.PathSensitivity.RELATIVE
@@ -55,6 +57,13 @@ open class PackagingTask @Inject constructor(objects: ObjectFactory) : Jar() {
     @get:InputFile
     val cordapp: RegularFileProperty = objects.fileProperty()
 
+    /**
+     * Shares the manifests that other tasks have already read.
+     */
+    @get:Internal
+    val jarMetadataService: Property<JarMetadataService> = objects.property(JarMetadataService::class.java)
+        .convention(JarMetadataService.register(project.gradle))
+
     fun cordapp(item: Any?) {
         when(item) {
             is Jar -> {
@@ -95,6 +104,7 @@ open class PackagingTask @Inject constructor(objects: ObjectFactory) : Jar() {
         includeEmptyDirs = false
         isCaseSensitive = true
         isZip64 = true
+        usesService(jarMetadataService)
     }
 
     @TaskAction
@@ -107,7 +117,7 @@ open class PackagingTask @Inject constructor(objects: ObjectFactory) : Jar() {
          * - [#9142](https://github.com/gradle/gradle/issues/9142)
          * Update the CPK manifest as the first step of [TaskAction] instead.
          */
-        val jarAttributes = cordapp.asFile.get().manifest.mainAttributes
+        val jarAttributes = jarMetadataService.get().manifestOf(cordapp.asFile.get()).mainAttributes
         val cpkAttributes = linkedMapOf(CPK_FORMAT_TAG to CPK_FORMAT)
 
         MANIFEST_MAPPING.forEach { mapping ->
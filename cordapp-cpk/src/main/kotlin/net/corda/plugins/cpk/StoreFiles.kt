@@ -0,0 +1,35 @@
+@file:JvmName("StoreFiles")
+package net.corda.plugins.cpk
+
+import java.io.DataOutputStream
+import java.io.IOException
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption.ATOMIC_MOVE
+import java.nio.file.StandardCopyOption.REPLACE_EXISTING
+import java.nio.file.StandardOpenOption.CREATE
+import java.nio.file.StandardOpenOption.WRITE
+
+/**
+ * Replaces a store file in Gradle's user home, which every Gradle process shares.
+ * We hold a lock while [write] runs, so that [write] can merge its own contents
+ * with whatever the store file contains by then, and no other process can save
+ * at the same time. Readers only ever see a complete file.
+ */
+@Throws(IOException::class)
+internal fun rewriteStoreFile(storeFile: Path, write: (DataOutputStream) -> Unit) {
+    Files.createDirectories(storeFile.parent)
+    val lockFile = storeFile.resolveSibling("${storeFile.fileName}.lock")
+    FileChannel.open(lockFile, CREATE, WRITE).use { channel ->
+        channel.lock().use {
+            val tmpFile = Files.createTempFile(storeFile.parent, null, ".tmp")
+            try {
+                DataOutputStream(Files.newOutputStream(tmpFile).buffered()).use(write)
+                Files.move(tmpFile, storeFile, REPLACE_EXISTING, ATOMIC_MOVE)
+            } finally {
+                Files.deleteIfExists(tmpFile)
+            }
+        }
+    }
+}
@@ -4,7 +4,6 @@ import aQute.bnd.build.model.EE
 import aQute.bnd.header.Attrs
 import aQute.bnd.header.OSGiHeader
 import aQute.bnd.osgi.Analyzer
-import aQute.bnd.osgi.Constants.EXPORT_PACKAGE
 import aQute.bnd.osgi.Constants.OPTIONAL
 import aQute.bnd.osgi.Constants.RESOLUTION_DIRECTIVE
 import aQute.bnd.osgi.Constants.STRICT
@@ -15,6 +14,7 @@ import aQute.bnd.osgi.Jar
 import aQute.bnd.osgi.Verifier
 import aQute.bnd.version.Version
 import aQute.bnd.version.VersionRange
+import net.corda.plugins.cpk.digest.DigestService
 import org.gradle.api.DefaultTask
 import org.gradle.api.InvalidUserDataException
 import org.gradle.api.file.ConfigurableFileCollection
@@ -26,21 +26,16 @@ import org.gradle.api.tasks.Classpath
 import org.gradle.api.tasks.Input
 import org.gradle.api.tasks.InputFile
 import org.gradle.api.tasks.InputFiles
+import org.gradle.api.tasks.Internal
 import org.gradle.api.tasks.PathSensitive
 import org.gradle.api.tasks.PathSensitivity.RELATIVE
 import org.gradle.api.tasks.TaskAction
 import org.gradle.api.tasks.TaskProvider
-import java.io.File
 import java.util.function.Function
 import javax.inject.Inject
 
 @Suppress("UnstableApiUsage", "MemberVisibilityCanBePrivate")
 open class VerifyBundle @Inject constructor(objects: ObjectFactory) : DefaultTask() {
-    init {
-        description = "Verifies that a bundle's OSGi meta-data is consistent."
-        group = CORDAPP_TASK_GROUP
-    }
-
     @get:PathSensitive(RELATIVE)
     @get:InputFile
     val bundle: RegularFileProperty = objects.fileProperty()
@@ -54,6 +49,25 @@ open class VerifyBundle @Inject constructor(objects: ObjectFactory) : DefaultTas
     @get:Input
     val strict: Property<Boolean> = objects.property(Boolean::class.java).convention(true)
 
+    /**
+     * Remembers the packages that each classpath jar contains and
+     * exports, so that we need not open the same jars for every build.
+     */
+    @get:Internal
+    val packageIndexService: Property<PackageIndexService> = objects.property(PackageIndexService::class.java)
+        .convention(PackageIndexService.register(project.gradle))
+
+    @get:Internal
+    val digestService: Property<DigestService> = objects.property(DigestService::class.java)
+        .convention(DigestService.register(project.gradle))
+
+    init {
+        description = "Verifies that a bundle's OSGi meta-data is consistent."
+        group = CORDAPP_TASK_GROUP
+        usesService(packageIndexService)
+        usesService(digestService)
+    }
+
     /**
      * Don't eagerly configure the [DependencyCalculator] task, even if
      * someone eagerly configures this [VerifyBundle] by accident.
@@ -112,9 +126,10 @@ open class VerifyBundle @Inject constructor(objects: ObjectFactory) : DefaultTas
 
         val packageSpace = analyzer.classspace.keys.mapTo(HashSet(), TypeRef::getPackageRef)
         val systemPackages = analyzer.highestEE?.let { EE.parse(it.ee) }?.packages ?: emptyMap<String, Any>()
-        val classpathPackages = getClasspathPackages()
+        val classpathIndexes = getClasspathIndexes()
+        val classpathPackages = classpathIndexes.flatMapTo(HashSet(), PackageIndexService.JarIndex::packages)
         val exportVersions = mutableMapOf<String, MutableSet<Version>>()
-        fetchClasspathVersions(exportVersions)
+        fetchClasspathVersions(classpathIndexes, exportVersions)
 
         analyzer.exports.forEach { exportPackage ->
             exportPackage.mapVersionsTo(exportVersions, Function(PackageRef::getFQN))
@@ -140,13 +155,18 @@ open class VerifyBundle @Inject constructor(objects: ObjectFactory) : DefaultTas
             }
     }
 
-    private fun getClasspathPackages(): Set<String> {
-        return classpath.flatMapTo(HashSet(), File::packages)
+    private fun getClasspathIndexes(): List<PackageIndexService.JarIndex> {
+        val packageIndex = packageIndexService.get()
+        val digestCache = digestService.get().cache
+        return classpath.map { file -> packageIndex.indexOf(file, digestCache) }
     }
 
-    private fun fetchClasspathVersions(exportVersions: MutableMap<String, MutableSet<Version>>) {
-        classpath.forEach { file ->
-            val exportPackage = file.manifest.mainAttributes.getValue(EXPORT_PACKAGE)
+    private fun fetchClasspathVersions(
+        classpathIndexes: List<PackageIndexService.JarIndex>,
+        exportVersions: MutableMap<String, MutableSet<Version>>
+    ) {
+        classpathIndexes.forEach { index ->
+            val exportPackage = index.exportPackage
             if (exportPackage != null) {
                 OSGiHeader.parseHeader(exportPackage).forEach { header ->
                     header.mapVersionsTo(exportVersions, Function.identity())
@@ -0,0 +1,148 @@
+package net.corda.plugins.cpk
+
+import net.corda.plugins.cpk.digest.DigestCache
+import org.assertj.core.api.Assertions.assertThat
+import org.gradle.api.file.RegularFile
+import org.gradle.api.file.RegularFileProperty
+import org.gradle.api.provider.Property
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.io.File
+import java.lang.reflect.Proxy
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.FileTime
+import java.security.cert.X509Certificate
+import java.util.jar.Attributes.Name.MANIFEST_VERSION
+import java.util.jar.JarOutputStream
+import java.util.jar.Manifest
+import java.util.zip.ZipEntry
+
+class CPKSignersServiceTest {
+    private companion object {
+        private const val PASSWORD = "password"
+        private const val ENTRY_COUNT = 600
+        private const val MAX_WORKERS = 2
+
+        /**
+         * Java 8 runs inside its JDK's jre directory.
+         */
+        private fun jdkTool(name: String): String {
+            val javaHome = File(System.getProperty("java.home"))
+            return listOf(javaHome, javaHome.parentFile)
+                .map { home -> File(home, "bin/$name") }
+                .firstOrNull(File::isFile)?.absolutePath ?: name
+        }
+
+        private fun run(vararg command: String) {
+            val process = ProcessBuilder(*command).redirectErrorStream(true).start()
+            val output = process.inputStream.bufferedReader().readText()
+            assertThat(process.waitFor()).withFailMessage("%s failed: %s", command[0], output).isZero()
+        }
+
+        @Suppress("UNCHECKED_CAST")
+        private fun <T> propertyOf(type: Class<*>, value: Any): T {
+            return Proxy.newProxyInstance(CPKSignersServiceTest::class.java.classLoader, arrayOf(type)) { _, method, _ ->
+                if (method.name == "get") {
+                    value
+                } else {
+                    throw UnsupportedOperationException(method.name)
+                }
+            } as T
+        }
+    }
+
+    @TempDir
+    lateinit var testDir: Path
+
+    private lateinit var keyStore: Path
+    private lateinit var storeFile: Path
+    private lateinit var digestStoreFile: Path
+    private lateinit var cpk: Path
+
+    @BeforeEach
+    fun setup() {
+        keyStore = testDir.resolve("keys.p12")
+        storeFile = testDir.resolve("signers/signers.bin")
+        digestStoreFile = testDir.resolve("digests/digests.bin")
+        cpk = testDir.resolve("remote.cpk")
+        for (alias in listOf("alice", "bob")) {
+            run(jdkTool("keytool"), "-genkeypair", "-keystore", keyStore.toString(), "-storetype", "PKCS12",
+                "-storepass", PASSWORD, "-keypass", PASSWORD, "-alias", alias, "-dname", "CN=$alias",
+                "-keyalg", "RSA", "-keysize", "2048", "-validity", "1")
+        }
+    }
+
+    /**
+     * A service outside of Gradle, with its own store file and a limited number of threads.
+     */
+    private fun createService(): CPKSignersService {
+        val storeFile = RegularFile { storeFile.toFile() }
+        val parameters = object : CPKSignersService.Parameters {
+            override val storeFile: RegularFileProperty = propertyOf(RegularFileProperty::class.java, storeFile)
+            override val maxWorkers: Property<Int> = propertyOf(Property::class.java, MAX_WORKERS)
+        }
+        return object : CPKSignersService() {
+            override fun getParameters() = parameters
+        }
+    }
+
+    /**
+     * Enough entries that each CPK is verified in more than one slice.
+     */
+    private fun writeSignedCpk(alias: String, lastModified: Long) {
+        val manifest = Manifest().apply {
+            mainAttributes[MANIFEST_VERSION] = "1.0"
+        }
+        JarOutputStream(Files.newOutputStream(cpk), manifest).use { output ->
+            for (idx in 0 until ENTRY_COUNT) {
+                output.putNextEntry(ZipEntry("com/example/$alias/Entry$idx.txt"))
+                output.write("$alias-$idx".toByteArray())
+                output.closeEntry()
+            }
+        }
+        run(jdkTool("jarsigner"), "-keystore", keyStore.toString(), "-storetype", "PKCS12",
+            "-storepass", PASSWORD, "-keypass", PASSWORD, cpk.toString(), alias)
+        Files.setLastModifiedTime(cpk, FileTime.fromMillis(lastModified))
+    }
+
+    private fun signerNamesOf(signers: CPKSignersService.Signers): List<String> {
+        assertThat(signers.unsignedEntries).isEmpty()
+        assertThat(signers.certificates).hasSize(1)
+        return signers.certificates.single().map { (it as X509Certificate).subjectX500Principal.name }
+    }
+
+    private fun CPKSignersService.signersOf(cpk: Path, digestCache: DigestCache): CPKSignersService.Signers {
+        return signersOf(setOf(cpk.toFile()), digestCache).getValue(cpk.toFile())
+    }
+
+    @Test
+    fun testSignersOfRemoteCpk() {
+        val lastModified = System.currentTimeMillis() - 60_000
+        writeSignedCpk("alice", lastModified)
+
+        // A cold cache must verify the CPK.
+        DigestCache(digestStoreFile).also { digestCache ->
+            createService().use { service ->
+                assertThat(signerNamesOf(service.signersOf(cpk, digestCache))).containsExactly("CN=alice")
+                assertThat(Thread.getAllStackTraces().keys.filter { it.name.startsWith("cpk-verifier-") })
+                    .isNotEmpty.hasSizeLessThanOrEqualTo(MAX_WORKERS)
+            }
+        }.save()
+
+        // A warm cache must not even open the CPK, whose digest is still cached.
+        val size = Files.size(cpk)
+        Files.write(cpk, ByteArray(size.toInt()))
+        Files.setLastModifiedTime(cpk, FileTime.fromMillis(lastModified))
+        createService().use { service ->
+            assertThat(signerNamesOf(service.signersOf(cpk, DigestCache(digestStoreFile)))).containsExactly("CN=alice")
+        }
+
+        // A different CPK at the same path has a different digest, and so must be verified again.
+        writeSignedCpk("bob", lastModified + 2_000)
+        createService().use { service ->
+            assertThat(signerNamesOf(service.signersOf(cpk, DigestCache(digestStoreFile)))).containsExactly("CN=bob")
+        }
+    }
+}
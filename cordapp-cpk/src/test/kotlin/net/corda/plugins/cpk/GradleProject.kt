@@ -253,6 +253,14 @@ class GradleProject(private val projectDir: Path, private val reporter: TestRepo
         return this
     }
 
+    /**
+     * Builds this project again, when some of its tasks may now be up-to-date.
+     */
+    fun rebuild(vararg args: String): GradleProject {
+        configureGradle(GradleRunner::build, args)
+        return this
+    }
+
     fun buildAndFail(vararg args: String): GradleProject {
         configureGradle(GradleRunner::buildAndFail, args)
         return this
@@ -0,0 +1,72 @@
+package net.corda.plugins.cpk
+
+import org.assertj.core.api.Assertions.assertThat
+import org.gradle.testkit.runner.TaskOutcome.SUCCESS
+import org.gradle.testkit.runner.TaskOutcome.UP_TO_DATE
+import org.junit.jupiter.api.BeforeAll
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestReporter
+import org.junit.jupiter.api.io.TempDir
+import java.nio.file.Path
+
+class IncrementalCordappTest {
+    companion object {
+        private const val cordappVersion = "1.0.1-SNAPSHOT"
+        private const val otherCommonsIoVersion = "2.10.0"
+
+        private lateinit var testProject: GradleProject
+
+        @Suppress("unused")
+        @BeforeAll
+        @JvmStatic
+        fun setup(@TempDir testProjectDir: Path, reporter: TestReporter) {
+            val args = argsFor(commonsIoVersion)
+            testProject = simpleCordapp(testProjectDir, reporter)
+                .build(*args)
+                .rebuild(*args)
+        }
+
+        private fun simpleCordapp(testProjectDir: Path, reporter: TestReporter): GradleProject {
+            return GradleProject(testProjectDir, reporter)
+                .withTestName("simple-cordapp")
+                .withSubResource("src/main/java/com/example/contract/ExampleContract.java")
+        }
+
+        private fun argsFor(commonsIoVersion: String) = arrayOf(
+            "-Pcordapp_contract_version=$expectedCordappContractVersion",
+            "-Pcommons_io_version=$commonsIoVersion",
+            "-Pcorda_api_version=$cordaApiVersion",
+            "-Pcordapp_version=$cordappVersion"
+        )
+    }
+
+    @Test
+    fun dependenciesAreUpToDate() {
+        assertThat(testProject.outcomeOf("cordappDependencyCalculator")).isEqualTo(UP_TO_DATE)
+        assertThat(testProject.outcomeOf("cordappDependencyConstraints")).isEqualTo(UP_TO_DATE)
+
+        assertThat(testProject.dependencyConstraints)
+            .anyMatch { it.fileName == "commons-io-$commonsIoVersion.jar" }
+            .hasSize(1)
+    }
+
+    @Test
+    fun changedDependencyVersionIsRecalculated(@TempDir testProjectDir: Path, reporter: TestReporter) {
+        val project = simpleCordapp(testProjectDir, reporter)
+            .build(*argsFor(commonsIoVersion))
+        assertThat(project.dependencyConstraints)
+            .anyMatch { it.fileName == "commons-io-$commonsIoVersion.jar" }
+            .hasSize(1)
+        val constraintsHash = project.dependencyConstraintsHash
+
+        // The build script now declares a different version of the same dependency.
+        project.rebuild(*argsFor(otherCommonsIoVersion))
+        assertThat(project.outcomeOf("cordappDependencyCalculator")).isEqualTo(SUCCESS)
+        assertThat(project.outcomeOf("cordappDependencyConstraints")).isEqualTo(SUCCESS)
+
+        assertThat(project.dependencyConstraints)
+            .anyMatch { it.fileName == "commons-io-$otherCommonsIoVersion.jar" }
+            .hasSize(1)
+        assertThat(project.dependencyConstraintsHash).isNotEqualTo(constraintsHash)
+    }
+}
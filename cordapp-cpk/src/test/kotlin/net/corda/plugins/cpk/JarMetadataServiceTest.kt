@@ -0,0 +1,102 @@
+package net.corda.plugins.cpk
+
+import org.assertj.core.api.Assertions.assertThat
+import org.gradle.api.services.BuildServiceParameters
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.io.ByteArrayOutputStream
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.FileTime
+import java.util.jar.Attributes.Name.MANIFEST_VERSION
+import java.util.jar.JarFile.MANIFEST_NAME
+import java.util.jar.Manifest
+import java.util.zip.CRC32
+import java.util.zip.ZipEntry
+import java.util.zip.ZipEntry.STORED
+import java.util.zip.ZipOutputStream
+
+class JarMetadataServiceTest {
+    private companion object {
+        private const val VERSION_ATTRIBUTE = "Test-Version"
+    }
+
+    @TempDir
+    lateinit var testDir: Path
+
+    private val service = object : JarMetadataService() {
+        override fun getParameters(): BuildServiceParameters.None = throw UnsupportedOperationException()
+    }
+
+    /**
+     * Stores the manifest uncompressed, so that versions of the same
+     * length always give jars of the same size.
+     */
+    private fun writeJar(jar: Path, version: String, lastModified: Long) {
+        val manifest = Manifest().apply {
+            mainAttributes[MANIFEST_VERSION] = "1.0"
+            mainAttributes.putValue(VERSION_ATTRIBUTE, version)
+        }
+        val bytes = ByteArrayOutputStream().also(manifest::write).toByteArray()
+        val entry = ZipEntry(MANIFEST_NAME).apply {
+            method = STORED
+            size = bytes.size.toLong()
+            crc = CRC32().apply { update(bytes) }.value
+            time = 0
+        }
+        ZipOutputStream(Files.newOutputStream(jar)).use { output ->
+            output.putNextEntry(entry)
+            output.write(bytes)
+            output.closeEntry()
+        }
+        Files.setLastModifiedTime(jar, FileTime.fromMillis(lastModified))
+    }
+
+    private fun versionOf(jar: Path): String? = service.manifestOf(jar.toFile()).mainAttributes.getValue(VERSION_ATTRIBUTE)
+
+    @Test
+    fun testUnchangedJarIsReadOnce() {
+        val jar = testDir.resolve("unchanged.jar")
+        val lastModified = System.currentTimeMillis() - 60_000
+        writeJar(jar, "1", lastModified)
+        assertThat(versionOf(jar)).isEqualTo("1")
+
+        // A jar with the same size and timestamp looks unchanged.
+        writeJar(jar, "2", lastModified)
+        assertThat(versionOf(jar)).isEqualTo("1")
+    }
+
+    @Test
+    fun testCallerCannotModifyCachedManifest() {
+        val jar = testDir.resolve("copy.jar")
+        writeJar(jar, "1", System.currentTimeMillis() - 60_000)
+        service.manifestOf(jar.toFile()).mainAttributes.putValue(VERSION_ATTRIBUTE, "modified")
+        assertThat(versionOf(jar)).isEqualTo("1")
+    }
+
+    @Test
+    fun testJarRewrittenWithNewTimestampIsReadAgain() {
+        val jar = testDir.resolve("timestamp.jar")
+        val lastModified = System.currentTimeMillis() - 60_000
+        writeJar(jar, "1", lastModified)
+        assertThat(versionOf(jar)).isEqualTo("1")
+        val size = Files.size(jar)
+
+        writeJar(jar, "2", lastModified + 2_000)
+        assertThat(Files.size(jar)).isEqualTo(size)
+        assertThat(versionOf(jar)).isEqualTo("2")
+    }
+
+    @Test
+    fun testJarRewrittenWithNewSizeIsReadAgain() {
+        val jar = testDir.resolve("size.jar")
+        val lastModified = System.currentTimeMillis() - 60_000
+        writeJar(jar, "1", lastModified)
+        assertThat(versionOf(jar)).isEqualTo("1")
+        val size = Files.size(jar)
+
+        writeJar(jar, "1.0.0-SNAPSHOT", lastModified)
+        assertThat(Files.size(jar)).isNotEqualTo(size)
+        assertThat(versionOf(jar)).isEqualTo("1.0.0-SNAPSHOT")
+    }
+}
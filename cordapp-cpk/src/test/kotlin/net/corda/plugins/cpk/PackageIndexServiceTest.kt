@@ -0,0 +1,116 @@
+package net.corda.plugins.cpk
+
+import aQute.bnd.osgi.Constants.EXPORT_PACKAGE
+import net.corda.plugins.cpk.digest.DigestCache
+import org.assertj.core.api.Assertions.assertThat
+import org.gradle.api.file.RegularFile
+import org.gradle.api.file.RegularFileProperty
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import org.junit.jupiter.api.io.TempDir
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.IOException
+import java.lang.reflect.Proxy
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.FileTime
+import java.util.jar.Attributes.Name.MANIFEST_VERSION
+import java.util.jar.JarOutputStream
+import java.util.jar.Manifest
+import java.util.zip.ZipEntry
+
+class PackageIndexServiceTest {
+    @TempDir
+    lateinit var testDir: Path
+
+    private lateinit var storeFile: Path
+    private lateinit var digestStoreFile: Path
+    private lateinit var jar: Path
+
+    /**
+     * A service outside of Gradle, whose only parameter is its store file.
+     */
+    private fun createService(): PackageIndexService {
+        val storeFileProperty = Proxy.newProxyInstance(javaClass.classLoader, arrayOf(RegularFileProperty::class.java)) { _, method, _ ->
+            if (method.name == "get") {
+                RegularFile { storeFile.toFile() }
+            } else {
+                throw UnsupportedOperationException(method.name)
+            }
+        } as RegularFileProperty
+        val parameters = object : PackageIndexService.Parameters {
+            override val storeFile = storeFileProperty
+        }
+        return object : PackageIndexService() {
+            override fun getParameters() = parameters
+        }
+    }
+
+    @BeforeEach
+    fun setup() {
+        storeFile = testDir.resolve("index/packages.bin")
+        digestStoreFile = testDir.resolve("digests/digests.bin")
+        jar = testDir.resolve("library.jar")
+        val manifest = Manifest().apply {
+            mainAttributes[MANIFEST_VERSION] = "1.0"
+            mainAttributes.putValue(EXPORT_PACKAGE, "com.example.api")
+        }
+        JarOutputStream(Files.newOutputStream(jar), manifest).use { output ->
+            for (entryName in listOf("com/example/api/Api.class", "com/example/impl/Impl.class")) {
+                output.putNextEntry(ZipEntry(entryName))
+                output.write(byteArrayOf(0xCA.toByte(), 0xFE.toByte(), 0xBA.toByte(), 0xBE.toByte()))
+                output.closeEntry()
+            }
+        }
+        Files.setLastModifiedTime(jar, FileTime.fromMillis(System.currentTimeMillis() - 60_000))
+
+        // Index the jar, and save both the index and the jar's digest.
+        val digestCache = DigestCache(digestStoreFile)
+        createService().use { service ->
+            assertIndexOfLibrary(service.indexOf(jar.toFile(), digestCache))
+        }
+        digestCache.save()
+
+        // The jar's digest still matches its size and timestamp, but it is no longer a jar.
+        val lastModified = Files.getLastModifiedTime(jar)
+        Files.write(jar, ByteArray(Files.size(jar).toInt()))
+        Files.setLastModifiedTime(jar, lastModified)
+    }
+
+    private fun assertIndexOfLibrary(index: PackageIndexService.JarIndex) {
+        assertThat(index.packages).containsExactlyInAnyOrder("com.example.api", "com.example.impl")
+        assertThat(index.exportPackage).isEqualTo("com.example.api")
+    }
+
+    @Test
+    fun testReloadedIndexDoesNotOpenJar() {
+        createService().use { service ->
+            assertIndexOfLibrary(service.indexOf(jar.toFile(), DigestCache(digestStoreFile)))
+        }
+    }
+
+    @Test
+    fun testIndexFromOtherCodeIsDiscarded() {
+        val (formatVersion, analysisHash, contents) = DataInputStream(Files.newInputStream(storeFile)).use { input ->
+            Triple(input.readInt(), input.readUTF(), input.readBytes())
+        }
+        assertThat(analysisHash).isEqualTo(PackageIndexService.analysisHash)
+        Files.write(storeFile, ByteArrayOutputStream().also { bytes ->
+            DataOutputStream(bytes).use { output ->
+                output.writeInt(formatVersion)
+                output.writeUTF("other code")
+                output.write(contents)
+            }
+        }.toByteArray())
+
+        // The service must open the jar again, which is no longer a jar.
+        createService().use { service ->
+            assertThrows<IOException> {
+                service.indexOf(jar.toFile(), DigestCache(digestStoreFile))
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package net.corda.plugins.cpk
+
+import org.assertj.core.api.Assertions.assertThat
+import org.gradle.testkit.runner.TaskOutcome.SUCCESS
+import org.junit.jupiter.api.BeforeAll
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestReporter
+import org.junit.jupiter.api.io.TempDir
+import java.nio.file.Path
+
+class VerifyBundleConventionTest {
+    companion object {
+        private const val cordappVersion = "1.0.7-SNAPSHOT"
+
+        private lateinit var testProject: GradleProject
+
+        @Suppress("unused")
+        @BeforeAll
+        @JvmStatic
+        fun setup(@TempDir testProjectDir: Path, reporter: TestReporter) {
+            testProject = GradleProject(testProjectDir, reporter)
+                .withTestName("verify-bundle-convention")
+                .withSubResource("src/main/java/com/example/convention/Convention.java")
+                .build(
+                    "-Pcordapp_contract_version=$expectedCordappContractVersion",
+                    "-Pcordapp_version=$cordappVersion"
+                )
+        }
+    }
+
+    @Test
+    fun verifyBundleWithConventionalServices() {
+        assertThat(testProject.outcomeOf("verifyJar")).isEqualTo(SUCCESS)
+        assertThat(testProject.outcomeOf("verifyBundle")).isEqualTo(SUCCESS)
+    }
+}
@@ -0,0 +1,202 @@
+package net.corda.plugins.cpk.digest
+
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.io.DataOutputStream
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.FileTime
+import java.security.MessageDigest
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit.DAYS
+import java.util.concurrent.TimeUnit.SECONDS
+import java.util.zip.CRC32
+
+class DigestCacheTest {
+    private companion object {
+        private const val SHA256 = "SHA-256"
+        private const val FORMAT_VERSION = 2
+        private val FAKE_DIGEST = ByteArray(32) { 0x5A }
+
+        private fun sha256(data: ByteArray): ByteArray = MessageDigest.getInstance(SHA256).digest(data)
+    }
+
+    @TempDir
+    lateinit var testDir: Path
+
+    private lateinit var storeFile: Path
+
+    @BeforeEach
+    fun setup() {
+        storeFile = testDir.resolve("store/digests.bin")
+    }
+
+    /**
+     * Creates a file whose timestamp is old enough for the cache to trust.
+     */
+    private fun createFile(name: String, contents: String): Path {
+        val file = testDir.resolve(name)
+        Files.write(file, contents.toByteArray())
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() - SECONDS.toMillis(60)))
+        return file
+    }
+
+    /**
+     * Changes the file's contents without changing its size or timestamp, so that
+     * only a cache that hashes the file again will notice.
+     */
+    private fun rewriteKeepingAttributes(file: Path, contents: String) {
+        val lastModified = Files.getLastModifiedTime(file)
+        assertThat(contents.length).isEqualTo(Files.size(file))
+        Files.write(file, contents.toByteArray())
+        Files.setLastModifiedTime(file, lastModified)
+    }
+
+    private fun DigestCache.sha256Of(file: Path): ByteArray = digestOf(file.toFile(), SHA256)
+
+    @Test
+    fun testReloadedCacheReusesDigests() {
+        val file = createFile("reload.txt", "original")
+        DigestCache(storeFile).apply {
+            assertThat(sha256Of(file)).isEqualTo(sha256("original".toByteArray()))
+            save()
+        }
+
+        rewriteKeepingAttributes(file, "modified")
+        assertThat(DigestCache(storeFile).sha256Of(file)).isEqualTo(sha256("original".toByteArray()))
+    }
+
+    @Test
+    fun testChangedTimestampOrSizeIsHashedAgain() {
+        val file = createFile("changed.txt", "original")
+        val cache = DigestCache(storeFile)
+        cache.sha256Of(file)
+
+        Files.write(file, "longer contents".toByteArray())
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() - SECONDS.toMillis(60)))
+        assertThat(cache.sha256Of(file)).isEqualTo(sha256("longer contents".toByteArray()))
+
+        rewriteKeepingAttributes(file, "new contents!!!")
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() - SECONDS.toMillis(30)))
+        assertThat(cache.sha256Of(file)).isEqualTo(sha256("new contents!!!".toByteArray()))
+    }
+
+    @Test
+    fun testRecentlyModifiedFileIsHashedAgain() {
+        // This timestamp is too close to now for the cache to know whether the file changes afterwards.
+        val file = testDir.resolve("recent.txt")
+        Files.write(file, "original".toByteArray())
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()))
+        val cache = DigestCache(storeFile)
+        assertThat(cache.sha256Of(file)).isEqualTo(sha256("original".toByteArray()))
+
+        rewriteKeepingAttributes(file, "modified")
+        assertThat(cache.sha256Of(file)).isEqualTo(sha256("modified".toByteArray()))
+    }
+
+    @Test
+    fun testCrc32AndDigestInOneRead() {
+        val file = createFile("crc.txt", "some contents to check")
+        val digests = DigestCache(storeFile).digestsOf(file.toFile(), listOf(DigestCache.CRC32, SHA256))
+
+        val crc32 = CRC32().apply { update("some contents to check".toByteArray()) }
+        assertThat(digests.keys).containsExactly(DigestCache.CRC32, SHA256)
+        assertThat(digests[DigestCache.CRC32]).isEqualTo(ByteBuffer.allocate(Int.SIZE_BYTES).putInt(crc32.value.toInt()).array())
+        assertThat(digests[SHA256]).isEqualTo(sha256("some contents to check".toByteArray()))
+    }
+
+    @Test
+    fun testConcurrentSavesAreMerged() {
+        val files = (0 until 8).map { idx -> createFile("concurrent-$idx.txt", "contents-$idx") }
+        val caches = files.map { file -> DigestCache(storeFile).apply { sha256Of(file) } }
+
+        val executor = Executors.newFixedThreadPool(caches.size)
+        try {
+            val ready = CountDownLatch(caches.size)
+            val saves = caches.map { cache ->
+                executor.submit {
+                    ready.countDown()
+                    ready.await()
+                    cache.save()
+                }
+            }
+            saves.forEach { it.get(30, SECONDS) }
+        } finally {
+            executor.shutdownNow()
+        }
+
+        files.forEachIndexed { idx, file -> rewriteKeepingAttributes(file, "modified-$idx") }
+        val reloaded = DigestCache(storeFile)
+        files.forEachIndexed { idx, file ->
+            assertThat(reloaded.sha256Of(file)).isEqualTo(sha256("contents-$idx".toByteArray()))
+        }
+    }
+
+    @Test
+    fun testSaveDiscardsDeletedFiles() {
+        val kept = createFile("kept.txt", "kept")
+        val deleted = createFile("deleted.txt", "original")
+        val lastModified = Files.getLastModifiedTime(deleted)
+        DigestCache(storeFile).apply {
+            sha256Of(kept)
+            sha256Of(deleted)
+            Files.delete(deleted)
+            save()
+        }
+
+        Files.write(deleted, "modified".toByteArray())
+        Files.setLastModifiedTime(deleted, lastModified)
+        assertThat(DigestCache(storeFile).sha256Of(deleted)).isEqualTo(sha256("modified".toByteArray()))
+    }
+
+    @Test
+    fun testSaveDiscardsUnusedEntries() {
+        val unused = createFile("unused.txt", "unused")
+        val recent = createFile("recent.txt", "recent")
+        val now = System.currentTimeMillis()
+        for (file in listOf(unused, recent)) {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(now - DAYS.toMillis(40)))
+        }
+        writeStoreFile(mapOf(
+            unused to now - DAYS.toMillis(31),
+            recent to now - DAYS.toMillis(29)
+        ))
+
+        // Saving any change rewrites the store file without the entry that nothing has used for too long.
+        DigestCache(storeFile).apply {
+            sha256Of(createFile("other.txt", "other"))
+            save()
+        }
+
+        val reloaded = DigestCache(storeFile)
+        assertThat(reloaded.sha256Of(unused)).isEqualTo(sha256("unused".toByteArray()))
+        assertThat(reloaded.sha256Of(recent)).isEqualTo(FAKE_DIGEST)
+    }
+
+    /**
+     * Writes an entry with a fake digest for each file, which the cache
+     * would return instead of hashing the file if it kept the entry.
+     */
+    private fun writeStoreFile(lastUsed: Map<Path, Long>) {
+        Files.createDirectories(storeFile.parent)
+        DataOutputStream(Files.newOutputStream(storeFile)).use { output ->
+            output.writeInt(FORMAT_VERSION)
+            output.writeInt(lastUsed.size)
+            for ((file, used) in lastUsed) {
+                val path = file.toAbsolutePath().normalize()
+                val lastModified = Files.getLastModifiedTime(path).toMillis()
+                output.writeUTF("$SHA256\u0000$path")
+                output.writeLong(Files.size(path))
+                output.writeLong(lastModified)
+                output.writeLong(lastModified + SECONDS.toMillis(10))
+                output.writeLong(used)
+                output.writeShort(FAKE_DIGEST.size)
+                output.write(FAKE_DIGEST)
+            }
+        }
+    }
+}
@@ -0,0 +1,7 @@
+package com.example.convention;
+
+public final class Convention {
+    public String getName() {
+        return "convention";
+    }
+}
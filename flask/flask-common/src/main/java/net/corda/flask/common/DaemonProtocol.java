@@ -0,0 +1,167 @@
+package net.corda.flask.common;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The protocol between a launcher and a Flask daemon. The launcher first sends the daemon's token,
+ * and the daemon answers {@link #READY} if it will accept a request. The launcher then sends its
+ * request, which the daemon either answers {@link #ACCEPTED} or {@link #REJECTED}. After that,
+ * the launcher forwards its standard input as {@link #STDIN} frames, and the daemon forwards the
+ * application's output as {@link #STDOUT} and {@link #STDERR} frames, until it sends {@link #EXIT}.
+ * <p>
+ * Every frame is a type byte followed by a length and that many bytes, except for {@link #EXIT}
+ * which is followed by the exit code. A {@link #STDIN} frame with a negative length closes the
+ * application's standard input.
+ */
+public final class DaemonProtocol {
+    public static final byte READY = 0;
+    public static final byte ACCEPTED = 1;
+    public static final byte REJECTED = 2;
+    public static final byte STDIN = 3;
+    public static final byte STDOUT = 4;
+    public static final byte STDERR = 5;
+    public static final byte EXIT = 6;
+
+    /**
+     * The keys of the daemon's properties file, which tells launchers how to connect to it.
+     */
+    public static final String PORT = "port";
+    public static final String TOKEN = "token";
+
+    public static final class Request {
+        private final List<String> args;
+        private final String workingDirectory;
+        private final Map<String, String> environment;
+
+        public Request(List<String> args, String workingDirectory, Map<String, String> environment) {
+            this.args = args;
+            this.workingDirectory = workingDirectory;
+            this.environment = new TreeMap<>(environment);
+        }
+
+        public List<String> getArgs() {
+            return args;
+        }
+
+        public String getWorkingDirectory() {
+            return workingDirectory;
+        }
+
+        public Map<String, String> getEnvironment() {
+            return environment;
+        }
+
+        public void write(DataOutputStream output) throws IOException {
+            output.writeInt(args.size());
+            for (String arg : args) {
+                writeString(output, arg);
+            }
+            writeString(output, workingDirectory);
+            output.writeInt(environment.size());
+            for (Map.Entry<String, String> entry : environment.entrySet()) {
+                writeString(output, entry.getKey());
+                writeString(output, entry.getValue());
+            }
+            output.flush();
+        }
+
+        public static Request read(DataInputStream input) throws IOException {
+            int argCount = input.readInt();
+            List<String> args = new ArrayList<>(argCount);
+            for (int i = 0; i < argCount; ++i) {
+                args.add(readString(input));
+            }
+            String workingDirectory = readString(input);
+            int environmentSize = input.readInt();
+            Map<String, String> environment = new TreeMap<>();
+            for (int i = 0; i < environmentSize; ++i) {
+                environment.put(readString(input), readString(input));
+            }
+            return new Request(args, workingDirectory, environment);
+        }
+    }
+
+    /**
+     * Writes everything as frames of a single type. Frames from different
+     * streams may share the same output, and so we lock the output.
+     */
+    public static final class FrameOutputStream extends OutputStream {
+        private final DataOutputStream output;
+        private final byte type;
+
+        public FrameOutputStream(DataOutputStream output, byte type) {
+            this.output = output;
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (length > 0) {
+                synchronized (output) {
+                    output.writeByte(type);
+                    output.writeInt(length);
+                    output.write(bytes, offset, length);
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (output) {
+                output.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (output) {
+                output.writeByte(type);
+                output.writeInt(-1);
+                output.flush();
+            }
+        }
+    }
+
+    /**
+     * This process's environment, without the variables that the macOS Java
+     * launcher defines for itself, which are different for every process.
+     */
+    public static Map<String, String> environment() {
+        Map<String, String> result = new TreeMap<>();
+        for (Map.Entry<String, String> entry : System.getenv().entrySet()) {
+            String name = entry.getKey();
+            if (!name.startsWith("JAVA_MAIN_CLASS_") && !name.startsWith("JAVA_STARTED_ON_FIRST_THREAD_")) {
+                result.put(name, entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    public static void writeString(DataOutputStream output, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    public static String readString(DataInputStream input) throws IOException {
+        byte[] bytes = new byte[input.readInt()];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private DaemonProtocol() {
+    }
+}
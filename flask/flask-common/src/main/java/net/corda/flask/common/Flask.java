@@ -31,10 +31,22 @@ public class Flask {
         public static final String METADATA_FOLDER = "META-INF";
         public static final String JVM_ARGUMENT_FILE = METADATA_FOLDER + "/jvmArgs.xml";
         public static final String JAVA_AGENTS_FILE = METADATA_FOLDER + "/javaAgents.xml";
+        public static final String PACKAGE_INDEX_FILE = METADATA_FOLDER + "/packageIndex.xml";
+        public static final String PACKAGE_INDEX_SEPARATOR = ",";
         public static final String CLI_JVM_PARAMETERS_PREFIX = "-flaskJvmArg=";
         public static final int BUFFER_SIZE = 0x10000;
         public static final String GRADLE_TASK_GROUP = "Flask";
         public static final String DEFAULT_KILL_TIMEOUT_MILLIS = "10000";
+        public static final String DEFAULT_CACHE_MAX_AGE_DAYS = "7";
+        public static final String DEFAULT_CACHE_EVICTION_INTERVAL_HOURS = "24";
+        public static final String DEFAULT_DAEMON_IDLE_TIMEOUT_SECONDS = "300";
+        public static final String DAEMON_MAIN_CLASS = "net.corda.flask.FlaskDaemon";
+
+        /**
+         * A pid file has this extra suffix until its owner has locked it and renamed it, because cache eviction
+         * deletes any pid file that nobody has locked. Eviction still keeps the libraries that it lists.
+         */
+        public static final String UNPUBLISHED_PID_FILE_SUFFIX = ".new";
 
         /**
          * This value is used as a default file timestamp for all the zip entries when
@@ -52,6 +64,11 @@ public class Flask {
         public static final String PREMAIN_CLASS = "Premain-Class";
         public static final String ENTRY_HASH = "SHA-256-Digest";
         public static final String HEARTBEAT_AGENT_HASH = "Heartbeat-Agent-Hash";
+        public static final String IN_PROCESS = "Launch-In-Process";
+        public static final String DAEMON = "Launch-Daemon";
+        public static final String RUNTIME_MODULES = "Runtime-Modules";
+        public static final String JVM_PROFILE = "Jvm-Profile";
+        public static final String HEAP_PERCENTAGE = "Heap-Percentage";
     }
 
     public static class JvmProperties {
@@ -73,6 +90,22 @@ public class Flask {
          */
         public static final String WIPE_CACHE = "net.corda.flask.cache.wipe";
 
+        /**
+         * This JVM property sets the maximum total size of the libraries in the cache directory,
+         * in bytes or with a 'k', 'm' or 'g' suffix. The cache size is unlimited by default
+         */
+        public static final String CACHE_MAX_SIZE = "net.corda.flask.cache.max.size";
+
+        /**
+         * This JVM property sets the number of days after which an unused library is evicted from the cache
+         */
+        public static final String CACHE_MAX_AGE_DAYS = "net.corda.flask.cache.max.age.days";
+
+        /**
+         * This JVM property sets the minimum number of hours between two evictions from the cache
+         */
+        public static final String CACHE_EVICTION_INTERVAL_HOURS = "net.corda.flask.cache.eviction.interval.hours";
+
         /**
          * This property will contain the name of the main class the child process Launcher will start
          */
@@ -83,11 +116,64 @@ public class Flask {
          */
         public static final String NO_JAVA_AGENT = "net.corda.flask.no.java.agent";
 
+        /**
+         * If this property is set to true, the child process will neither use nor create
+         * a class data sharing archive in the flask cache
+         */
+        public static final String NO_CDS = "net.corda.flask.no.cds";
+
+        /**
+         * If this property is set to true, the child process will run on the launcher's own Java runtime
+         * instead of on a minimal runtime image, even if the flask jar lists the modules for one
+         */
+        public static final String NO_JLINK = "net.corda.flask.no.jlink";
+
+        /**
+         * If this property is set, the launcher will append how long each phase of the launch took
+         * to the file it names, as a single line
+         */
+        public static final String TIMING_FILE = "net.corda.flask.timing.file";
+
+        /**
+         * This property will contain the name of the {@link JvmProfile} that sizes the child process,
+         * which overrides the flask jar's own, or "none" to leave the child process's JVM ergonomics alone
+         */
+        public static final String JVM_PROFILE = "net.corda.flask.jvm.profile";
+
+        /**
+         * If this property is set, the launcher will only prepare the child process's command line, for a
+         * flask jar's shell stub to run directly, and will write it to files whose names start with this path
+         */
+        public static final String EXEC_COMMAND = "net.corda.flask.exec.command";
+
+        /**
+         * If this property is set to true, the child process will lock its own pid file for as long as it runs,
+         * instead of watching the lock on its parent's, because it has no launcher that waits for it
+         */
+        public static final String PID_FILE_OWNER = "net.corda.flask.pid.file.owner";
+
         /**
          * This property will contain the amount of time the parent process will wait
          * for the child process termination before killing it forcibly
          */
         public static final String KILL_TIMEOUT_MILLIS = "net.corda.flask.kill.timeout.millis";
+
+        /**
+         * If this property is set to true, the application will run inside the launcher's own JVM,
+         * loading its classes directly from the flask jar. This overrides the flask jar's default.
+         */
+        public static final String IN_PROCESS = "net.corda.flask.in.process";
+
+        /**
+         * If this property is set to true, the application will run inside a long-lived daemon JVM,
+         * which the first launch starts and later launches reuse. This overrides the flask jar's default.
+         */
+        public static final String DAEMON = "net.corda.flask.daemon";
+
+        /**
+         * This JVM property sets the number of seconds after which an idle daemon JVM exits
+         */
+        public static final String DAEMON_IDLE_TIMEOUT_SECONDS = "net.corda.flask.daemon.idle.timeout.seconds";
     }
 
     public static void computeSizeAndCrc32(
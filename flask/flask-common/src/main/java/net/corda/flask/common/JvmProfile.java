@@ -0,0 +1,54 @@
+package net.corda.flask.common;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.stream.Collectors;
+
+/**
+ * How the launcher sizes the child JVM for the memory and processors that it finds at launch,
+ * including any container limits. Each profile chooses a garbage collector and the share of
+ * memory that the heap may use.
+ */
+public enum JvmProfile {
+    /**
+     * A small heap and the serial collector, for many small instances on the same host.
+     */
+    FOOTPRINT(50),
+
+    /**
+     * A large heap and the parallel collector, for batch jobs.
+     */
+    THROUGHPUT(75),
+
+    /**
+     * A large, fixed-size heap and the G1 collector, for services with short pauses.
+     */
+    LATENCY(75);
+
+    private final int heapPercentage;
+
+    JvmProfile(int heapPercentage) {
+        this.heapPercentage = heapPercentage;
+    }
+
+    /**
+     * The default share of memory, in percent, that the heap may use.
+     */
+    public int getHeapPercentage() {
+        return heapPercentage;
+    }
+
+    public String getName() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+
+    public static JvmProfile forName(String name) {
+        for (JvmProfile profile : values()) {
+            if (profile.getName().equalsIgnoreCase(name)) {
+                return profile;
+            }
+        }
+        throw new IllegalArgumentException(String.format("Unknown JVM profile '%s', expected one of [%s]", name,
+            Arrays.stream(values()).map(JvmProfile::getName).collect(Collectors.joining(", "))));
+    }
+}
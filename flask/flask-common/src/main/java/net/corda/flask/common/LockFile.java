@@ -11,6 +11,13 @@ import java.util.EnumSet;
 
 public class LockFile implements Closeable {
 
+    /**
+     * Every lock covers only this single byte, which lies far beyond the end of any file that we lock.
+     * Windows locks are mandatory, and so this still lets other processes read the libraries that a
+     * locked pid file lists.
+     */
+    private static final long LOCK_POSITION = Long.MAX_VALUE - 1;
+
     private final FileLock lock;
 
     private static FileChannel openFileChannel(Path path) throws IOException {
@@ -20,19 +27,52 @@ public class LockFile implements Closeable {
 
     public static LockFile acquire(Path path, boolean shared) throws IOException {
         FileChannel channel = openFileChannel(path);
-        return new LockFile(channel.lock(0L, Long.MAX_VALUE, shared));
+        return new LockFile(channel.lock(LOCK_POSITION, 1L, shared));
+    }
+
+    /**
+     * Creates a new file and locks it exclusively through the same channel,
+     * so that no other process can lock the file before we do.
+     * @throws java.nio.file.FileAlreadyExistsException if the file already exists
+     */
+    public static LockFile create(Path path) throws IOException {
+        Files.createDirectories(path.getParent());
+        FileChannel channel = FileChannel.open(path, EnumSet.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        try {
+            return new LockFile(channel.lock(LOCK_POSITION, 1L, false));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
     }
 
     public static LockFile tryAcquire(Path path, boolean shared) throws IOException {
         FileChannel channel = openFileChannel(path);
-        FileLock lock = channel.tryLock(0L, Long.MAX_VALUE, shared);
-        return (lock != null) ? new LockFile(lock) : null;
+        FileLock lock;
+        try {
+            lock = channel.tryLock(LOCK_POSITION, 1L, shared);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        if (lock == null) {
+            channel.close();
+            return null;
+        }
+        return new LockFile(lock);
     }
 
     private LockFile(FileLock lock) {
         this.lock = lock;
     }
 
+    /**
+     * The channel of the locked file, which the lock holder may use to write its contents.
+     */
+    public FileChannel getChannel() {
+        return lock.channel();
+    }
+
     @Override
     public void close() throws IOException {
         lock.channel().close();
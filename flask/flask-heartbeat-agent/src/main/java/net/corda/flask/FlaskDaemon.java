@@ -0,0 +1,517 @@
+package net.corda.flask;
+
+import net.corda.flask.common.DaemonProtocol;
+import net.corda.flask.common.Flask;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.Permission;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * The main class of a Flask daemon, which is a long-lived JVM that runs the application's main method
+ * once for every launcher that connects to it. Its arguments are the application's main class, the
+ * daemon's properties file, its idle timeout in seconds and then any arguments to prepend to each
+ * request's own.
+ * <p>
+ * The daemon only listens on the loopback interface, and only accepts connections that present the
+ * token from its properties file, which only its owner can read. Each request runs inside its own
+ * {@link ThreadGroup}, which every thread that it starts inherits. The standard streams of a thread
+ * belong to the request of its thread group, and a security manager turns the request's calls to
+ * {@link System#exit} into its exit code. Just like a JVM, a request only exits once it has called
+ * {@link System#exit} or has no non-daemon threads left. The daemon exits once it has been idle for
+ * its timeout, or as soon as it is idle if its properties file has been deleted or replaced.
+ */
+public final class FlaskDaemon {
+    private static final long WATCHDOG_INTERVAL_MILLIS = 1000;
+    private static final long THREAD_JOIN_MILLIS = 100;
+    private static final int MAX_TOKEN_LENGTH = 1024;
+
+    /**
+     * The daemon's own standard error, which the launcher redirects to the daemon's log.
+     */
+    private static final PrintStream log = System.err;
+
+    private static final class Session {
+        final InputStream stdin;
+        final PrintStream stdout;
+        final PrintStream stderr;
+        final CompletableFuture<Integer> exitCode = new CompletableFuture<>();
+
+        Session(InputStream stdin, OutputStream stdout, OutputStream stderr) {
+            this.stdin = stdin;
+            this.stdout = new PrintStream(new BufferedOutputStream(stdout, Flask.Constants.BUFFER_SIZE), true);
+            this.stderr = new PrintStream(new BufferedOutputStream(stderr, Flask.Constants.BUFFER_SIZE), true);
+        }
+    }
+
+    /**
+     * Java versions before 19 keep every thread group until it is destroyed, and so
+     * a group forgets its session once the request has finished.
+     */
+    private static final class SessionThreadGroup extends ThreadGroup {
+        volatile Session session;
+
+        SessionThreadGroup(String name, Session session) {
+            super(name);
+            this.session = session;
+        }
+    }
+
+    private static final Set<Session> activeSessions = ConcurrentHashMap.newKeySet();
+
+    private static SessionThreadGroup sessionGroupOf(Thread thread) {
+        for (ThreadGroup group = thread.getThreadGroup(); group != null; group = group.getParent()) {
+            if (group instanceof SessionThreadGroup) {
+                return (SessionThreadGroup) group;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Threads outside every request, such as the common {@link java.util.concurrent.ForkJoinPool}'s workers,
+     * and the pooled threads of a request that has finished, could be running a task for any request. We can
+     * only attribute their output to a request when there is exactly one, or else it goes to the daemon's log.
+     */
+    private static Session currentSession() {
+        SessionThreadGroup group = sessionGroupOf(Thread.currentThread());
+        Session session = group == null ? null : group.session;
+        if (session != null) {
+            return session;
+        }
+        Iterator<Session> sessions = activeSessions.iterator();
+        if (sessions.hasNext()) {
+            Session only = sessions.next();
+            if (!sessions.hasNext()) {
+                return only;
+            }
+        }
+        return null;
+    }
+
+    private static final class ExitException extends SecurityException {
+        private static final long serialVersionUID = 1L;
+
+        ExitException(int status) {
+            super("System.exit(" + status + ") inside a Flask daemon request");
+        }
+    }
+
+    /**
+     * Permits everything except a request exiting the whole daemon. The security manager is deprecated for
+     * removal, but it is still the only way to intercept {@link System#exit}, and so the launcher never
+     * starts a daemon on a Java version that no longer lets us install one.
+     */
+    @SuppressWarnings("removal")
+    private static final class ExitTrap extends SecurityManager {
+        @Override
+        public void checkPermission(Permission permission) {
+        }
+
+        @Override
+        public void checkPermission(Permission permission, Object context) {
+        }
+
+        @Override
+        public void checkExit(int status) {
+            SessionThreadGroup group = sessionGroupOf(Thread.currentThread());
+            Session session = group == null ? currentSession() : group.session;
+            if (session != null) {
+                session.exitCode.complete(status);
+                throw new ExitException(status);
+            } else if (group != null) {
+                // A thread from a request that has finished must not exit the daemon either.
+                throw new ExitException(status);
+            }
+        }
+    }
+
+    private static final class SessionOutputStream extends OutputStream {
+        private final OutputStream fallback;
+        private final Function<Session, OutputStream> selector;
+
+        SessionOutputStream(OutputStream fallback, Function<Session, OutputStream> selector) {
+            this.fallback = fallback;
+            this.selector = selector;
+        }
+
+        private OutputStream target() {
+            Session session = currentSession();
+            return session == null ? fallback : selector.apply(session);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            target().write(b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            target().write(bytes, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            target().flush();
+        }
+    }
+
+    private static final class SessionInputStream extends InputStream {
+        private final InputStream fallback;
+
+        SessionInputStream(InputStream fallback) {
+            this.fallback = fallback;
+        }
+
+        private InputStream target() {
+            Session session = currentSession();
+            return session == null ? fallback : session.stdin;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return target().read();
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            return target().read(bytes, offset, length);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return target().available();
+        }
+    }
+
+    private final Method mainMethod;
+    private final List<String> fixedArgs;
+    private final Path daemonFile;
+    private final long idleTimeoutNanos;
+    private final String token;
+    private final String workingDirectory = System.getProperty("user.dir");
+    private final Map<String, String> environment = DaemonProtocol.environment();
+    private final AtomicInteger requestCount = new AtomicInteger();
+
+    private final Object lock = new Object();
+    private int activeRequests;
+    private long idleSince = System.nanoTime();
+    private boolean shuttingDown;
+
+    private FlaskDaemon(Method mainMethod, List<String> fixedArgs, Path daemonFile, long idleTimeoutSeconds) {
+        this.mainMethod = mainMethod;
+        this.fixedArgs = fixedArgs;
+        this.daemonFile = daemonFile;
+        this.idleTimeoutNanos = TimeUnit.SECONDS.toNanos(idleTimeoutSeconds);
+        byte[] tokenBytes = new byte[32];
+        new SecureRandom().nextBytes(tokenBytes);
+        this.token = Flask.bytes2Hex(tokenBytes);
+    }
+
+    // Installing the ExitTrap is deprecated for removal too, see its comment.
+    @SuppressWarnings("removal")
+    public static void main(String[] args) throws Exception {
+        System.setIn(new SessionInputStream(System.in));
+        System.setOut(new PrintStream(new SessionOutputStream(System.out, session -> session.stdout), true));
+        System.setErr(new PrintStream(new SessionOutputStream(System.err, session -> session.stderr), true));
+        System.setSecurityManager(new ExitTrap());
+
+        // Loading and initialising the main class now is the reason for the daemon to exist.
+        Method mainMethod = Class.forName(args[0], true, ClassLoader.getSystemClassLoader()).getMethod("main", String[].class);
+        new FlaskDaemon(mainMethod, Arrays.asList(args).subList(3, args.length), Paths.get(args[1]), Long.parseLong(args[2])).serve();
+    }
+
+    private void serve() throws IOException {
+        ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        writeDaemonFile(serverSocket.getLocalPort());
+        Thread watchdog = new Thread(this::watch, "flask-daemon-watchdog");
+        watchdog.setDaemon(true);
+        watchdog.start();
+        log.printf("Flask daemon listening on port %d%n", serverSocket.getLocalPort());
+        while (true) {
+            Socket socket = serverSocket.accept();
+            Thread handler = new Thread(() -> handle(socket), "flask-daemon-request-" + requestCount.incrementAndGet());
+            handler.setDaemon(true);
+            handler.start();
+        }
+    }
+
+    /**
+     * Launchers consider the daemon to be ready as soon as this file exists, and so we write it
+     * atomically. Temporary files are only readable by their owner, which protects the token.
+     */
+    private void writeDaemonFile(int port) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(DaemonProtocol.PORT, Integer.toString(port));
+        properties.setProperty(DaemonProtocol.TOKEN, token);
+        Path tmpFile = Files.createTempFile(daemonFile.getParent(), null, ".tmp");
+        try {
+            try (OutputStream os = Files.newOutputStream(tmpFile)) {
+                Flask.storeProperties(properties, os);
+            }
+            Files.move(tmpFile, daemonFile, REPLACE_EXISTING, ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmpFile);
+        }
+    }
+
+    private boolean isCurrent() {
+        Properties properties = new Properties();
+        try (InputStream is = Files.newInputStream(daemonFile)) {
+            Flask.loadProperties(properties, is);
+        } catch (IOException e) {
+            return false;
+        }
+        return token.equals(properties.getProperty(DaemonProtocol.TOKEN));
+    }
+
+    private void watch() {
+        while (true) {
+            try {
+                Thread.sleep(WATCHDOG_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            boolean current = isCurrent();
+            synchronized (lock) {
+                if (activeRequests == 0 && (!current || System.nanoTime() - idleSince > idleTimeoutNanos)) {
+                    shuttingDown = true;
+                }
+            }
+            if (shuttingDown) {
+                if (current) {
+                    try {
+                        Files.deleteIfExists(daemonFile);
+                    } catch (IOException e) {
+                        e.printStackTrace(log);
+                    }
+                }
+                log.println(current ? "Flask daemon idle timeout expired" : "Flask daemon replaced or removed");
+                System.exit(0);
+            }
+        }
+    }
+
+    private boolean beginRequest() {
+        synchronized (lock) {
+            if (shuttingDown) {
+                return false;
+            }
+            ++activeRequests;
+            return true;
+        }
+    }
+
+    private void endRequest() {
+        synchronized (lock) {
+            --activeRequests;
+            idleSince = System.nanoTime();
+        }
+    }
+
+    private boolean authenticate(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        if (length < 0 || length > MAX_TOKEN_LENGTH) {
+            return false;
+        }
+        byte[] presented = new byte[length];
+        input.readFully(presented);
+        return MessageDigest.isEqual(presented, token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void handle(Socket socket) {
+        try (Socket ignored = socket) {
+            socket.setTcpNoDelay(true);
+            DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            if (!authenticate(input) || !beginRequest()) {
+                return;
+            }
+            try {
+                output.writeByte(DaemonProtocol.READY);
+                output.flush();
+                DaemonProtocol.Request request = DaemonProtocol.Request.read(input);
+                if (!workingDirectory.equals(request.getWorkingDirectory()) || !environment.equals(request.getEnvironment())) {
+                    output.writeByte(DaemonProtocol.REJECTED);
+                    output.flush();
+                    return;
+                }
+                output.writeByte(DaemonProtocol.ACCEPTED);
+                output.flush();
+                List<String> args = new ArrayList<>(fixedArgs);
+                args.addAll(request.getArgs());
+                int exitCode = run(args, input, output);
+                synchronized (output) {
+                    output.writeByte(DaemonProtocol.EXIT);
+                    output.writeInt(exitCode);
+                    output.flush();
+                }
+            } finally {
+                endRequest();
+            }
+        } catch (EOFException e) {
+            // The launcher went away.
+        } catch (Exception e) {
+            e.printStackTrace(log);
+        }
+    }
+
+    private int run(List<String> args, DataInputStream input, DataOutputStream output) throws IOException, InterruptedException {
+        PipedInputStream stdin = new PipedInputStream(Flask.Constants.BUFFER_SIZE);
+        PipedOutputStream stdinSink = new PipedOutputStream(stdin);
+        Session session = new Session(stdin,
+            new DaemonProtocol.FrameOutputStream(output, DaemonProtocol.STDOUT),
+            new DaemonProtocol.FrameOutputStream(output, DaemonProtocol.STDERR));
+        SessionThreadGroup group = new SessionThreadGroup(Thread.currentThread().getName(), session);
+        Thread mainThread = new Thread(group, () -> {
+            int exitCode = 0;
+            try {
+                mainMethod.invoke(null, (Object) args.toArray(new String[0]));
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof ExitException) {
+                    return;
+                }
+                e.getCause().printStackTrace(session.stderr);
+                exitCode = 1;
+            } catch (Exception e) {
+                e.printStackTrace(session.stderr);
+                exitCode = 1;
+            }
+            awaitNonDaemonThreads(group, session);
+            session.exitCode.complete(exitCode);
+        }, "main");
+        // Just like a JVM's main thread, whose threads are non-daemon unless they say otherwise.
+        mainThread.setDaemon(false);
+        mainThread.setContextClassLoader(ClassLoader.getSystemClassLoader());
+
+        Thread stdinPump = new Thread(() -> pumpStdin(input, stdinSink, session, mainThread), Thread.currentThread().getName() + "-stdin");
+        stdinPump.setDaemon(true);
+        activeSessions.add(session);
+        try {
+            mainThread.start();
+            stdinPump.start();
+            return session.exitCode.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            session.stdout.flush();
+            session.stderr.flush();
+            activeSessions.remove(session);
+            group.session = null;
+        }
+    }
+
+    /**
+     * Waits for the request's other non-daemon threads to finish, unless one of them calls {@link System#exit}
+     * first. We give up if the launcher disconnects, because then there is nobody to receive the exit code.
+     */
+    private static void awaitNonDaemonThreads(ThreadGroup group, Session session) {
+        Thread current = Thread.currentThread();
+        while (!session.exitCode.isDone()) {
+            Thread nonDaemon = null;
+            Thread[] threads = new Thread[group.activeCount() + 1];
+            int count = group.enumerate(threads, true);
+            for (int idx = 0; idx < count; ++idx) {
+                Thread thread = threads[idx];
+                if (thread != current && thread.isAlive() && !thread.isDaemon()) {
+                    nonDaemon = thread;
+                    break;
+                }
+            }
+            if (nonDaemon == null) {
+                return;
+            }
+            try {
+                nonDaemon.join(THREAD_JOIN_MILLIS);
+            } catch (InterruptedException e) {
+                current.interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Forwards the launcher's standard input to the request. If the launcher disconnects
+     * before the request has finished, then we interrupt the request's main thread.
+     */
+    private static void pumpStdin(DataInputStream input, PipedOutputStream stdinSink, Session session, Thread mainThread) {
+        boolean stdinOpen = true;
+        byte[] buffer = new byte[Flask.Constants.BUFFER_SIZE];
+        try {
+            while (true) {
+                byte type = input.readByte();
+                int length = input.readInt();
+                if (type != DaemonProtocol.STDIN) {
+                    throw new IOException("Unexpected frame type " + type);
+                } else if (length < 0) {
+                    stdinOpen = closeQuietly(stdinSink);
+                    continue;
+                }
+                while (length > 0) {
+                    int read = input.read(buffer, 0, Math.min(length, buffer.length));
+                    if (read < 0) {
+                        throw new EOFException();
+                    }
+                    length -= read;
+                    if (stdinOpen) {
+                        try {
+                            stdinSink.write(buffer, 0, read);
+                        } catch (IOException e) {
+                            // The request has stopped reading its standard input.
+                            stdinOpen = false;
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            closeQuietly(stdinSink);
+            if (!session.exitCode.isDone()) {
+                mainThread.interrupt();
+            }
+        }
+    }
+
+    private static boolean closeQuietly(OutputStream stream) {
+        try {
+            stream.close();
+        } catch (IOException ignored) {
+        }
+        return false;
+    }
+}
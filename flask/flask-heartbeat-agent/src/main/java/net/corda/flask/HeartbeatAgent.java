@@ -3,13 +3,38 @@ package net.corda.flask;
 import net.corda.flask.common.Flask;
 import net.corda.flask.common.LockFile;
 
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 
 public final class HeartbeatAgent {
-    public static void premain(String agentArgs) {
+
+    /**
+     * A daemon outlives the launcher that started it, and a shell stub replaces itself with its application's JVM,
+     * and so neither has a launcher whose pid file it could watch. Instead, they hold the lock on their own pid file,
+     * for as long as they run. This protects their libraries from cache eviction. The pid file is created under a
+     * name that eviction never deletes, and we only rename it into place once we hold its lock.
+     */
+    private static LockFile ownerLock;
+
+    public static void premain(String agentArgs) throws IOException {
         Path pidFile = Paths.get(System.getProperty(Flask.JvmProperties.PID_FILE));
+        if (Boolean.getBoolean(Flask.JvmProperties.PID_FILE_OWNER)) {
+            Path unpublishedPidFile = pidFile.resolveSibling(pidFile.getFileName() + Flask.Constants.UNPUBLISHED_PID_FILE_SUFFIX);
+            ownerLock = LockFile.acquire(unpublishedPidFile, false);
+            Files.move(unpublishedPidFile, pidFile, StandardCopyOption.ATOMIC_MOVE);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    ownerLock.close();
+                    Files.deleteIfExists(pidFile);
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }));
+            return;
+        }
         Thread t = new Thread(() -> {
             try {
                 LockFile.acquire(pidFile, true);
@@ -0,0 +1,11 @@
+package net.corda.flask.launcher;
+
+/**
+ * The application inside the benchmark's flask jars, which does nothing so that
+ * each measurement is of the launch alone.
+ */
+public class BenchmarkApplication {
+
+    public static void main(String[] args) {
+    }
+}
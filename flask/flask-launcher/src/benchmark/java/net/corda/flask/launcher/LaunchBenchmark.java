@@ -0,0 +1,346 @@
+package net.corda.flask.launcher;
+
+import net.corda.flask.common.Flask;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+/**
+ * Measures how long the launcher takes to start an application from a flask jar, for a cold cache,
+ * a warm cache, several launches at once from a cold cache, and a daemon. The flask jars are built
+ * from the launcher's own classes and a number of synthetic libraries, and the application does nothing.
+ * <p>
+ * Arguments: the working directory, the number of libraries and the number of launches per scenario.
+ */
+public class LaunchBenchmark {
+    private static final String LAUNCHER_CLASSPATH = "launchBenchmark.launcher.classpath";
+    private static final String HEARTBEAT_AGENT_JAR = "launchBenchmark.heartbeat.agent.jar";
+    private static final String LAUNCHER_CLASS = "net.corda.flask.launcher.Launcher";
+    private static final int RESOURCES_PER_LIBRARY = 64;
+    private static final int RESOURCE_SIZE = 4096;
+    private static final int CONCURRENT_LAUNCHES = 4;
+
+    private final Path workDir;
+    private final int iterations;
+    private final String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+    private int cacheCount;
+
+    private LaunchBenchmark(Path workDir, int iterations) {
+        this.workDir = workDir;
+        this.iterations = iterations;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path workDir = Paths.get(args[0]);
+        int libraries = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        deleteRecursively(workDir);
+        Files.createDirectories(workDir);
+
+        List<Path> launcherClasspath = Stream.of(System.getProperty(LAUNCHER_CLASSPATH).split(File.pathSeparator))
+            .map(Paths::get)
+            .collect(Collectors.toList());
+        Path heartbeatAgentJar = Paths.get(System.getProperty(HEARTBEAT_AGENT_JAR));
+        Path flaskJar = workDir.resolve("benchmark.jar");
+        buildFlaskJar(flaskJar, launcherClasspath, heartbeatAgentJar, libraries, false);
+        Path daemonJar = workDir.resolve("benchmark-daemon.jar");
+        buildFlaskJar(daemonJar, launcherClasspath, heartbeatAgentJar, libraries, true);
+
+        System.out.printf("Launching a flask jar with %d libraries, %d times per scenario, on Java %s%n",
+            libraries, iterations, System.getProperty("java.version"));
+        LaunchBenchmark benchmark = new LaunchBenchmark(workDir, iterations);
+        benchmark.cold(flaskJar);
+        benchmark.warm(flaskJar);
+        benchmark.concurrent(flaskJar);
+        benchmark.warm(daemonJar);
+    }
+
+    /**
+     * Every launch uses a new cache, and so must extract all of the libraries.
+     */
+    private void cold(Path flaskJar) throws IOException, InterruptedException {
+        Path timingFile = timingFile("cold");
+        List<Long> times = new ArrayList<>();
+        for (int i = 0; i < iterations; ++i) {
+            Path cacheDir = newCacheDir();
+            long start = System.nanoTime();
+            waitFor(launch(flaskJar, cacheDir, timingFile));
+            times.add(System.nanoTime() - start);
+        }
+        report("cold", times, timingFile);
+    }
+
+    /**
+     * Every launch shares a cache which a first, unmeasured launch has already filled.
+     */
+    private void warm(Path flaskJar) throws IOException, InterruptedException {
+        String name = flaskJar.getFileName().toString().contains("daemon") ? "daemon" : "warm";
+        Path timingFile = timingFile(name);
+        Path cacheDir = newCacheDir();
+        waitFor(launch(flaskJar, cacheDir, workDir.resolve(name + "-warmup.timings")));
+        List<Long> times = new ArrayList<>();
+        for (int i = 0; i < iterations; ++i) {
+            long start = System.nanoTime();
+            waitFor(launch(flaskJar, cacheDir, timingFile));
+            times.add(System.nanoTime() - start);
+        }
+        report(name, times, timingFile);
+    }
+
+    /**
+     * Several launches start at once from a new cache, and so contend to extract the same libraries.
+     * Each measurement is the time until all of them have exited.
+     */
+    private void concurrent(Path flaskJar) throws IOException, InterruptedException {
+        Path timingFile = timingFile("concurrent");
+        List<Long> times = new ArrayList<>();
+        for (int i = 0; i < iterations; ++i) {
+            Path cacheDir = newCacheDir();
+            long start = System.nanoTime();
+            List<Process> processes = new ArrayList<>();
+            for (int j = 0; j < CONCURRENT_LAUNCHES; ++j) {
+                processes.add(launch(flaskJar, cacheDir, timingFile));
+            }
+            for (Process process : processes) {
+                waitFor(process);
+            }
+            times.add(System.nanoTime() - start);
+        }
+        report("concurrent", times, timingFile);
+    }
+
+    private Path newCacheDir() {
+        return workDir.resolve("cache-" + (++cacheCount));
+    }
+
+    private Path timingFile(String scenario) {
+        return workDir.resolve(scenario + ".timings");
+    }
+
+    private Process launch(Path flaskJar, Path cacheDir, Path timingFile) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(java);
+        command.add("-D" + Flask.JvmProperties.CACHE_DIR + '=' + cacheDir);
+        command.add("-D" + Flask.JvmProperties.TIMING_FILE + '=' + timingFile);
+        // Don't leave daemons running after the benchmark has finished.
+        command.add("-D" + Flask.JvmProperties.DAEMON_IDLE_TIMEOUT_SECONDS + "=5");
+        command.add("-jar");
+        command.add(flaskJar.toString());
+        return new ProcessBuilder(command)
+            .redirectErrorStream(true)
+            .redirectOutput(ProcessBuilder.Redirect.appendTo(workDir.resolve("launch.log").toFile()))
+            .start();
+    }
+
+    private void waitFor(Process process) throws InterruptedException {
+        int returnCode = process.waitFor();
+        if (returnCode != 0) {
+            throw new IllegalStateException(String.format(
+                "Launch failed with return code %d, see '%s'", returnCode, workDir.resolve("launch.log")));
+        }
+    }
+
+    private static void report(String scenario, List<Long> times, Path timingFile) throws IOException {
+        Collections.sort(times);
+        System.out.printf("%-10s min %7.1f ms, median %7.1f ms, p90 %7.1f ms%n", scenario,
+            millis(times.get(0)), millis(percentile(times, 50)), millis(percentile(times, 90)));
+
+        // The median of each launch phase, in the order in which they first ran.
+        Map<String, List<Long>> phases = new LinkedHashMap<>();
+        for (String line : Files.readAllLines(timingFile, StandardCharsets.UTF_8)) {
+            for (String field : line.trim().split(" ")) {
+                int equalCharPosition = field.indexOf('=');
+                phases.computeIfAbsent(field.substring(0, equalCharPosition), key -> new ArrayList<>())
+                    .add(TimeUnit.MICROSECONDS.toNanos(Long.parseLong(field.substring(equalCharPosition + 1))));
+            }
+        }
+        StringBuilder line = new StringBuilder();
+        for (Map.Entry<String, List<Long>> entry : phases.entrySet()) {
+            List<Long> values = entry.getValue();
+            Collections.sort(values);
+            line.append(String.format(" %s=%.1f", entry.getKey(), millis(percentile(values, 50))));
+        }
+        System.out.printf("%-10s phase medians in ms:%s%n", "", line);
+    }
+
+    private static long percentile(List<Long> sortedValues, int percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sortedValues.size()) - 1;
+        return sortedValues.get(Math.max(0, index));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static void buildFlaskJar(
+            Path flaskJar,
+            List<Path> launcherClasspath,
+            Path heartbeatAgentJar,
+            int libraries,
+            boolean daemon) throws IOException {
+        Map<String, byte[]> nestedJars = new LinkedHashMap<>();
+        nestedJars.put("heartbeat-agent.jar", Files.readAllBytes(heartbeatAgentJar));
+        String applicationClass = BenchmarkApplication.class.getName().replace('.', '/') + ".class";
+        Map<String, byte[]> applicationEntries = new LinkedHashMap<>();
+        try (InputStream is = LaunchBenchmark.class.getClassLoader().getResourceAsStream(applicationClass)) {
+            applicationEntries.put(applicationClass, readAll(is));
+        }
+        nestedJars.put("application.jar", buildJar(applicationEntries));
+        // Fixed contents, so that every build has the same libraries.
+        Random random = new Random(0);
+        for (int i = 0; i < libraries; ++i) {
+            Map<String, byte[]> entries = new LinkedHashMap<>();
+            for (int j = 0; j < RESOURCES_PER_LIBRARY; ++j) {
+                byte[] bytes = new byte[RESOURCE_SIZE];
+                random.nextBytes(bytes);
+                entries.put(String.format("library%d/resource%d.bin", i, j), bytes);
+            }
+            nestedJars.put(String.format("library-%d.jar", i), buildJar(entries));
+        }
+
+        Manifest manifest = new Manifest();
+        Attributes mainAttributes = manifest.getMainAttributes();
+        mainAttributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        mainAttributes.put(Attributes.Name.MAIN_CLASS, LAUNCHER_CLASS);
+        mainAttributes.putValue(Flask.ManifestAttributes.LAUNCHER_CLASS, LAUNCHER_CLASS);
+        mainAttributes.putValue(Flask.ManifestAttributes.APPLICATION_CLASS, BenchmarkApplication.class.getName());
+        mainAttributes.putValue(Flask.ManifestAttributes.HEARTBEAT_AGENT_HASH,
+            Flask.bytes2Hex(sha256(nestedJars.get("heartbeat-agent.jar"))));
+        if (daemon) {
+            mainAttributes.putValue(Flask.ManifestAttributes.DAEMON, Boolean.TRUE.toString());
+        }
+        for (Map.Entry<String, byte[]> entry : nestedJars.entrySet()) {
+            Attributes attributes = new Attributes();
+            attributes.putValue(Flask.ManifestAttributes.ENTRY_HASH, Base64.getEncoder().encodeToString(sha256(entry.getValue())));
+            manifest.getEntries().put(Flask.Constants.LIBRARIES_FOLDER + '/' + entry.getKey(), attributes);
+        }
+
+        try (JarOutputStream jar = new JarOutputStream(Files.newOutputStream(flaskJar), manifest)) {
+            Set<String> names = new HashSet<>();
+            names.add(JarFile.MANIFEST_NAME);
+            for (Path element : launcherClasspath) {
+                copyLauncherClasses(element, jar, names);
+            }
+            // The launcher copies libraries without decompressing them, and maps them for in-process launches.
+            for (Map.Entry<String, byte[]> entry : nestedJars.entrySet()) {
+                writeStored(jar, Flask.Constants.LIBRARIES_FOLDER + '/' + entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private static void copyLauncherClasses(Path element, JarOutputStream jar, Set<String> names) throws IOException {
+        if (Files.isDirectory(element)) {
+            List<Path> files;
+            try (Stream<Path> stream = Files.walk(element)) {
+                files = stream.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+            }
+            for (Path file : files) {
+                String name = element.relativize(file).toString().replace(File.separatorChar, '/');
+                if (names.add(name)) {
+                    jar.putNextEntry(new ZipEntry(name));
+                    Files.copy(file, jar);
+                }
+            }
+        } else if (Files.exists(element)) {
+            try (JarFile source = new JarFile(element.toFile())) {
+                Enumeration<JarEntry> entries = source.entries();
+                while (entries.hasMoreElements()) {
+                    JarEntry entry = entries.nextElement();
+                    String name = entry.getName();
+                    if (entry.isDirectory() || isSignature(name) || !names.add(name)) {
+                        continue;
+                    }
+                    jar.putNextEntry(new ZipEntry(name));
+                    try (InputStream is = source.getInputStream(entry)) {
+                        Flask.write2Stream(is, jar);
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean isSignature(String name) {
+        String upperCaseName = name.toUpperCase();
+        return upperCaseName.startsWith("META-INF/")
+            && (upperCaseName.endsWith(".SF") || upperCaseName.endsWith(".RSA")
+            || upperCaseName.endsWith(".DSA") || upperCaseName.endsWith(".EC"));
+    }
+
+    private static byte[] buildJar(Map<String, byte[]> entries) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (JarOutputStream jar = new JarOutputStream(bytes)) {
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                jar.putNextEntry(new ZipEntry(entry.getKey()));
+                jar.write(entry.getValue());
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeStored(JarOutputStream jar, String name, byte[] bytes) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(bytes.length);
+        entry.setCompressedSize(bytes.length);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        entry.setCrc(crc.getValue());
+        jar.putNextEntry(entry);
+        jar.write(bytes);
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (Files.exists(path)) {
+            List<Path> paths;
+            try (Stream<Path> stream = Files.walk(path)) {
+                paths = stream.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+            }
+            for (Path p : paths) {
+                Files.delete(p);
+            }
+        }
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Flask.write2Stream(is, bytes);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] sha256(byte[] bytes) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(bytes);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+}
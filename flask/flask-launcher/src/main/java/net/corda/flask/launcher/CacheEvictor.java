@@ -0,0 +1,281 @@
+package net.corda.flask.launcher;
+
+import net.corda.flask.common.Flask;
+import net.corda.flask.common.LockFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Deletes the least recently used libraries from the cache until it is both smaller than its maximum
+ * size and contains nothing older than its maximum age. Every launch appends a line to the access
+ * journal, containing the time and the hashes of the libraries it uses, and the evictor compacts this
+ * journal afterwards. Each running launcher also lists its libraries inside its own pid file, which it
+ * holds an exclusive lock on, and the evictor never deletes these libraries.
+ * <p>
+ * The evictor must hold the cache's exclusive lock, whereas launchers only hold the shared lock while
+ * they extract their libraries and record their access.
+ */
+final class CacheEvictor {
+    private static final Logger log = LoggerFactory.getLogger(CacheEvictor.class);
+    private static final Duration UNPUBLISHED_PID_FILE_GRACE = Duration.ofDays(1);
+
+    private static final class Library {
+        final String hash;
+        final Path folder;
+        final long size;
+        final long lastAccess;
+
+        Library(String hash, Path folder, long size, long lastAccess) {
+            this.hash = hash;
+            this.folder = folder;
+            this.size = size;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    private final Path libDir;
+    private final Path pidDir;
+    private final Path journal;
+    private final Path ownPidFile;
+
+    CacheEvictor(Path libDir, Path pidDir, Path journal, Path ownPidFile) {
+        this.libDir = libDir;
+        this.pidDir = pidDir;
+        this.journal = journal;
+        this.ownPidFile = ownPidFile;
+    }
+
+    /**
+     * Appends a line for this launch to the access journal. A single small write
+     * to a file opened for appending cannot interleave with any other process's.
+     */
+    static void appendJournal(Path journal, Collection<String> hashes) throws IOException {
+        StringBuilder line = new StringBuilder().append(System.currentTimeMillis());
+        for (String hash : hashes) {
+            line.append(' ').append(hash);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(line.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+        try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * @return the number of libraries deleted
+     */
+    int evict(long maxSize, Duration maxAge) throws IOException {
+        Set<String> inUse = librariesInUse();
+        if (inUse == null) {
+            log.debug("Skipping library eviction because the libraries in use are unknown");
+            return 0;
+        }
+        Map<String, Long> lastAccesses = readJournal();
+        List<Library> libraries = new ArrayList<>();
+        long totalSize = 0;
+        try (DirectoryStream<Path> hashFolders = Files.newDirectoryStream(libDir, Files::isDirectory)) {
+            for (Path hashFolder : hashFolders) {
+                String hash = hashFolder.getFileName().toString();
+                Long lastAccess = lastAccesses.get(hash);
+                Library library = new Library(hash, hashFolder, sizeOf(hashFolder),
+                    lastAccess != null ? lastAccess : Files.getLastModifiedTime(hashFolder).toMillis());
+                libraries.add(library);
+                totalSize += library.size;
+            }
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+        libraries.sort(Comparator.comparingLong(library -> library.lastAccess));
+
+        long threshold = Instant.now().minus(maxAge).toEpochMilli();
+        log.trace("Evicting libraries unused since {}, or until the cache is smaller than {} bytes", Instant.ofEpochMilli(threshold), maxSize);
+        int deleted = 0;
+        Map<String, Long> remaining = new HashMap<>();
+        for (Library library : libraries) {
+            if (!inUse.contains(library.hash) && (library.lastAccess < threshold || totalSize > maxSize)) {
+                JarCache.deletePath(library.folder);
+                totalSize -= library.size;
+                ++deleted;
+            } else {
+                remaining.put(library.hash, library.lastAccess);
+            }
+        }
+        if (totalSize > maxSize) {
+            log.debug("Library cache still contains {} bytes because its remaining libraries are in use", totalSize);
+        }
+        compactJournal(remaining);
+        return deleted;
+    }
+
+    private static long sizeOf(Path folder) throws IOException {
+        try (Stream<Path> files = Files.walk(folder)) {
+            long size = 0;
+            for (Path file : (Iterable<Path>) files::iterator) {
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                if (attributes.isRegularFile()) {
+                    size += attributes.size();
+                }
+            }
+            return size;
+        }
+    }
+
+    /**
+     * Reads the libraries listed in the pid file of every running launcher,
+     * and deletes the pid files that no running launcher has locked. A pid file
+     * that its owner has not yet locked and published still protects its libraries,
+     * unless it is so old that its owner must have died before locking it.
+     * @return null if we cannot read a running launcher's pid file
+     */
+    private Set<String> librariesInUse() throws IOException {
+        Set<String> result = new HashSet<>();
+        long unpublishedThreshold = Instant.now().minus(UNPUBLISHED_PID_FILE_GRACE).toEpochMilli();
+        try (DirectoryStream<Path> pidFiles = Files.newDirectoryStream(pidDir, "*.{pid,pid" + Flask.Constants.UNPUBLISHED_PID_FILE_SUFFIX + "}")) {
+            for (Path pidFile : pidFiles) {
+                if (pidFile.equals(ownPidFile)) {
+                    continue;
+                }
+                boolean published = pidFile.getFileName().toString().endsWith(".pid");
+                if ((published || isOlderThan(pidFile, unpublishedThreshold)) && deleteIfUnlocked(pidFile)) {
+                    continue;
+                }
+                try {
+                    readHashes(pidFile, result);
+                } catch (NoSuchFileException e) {
+                    if (!published && !readPublishedHashes(pidFile, result)) {
+                        return null;
+                    }
+                    // Otherwise its owner has exited.
+                } catch (IOException e) {
+                    log.debug(String.format("Unable to read pid file '%s': %s", pidFile, e.getMessage()), e);
+                    return null;
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // No launcher has ever run.
+        }
+        return result;
+    }
+
+    /**
+     * The owner of an unpublished pid file may have published it while we were listing the pid files,
+     * and a directory listing need not contain an entry that is renamed during the listing. So we read
+     * the published file directly, in case we have already passed its new name.
+     * @return whether we could read the published file
+     */
+    private static boolean readPublishedHashes(Path unpublishedPidFile, Set<String> result) {
+        String fileName = unpublishedPidFile.getFileName().toString();
+        Path pidFile = unpublishedPidFile.resolveSibling(
+            fileName.substring(0, fileName.length() - Flask.Constants.UNPUBLISHED_PID_FILE_SUFFIX.length()));
+        try {
+            readHashes(pidFile, result);
+            return true;
+        } catch (IOException e) {
+            log.debug(String.format("Unable to read pid file '%s' or '%s': %s", unpublishedPidFile, pidFile, e.getMessage()), e);
+            return false;
+        }
+    }
+
+    private static void readHashes(Path pidFile, Set<String> result) throws IOException {
+        for (String line : Files.readAllLines(pidFile, StandardCharsets.UTF_8)) {
+            for (String hash : line.split(" ")) {
+                if (!hash.isEmpty()) {
+                    result.add(hash);
+                }
+            }
+        }
+    }
+
+    private static boolean isOlderThan(Path file, long threshold) throws IOException {
+        try {
+            return Files.getLastModifiedTime(file).toMillis() < threshold;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    private static boolean deleteIfUnlocked(Path pidFile) throws IOException {
+        LockFile lock;
+        try {
+            lock = LockFile.tryAcquire(pidFile, true);
+        } catch (OverlappingFileLockException e) {
+            // This JVM holds the lock itself.
+            lock = null;
+        }
+        if (lock == null) {
+            return false;
+        }
+        lock.close();
+        Files.deleteIfExists(pidFile);
+        log.trace("Deleted stale pid file '{}'", pidFile);
+        return true;
+    }
+
+    /**
+     * Lines may be incomplete if a launcher died while writing them.
+     */
+    private Map<String, Long> readJournal() throws IOException {
+        Map<String, Long> result = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(journal, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(" ");
+                long time;
+                try {
+                    time = Long.parseLong(fields[0]);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                for (int i = 1; i < fields.length; ++i) {
+                    result.merge(fields[i], time, Math::max);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // Nothing has been recorded yet.
+        }
+        return result;
+    }
+
+    private void compactJournal(Map<String, Long> lastAccesses) throws IOException {
+        Path tmpFile = Files.createTempFile(journal.getParent(), null, ".tmp");
+        try {
+            try (Writer writer = Files.newBufferedWriter(tmpFile, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Long> entry : lastAccesses.entrySet()) {
+                    writer.write(entry.getValue() + " " + entry.getKey() + '\n');
+                }
+            }
+            Files.move(tmpFile, journal, REPLACE_EXISTING, ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmpFile);
+        }
+    }
+}
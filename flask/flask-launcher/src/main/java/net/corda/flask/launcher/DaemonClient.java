@@ -0,0 +1,145 @@
+package net.corda.flask.launcher;
+
+import net.corda.flask.common.DaemonProtocol;
+import net.corda.flask.common.Flask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * A connection to a running Flask daemon, which runs a single request on behalf of this launcher.
+ * The launcher's standard input is forwarded to the daemon by a background thread, and the
+ * application's output is written to the launcher's own standard output and error.
+ */
+final class DaemonClient implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(DaemonClient.class);
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+
+    private final Socket socket;
+    private final DataInputStream input;
+    private final DataOutputStream output;
+    private final InputStream stdin;
+    private final PrintStream stdout;
+    private final PrintStream stderr;
+
+    private DaemonClient(Socket socket, InputStream stdin, PrintStream stdout, PrintStream stderr) throws IOException {
+        this.socket = socket;
+        this.input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        this.stdin = stdin;
+        this.stdout = stdout;
+        this.stderr = stderr;
+    }
+
+    static DaemonClient connect(Path daemonFile) throws IOException {
+        return connect(daemonFile, System.in, System.out, System.err);
+    }
+
+    /**
+     * @return null if there is no daemon, or if it refuses the connection
+     */
+    static DaemonClient connect(Path daemonFile, InputStream stdin, PrintStream stdout, PrintStream stderr) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream is = Files.newInputStream(daemonFile)) {
+            Flask.loadProperties(properties, is);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        String token = properties.getProperty(DaemonProtocol.TOKEN);
+        int port = Integer.parseInt(properties.getProperty(DaemonProtocol.PORT));
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), CONNECT_TIMEOUT_MILLIS);
+            socket.setTcpNoDelay(true);
+            DaemonClient client = new DaemonClient(socket, stdin, stdout, stderr);
+            DaemonProtocol.writeString(client.output, token);
+            client.output.flush();
+            // The daemon closes the connection instead if it is shutting down.
+            if (client.input.read() == DaemonProtocol.READY) {
+                log.debug("Connected to Flask daemon on port {}", port);
+                return client;
+            }
+        } catch (IOException e) {
+            log.debug(String.format("Unable to connect to Flask daemon on port %d: %s", port, e.getMessage()), e);
+        }
+        socket.close();
+        return null;
+    }
+
+    /**
+     * @return the application's exit code, or null if the daemon rejected the request
+     */
+    Integer run(DaemonProtocol.Request request) throws IOException {
+        request.write(output);
+        if (input.read() != DaemonProtocol.ACCEPTED) {
+            return null;
+        }
+        Thread stdinPump = new Thread(this::pumpStdin, "flask-daemon-stdin");
+        stdinPump.setDaemon(true);
+        stdinPump.start();
+        byte[] buffer = new byte[Flask.Constants.BUFFER_SIZE];
+        try {
+            while (true) {
+                byte type = input.readByte();
+                if (type == DaemonProtocol.EXIT) {
+                    return input.readInt();
+                }
+                PrintStream target;
+                if (type == DaemonProtocol.STDOUT) {
+                    target = stdout;
+                } else if (type == DaemonProtocol.STDERR) {
+                    target = stderr;
+                } else {
+                    throw new IOException("Unexpected frame type " + type + " from Flask daemon");
+                }
+                int length = input.readInt();
+                while (length > 0) {
+                    int read = input.read(buffer, 0, Math.min(length, buffer.length));
+                    if (read < 0) {
+                        throw new EOFException();
+                    }
+                    target.write(buffer, 0, read);
+                    length -= read;
+                }
+                target.flush();
+            }
+        } catch (EOFException e) {
+            throw new IOException("Flask daemon closed the connection before the application exited", e);
+        }
+    }
+
+    private void pumpStdin() {
+        try (OutputStream frames = new DaemonProtocol.FrameOutputStream(output, DaemonProtocol.STDIN)) {
+            byte[] buffer = new byte[Flask.Constants.BUFFER_SIZE];
+            int read;
+            while ((read = stdin.read(buffer)) >= 0) {
+                frames.write(buffer, 0, read);
+                frames.flush();
+            }
+        } catch (IOException e) {
+            // The request has finished and the daemon has closed the connection.
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -3,33 +3,63 @@ package net.corda.flask.launcher;
 import net.corda.flask.common.Flask;
 import net.corda.flask.common.LockFile;
 import net.corda.flask.common.ThrowingConsumer;
-import net.corda.flask.common.ThrowingFunction;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collection;
 import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Properties;
 import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.Attributes;
 import java.util.jar.Manifest;
 import java.util.stream.Stream;
 
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import static java.util.Collections.unmodifiableMap;
 
 final class JarCache {
     private static final Logger log = LoggerFactory.getLogger(JarCache.class);
+    private static final String EXTRACTION_LOCK_NAME = "extract.lock";
+    private static final String INDEX_SUFFIX = ".xml";
+    private static final String CDS_ARCHIVE_SUFFIX = ".jsa";
+    private static final String RUNTIME_IMAGE_FAILURE_SUFFIX = ".failed";
+    private static final String RUNTIME_IMAGE_LOCK_SUFFIX = ".lock";
+    private static final String PID_FILE_SUFFIX = ".pid";
 
     static void deletePath(Path path) throws IOException {
         Files.walk(path).sorted(Comparator.reverseOrder()).forEach((ThrowingConsumer<Path>) path1 -> {
@@ -82,13 +112,25 @@ final class JarCache {
 
     private final Path libDir;
 
+    private final Path indexDir;
+
+    private final Path cleanupMarker;
+
+    private final Path journal;
+
+    private final Path cdsDir;
+
+    private final Path runtimeDir;
+
     private final Path pidDir;
 
-    private final Path pidFile;
+    private final Path daemonDir;
+
+    private Path pidFile;
 
     private final Path lockFile;
 
-    private final Path extractionLock;
+    private final Path evictionMarker;
 
     private final Map<String, Path> extractedLibraries;
 
@@ -104,10 +146,38 @@ final class JarCache {
         return pidDir;
     }
 
+    /**
+     * This process's own pid file, or null until {@link #lockPidFile} has created it.
+     */
     public Path getPidFile() {
         return pidFile;
     }
 
+    /**
+     * Creates this process's own pid file and locks it. We only do this when the pid file is first needed,
+     * because a launcher that hands its application to a daemon never needs one. Cache eviction deletes any
+     * pid file that nobody has locked, and so we create and lock the file under a name that eviction ignores,
+     * and only then rename it into place.
+     */
+    LockFile lockPidFile() throws IOException {
+        Path newPidFile = pidDir.resolve(UUID.randomUUID() + PID_FILE_SUFFIX);
+        Path unpublishedPidFile = unpublishedPidFile(newPidFile);
+        LockFile lock = LockFile.create(unpublishedPidFile);
+        try {
+            Files.move(unpublishedPidFile, newPidFile, ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            lock.close();
+            Files.deleteIfExists(unpublishedPidFile);
+            throw e;
+        }
+        pidFile = newPidFile;
+        return lock;
+    }
+
+    static Path unpublishedPidFile(Path pidFile) {
+        return pidFile.resolveSibling(pidFile.getFileName() + Flask.Constants.UNPUBLISHED_PID_FILE_SUFFIX);
+    }
+
     public Path getLockFile() {
         return lockFile;
     }
@@ -115,88 +185,545 @@ final class JarCache {
     public JarCache(String appName) throws IOException {
         path = computeCacheDirectory(appName);
         libDir = path.resolve("lib");
+        indexDir = path.resolve("index");
+        cleanupMarker = path.resolve("cleanup.timestamp");
+        journal = path.resolve("access.journal");
+        cdsDir = path.resolve("cds");
+        runtimeDir = path.resolve("runtime");
         pidDir = path.resolve("pid");
+        daemonDir = path.resolve("daemon");
         lockFile = path.resolve("flask.lock");
-        extractionLock = path.resolve("extract.lock");
+        evictionMarker = path.resolve("eviction.running");
         extractedLibraries = new TreeMap<>();
-        Files.createDirectories(pidDir);
-        pidFile = Files.createTempFile(pidDir, null, ".pid");
-    }
-
-    public Map<String, Path> extract(Manifest manifest) throws IOException {
-        byte[] buffer = new byte[Flask.Constants.BUFFER_SIZE];
-        ClassLoader cl = Launcher.class.getClassLoader();
-        try (LockFile ignored = LockFile.acquire(extractionLock, false)) {
-            for (Map.Entry<String, Attributes> entry : manifest.getEntries().entrySet()) {
-                String jarEntryName = entry.getKey();
-                Attributes attributes = entry.getValue();
-                if (jarEntryName.startsWith(Flask.Constants.LIBRARIES_FOLDER + '/') && attributes.getValue(Flask.ManifestAttributes.ENTRY_HASH) != null) {
-                    String jarName = jarEntryName.substring(jarEntryName.lastIndexOf('/') + 1);
-                    String hash = Flask.bytes2Hex(Base64.getDecoder().decode(attributes.getValue(Flask.ManifestAttributes.ENTRY_HASH)));
-                    Path destination = libDir.resolve(hash).resolve(jarName);
-                    extractedLibraries.put(hash, destination);
-                    if (!Files.exists(destination)) {
-                        Files.createDirectories(destination.getParent());
-                        InputStream is = cl.getResourceAsStream(jarEntryName);
-                        log.debug("Extracting '{}' to '{}'", jarEntryName, destination);
-                        if (is != null) {
-                            try {
-                                try (OutputStream os = Files.newOutputStream(destination)) {
-                                    Flask.write2Stream(is, os, buffer);
-                                }
-                            } finally {
-                                is.close();
-                            }
-                        } else {
-                            throw new RuntimeException(String.format("Entry '%s' missing from flask jar", jarEntryName));
-                        }
-                    }
+    }
+
+    /**
+     * The folder for the daemon with this key, which holds its properties file, its log and the lock
+     * that serialises starting it.
+     */
+    Path getDaemonDir(String key) throws IOException {
+        return Files.createDirectories(daemonDir.resolve(key));
+    }
+
+    /**
+     * Extracts every library that is missing from the cache, in parallel. Each library is written
+     * to a temporary file inside its own hash folder and then atomically renamed, so that the
+     * existence of a library's file means that it is complete. Extracting a library only locks
+     * its own hash folder, which means that a launch never waits for another process to extract
+     * libraries that it doesn't need.
+     * <p>
+     * Once every library is present, we write an index file for this flask jar's manifest so that
+     * subsequent launches can skip checking each library. The index is discarded whenever the
+     * cache cleanup deletes any libraries.
+     */
+    public Map<String, Path> extract(Path flaskJar, Manifest manifest) throws IOException {
+        return extract(flaskJar, manifest, true);
+    }
+
+    /**
+     * @param useIndex whether to trust an existing index, rather than checking that each library is present
+     */
+    Map<String, Path> extract(Path flaskJar, Manifest manifest, boolean useIndex) throws IOException {
+        Path indexFile = indexDir.resolve(manifestDigest(manifest) + INDEX_SUFFIX);
+        boolean indexed;
+        try (LaunchTimer.Phase ignored = LaunchTimer.instance.start("libraryIndex")) {
+            indexed = useIndex && readIndex(indexFile);
+        }
+        if (indexed) {
+            log.debug("Using library index '{}'", indexFile);
+            return unmodifiableMap(extractedLibraries);
+        }
+        Map<String, String> missingLibraries = new TreeMap<>();
+        for (Map.Entry<String, Attributes> entry : manifest.getEntries().entrySet()) {
+            String jarEntryName = entry.getKey();
+            Attributes attributes = entry.getValue();
+            if (jarEntryName.startsWith(Flask.Constants.LIBRARIES_FOLDER + '/') && attributes.getValue(Flask.ManifestAttributes.ENTRY_HASH) != null) {
+                String jarName = jarEntryName.substring(jarEntryName.lastIndexOf('/') + 1);
+                String hash = Flask.bytes2Hex(Base64.getDecoder().decode(attributes.getValue(Flask.ManifestAttributes.ENTRY_HASH)));
+                Path destination = libDir.resolve(hash).resolve(jarName);
+                extractedLibraries.put(hash, destination);
+                if (!Files.exists(destination)) {
+                    missingLibraries.put(hash, jarEntryName);
                 }
             }
         }
+        if (!missingLibraries.isEmpty()) {
+            extractAll(flaskJar, missingLibraries);
+        }
+        writeIndex(indexFile);
         return unmodifiableMap(extractedLibraries);
     }
 
-    void touchLibraries() {
-        FileTime now = FileTime.from(Instant.now());
-        for(Path jarPath : extractedLibraries.values()) {
+    private static String sha256(byte[] bytes) {
+        try {
+            return Flask.bytes2Hex(MessageDigest.getInstance("SHA-256").digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    private static String manifestDigest(Manifest manifest) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        manifest.write(bytes);
+        return sha256(bytes.toByteArray());
+    }
+
+    /**
+     * The class data sharing archive for this classpath. A JVM can only use an archive that it
+     * created from exactly the same classpath and runtime, and so the archive's name is a digest
+     * of the classpath, the JVM's version and its runtime image. The archive need not exist yet.
+     */
+    Path getCdsArchive(String javaHome, List<String> classpath) {
+        String key = System.getProperty("java.vm.vendor") + '\n'
+            + System.getProperty("java.vm.version") + '\n'
+            + javaHome + '\n'
+            + String.join(File.pathSeparator, classpath);
+        Path archive = cdsDir.resolve(sha256(key.getBytes(StandardCharsets.UTF_8)) + CDS_ARCHIVE_SUFFIX);
+        // Archives are evicted by age, and so we touch an archive whenever we use it.
+        if (Files.exists(archive)) {
             try {
-                Files.setLastModifiedTime(jarPath, now);
+                Files.setLastModifiedTime(archive, FileTime.from(Instant.now()));
             } catch (IOException ignored) {
             }
         }
+        return archive;
+    }
+
+    /**
+     * The list of classes that a child JVM loads, which it writes when it exits. We use a temporary
+     * name for it, because several launches may be creating the same archive at once.
+     */
+    Path getCdsClassListFile(Path archive) throws IOException {
+        Files.createDirectories(cdsDir);
+        return archive.resolveSibling(archive.getFileName() + "." + getPidFile().getFileName() + ".classlist");
+    }
+
+    /**
+     * Dumps a static archive of the classes in this class list, and then atomically renames it into place.
+     * A JVM cannot dump a dynamic archive at exit while it runs a Java agent, such as the heartbeat agent,
+     * and so we use a separate JVM which runs only the dump. The classpath may be long, and so we pass it
+     * inside an argument file.
+     */
+    void createCdsArchive(String javaHome, List<String> classpath, Path classList, Path archive) throws IOException, InterruptedException {
+        // Another launch may have created the archive while this one was running.
+        if (!Files.isRegularFile(classList) || Files.exists(archive)) {
+            Files.deleteIfExists(classList);
+            return;
+        }
+        Path java = findTool(Paths.get(javaHome), "java");
+        Path tmpArchive = archive.resolveSibling(classList.getFileName() + CDS_ARCHIVE_SUFFIX);
+        Path argumentFile = archive.resolveSibling(classList.getFileName() + ".arg");
+        Path output = archive.resolveSibling(classList.getFileName() + ".log");
+        try {
+            if (java == null) {
+                return;
+            }
+            List<String> args = new ArrayList<>();
+            args.add("-Xshare:dump");
+            args.add("-XX:SharedClassListFile=" + classList);
+            args.add("-XX:SharedArchiveFile=" + tmpArchive);
+            args.add("-cp");
+            args.add(String.join(File.pathSeparator, classpath));
+            Files.write(argumentFile, JavaProcessBuilder.generateArgumentFileString(args).getBytes(StandardCharsets.UTF_8));
+            int result = new ProcessBuilder(java.toString(), "@" + argumentFile)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.to(output.toFile()))
+                .start()
+                .waitFor();
+            if (result == 0 && Files.isRegularFile(tmpArchive)) {
+                Files.move(tmpArchive, archive, REPLACE_EXISTING, ATOMIC_MOVE);
+                log.debug("Created class data sharing archive '{}'", archive);
+            } else if (log.isDebugEnabled()) {
+                log.debug("Unable to create class data sharing archive '{}': {}", archive,
+                    new String(Files.readAllBytes(output), StandardCharsets.UTF_8));
+            }
+        } catch (IOException e) {
+            log.debug(String.format("Unable to create class data sharing archive '%s': %s", archive, e.getMessage()), e);
+        } finally {
+            Files.deleteIfExists(classList);
+            Files.deleteIfExists(tmpArchive);
+            Files.deleteIfExists(argumentFile);
+            Files.deleteIfExists(output);
+        }
+    }
+
+    private static Path findTool(Path javaHome, String name) {
+        Path bin = javaHome.resolve("bin");
+        for (String fileName : new String[] { name, name + ".exe" }) {
+            Path tool = bin.resolve(fileName);
+            if (Files.isRegularFile(tool)) {
+                return tool;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A runtime image of this JVM that only contains these modules, which jlink creates the first
+     * time any launch needs it. The image's name is a digest of the JVM and the modules, and its
+     * creation is serialised by its own lock. Like a library, it is written to a temporary folder
+     * and then atomically renamed. We also dump the image's own class data sharing archive, which
+     * jlink leaves out, because otherwise the image would start more slowly than the full JVM.
+     * If jlink fails then we record its output, and don't try again until that record expires.
+     * @return null if this JVM cannot create the image
+     */
+    Path getRuntimeImage(Collection<String> modules) throws IOException, InterruptedException {
+        return getRuntimeImage(Paths.get(System.getProperty("java.home")), modules);
+    }
+
+    /**
+     * @param javaHome the JVM whose jlink creates the image
+     */
+    Path getRuntimeImage(Path javaHome, Collection<String> modules) throws IOException, InterruptedException {
+        String key = System.getProperty("java.vm.vendor") + '\n'
+            + System.getProperty("java.vm.version") + '\n'
+            + javaHome + '\n'
+            + String.join(",", modules);
+        Path image = runtimeDir.resolve(sha256(key.getBytes(StandardCharsets.UTF_8)));
+        Path failure = image.resolveSibling(image.getFileName() + RUNTIME_IMAGE_FAILURE_SUFFIX);
+        if (Files.isDirectory(image)) {
+            // Images are evicted by age, and so we touch an image whenever we use it.
+            Files.setLastModifiedTime(image, FileTime.from(Instant.now()));
+            return image;
+        } else if (Files.exists(failure)) {
+            log.debug("Not using a runtime image, because jlink has failed before, see '{}'", failure);
+            return null;
+        }
+        Path jlink = findTool(javaHome, "jlink");
+        if (jlink == null) {
+            log.debug("Not using a runtime image, because '{}' has no jlink", javaHome);
+            return null;
+        }
+        Files.createDirectories(runtimeDir);
+        try (LockFile ignored = LockFile.acquire(image.resolveSibling(image.getFileName() + RUNTIME_IMAGE_LOCK_SUFFIX), false)) {
+            // Another process may have created this image while we were waiting for the lock.
+            if (Files.isDirectory(image)) {
+                return image;
+            }
+            log.debug("Creating runtime image '{}' with modules [{}]", image, String.join(", ", modules));
+            Path tmpDir = Files.createTempDirectory(runtimeDir, null);
+            try {
+                Path tmpImage = tmpDir.resolve("image");
+                Path output = tmpDir.resolve("jlink.log");
+                Process jlinkProcess = new ProcessBuilder(jlink.toString(),
+                    "--add-modules", String.join(",", modules),
+                    "--output", tmpImage.toString(),
+                    "--strip-debug", "--no-header-files", "--no-man-pages")
+                    .redirectErrorStream(true)
+                    .redirectOutput(output.toFile())
+                    .start();
+                if (jlinkProcess.waitFor() != 0) {
+                    Files.move(output, failure, REPLACE_EXISTING);
+                    log.warn("Unable to create a runtime image, see '{}'", failure);
+                    return null;
+                }
+                Path java = findTool(tmpImage, "java");
+                if (java != null) {
+                    int dumpResult = new ProcessBuilder(java.toString(), "-Xshare:dump")
+                        .redirectErrorStream(true)
+                        .redirectOutput(ProcessBuilder.Redirect.appendTo(output.toFile()))
+                        .start()
+                        .waitFor();
+                    if (dumpResult != 0) {
+                        log.debug("Unable to create class data sharing archive for runtime image, see '{}'", output);
+                    }
+                }
+                try {
+                    Files.move(tmpImage, image, ATOMIC_MOVE);
+                } catch (FileAlreadyExistsException | DirectoryNotEmptyException e) {
+                    // Someone deleted our lock file while we held it, and created the image too.
+                }
+                return image;
+            } finally {
+                deletePath(tmpDir);
+            }
+        }
     }
 
+    /**
+     * Runtime images may still be in use by a running process, which may
+     * stop us from deleting them, and so we just try again next time.
+     */
+    private void deleteRuntimeImages(FileTime threshold) throws IOException {
+        if (!Files.isDirectory(runtimeDir)) {
+            return;
+        }
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(runtimeDir)) {
+            for (Path entry : entries) {
+                if (Files.getLastModifiedTime(entry).compareTo(threshold) < 0) {
+                    try {
+                        deletePath(entry);
+                    } catch (IOException | RuntimeException e) {
+                        log.debug(String.format("Unable to delete '%s': %s", entry, e.getMessage()), e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads the libraries from this manifest's index, if it exists.
+     */
+    private boolean readIndex(Path indexFile) {
+        Properties index = new Properties();
+        try (InputStream is = Files.newInputStream(indexFile)) {
+            Flask.loadProperties(index, is);
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            log.debug(String.format("Library index '%s' discarded: %s", indexFile, e.getMessage()), e);
+            return false;
+        }
+        for (String hash : index.stringPropertyNames()) {
+            extractedLibraries.put(hash, libDir.resolve(hash).resolve(index.getProperty(hash)));
+        }
+        return true;
+    }
+
+    private void writeIndex(Path indexFile) {
+        Properties index = new Properties();
+        for (Map.Entry<String, Path> entry : extractedLibraries.entrySet()) {
+            index.setProperty(entry.getKey(), entry.getValue().getFileName().toString());
+        }
+        try {
+            Files.createDirectories(indexDir);
+            Path tmpFile = Files.createTempFile(indexDir, null, ".tmp");
+            try {
+                try (OutputStream os = Files.newOutputStream(tmpFile)) {
+                    Flask.storeProperties(index, os);
+                }
+                Files.move(tmpFile, indexFile, REPLACE_EXISTING, ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmpFile);
+            }
+        } catch (IOException e) {
+            log.debug(String.format("Unable to write library index '%s': %s", indexFile, e.getMessage()), e);
+        }
+    }
+
+    private void extractAll(Path flaskJar, Map<String, String> missingLibraries) throws IOException {
+        int threads = Math.min(missingLibraries.size(), Runtime.getRuntime().availableProcessors());
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "flask-extract-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try (ZipChannel zipChannel = new ZipChannel(flaskJar)) {
+            List<Future<Void>> futures = new ArrayList<>(missingLibraries.size());
+            for (Map.Entry<String, String> entry : missingLibraries.entrySet()) {
+                String jarEntryName = entry.getValue();
+                Path destination = extractedLibraries.get(entry.getKey());
+                futures.add(executor.submit(() -> {
+                    extractLibrary(zipChannel, jarEntryName, destination);
+                    return null;
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new RuntimeException(cause);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while extracting libraries", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void extractLibrary(ZipChannel zipChannel, String jarEntryName, Path destination) throws IOException {
+        Path hashFolder = destination.getParent();
+        Files.createDirectories(hashFolder);
+        LockFile lock;
+        try (LaunchTimer.Phase ignored = LaunchTimer.instance.start("extractLockWait")) {
+            lock = LockFile.acquire(hashFolder.resolve(EXTRACTION_LOCK_NAME), false);
+        }
+        try (LockFile ignored = lock; LaunchTimer.Phase ignoredPhase = LaunchTimer.instance.start("extractCopy")) {
+            // Another process may have extracted this library while we were waiting for the lock.
+            if (Files.exists(destination)) {
+                return;
+            }
+            log.debug("Extracting '{}' to '{}'", jarEntryName, destination);
+            Path tmpFile = Files.createTempFile(hashFolder, destination.getFileName().toString(), ".tmp");
+            try {
+                // Libraries are normally stored uncompressed, and can be copied without decoding them.
+                if (!zipChannel.transferTo(jarEntryName, tmpFile)) {
+                    try (InputStream is = Launcher.class.getClassLoader().getResourceAsStream(jarEntryName)) {
+                        if (is == null) {
+                            throw new RuntimeException(String.format("Entry '%s' missing from flask jar", jarEntryName));
+                        }
+                        try (OutputStream os = Files.newOutputStream(tmpFile)) {
+                            Flask.write2Stream(is, os);
+                        }
+                    }
+                }
+                Files.move(tmpFile, destination, ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmpFile);
+            }
+        }
+    }
+
+    /**
+     * Records that this process uses its libraries, both inside its own pid file, which it must already
+     * hold an exclusive lock on, and in the cache's access journal. We must still hold the cache's shared
+     * lock, so that no eviction can happen between extracting the libraries and recording their use.
+     */
+    void recordAccess(LockFile processLock) throws IOException {
+        ByteBuffer hashes = ByteBuffer.wrap(libraryHashes());
+        FileChannel channel = processLock.getChannel();
+        channel.truncate(0);
+        long position = 0;
+        while (hashes.hasRemaining()) {
+            position += channel.write(hashes, position);
+        }
+        CacheEvictor.appendJournal(journal, extractedLibraries.keySet());
+    }
+
+    /**
+     * Creates a pid file that lists this process's libraries, for a daemon to lock once it starts. The file
+     * keeps its unpublished name until the daemon has locked it and renamed it, which protects it from eviction.
+     * @return the pid file's eventual name
+     */
+    Path createDaemonPidFile() throws IOException {
+        Files.createDirectories(pidDir);
+        Path daemonPidFile = pidDir.resolve(UUID.randomUUID() + PID_FILE_SUFFIX);
+        Files.write(unpublishedPidFile(daemonPidFile), libraryHashes(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        CacheEvictor.appendJournal(journal, extractedLibraries.keySet());
+        return daemonPidFile;
+    }
+
+    private byte[] libraryHashes() {
+        return String.join(" ", extractedLibraries.keySet()).getBytes(StandardCharsets.UTF_8);
+    }
+
+    static long parseSize(String value) {
+        String size = value.trim().toLowerCase(Locale.ROOT);
+        long multiplier = 1;
+        if (size.endsWith("k")) {
+            multiplier = 1L << 10;
+        } else if (size.endsWith("m")) {
+            multiplier = 1L << 20;
+        } else if (size.endsWith("g")) {
+            multiplier = 1L << 30;
+        }
+        if (multiplier != 1) {
+            size = size.substring(0, size.length() - 1);
+        }
+        try {
+            return Math.multiplyExact(Long.parseLong(size), multiplier);
+        } catch (NumberFormatException | ArithmeticException e) {
+            throw new IllegalArgumentException(String.format("Invalid cache size '%s'", value), e);
+        }
+    }
+
+    private static long getMaxSize() {
+        String maxSize = System.getProperty(Flask.JvmProperties.CACHE_MAX_SIZE);
+        return maxSize == null ? Long.MAX_VALUE : parseSize(maxSize);
+    }
+
+    private static Duration getMaxAge() {
+        return Duration.ofDays(Long.parseLong(System.getProperty(
+            Flask.JvmProperties.CACHE_MAX_AGE_DAYS, Flask.Constants.DEFAULT_CACHE_MAX_AGE_DAYS)));
+    }
+
+    static Duration getEvictionInterval() {
+        return Duration.ofHours(Long.parseLong(System.getProperty(
+            Flask.JvmProperties.CACHE_EVICTION_INTERVAL_HOURS, Flask.Constants.DEFAULT_CACHE_EVICTION_INTERVAL_HOURS)));
+    }
+
+    /**
+     * Eviction means measuring every hash folder, and
+     * so we only do this once per eviction interval.
+     */
+    private boolean isCleanupDue() {
+        try {
+            FileTime lastCleanup = Files.getLastModifiedTime(cleanupMarker);
+            return lastCleanup.toInstant().plus(getEvictionInterval()).isBefore(Instant.now());
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Evicts the least recently used libraries until the cache fits inside its maximum size and age.
+     * We skip the eviction if any other process holds the cache's lock, because it will either be
+     * evicting or else extracting libraries that it is about to use.
+     * <p>
+     * A flask jar's shell stub cannot lock the cache, and so the eviction marker exists for as long as we
+     * evict. The stub creates its pid file first, and then checks for the marker before it checks that its
+     * libraries exist. Either we see its pid file, or else it sees the marker or that a library is missing.
+     */
     void cleanLibDir() throws IOException {
+        if (!isCleanupDue()) {
+            return;
+        }
         LockFile lf = LockFile.tryAcquire(lockFile, false);
         if (lf != null) {
-            log.debug("Starting library cache cleanup");
+            log.debug("Starting library cache eviction");
             try {
-                FileTime threshold = FileTime.from(Instant.now().minus(Duration.ofDays(7)));
-                log.trace("Removing all files that haven't been touched since {}", threshold);
-                Files.list(libDir).filter(Files::isDirectory).forEach((ThrowingConsumer<Path>) hashFolder -> {
-                    Optional<FileTime> mostRecent = Files.walk(hashFolder)
-                        .filter(Files::isRegularFile)
-                        .map((ThrowingFunction<Path, FileTime>) Files::getLastModifiedTime).max(FileTime::compareTo);
-                    if (mostRecent.map(ft -> ft.compareTo(threshold) < 0).orElse(false)) {
-                        JarCache.deletePath(hashFolder);
-                    }
-                });
+                Files.write(evictionMarker, new byte[0]);
+                Duration maxAge = getMaxAge();
+                int deleted = new CacheEvictor(libDir, pidDir, journal, pidFile).evict(getMaxSize(), maxAge);
+                if (deleted > 0) {
+                    log.debug("Evicted {} libraries", deleted);
+                    deleteIndex();
+                }
+                if (Files.isDirectory(cdsDir)) {
+                    FileTime threshold = FileTime.from(Instant.now().minus(maxAge));
+                    Files.list(cdsDir).filter(Files::isRegularFile).forEach((ThrowingConsumer<Path>) archive -> {
+                        if (Files.getLastModifiedTime(archive).compareTo(threshold) < 0) {
+                            Files.delete(archive);
+                            log.trace("Deleted '{}'", archive);
+                        }
+                    });
+                }
+                deleteRuntimeImages(FileTime.from(Instant.now().minus(maxAge)));
+                Files.write(cleanupMarker, new byte[0]);
             } finally {
+                Files.deleteIfExists(evictionMarker);
                 lf.close();
             }
-            log.debug("Finished library cache cleanup");
+            log.debug("Finished library cache eviction");
         }
     }
 
+    /**
+     * Evicts every library that no running process is using.
+     */
     void wipeLibDir() throws IOException {
         LockFile lockFile = LockFile.tryAcquire(this.lockFile, false);
         if (lockFile != null) {
             try {
-                deletePath(libDir);
+                Files.write(evictionMarker, new byte[0]);
+                deleteIndex();
+                if (Files.exists(cdsDir)) {
+                    deletePath(cdsDir);
+                }
+                deleteRuntimeImages(FileTime.from(Instant.now()));
+                new CacheEvictor(libDir, pidDir, journal, pidFile).evict(0, Duration.ZERO);
+                Files.write(cleanupMarker, new byte[0]);
             } finally {
+                Files.deleteIfExists(evictionMarker);
                 lockFile.close();
             }
         }
     }
+
+    /**
+     * Every index is invalid once we have deleted any libraries.
+     */
+    private void deleteIndex() throws IOException {
+        if (Files.exists(indexDir)) {
+            deletePath(indexDir);
+        }
+    }
 }
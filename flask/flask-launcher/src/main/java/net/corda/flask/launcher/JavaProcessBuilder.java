@@ -52,7 +52,7 @@ public final class JavaProcessBuilder {
 
     private Path executableJar;
 
-    private final String javaHome = System.getProperty("java.home");
+    private String javaHome = System.getProperty("java.home");
 
     private List<String> jvmArgs = new ArrayList<>();
 
@@ -80,6 +80,14 @@ public final class JavaProcessBuilder {
         executableJar = newValue;
     }
 
+    public String getJavaHome() {
+        return javaHome;
+    }
+
+    public void setJavaHome(String newValue) {
+        javaHome = newValue;
+    }
+
     public List<String> getJvmArgs() {
         return jvmArgs;
     }
@@ -162,7 +170,10 @@ public final class JavaProcessBuilder {
         return sb.toString();
     }
 
-    public ProcessBuilder build() throws IOException {
+    /**
+     * The full command line, starting with the path of the java executable.
+     */
+    public List<String> buildCommand() {
         ArrayList<String> cmd = new ArrayList<>();
         Path javaBin = Paths.get(javaHome, "bin", "java");
         cmd.add(javaBin.toString());
@@ -193,7 +204,11 @@ public final class JavaProcessBuilder {
                     "Either a main class or the path to an executable jar file have to be specified");
         }
         cmd.addAll(cliArgs);
+        return cmd;
+    }
 
+    public ProcessBuilder build() throws IOException {
+        List<String> cmd = buildCommand();
         int cmdLength = 0;
         for(String part : cmd) {
             cmdLength += part.length();
@@ -0,0 +1,261 @@
+package net.corda.flask.launcher;
+
+import net.corda.flask.common.JvmProfile;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sizes the child JVM for the memory and processors available to it, which are the host's own unless
+ * the process's cgroup, either v1 or v2, sets lower limits. The flags that we choose come before the
+ * flask jar's own JVM arguments, and we leave out any flag that those arguments already set, so that
+ * explicit arguments always win.
+ */
+final class JvmErgonomics {
+    static final long UNLIMITED = Long.MAX_VALUE;
+
+    /**
+     * The JVM itself only chooses a collector other than the serial one
+     * on a "server class" machine, with at least this much memory and
+     * this many processors, and so do we.
+     */
+    private static final long SERVER_CLASS_MEMORY = 1792L * 1024 * 1024;
+    private static final int SERVER_CLASS_PROCESSORS = 2;
+
+    private static final long MIN_HEAP_MEGABYTES = 16;
+    private static final int ACTIVE_PROCESSOR_COUNT_JAVA_VERSION = 10;
+
+    static final class Resources {
+        final long memory;
+        final int processors;
+        final int hostProcessors;
+
+        Resources(long memory, int processors, int hostProcessors) {
+            this.memory = memory;
+            this.processors = processors;
+            this.hostProcessors = hostProcessors;
+        }
+
+        @Override
+        public String toString() {
+            return "memory=" + (memory == UNLIMITED ? "unknown" : memory) + ", processors=" + processors;
+        }
+    }
+
+    private interface LimitReader {
+        long read(Path cgroupDir) throws IOException;
+    }
+
+    private JvmErgonomics() {
+    }
+
+    static Resources detect() {
+        return detect(Paths.get("/proc/self/cgroup"), Paths.get("/sys/fs/cgroup"),
+            hostMemory(), Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param procCgroup lists the process's cgroups, as "hierarchy-ID:controller-list:cgroup-path" lines,
+     *                   where cgroup v2 has an empty controller list
+     * @param cgroupMount where the cgroup hierarchies are mounted
+     */
+    static Resources detect(Path procCgroup, Path cgroupMount, long hostMemory, int hostProcessors) {
+        long memory = hostMemory;
+        long processors = hostProcessors;
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(procCgroup, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            // Not Linux, or no cgroups.
+            return new Resources(memory, hostProcessors, hostProcessors);
+        }
+        for (String line : lines) {
+            String[] fields = line.split(":", 3);
+            if (fields.length != 3) {
+                continue;
+            }
+            String cgroupPath = fields[2];
+            if (fields[1].isEmpty()) {
+                memory = Math.min(memory, hierarchyLimit(cgroupMount, cgroupPath, JvmErgonomics::memoryLimitV2));
+                processors = Math.min(processors, hierarchyLimit(cgroupMount, cgroupPath, JvmErgonomics::cpuLimitV2));
+            } else {
+                List<String> controllers = Arrays.asList(fields[1].split(","));
+                Path hierarchy = cgroupMount.resolve(fields[1]);
+                if (controllers.contains("memory")) {
+                    memory = Math.min(memory, hierarchyLimit(hierarchy, cgroupPath, JvmErgonomics::memoryLimitV1));
+                }
+                if (controllers.contains("cpu")) {
+                    processors = Math.min(processors, hierarchyLimit(hierarchy, cgroupPath, JvmErgonomics::cpuLimitV1));
+                }
+            }
+        }
+        return new Resources(memory, (int) Math.max(1, processors), hostProcessors);
+    }
+
+    /**
+     * A cgroup's limits also apply to every cgroup beneath it, and so the effective limit is the lowest one
+     * on the path from the hierarchy's root. Inside a container, the hierarchy's root is often the container's
+     * own cgroup, which means that the path we were given from the host's root doesn't exist.
+     */
+    private static long hierarchyLimit(Path root, String cgroupPath, LimitReader reader) {
+        Path dir = root.resolve(cgroupPath.replaceFirst("^/+", ""));
+        if (!Files.isDirectory(dir)) {
+            dir = root;
+        }
+        long limit = UNLIMITED;
+        try {
+            while (dir != null && dir.startsWith(root)) {
+                limit = Math.min(limit, reader.read(dir));
+                dir = dir.getParent();
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Ignore a limit that we cannot read.
+        }
+        return limit;
+    }
+
+    private static String readValue(Path file) throws IOException {
+        try {
+            return new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private static long memoryLimitV2(Path cgroupDir) throws IOException {
+        String value = readValue(cgroupDir.resolve("memory.max"));
+        return value == null || "max".equals(value) ? UNLIMITED : Long.parseLong(value);
+    }
+
+    /**
+     * "cpu.max" contains the quota and the period, and the quota is "max" if there is none.
+     */
+    private static long cpuLimitV2(Path cgroupDir) throws IOException {
+        String value = readValue(cgroupDir.resolve("cpu.max"));
+        if (value == null) {
+            return UNLIMITED;
+        }
+        String[] fields = value.split("\\s+");
+        if ("max".equals(fields[0]) || fields.length < 2) {
+            return UNLIMITED;
+        }
+        return processors(Long.parseLong(fields[0]), Long.parseLong(fields[1]));
+    }
+
+    private static long memoryLimitV1(Path cgroupDir) throws IOException {
+        String value = readValue(cgroupDir.resolve("memory.limit_in_bytes"));
+        return value == null ? UNLIMITED : Long.parseLong(value);
+    }
+
+    /**
+     * A quota of -1 means that there is none.
+     */
+    private static long cpuLimitV1(Path cgroupDir) throws IOException {
+        String quota = readValue(cgroupDir.resolve("cpu.cfs_quota_us"));
+        String period = readValue(cgroupDir.resolve("cpu.cfs_period_us"));
+        if (quota == null || period == null || Long.parseLong(quota) < 0) {
+            return UNLIMITED;
+        }
+        return processors(Long.parseLong(quota), Long.parseLong(period));
+    }
+
+    private static long processors(long quota, long period) {
+        return period > 0 ? Math.max(1, (quota + period - 1) / period) : UNLIMITED;
+    }
+
+    /**
+     * Its replacement, getTotalMemorySize(), only exists from Java 14 onwards, but the launcher still runs on Java 8.
+     */
+    @SuppressWarnings("deprecation")
+    private static long hostMemory() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getTotalPhysicalMemorySize();
+        }
+        return UNLIMITED;
+    }
+
+    /**
+     * The JVM's own formula for the number of parallel garbage collection threads.
+     */
+    private static int parallelGCThreads(int processors) {
+        return processors <= 8 ? processors : 8 + (processors - 8) * 5 / 8;
+    }
+
+    private static boolean isSet(List<String> jvmArgs, String... prefixes) {
+        for (String jvmArg : jvmArgs) {
+            for (String prefix : prefixes) {
+                if (jvmArg.startsWith(prefix)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isCollectorSet(List<String> jvmArgs) {
+        for (String jvmArg : jvmArgs) {
+            if (jvmArg.startsWith("-XX:+Use") && jvmArg.endsWith("GC")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param heapPercentage the share of memory, in percent, that the heap may use
+     * @param jvmArgs the JVM arguments that the child process already has
+     * @param javaVersion the child process's Java feature version
+     */
+    static List<String> jvmArgs(
+            JvmProfile profile,
+            int heapPercentage,
+            Resources resources,
+            List<String> jvmArgs,
+            int javaVersion) {
+        List<String> result = new ArrayList<>();
+        if (resources.memory != UNLIMITED && !isSet(jvmArgs, "-Xmx", "-XX:MaxHeapSize=", "-XX:MaxRAM")) {
+            long heapMegabytes = Math.max(MIN_HEAP_MEGABYTES, resources.memory / (1024 * 1024) * heapPercentage / 100);
+            result.add("-Xmx" + heapMegabytes + "m");
+            // A heap that never resizes avoids the pauses of resizing it.
+            if (profile == JvmProfile.LATENCY && !isSet(jvmArgs, "-Xms", "-XX:InitialHeapSize=", "-XX:InitialRAM")) {
+                result.add("-Xms" + heapMegabytes + "m");
+            }
+        }
+        boolean serverClass = resources.memory >= SERVER_CLASS_MEMORY && resources.processors >= SERVER_CLASS_PROCESSORS;
+        if (!isCollectorSet(jvmArgs)) {
+            if (profile == JvmProfile.FOOTPRINT || !serverClass) {
+                result.add("-XX:+UseSerialGC");
+            } else {
+                int parallelThreads = parallelGCThreads(resources.processors);
+                if (profile == JvmProfile.THROUGHPUT) {
+                    result.add("-XX:+UseParallelGC");
+                } else {
+                    result.add("-XX:+UseG1GC");
+                    if (!isSet(jvmArgs, "-XX:ConcGCThreads=")) {
+                        result.add("-XX:ConcGCThreads=" + Math.max(1, (parallelThreads + 2) / 4));
+                    }
+                }
+                if (!isSet(jvmArgs, "-XX:ParallelGCThreads=")) {
+                    result.add("-XX:ParallelGCThreads=" + parallelThreads);
+                }
+            }
+        }
+        // Java 10 to 14 runtimes cannot read a cgroup v2 processor quota when they size their thread pools,
+        // and so we pass them the number of processors that we found. It makes no difference to later runtimes.
+        if (javaVersion >= ACTIVE_PROCESSOR_COUNT_JAVA_VERSION && resources.processors < resources.hostProcessors
+                && !isSet(jvmArgs, "-XX:ActiveProcessorCount=")) {
+            result.add("-XX:ActiveProcessorCount=" + resources.processors);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,90 @@
+package net.corda.flask.launcher;
+
+import net.corda.flask.common.Flask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long each phase of a launch takes. Phases with the same name accumulate, which means that
+ * a phase that runs on several threads at once, such as extracting libraries, records its total time.
+ * The timings are logged at debug level once the child JVM has exited, and are also appended to the file
+ * named by {@link Flask.JvmProperties#TIMING_FILE} if it is set, as a single line of "phase=microseconds"
+ * fields which ends with the total time since the launcher started.
+ */
+final class LaunchTimer {
+    private static final Logger log = LoggerFactory.getLogger(LaunchTimer.class);
+
+    static final LaunchTimer instance = new LaunchTimer();
+
+    /**
+     * A running phase, which stops when it is closed.
+     */
+    interface Phase extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private final long origin = System.nanoTime();
+    private final Map<String, Long> phases = new LinkedHashMap<>();
+    private boolean reported;
+
+    private LaunchTimer() {
+    }
+
+    Phase start(String name) {
+        long start = System.nanoTime();
+        return () -> add(name, System.nanoTime() - start);
+    }
+
+    synchronized void add(String name, long nanos) {
+        phases.merge(name, nanos, Long::sum);
+    }
+
+    /**
+     * Reports every phase measured so far, but only once per launch.
+     */
+    void report() {
+        long total = System.nanoTime() - origin;
+        StringBuilder line = new StringBuilder();
+        synchronized (this) {
+            if (reported) {
+                return;
+            }
+            reported = true;
+            for (Map.Entry<String, Long> entry : phases.entrySet()) {
+                line.append(entry.getKey()).append('=').append(TimeUnit.NANOSECONDS.toMicros(entry.getValue())).append(' ');
+            }
+        }
+        line.append("total=").append(TimeUnit.NANOSECONDS.toMicros(total));
+        log.debug("Launch timings in microseconds: {}", line);
+        String timingFile = System.getProperty(Flask.JvmProperties.TIMING_FILE);
+        if (timingFile != null) {
+            appendLine(Paths.get(timingFile), line.append('\n').toString());
+        }
+    }
+
+    /**
+     * Concurrent launches may share the same file, and so we append each line with a single write.
+     */
+    private static void appendLine(Path file, String line) {
+        ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            log.debug(String.format("Unable to write launch timings to '%s': %s", file, e.getMessage()), e);
+        }
+    }
+}
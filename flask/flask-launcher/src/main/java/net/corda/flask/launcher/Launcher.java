@@ -1,26 +1,43 @@
 package net.corda.flask.launcher;
 
+import net.corda.flask.common.DaemonProtocol;
 import net.corda.flask.common.Flask;
+import net.corda.flask.common.JvmProfile;
 import net.corda.flask.common.LockFile;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.ByteBuffer;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
 import java.util.concurrent.TimeUnit;
+import java.util.jar.Attributes;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
 import java.util.stream.Collectors;
@@ -78,15 +95,100 @@ public class Launcher {
         return result;
     }
 
+    private static Map<String, List<String>> packageIndexFromPropertyFile(InputStream is) throws IOException {
+        Properties p = new Properties();
+        Flask.loadProperties(p, is);
+        Map<String, List<String>> result = new HashMap<>();
+        for (String packageName : p.stringPropertyNames()) {
+            result.put(packageName, Arrays.asList(p.getProperty(packageName).split(Flask.Constants.PACKAGE_INDEX_SEPARATOR)));
+        }
+        return result;
+    }
+
+    /**
+     * We only create class data sharing archives for an application's classes from Java 13 onwards.
+     */
+    private static final int DYNAMIC_CDS_JAVA_VERSION = 13;
+
+    /**
+     * The modules of a runtime image only exist from Java 9 onwards.
+     */
+    private static final int JLINK_JAVA_VERSION = 9;
+
+    /**
+     * A Flask daemon needs a security manager to stop its requests from exiting the JVM. Java 12 onwards
+     * only allows one to be installed at runtime if requested, and Java 24 no longer supports them at all.
+     */
+    private static final int SECURITY_MANAGER_OPT_IN_JAVA_VERSION = 12;
+    private static final int NO_SECURITY_MANAGER_JAVA_VERSION = 24;
+
+    /**
+     * A flask jar's shell stub passes the child JVM's command line inside an argument file,
+     * which the java executable only reads from Java 9 onwards.
+     */
+    private static final int ARGUMENT_FILE_JAVA_VERSION = 9;
+
+    private static final String NO_JVM_PROFILE = "none";
+
+    private static final String DAEMON_FILE = "daemon.xml";
+    private static final String DAEMON_START_LOCK = "start.lock";
+    private static final String DAEMON_LOG = "daemon.log";
+    private static final long DAEMON_START_TIMEOUT_MILLIS = 60000;
+    private static final long DAEMON_START_POLL_MILLIS = 10;
+
+    private static int javaFeatureVersion() {
+        String version = System.getProperty("java.specification.version", "");
+        try {
+            return Integer.parseInt(version.startsWith("1.") ? version.substring(2) : version);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static boolean isCdsEnabled(JavaProcessBuilder builder) {
+        return javaFeatureVersion() >= DYNAMIC_CDS_JAVA_VERSION
+            && !Boolean.getBoolean(Flask.JvmProperties.NO_CDS) && !isCdsConfigured(builder.getJvmArgs());
+    }
+
+    private static boolean isCdsConfigured(List<String> jvmArgs) {
+        for(String jvmArg : jvmArgs) {
+            if(jvmArg.startsWith("-XX:SharedArchiveFile") || jvmArg.startsWith("-XX:ArchiveClassesAtExit")
+                || jvmArg.startsWith("-XX:DumpLoadedClassList") || jvmArg.startsWith("-Xshare")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isInProcess(Manifest manifest) {
+        String inProcess = System.getProperty(Flask.JvmProperties.IN_PROCESS);
+        if (inProcess == null) {
+            inProcess = manifest.getMainAttributes().getValue(Flask.ManifestAttributes.IN_PROCESS);
+        }
+        return Boolean.parseBoolean(inProcess);
+    }
+
+    private static boolean isDaemon(Manifest manifest) {
+        String daemon = System.getProperty(Flask.JvmProperties.DAEMON);
+        if (daemon == null) {
+            daemon = manifest.getMainAttributes().getValue(Flask.ManifestAttributes.DAEMON);
+        }
+        return Boolean.parseBoolean(daemon);
+    }
+
     public static void main(String[] args) throws Exception {
         Manifest manifest = new Manifest();
         List<String> jvmArgs = new ArrayList<>();
         List<String> javaAgents = null;
-        try(ZipFile jar = new ZipFile(currentJar.toFile())) {
+        Map<String, List<String>> packageIndex = null;
+        boolean inProcess;
+        try(LaunchTimer.Phase ignored = LaunchTimer.instance.start("manifest");
+            ZipFile jar = new ZipFile(currentJar.toFile())) {
             ZipEntry manifestEntry = jar.getEntry(JarFile.MANIFEST_NAME);
             try (InputStream inputStream = jar.getInputStream(manifestEntry)) {
                 manifest.read(inputStream);
             }
+            inProcess = isInProcess(manifest);
             ZipEntry jvmArgsEntry = jar.getEntry(Flask.Constants.JVM_ARGUMENT_FILE);
             if(jvmArgsEntry != null) {
                 List<String> jvmArgumentsFromPropertyFile;
@@ -107,6 +209,12 @@ public class Launcher {
                     javaAgents = listOfStringFromPropertyFile(inputStream);
                 }
             }
+            ZipEntry packageIndexEntry = jar.getEntry(Flask.Constants.PACKAGE_INDEX_FILE);
+            if(inProcess && packageIndexEntry != null) {
+                try (InputStream inputStream = jar.getInputStream(packageIndexEntry)) {
+                    packageIndex = packageIndexFromPropertyFile(inputStream);
+                }
+            }
         }
         List<String> cliArgs = extractFlaskArgs(args, jvmArgs);
         String mainClassName = manifest.getMainAttributes().getValue(Flask.ManifestAttributes.LAUNCHER_CLASS);
@@ -114,92 +222,495 @@ public class Launcher {
         Class<? extends Launcher> launcherClass = (Class<? extends Launcher>)
                 Class.forName(mainClassName, true, Launcher.class.getClassLoader());
         Constructor<? extends Launcher> ctor = launcherClass.getConstructor();
-        System.exit(ctor.newInstance().launch(manifest, jvmArgs, javaAgents, cliArgs));
+        String execCommand = System.getProperty(Flask.JvmProperties.EXEC_COMMAND);
+        if(execCommand != null) {
+            ctor.newInstance().prepareExec(manifest, jvmArgs, javaAgents, Paths.get(execCommand));
+        } else if(inProcess) {
+            ctor.newInstance().launchInProcess(manifest, jvmArgs, javaAgents, packageIndex, cliArgs);
+        } else {
+            System.exit(ctor.newInstance().launch(manifest, jvmArgs, javaAgents, cliArgs));
+        }
+    }
+
+    /**
+     * Runs the application inside this JVM, loading its classes directly from the libraries
+     * stored inside the flask jar. Only system properties can be applied from the JVM arguments,
+     * and none of the Java agents can be started. Neither {@link #beforeChildJvmStart} nor
+     * {@link #afterChildJvmExit} is invoked, because there is no child JVM.
+     */
+    final void launchInProcess(
+            Manifest manifest,
+            List<String> jvmArgs,
+            List<String> javaAgents,
+            Map<String, List<String>> packageIndex,
+            List<String> args) throws Exception {
+        for(String jvmArg : jvmArgs) {
+            if(jvmArg.startsWith("-D")) {
+                int equalCharPosition = jvmArg.indexOf('=');
+                if(equalCharPosition < 0) {
+                    System.setProperty(jvmArg.substring(2), "");
+                } else {
+                    System.setProperty(jvmArg.substring(2, equalCharPosition), jvmArg.substring(equalCharPosition + 1));
+                }
+            } else {
+                log.warn("JVM argument '{}' cannot be applied in-process and will be ignored", jvmArg);
+            }
+        }
+        if(javaAgents != null && !javaAgents.isEmpty() && !Boolean.getBoolean(Flask.JvmProperties.NO_JAVA_AGENT)) {
+            log.warn("Java agents cannot be started in-process and will be ignored: [{}]", String.join(", ", javaAgents));
+        }
+
+        String heartbeatAgentHash = manifest.getMainAttributes().getValue(Flask.ManifestAttributes.HEARTBEAT_AGENT_HASH);
+        List<NestedJar> libraries = new ArrayList<>();
+        // Mapped buffers remain valid after their channel is closed.
+        try(LaunchTimer.Phase ignored = LaunchTimer.instance.start("mapLibraries");
+            ZipChannel zipChannel = new ZipChannel(currentJar)) {
+            for(Map.Entry<String, Attributes> entry : manifest.getEntries().entrySet()) {
+                String jarEntryName = entry.getKey();
+                String entryHash = entry.getValue().getValue(Flask.ManifestAttributes.ENTRY_HASH);
+                if(!jarEntryName.startsWith(Flask.Constants.LIBRARIES_FOLDER + '/') || entryHash == null
+                    || Flask.bytes2Hex(Base64.getDecoder().decode(entryHash)).equals(heartbeatAgentHash)) {
+                    continue;
+                }
+                ByteBuffer buffer = zipChannel.map(jarEntryName);
+                if(buffer == null) {
+                    throw new IllegalStateException(String.format(
+                        "Library '%s' is not stored uncompressed and cannot be loaded in-process", jarEntryName));
+                }
+                libraries.add(new NestedJar(jarEntryName, buffer));
+            }
+        }
+        if(packageIndex == null) {
+            log.debug("Flask jar has no package index, building one");
+            try(LaunchTimer.Phase ignored = LaunchTimer.instance.start("packageIndex")) {
+                packageIndex = NestedJarClassLoader.indexPackages(libraries);
+            }
+        }
+        ClassLoader classLoader = new NestedJarClassLoader(libraries, packageIndex, ClassLoader.getSystemClassLoader().getParent());
+        String mainClassName = Optional.ofNullable(System.getProperty(Flask.JvmProperties.MAIN_CLASS))
+            .orElse(manifest.getMainAttributes().getValue(Flask.ManifestAttributes.APPLICATION_CLASS));
+        log.debug("Launching '{}' in-process", mainClassName);
+        Thread.currentThread().setContextClassLoader(classLoader);
+        Method mainMethod;
+        try(LaunchTimer.Phase ignored = LaunchTimer.instance.start("mainClass")) {
+            mainMethod = Class.forName(mainClassName, true, classLoader).getMethod("main", String[].class);
+        }
+        // The application may never return from its main method, and so this is the end of the launch.
+        LaunchTimer.instance.report();
+        try {
+            mainMethod.invoke(null, (Object) args.toArray(new String[0]));
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof Exception) {
+                throw (Exception) cause;
+            } else if(cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    private JavaProcessBuilder createJavaProcessBuilder(
+            JarCache cache,
+            Manifest manifest,
+            List<String> jvmArgs,
+            List<String> javaAgents,
+            Map<String, Path> extractedLibraries) throws IOException, InterruptedException {
+        JavaProcessBuilder builder = new JavaProcessBuilder();
+        String runtimeModules = manifest.getMainAttributes().getValue(Flask.ManifestAttributes.RUNTIME_MODULES);
+        if(runtimeModules != null && javaFeatureVersion() >= JLINK_JAVA_VERSION && !Boolean.getBoolean(Flask.JvmProperties.NO_JLINK)) {
+            Path runtimeImage;
+            try(LaunchTimer.Phase ignored = LaunchTimer.instance.start("runtimeImage")) {
+                runtimeImage = cache.getRuntimeImage(Arrays.asList(runtimeModules.split(",")));
+            }
+            if(runtimeImage != null) {
+                log.trace("Using runtime image '{}'", runtimeImage);
+                builder.setJavaHome(runtimeImage.toString());
+            }
+        }
+        builder.setMainClassName(Optional.ofNullable(System.getProperty(Flask.JvmProperties.MAIN_CLASS))
+                .orElse(manifest.getMainAttributes().getValue(Flask.ManifestAttributes.APPLICATION_CLASS)));
+        builder.getJvmArgs().addAll(ergonomicJvmArgs(manifest, jvmArgs == null ? Collections.emptyList() : jvmArgs));
+        if(jvmArgs != null) {
+            builder.getJvmArgs().addAll(jvmArgs);
+        }
+        boolean disableJavaAgents = Boolean.getBoolean(Flask.JvmProperties.NO_JAVA_AGENT);
+        if(javaAgents != null && !disableJavaAgents) {
+            for(String javaAgentString : javaAgents) {
+                int equalCharPosition = javaAgentString.indexOf('=');
+                String hash;
+                if(equalCharPosition < 0) {
+                    hash = javaAgentString;
+                } else {
+                    hash = javaAgentString.substring(0, equalCharPosition);
+                }
+                Path agentJar = Optional.ofNullable(extractedLibraries.get(hash))
+                    .orElseThrow(() -> new IllegalStateException(String.format(
+                        "Java agent jar with hash '%s' not found Flask cache", hash)));
+                String agentArguments = null;
+                if(equalCharPosition > 0) {
+                    agentArguments = javaAgentString.substring(equalCharPosition + 1);
+                    log.trace("Adding Java agent '{}' with arguments '{}'", agentJar.getFileName().toString(), agentArguments);
+                } else {
+                    log.trace("Adding Java agent '{}'", agentJar.getFileName().toString());
+                }
+                builder.getJavaAgents().add(new JavaProcessBuilder.JavaAgent(agentJar, agentArguments));
+            }
+        }
+        for(Path jarPath : extractedLibraries.values()) {
+            builder.getClasspath().add(jarPath.toString());
+        }
+        return builder;
+    }
+
+    /**
+     * The JVM arguments that size the child JVM according to its {@link JvmProfile},
+     * for the memory and processors available when it launches.
+     */
+    private static List<String> ergonomicJvmArgs(Manifest manifest, List<String> jvmArgs) {
+        String profileName = Optional.ofNullable(System.getProperty(Flask.JvmProperties.JVM_PROFILE))
+            .orElse(manifest.getMainAttributes().getValue(Flask.ManifestAttributes.JVM_PROFILE));
+        if(profileName == null || NO_JVM_PROFILE.equalsIgnoreCase(profileName)) {
+            return Collections.emptyList();
+        }
+        JvmProfile profile = JvmProfile.forName(profileName);
+        int heapPercentage = Optional.ofNullable(manifest.getMainAttributes().getValue(Flask.ManifestAttributes.HEAP_PERCENTAGE))
+            .map(Integer::parseInt)
+            .orElse(profile.getHeapPercentage());
+        JvmErgonomics.Resources resources = JvmErgonomics.detect();
+        List<String> result = JvmErgonomics.jvmArgs(profile, heapPercentage, resources, jvmArgs, javaFeatureVersion());
+        log.debug("Sizing the child JVM for the '{}' profile and {}: [{}]", profile.getName(), resources, String.join(", ", result));
+        return result;
+    }
+
+    /**
+     * @param pidFile null if a flask jar's shell stub will choose the pid file instead
+     */
+    private static void addHeartbeatAgent(
+            JavaProcessBuilder builder,
+            Manifest manifest,
+            Map<String, Path> extractedLibraries,
+            Path pidFile) {
+        if(pidFile != null) {
+            builder.getProperties().put(Flask.JvmProperties.PID_FILE, pidFile);
+        }
+        Path heartbeatAgentPath = extractedLibraries.get(
+                manifest.getMainAttributes().getValue(Flask.ManifestAttributes.HEARTBEAT_AGENT_HASH));
+        builder.getJvmArgs().add("-javaagent:" + heartbeatAgentPath);
     }
 
     final int launch(Manifest manifest, List<String> jvmArgs, List<String> javaAgents, List<String> args) throws IOException, InterruptedException {
         JarCache cache = new JarCache(CACHE_FOLDER_DEFAULT_NAME);
-        if(Boolean.getBoolean(Flask.JvmProperties.WIPE_CACHE)) {
-            cache.wipeLibDir();
-        } else if(Files.exists(cache.getLibDir())) {
-            cache.cleanLibDir();
-        }
-        try(LockFile ignored = LockFile.acquire(cache.getLockFile(), true)) {
-            Map<String, Path> extractedLibraries = cache.extract(manifest);
-            JavaProcessBuilder builder = new JavaProcessBuilder();
-            builder.setMainClassName(Optional.ofNullable(System.getProperty(Flask.JvmProperties.MAIN_CLASS))
-                    .orElse(manifest.getMainAttributes().getValue(Flask.ManifestAttributes.APPLICATION_CLASS)));
-            if(jvmArgs != null) {
-                builder.getJvmArgs().addAll(jvmArgs);
-            }
-            boolean disableJavaAgents = Boolean.getBoolean(Flask.JvmProperties.NO_JAVA_AGENT);
-            if(javaAgents != null && !disableJavaAgents) {
-                for(String javaAgentString : javaAgents) {
-                    int equalCharPosition = javaAgentString.indexOf('=');
-                    String hash;
-                    if(equalCharPosition < 0) {
-                        hash = javaAgentString;
-                    } else {
-                        hash = javaAgentString.substring(0, equalCharPosition);
-                    }
-                    Path agentJar = Optional.ofNullable(extractedLibraries.get(hash))
-                        .orElseThrow(() -> new IllegalStateException(String.format(
-                            "Java agent jar with hash '%s' not found Flask cache", hash)));
-                    String agentArguments = null;
-                    if(equalCharPosition > 0) {
-                        agentArguments = javaAgentString.substring(equalCharPosition + 1);
-                        log.trace("Adding Java agent '{}' with arguments '{}'", agentJar.getFileName().toString(), agentArguments);
-                    } else {
-                        log.trace("Adding Java agent '{}'", agentJar.getFileName().toString());
-                    }
-                    builder.getJavaAgents().add(new JavaProcessBuilder.JavaAgent(agentJar, agentArguments));
+        if(isDaemon(manifest)) {
+            if(javaFeatureVersion() < NO_SECURITY_MANAGER_JAVA_VERSION) {
+                Integer returnCode = launchDaemon(cache, manifest, jvmArgs, javaAgents, args);
+                if(returnCode != null) {
+                    LaunchTimer.instance.report();
+                    afterChildJvmExit(returnCode);
+                    return returnCode;
                 }
+            } else {
+                log.warn("Java {} cannot run a Flask daemon, launching the application directly", javaFeatureVersion());
             }
-            for(Path jarPath : extractedLibraries.values()) {
-                builder.getClasspath().add(jarPath.toString());
+        }
+        cleanCache(cache);
+        // The pid file lists the libraries that this process uses, which protects them from eviction.
+        LockFile processLock = cache.lockPidFile();
+        Map<String, Path> extractedLibraries;
+        try(LockFile ignored = acquireCacheLock(cache)) {
+            try(LaunchTimer.Phase ignoredPhase = LaunchTimer.instance.start("extract")) {
+                extractedLibraries = cache.extract(currentJar, manifest);
             }
-            builder.getCliArgs().addAll(args);
-            beforeChildJvmStart(builder);
-            builder.getProperties().put(Flask.JvmProperties.PID_FILE, cache.getPidFile());
-            Path heartbeatAgentPath = extractedLibraries.get(
-                    manifest.getMainAttributes().getValue(Flask.ManifestAttributes.HEARTBEAT_AGENT_HASH));
-            builder.getJvmArgs().add("-javaagent:" + heartbeatAgentPath);
-            LockFile processLock = LockFile.acquire(cache.getPidFile(), false);
-            Process process = builder.build().inheritIO().start();
-            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-                if(process.isAlive()) {
-                    process.destroy();
+            cache.recordAccess(processLock);
+        }
+        JavaProcessBuilder builder = createJavaProcessBuilder(cache, manifest, jvmArgs, javaAgents, extractedLibraries);
+        builder.getCliArgs().addAll(args);
+        beforeChildJvmStart(builder);
+        addHeartbeatAgent(builder, manifest, extractedLibraries, cache.getPidFile());
+        Path cdsArchive = null;
+        Path cdsClassList = null;
+        if(isCdsEnabled(builder)) {
+            cdsArchive = cache.getCdsArchive(builder.getJavaHome(), builder.getClasspath());
+            if(Files.exists(cdsArchive)) {
+                log.trace("Using class data sharing archive '{}'", cdsArchive);
+                builder.getJvmArgs().add("-XX:SharedArchiveFile=" + cdsArchive);
+            } else {
+                cdsClassList = cache.getCdsClassListFile(cdsArchive);
+                builder.getJvmArgs().add("-XX:DumpLoadedClassList=" + cdsClassList);
+            }
+        }
+        Process process;
+        try(LaunchTimer.Phase ignored = LaunchTimer.instance.start("childStart")) {
+            process = builder.build().inheritIO().start();
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if(process.isAlive()) {
+                process.destroy();
+                try {
+                    long timeout = Long.parseLong(
+                            System.getProperty(
+                                    Flask.JvmProperties.KILL_TIMEOUT_MILLIS,
+                                    Flask.Constants.DEFAULT_KILL_TIMEOUT_MILLIS));
+                    process.waitFor(timeout, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ie) {
+                    ie.printStackTrace();
+                } finally {
+                    if (process.isAlive()) {
+                        process.destroyForcibly();
+                    }
                     try {
-                        long timeout = Long.parseLong(
-                                System.getProperty(
-                                        Flask.JvmProperties.KILL_TIMEOUT_MILLIS,
-                                        Flask.Constants.DEFAULT_KILL_TIMEOUT_MILLIS));
-                        process.waitFor(timeout, TimeUnit.MILLISECONDS);
-                    } catch (InterruptedException ie) {
-                        ie.printStackTrace();
-                    } finally {
-                        if (process.isAlive()) {
-                            process.destroyForcibly();
-                        }
-                        try {
-                            processLock.close();
-                        } catch (IOException ignoredEx) {
-                        }
+                        processLock.close();
+                    } catch (IOException ignoredEx) {
                     }
                 }
-                try {
-                    Files.delete(cache.getPidFile());
-                } catch (Exception ex) {
-                    ex.printStackTrace();
+            }
+            try {
+                Files.delete(cache.getPidFile());
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }));
+        int returnCode;
+        try(LaunchTimer.Phase ignored = LaunchTimer.instance.start("childRun")) {
+            returnCode = process.waitFor();
+        }
+        if(cdsClassList != null) {
+            try(LaunchTimer.Phase ignored = LaunchTimer.instance.start("cdsDump")) {
+                cache.createCdsArchive(builder.getJavaHome(), builder.getClasspath(), cdsClassList, cdsArchive);
+            }
+        }
+        LaunchTimer.instance.report();
+        afterChildJvmExit(returnCode);
+        return returnCode;
+    }
+
+    private static void cleanCache(JarCache cache) throws IOException {
+        try(LaunchTimer.Phase ignored = LaunchTimer.instance.start("cleanup")) {
+            if(Boolean.getBoolean(Flask.JvmProperties.WIPE_CACHE)) {
+                cache.wipeLibDir();
+            } else if(Files.exists(cache.getLibDir())) {
+                cache.cleanLibDir();
+            }
+        }
+    }
+
+    private static LockFile acquireCacheLock(JarCache cache) throws IOException {
+        try(LaunchTimer.Phase ignored = LaunchTimer.instance.start("cacheLock")) {
+            return LockFile.acquire(cache.getLockFile(), true);
+        }
+    }
+
+    /**
+     * Prepares the command line that a flask jar's shell stub runs in place of this launcher, which saves the
+     * launcher's own JVM from staying resident for as long as the application runs. We extract any missing
+     * libraries and build the child JVM's command line exactly as {@link #launch} would, but then write it to
+     * files for the stub to read:
+     * <ul>
+     *     <li>"&lt;command&gt;.args" is an argument file with everything after the java executable,</li>
+     *     <li>"&lt;command&gt;.java" is the java executable,</li>
+     *     <li>"&lt;command&gt;.libraries" lists the libraries' files, which must all still exist,</li>
+     *     <li>"&lt;command&gt;.hashes" lists the libraries' hashes, for the child's pid file,</li>
+     *     <li>"&lt;command&gt;.interval" is the eviction interval in minutes, after which the stub runs us again.</li>
+     * </ul>
+     * The stub writes the child's pid file itself, and the heartbeat agent then locks it and publishes it for as
+     * long as the child runs. The child creates no class data sharing archive, although it uses any that a launch
+     * has created, and {@link #afterChildJvmExit} is never invoked. If the stub cannot skip this launcher, because
+     * the application runs in-process or inside a daemon, or because the java executable cannot read argument files,
+     * then we write "&lt;command&gt;.launcher" instead, and the stub always runs this launcher.
+     */
+    final void prepareExec(Manifest manifest, List<String> jvmArgs, List<String> javaAgents, Path command) throws IOException, InterruptedException {
+        Files.createDirectories(command.getParent());
+        if(isInProcess(manifest) || isDaemon(manifest) || javaFeatureVersion() < ARGUMENT_FILE_JAVA_VERSION) {
+            Files.write(commandFile(command, ".launcher"), new byte[0]);
+            return;
+        }
+        JarCache cache = new JarCache(CACHE_FOLDER_DEFAULT_NAME);
+        cleanCache(cache);
+        Map<String, Path> extractedLibraries;
+        try(LockFile ignored = acquireCacheLock(cache)) {
+            // The stub only runs us when something is missing, which the index may not know about.
+            extractedLibraries = cache.extract(currentJar, manifest, false);
+        }
+        JavaProcessBuilder builder = createJavaProcessBuilder(cache, manifest, jvmArgs, javaAgents, extractedLibraries);
+        beforeChildJvmStart(builder);
+        addHeartbeatAgent(builder, manifest, extractedLibraries, null);
+        builder.getProperties().put(Flask.JvmProperties.PID_FILE_OWNER, Boolean.TRUE.toString());
+        if(isCdsEnabled(builder)) {
+            Path cdsArchive = cache.getCdsArchive(builder.getJavaHome(), builder.getClasspath());
+            if(Files.exists(cdsArchive)) {
+                builder.getJvmArgs().add("-XX:SharedArchiveFile=" + cdsArchive);
+            }
+        }
+        List<String> cmd = builder.buildCommand();
+        writeCommandFile(command, ".libraries", extractedLibraries.values().stream()
+            .map(path -> path + "\n")
+            .collect(Collectors.joining()));
+        writeCommandFile(command, ".hashes", String.join(" ", extractedLibraries.keySet()));
+        writeCommandFile(command, ".java", cmd.get(0) + "\n");
+        writeCommandFile(command, ".interval", JarCache.getEvictionInterval().toMinutes() + "\n");
+        // The stub checks for the argument file first, and so we write it last.
+        writeCommandFile(command, ".args", JavaProcessBuilder.generateArgumentFileString(cmd.subList(1, cmd.size())));
+        log.debug("Prepared command line '{}'", commandFile(command, ".args"));
+    }
+
+    private static Path commandFile(Path command, String suffix) {
+        return command.resolveSibling(command.getFileName() + suffix);
+    }
+
+    private static void writeCommandFile(Path command, String suffix, String content) throws IOException {
+        Path file = commandFile(command, suffix);
+        Path tmpFile = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            Files.write(tmpFile, content.getBytes(StandardCharsets.UTF_8));
+            Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmpFile);
+        }
+    }
+
+    /**
+     * A daemon can only run requests from the same working directory and environment as its own, and it must
+     * have been started from the same flask jar, JVM arguments and launcher. Its key is a digest of all of these.
+     */
+    private String daemonKey(
+            Manifest manifest,
+            List<String> jvmArgs,
+            List<String> javaAgents,
+            String workingDirectory,
+            Map<String, String> environment) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+        try(DataOutputStream output = new DataOutputStream(new DigestOutputStream(new ByteArrayOutputStream(), md))) {
+            manifest.write(output);
+            List<String> fields = new ArrayList<>();
+            fields.add(getClass().getName());
+            fields.add(System.getProperty("java.home"));
+            fields.add(System.getProperty(Flask.JvmProperties.MAIN_CLASS, ""));
+            fields.add(Boolean.toString(Boolean.getBoolean(Flask.JvmProperties.NO_JAVA_AGENT)));
+            fields.add(workingDirectory);
+            fields.addAll(jvmArgs);
+            if(javaAgents != null) {
+                fields.addAll(javaAgents);
+            }
+            for(Map.Entry<String, String> entry : environment.entrySet()) {
+                fields.add(entry.getKey() + '=' + entry.getValue());
+            }
+            output.writeInt(fields.size());
+            for(String field : fields) {
+                DaemonProtocol.writeString(output, field);
+            }
+        }
+        return Flask.bytes2Hex(md.digest());
+    }
+
+    /**
+     * Hands the application's arguments, working directory, environment and standard streams to a running
+     * daemon, after starting one if necessary. Only one launcher at a time may start any given daemon.
+     * @return the application's exit code, or null if no daemon could run it
+     */
+    private Integer launchDaemon(
+            JarCache cache,
+            Manifest manifest,
+            List<String> jvmArgs,
+            List<String> javaAgents,
+            List<String> args) throws IOException, InterruptedException {
+        String workingDirectory = System.getProperty("user.dir");
+        Map<String, String> environment = DaemonProtocol.environment();
+        Path daemonDir = cache.getDaemonDir(daemonKey(manifest, jvmArgs, javaAgents, workingDirectory, environment));
+        Path daemonFile = daemonDir.resolve(DAEMON_FILE);
+        DaemonClient client;
+        try(LaunchTimer.Phase ignored = LaunchTimer.instance.start("daemonConnect")) {
+            client = DaemonClient.connect(daemonFile);
+        }
+        if(client == null) {
+            try(LaunchTimer.Phase ignoredPhase = LaunchTimer.instance.start("daemonStart");
+                LockFile ignored = LockFile.acquire(daemonDir.resolve(DAEMON_START_LOCK), false)) {
+                // Another launcher may have started the daemon while we were waiting for the lock.
+                client = DaemonClient.connect(daemonFile);
+                if(client == null && startDaemon(cache, manifest, jvmArgs, javaAgents, daemonDir)) {
+                    client = DaemonClient.connect(daemonFile);
                 }
-                cache.touchLibraries();
-            }));
-            int returnCode = process.waitFor();
-            afterChildJvmExit(returnCode);
+            }
+        }
+        if(client == null) {
+            log.warn("Unable to connect to a Flask daemon, launching the application directly");
+            return null;
+        }
+        try(DaemonClient ignored = client) {
+            Integer returnCode;
+            try(LaunchTimer.Phase ignoredPhase = LaunchTimer.instance.start("daemonRun")) {
+                returnCode = client.run(new DaemonProtocol.Request(args, workingDirectory, environment));
+            }
+            if(returnCode == null) {
+                log.warn("Flask daemon rejected the request, launching the application directly");
+            }
             return returnCode;
         }
     }
 
+    /**
+     * Starts a daemon JVM and waits until it is ready. The daemon runs without any of the application's
+     * arguments, and so {@link #beforeChildJvmStart} can only add arguments to prepend to every request's.
+     * @return whether the daemon started
+     */
+    private boolean startDaemon(
+            JarCache cache,
+            Manifest manifest,
+            List<String> jvmArgs,
+            List<String> javaAgents,
+            Path daemonDir) throws IOException, InterruptedException {
+        cleanCache(cache);
+        Path daemonFile = daemonDir.resolve(DAEMON_FILE);
+        Files.deleteIfExists(daemonFile);
+        // We hold the cache's shared lock until the daemon is ready, so that no
+        // eviction can run before the daemon has locked and published its pid file.
+        try(LockFile ignored = acquireCacheLock(cache)) {
+            Map<String, Path> extractedLibraries = cache.extract(currentJar, manifest);
+            Path daemonPidFile = cache.createDaemonPidFile();
+            JavaProcessBuilder builder = createJavaProcessBuilder(cache, manifest, jvmArgs, javaAgents, extractedLibraries);
+            beforeChildJvmStart(builder);
+            List<String> daemonArgs = new ArrayList<>();
+            daemonArgs.add(builder.getMainClassName());
+            daemonArgs.add(daemonFile.toString());
+            daemonArgs.add(System.getProperty(Flask.JvmProperties.DAEMON_IDLE_TIMEOUT_SECONDS, Flask.Constants.DEFAULT_DAEMON_IDLE_TIMEOUT_SECONDS));
+            daemonArgs.addAll(builder.getCliArgs());
+            builder.setMainClassName(Flask.Constants.DAEMON_MAIN_CLASS);
+            builder.getCliArgs().clear();
+            builder.getCliArgs().addAll(daemonArgs);
+            builder.getProperties().put(Flask.JvmProperties.PID_FILE_OWNER, Boolean.TRUE.toString());
+            if(javaFeatureVersion() >= SECURITY_MANAGER_OPT_IN_JAVA_VERSION) {
+                builder.getJvmArgs().add("-Djava.security.manager=allow");
+            }
+            addHeartbeatAgent(builder, manifest, extractedLibraries, daemonPidFile);
+            Path daemonLog = daemonDir.resolve(DAEMON_LOG);
+            log.debug("Starting Flask daemon, logging to '{}'", daemonLog);
+            Process process = builder.build()
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(daemonLog.toFile()))
+                .start();
+            process.getOutputStream().close();
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DAEMON_START_TIMEOUT_MILLIS);
+            while(!Files.exists(daemonFile)) {
+                if(!process.isAlive()) {
+                    log.warn("Flask daemon exited with code {}, see '{}'", process.exitValue(), daemonLog);
+                    Files.deleteIfExists(JarCache.unpublishedPidFile(daemonPidFile));
+                    Files.deleteIfExists(daemonPidFile);
+                    return false;
+                } else if(System.nanoTime() > deadline) {
+                    log.warn("Flask daemon did not start within {} ms, see '{}'", DAEMON_START_TIMEOUT_MILLIS, daemonLog);
+                    process.destroyForcibly();
+                    return false;
+                }
+                Thread.sleep(DAEMON_START_POLL_MILLIS);
+            }
+            return true;
+        }
+    }
+
     protected void beforeChildJvmStart(JavaProcessBuilder builder) {}
     protected void afterChildJvmExit(int returnCode) {}
 }
@@ -0,0 +1,151 @@
+package net.corda.flask.launcher;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+import static java.nio.ByteOrder.LITTLE_ENDIAN;
+import static net.corda.flask.launcher.ZipChannel.CEN_HEADER_SIZE;
+import static net.corda.flask.launcher.ZipChannel.CEN_SIGNATURE;
+import static net.corda.flask.launcher.ZipChannel.END_HEADER_SIZE;
+import static net.corda.flask.launcher.ZipChannel.END_SIGNATURE;
+import static net.corda.flask.launcher.ZipChannel.LOC_HEADER_SIZE;
+import static net.corda.flask.launcher.ZipChannel.LOC_SIGNATURE;
+import static net.corda.flask.launcher.ZipChannel.MAX_COMMENT_SIZE;
+
+/**
+ * A jar whose bytes are stored inside the flask jar, and which has been mapped into
+ * memory by {@link ZipChannel#map}. Its entries are read without extracting it.
+ */
+final class NestedJar {
+
+    private static final class Entry {
+        final int method;
+        final int compressedSize;
+        final int size;
+        final int headerOffset;
+
+        Entry(int method, int compressedSize, int size, int headerOffset) {
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.headerOffset = headerOffset;
+        }
+    }
+
+    private final String name;
+    private final ByteBuffer buffer;
+    private final Map<String, Entry> entries;
+
+    NestedJar(String name, ByteBuffer buffer) throws ZipException {
+        this.name = name;
+        this.buffer = buffer.duplicate().order(LITTLE_ENDIAN);
+        this.entries = readCentralDirectory();
+    }
+
+    String getName() {
+        return name;
+    }
+
+    Set<String> getEntryNames() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    boolean contains(String entryName) {
+        return entries.containsKey(entryName);
+    }
+
+    private int findEndHeader() throws ZipException {
+        int limit = Math.max(buffer.limit() - END_HEADER_SIZE - MAX_COMMENT_SIZE, 0);
+        for (int idx = buffer.limit() - END_HEADER_SIZE; idx >= limit; --idx) {
+            if (buffer.getInt(idx) == END_SIGNATURE) {
+                return idx;
+            }
+        }
+        throw new ZipException(String.format("End of central directory not found in '%s'", name));
+    }
+
+    /**
+     * Nested jars are mapped into memory, which means that they can never be Zip64 archives.
+     */
+    private Map<String, Entry> readCentralDirectory() throws ZipException {
+        Map<String, Entry> result = new HashMap<>();
+        int end = findEndHeader();
+        int pos = buffer.getInt(end + 16);
+        int cenEnd = pos + buffer.getInt(end + 12);
+        while (pos + CEN_HEADER_SIZE <= cenEnd) {
+            if (buffer.getInt(pos) != CEN_SIGNATURE) {
+                throw new ZipException(String.format("Invalid central directory header in '%s'", name));
+            }
+            int method = buffer.getShort(pos + 10) & 0xFFFF;
+            int compressedSize = buffer.getInt(pos + 20);
+            int size = buffer.getInt(pos + 24);
+            int nameLength = buffer.getShort(pos + 28) & 0xFFFF;
+            int extraLength = buffer.getShort(pos + 30) & 0xFFFF;
+            int commentLength = buffer.getShort(pos + 32) & 0xFFFF;
+            int headerOffset = buffer.getInt(pos + 42);
+            byte[] entryName = new byte[nameLength];
+            ByteBuffer nameBuffer = buffer.duplicate();
+            nameBuffer.position(pos + CEN_HEADER_SIZE);
+            nameBuffer.get(entryName);
+            result.put(new String(entryName, StandardCharsets.UTF_8), new Entry(method, compressedSize, size, headerOffset));
+            pos += CEN_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+        return result;
+    }
+
+    /**
+     * @return the contents of this entry, or null if this jar has no such entry.
+     */
+    byte[] read(String entryName) throws ZipException {
+        Entry entry = entries.get(entryName);
+        if (entry == null) {
+            return null;
+        }
+        int header = entry.headerOffset;
+        if (buffer.getInt(header) != LOC_SIGNATURE) {
+            throw new ZipException(String.format("Invalid local header for '%s' in '%s'", entryName, name));
+        }
+        int dataOffset = header + LOC_HEADER_SIZE + (buffer.getShort(header + 26) & 0xFFFF) + (buffer.getShort(header + 28) & 0xFFFF);
+        ByteBuffer source = buffer.duplicate();
+        source.position(dataOffset);
+        if (entry.method == ZipEntry.STORED) {
+            byte[] data = new byte[entry.size];
+            source.get(data);
+            return data;
+        }
+        // A "nowrap" Inflater needs an extra dummy byte after the compressed data.
+        byte[] data = new byte[entry.compressedSize + 1];
+        source.get(data, 0, entry.compressedSize);
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data);
+            byte[] result = new byte[entry.size];
+            int length = 0;
+            while (length < result.length && !inflater.finished()) {
+                int inflated = inflater.inflate(result, length, result.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += inflated;
+            }
+            if (length != result.length) {
+                throw new ZipException(String.format("Entry '%s' in '%s' is truncated", entryName, name));
+            }
+            return result;
+        } catch (DataFormatException e) {
+            ZipException ze = new ZipException(String.format("Entry '%s' in '%s' is corrupt", entryName, name));
+            ze.initCause(e);
+            throw ze;
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package net.corda.flask.launcher;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads classes and resources directly from the libraries stored inside the flask jar, without
+ * extracting them. Each class or resource is only looked up inside those libraries which the
+ * package index says contain its package.
+ */
+final class NestedJarClassLoader extends ClassLoader {
+    private static final String PROTOCOL = "flask";
+    private static final String SEPARATOR = "!/";
+
+    static {
+        registerAsParallelCapable();
+    }
+
+    private final Map<String, List<NestedJar>> packageIndex;
+    private final Map<NestedJar, ProtectionDomain> protectionDomains;
+    private final URLStreamHandler handler;
+
+    /**
+     * @param libraries the nested jars, in classpath order
+     * @param packageIndex maps each package folder to the names of the libraries that contain it
+     */
+    NestedJarClassLoader(Collection<NestedJar> libraries, Map<String, List<String>> packageIndex, ClassLoader parent) {
+        super(parent);
+        Map<String, NestedJar> librariesByName = new HashMap<>();
+        for (NestedJar library : libraries) {
+            librariesByName.put(library.getName(), library);
+        }
+        this.packageIndex = new HashMap<>();
+        for (Map.Entry<String, List<String>> entry : packageIndex.entrySet()) {
+            List<NestedJar> jars = new ArrayList<>(entry.getValue().size());
+            for (String libraryName : entry.getValue()) {
+                NestedJar library = librariesByName.get(libraryName);
+                if (library != null) {
+                    jars.add(library);
+                }
+            }
+            this.packageIndex.put(entry.getKey(), jars);
+        }
+        this.handler = new NestedJarURLStreamHandler(librariesByName);
+        this.protectionDomains = new HashMap<>();
+        for (NestedJar library : libraries) {
+            CodeSource codeSource = new CodeSource(toURL(library, ""), (Certificate[]) null);
+            protectionDomains.put(library, new ProtectionDomain(codeSource, null, this, null));
+        }
+    }
+
+    /**
+     * Builds the package index from the libraries themselves,
+     * for flask jars that were packaged without one.
+     */
+    static Map<String, List<String>> indexPackages(Collection<NestedJar> libraries) {
+        Map<String, List<String>> result = new HashMap<>();
+        for (NestedJar library : libraries) {
+            for (String entryName : library.getEntryNames()) {
+                if (!entryName.endsWith("/")) {
+                    List<String> names = result.computeIfAbsent(packageOf(entryName), it -> new ArrayList<>());
+                    if (names.isEmpty() || !names.get(names.size() - 1).equals(library.getName())) {
+                        names.add(library.getName());
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private static String packageOf(String entryName) {
+        int idx = entryName.lastIndexOf('/');
+        return idx < 0 ? "" : entryName.substring(0, idx);
+    }
+
+    private List<NestedJar> librariesFor(String entryName) {
+        List<NestedJar> libraries = packageIndex.get(packageOf(entryName));
+        return libraries == null ? Collections.emptyList() : libraries;
+    }
+
+    private URL toURL(NestedJar library, String entryName) {
+        try {
+            return new URL(PROTOCOL, null, -1, '/' + library.getName() + SEPARATOR + entryName, handler);
+        } catch (MalformedURLException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        String entryName = name.replace('.', '/') + ".class";
+        for (NestedJar library : librariesFor(entryName)) {
+            byte[] bytecode;
+            try {
+                bytecode = library.read(entryName);
+            } catch (IOException e) {
+                throw new ClassNotFoundException(name, e);
+            }
+            if (bytecode != null) {
+                definePackageFor(name);
+                return defineClass(name, bytecode, 0, bytecode.length, protectionDomains.get(library));
+            }
+        }
+        throw new ClassNotFoundException(name);
+    }
+
+    @SuppressWarnings("deprecation")
+    private void definePackageFor(String className) {
+        int idx = className.lastIndexOf('.');
+        if (idx > 0) {
+            String packageName = className.substring(0, idx);
+            if (getPackage(packageName) == null) {
+                try {
+                    definePackage(packageName, null, null, null, null, null, null, null);
+                } catch (IllegalArgumentException e) {
+                    // Another thread has defined this package concurrently.
+                }
+            }
+        }
+    }
+
+    @Override
+    protected URL findResource(String name) {
+        for (NestedJar library : librariesFor(name)) {
+            if (library.contains(name)) {
+                return toURL(library, name);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    protected Enumeration<URL> findResources(String name) {
+        List<URL> result = new ArrayList<>();
+        for (NestedJar library : librariesFor(name)) {
+            if (library.contains(name)) {
+                result.add(toURL(library, name));
+            }
+        }
+        return Collections.enumeration(result);
+    }
+
+    private static final class NestedJarURLStreamHandler extends URLStreamHandler {
+        private final Map<String, NestedJar> libraries;
+
+        NestedJarURLStreamHandler(Map<String, NestedJar> libraries) {
+            this.libraries = libraries;
+        }
+
+        @Override
+        protected URLConnection openConnection(URL url) throws IOException {
+            String path = url.getPath();
+            int separator = path.indexOf(SEPARATOR);
+            if (separator < 0) {
+                throw new MalformedURLException(url.toString());
+            }
+            NestedJar library = libraries.get(path.substring(1, separator));
+            String entryName = path.substring(separator + SEPARATOR.length());
+            return new URLConnection(url) {
+                private byte[] data;
+
+                @Override
+                public void connect() throws IOException {
+                    if (data == null) {
+                        data = library == null ? null : library.read(entryName);
+                        if (data == null) {
+                            throw new IOException(String.format("Resource '%s' not found", url));
+                        }
+                        connected = true;
+                    }
+                }
+
+                @Override
+                public InputStream getInputStream() throws IOException {
+                    connect();
+                    return new ByteArrayInputStream(data);
+                }
+
+                @Override
+                public long getContentLengthLong() {
+                    try {
+                        connect();
+                        return data.length;
+                    } catch (IOException e) {
+                        return -1;
+                    }
+                }
+            };
+        }
+    }
+}
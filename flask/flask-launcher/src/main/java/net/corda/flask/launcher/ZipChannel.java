@@ -0,0 +1,172 @@
+package net.corda.flask.launcher;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+import static java.nio.ByteOrder.LITTLE_ENDIAN;
+
+/**
+ * Reads a zip file's central directory to find where the data of each of its
+ * {@link ZipEntry#STORED} entries begins, so that these entries can be copied
+ * straight from the zip file's {@link FileChannel} into another file. This allows
+ * the operating system to copy the bytes without them ever entering the Java heap.
+ * The central directory is only read once, and copies may happen concurrently.
+ */
+final class ZipChannel implements Closeable {
+    static final int LOC_SIGNATURE = 0x04034b50;
+    static final int CEN_SIGNATURE = 0x02014b50;
+    static final int END_SIGNATURE = 0x06054b50;
+    static final int LOC_HEADER_SIZE = 30;
+    static final int CEN_HEADER_SIZE = 46;
+    static final int END_HEADER_SIZE = 22;
+    static final int MAX_COMMENT_SIZE = 0xFFFF;
+    static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    private static final class StoredEntry {
+        final long headerOffset;
+        final long size;
+
+        StoredEntry(long headerOffset, long size) {
+            this.headerOffset = headerOffset;
+            this.size = size;
+        }
+    }
+
+    private final FileChannel channel;
+    private final Map<String, StoredEntry> storedEntries;
+
+    ZipChannel(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            storedEntries = readCentralDirectory();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private ByteBuffer read(long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private long findEndHeader() throws IOException {
+        long fileSize = channel.size();
+        int tailSize = (int) Math.min(fileSize, END_HEADER_SIZE + MAX_COMMENT_SIZE);
+        ByteBuffer tail = read(fileSize - tailSize, tailSize);
+        for (int idx = tailSize - END_HEADER_SIZE; idx >= 0; --idx) {
+            if (tail.getInt(idx) == END_SIGNATURE) {
+                return fileSize - tailSize + idx;
+            }
+        }
+        throw new ZipException("End of central directory not found");
+    }
+
+    /**
+     * Zip64 archives are not indexed, and so all of their
+     * entries must be read through {@link java.util.zip.ZipFile}.
+     */
+    private Map<String, StoredEntry> readCentralDirectory() throws IOException {
+        Map<String, StoredEntry> result = new HashMap<>();
+        long endPosition = findEndHeader();
+        ByteBuffer end = read(endPosition, END_HEADER_SIZE);
+        long cenSize = end.getInt(12) & ZIP64_MAGIC;
+        long cenOffset = end.getInt(16) & ZIP64_MAGIC;
+        if (cenSize == ZIP64_MAGIC || cenOffset == ZIP64_MAGIC || cenSize > Integer.MAX_VALUE) {
+            return result;
+        }
+        // Offsets are relative to the start of the archive, which follows the shell stub of an executable flask jar.
+        long base = endPosition - cenSize - cenOffset;
+        ByteBuffer cen = read(base + cenOffset, (int) cenSize);
+        while (cen.remaining() >= CEN_HEADER_SIZE) {
+            int pos = cen.position();
+            if (cen.getInt(pos) != CEN_SIGNATURE) {
+                throw new ZipException("Invalid central directory header");
+            }
+            int method = cen.getShort(pos + 10) & 0xFFFF;
+            long compressedSize = cen.getInt(pos + 20) & ZIP64_MAGIC;
+            long size = cen.getInt(pos + 24) & ZIP64_MAGIC;
+            int nameLength = cen.getShort(pos + 28) & 0xFFFF;
+            int extraLength = cen.getShort(pos + 30) & 0xFFFF;
+            int commentLength = cen.getShort(pos + 32) & 0xFFFF;
+            long headerOffset = cen.getInt(pos + 42) & ZIP64_MAGIC;
+            byte[] name = new byte[nameLength];
+            cen.position(pos + CEN_HEADER_SIZE);
+            cen.get(name);
+            if (method == ZipEntry.STORED && compressedSize == size && size != ZIP64_MAGIC && headerOffset != ZIP64_MAGIC) {
+                result.put(new String(name, StandardCharsets.UTF_8), new StoredEntry(base + headerOffset, size));
+            }
+            cen.position(pos + CEN_HEADER_SIZE + nameLength + extraLength + commentLength);
+        }
+        return result;
+    }
+
+    /**
+     * The local header's extra field need not match the central directory's,
+     * and so we must read the local header to find where the data begins.
+     */
+    private long dataOffset(String entryName, StoredEntry entry) throws IOException {
+        ByteBuffer header = read(entry.headerOffset, LOC_HEADER_SIZE);
+        if (header.getInt(0) != LOC_SIGNATURE) {
+            throw new ZipException(String.format("Invalid local header for entry '%s'", entryName));
+        }
+        return entry.headerOffset + LOC_HEADER_SIZE + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+    }
+
+    /**
+     * Maps the contents of a stored entry into memory.
+     * @return null if this zip has no stored entry with this name
+     */
+    ByteBuffer map(String entryName) throws IOException {
+        StoredEntry entry = storedEntries.get(entryName);
+        if (entry == null) {
+            return null;
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, dataOffset(entryName, entry), entry.size);
+    }
+
+    /**
+     * Copies the contents of a stored entry into the (existing) destination file.
+     * @return false if this zip has no stored entry with this name
+     */
+    boolean transferTo(String entryName, Path destination) throws IOException {
+        StoredEntry entry = storedEntries.get(entryName);
+        if (entry == null) {
+            return false;
+        }
+        long position = dataOffset(entryName, entry);
+        long remaining = entry.size;
+        try (FileChannel output = FileChannel.open(destination, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (remaining > 0) {
+                long transferred = channel.transferTo(position, remaining, output);
+                if (transferred <= 0) {
+                    throw new EOFException(String.format("Entry '%s' is truncated", entryName));
+                }
+                position += transferred;
+                remaining -= transferred;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
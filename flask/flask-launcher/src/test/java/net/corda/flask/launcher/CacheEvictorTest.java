@@ -0,0 +1,132 @@
+package net.corda.flask.launcher;
+
+import net.corda.flask.common.LockFile;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class CacheEvictorTest {
+
+    private static final int LIBRARY_SIZE = 1000;
+
+    @TempDir
+    public Path testDir;
+
+    private Path libDir;
+    private Path pidDir;
+    private Path journal;
+    private CacheEvictor evictor;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        libDir = testDir.resolve("lib");
+        pidDir = testDir.resolve("pid");
+        journal = testDir.resolve("access.journal");
+        Files.createDirectories(pidDir);
+        evictor = new CacheEvictor(libDir, pidDir, journal, pidDir.resolve("own.pid"));
+    }
+
+    private void createLibrary(String hash, Instant lastAccess) throws IOException {
+        Path hashFolder = Files.createDirectories(libDir.resolve(hash));
+        Files.write(hashFolder.resolve(hash + ".jar"), new byte[LIBRARY_SIZE]);
+        Files.setLastModifiedTime(hashFolder, FileTime.from(lastAccess));
+    }
+
+    private boolean exists(String hash) {
+        return Files.exists(libDir.resolve(hash));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsedLibraries() throws IOException {
+        Instant now = Instant.now();
+        createLibrary("a", now.minus(Duration.ofHours(3)));
+        createLibrary("b", now.minus(Duration.ofHours(2)));
+        createLibrary("c", now.minus(Duration.ofHours(1)));
+        // The journal overrides the libraries' modification times.
+        CacheEvictor.appendJournal(journal, Collections.singletonList("a"));
+
+        Assertions.assertEquals(1, evictor.evict(2 * LIBRARY_SIZE, Duration.ofDays(7)));
+        Assertions.assertTrue(exists("a"));
+        Assertions.assertFalse(exists("b"));
+        Assertions.assertTrue(exists("c"));
+
+        List<String> compacted = Files.readAllLines(journal, StandardCharsets.UTF_8);
+        Assertions.assertEquals(2, compacted.size());
+    }
+
+    @Test
+    public void testEvictsExpiredLibraries() throws IOException {
+        Instant now = Instant.now();
+        createLibrary("a", now.minus(Duration.ofDays(8)));
+        createLibrary("b", now.minus(Duration.ofDays(1)));
+
+        Assertions.assertEquals(1, evictor.evict(Long.MAX_VALUE, Duration.ofDays(7)));
+        Assertions.assertFalse(exists("a"));
+        Assertions.assertTrue(exists("b"));
+    }
+
+    @Test
+    public void testKeepsLibrariesInUse() throws IOException {
+        Instant now = Instant.now();
+        createLibrary("a", now.minus(Duration.ofDays(8)));
+        createLibrary("b", now.minus(Duration.ofDays(8)));
+        Path stalePidFile = Files.write(pidDir.resolve("stale.pid"), "b".getBytes(StandardCharsets.UTF_8));
+        try (LockFile processLock = LockFile.acquire(pidDir.resolve("running.pid"), false)) {
+            processLock.getChannel().write(ByteBuffer.wrap("a c".getBytes(StandardCharsets.UTF_8)));
+
+            Assertions.assertEquals(1, evictor.evict(0, Duration.ZERO));
+            Assertions.assertTrue(exists("a"));
+            Assertions.assertFalse(exists("b"));
+            Assertions.assertFalse(Files.exists(stalePidFile));
+        }
+    }
+
+    @Test
+    public void testKeepsLibrariesOfUnpublishedPidFiles() throws IOException {
+        Instant now = Instant.now();
+        createLibrary("a", now.minus(Duration.ofDays(8)));
+        createLibrary("b", now.minus(Duration.ofDays(8)));
+        // Their owners have not yet locked these pid files and renamed them into place.
+        Path newPidFile = Files.write(pidDir.resolve("new.pid.new"), "a".getBytes(StandardCharsets.UTF_8));
+        Path abandonedPidFile = Files.write(pidDir.resolve("abandoned.pid.new"), "b".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(abandonedPidFile, FileTime.from(now.minus(Duration.ofDays(2))));
+
+        Assertions.assertEquals(1, evictor.evict(0, Duration.ZERO));
+        Assertions.assertTrue(exists("a"));
+        Assertions.assertFalse(exists("b"));
+        Assertions.assertTrue(Files.exists(newPidFile));
+        Assertions.assertFalse(Files.exists(abandonedPidFile));
+    }
+
+    @Test
+    public void testIgnoresIncompleteJournalLines() throws IOException {
+        Instant now = Instant.now();
+        createLibrary("a", now.minus(Duration.ofDays(8)));
+        Files.write(journal, Arrays.asList("garbage", String.valueOf(now.toEpochMilli()) + " a", "123"), StandardCharsets.UTF_8);
+
+        Assertions.assertEquals(0, evictor.evict(Long.MAX_VALUE, Duration.ofDays(7)));
+        Assertions.assertTrue(exists("a"));
+    }
+
+    @Test
+    public void testParseSize() {
+        Assertions.assertEquals(100L, JarCache.parseSize("100"));
+        Assertions.assertEquals(2048L, JarCache.parseSize("2k"));
+        Assertions.assertEquals(3L << 20, JarCache.parseSize("3M"));
+        Assertions.assertEquals(1L << 30, JarCache.parseSize(" 1g "));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> JarCache.parseSize("lots"));
+    }
+}
@@ -0,0 +1,218 @@
+package net.corda.flask.launcher;
+
+import net.corda.flask.common.DaemonProtocol;
+import net.corda.flask.common.Flask;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class DaemonClientTest {
+
+    private static final String TOKEN = "secret";
+    private static final long DAEMON_START_TIMEOUT_MILLIS = 60000;
+    private static final String DAEMON_IDLE_TIMEOUT_SECONDS = "60";
+
+    /**
+     * Only these Java versions can run a Flask daemon, and from Java 12 it must ask for its security manager.
+     */
+    private static final int NO_SECURITY_MANAGER_JAVA_VERSION = 24;
+    private static final int SECURITY_MANAGER_OPT_IN_JAVA_VERSION = 12;
+
+    private static int javaFeatureVersion() {
+        String version = System.getProperty("java.specification.version");
+        return Integer.parseInt(version.startsWith("1.") ? version.substring(2) : version);
+    }
+
+    @TempDir
+    public Path testDir;
+
+    private ServerSocket serverSocket;
+    private Path daemonFile;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        daemonFile = testDir.resolve("daemon.xml");
+        writeDaemonFile(TOKEN);
+    }
+
+    @AfterEach
+    public void teardown() throws IOException {
+        serverSocket.close();
+    }
+
+    private void writeDaemonFile(String token) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(DaemonProtocol.PORT, Integer.toString(serverSocket.getLocalPort()));
+        properties.setProperty(DaemonProtocol.TOKEN, token);
+        try (OutputStream os = Files.newOutputStream(daemonFile)) {
+            Flask.storeProperties(properties, os);
+        }
+    }
+
+    /**
+     * A daemon that echoes its request's standard input, and exits with the number of arguments.
+     */
+    private CompletableFuture<DaemonProtocol.Request> serveOneRequest() {
+        return CompletableFuture.supplyAsync(() -> {
+            try (Socket socket = serverSocket.accept()) {
+                DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                if (!TOKEN.equals(DaemonProtocol.readString(input))) {
+                    return null;
+                }
+                output.writeByte(DaemonProtocol.READY);
+                output.flush();
+                DaemonProtocol.Request request = DaemonProtocol.Request.read(input);
+                output.writeByte(DaemonProtocol.ACCEPTED);
+                output.flush();
+                ByteArrayOutputStream stdin = new ByteArrayOutputStream();
+                while (input.readByte() == DaemonProtocol.STDIN) {
+                    int length = input.readInt();
+                    if (length < 0) {
+                        break;
+                    }
+                    byte[] bytes = new byte[length];
+                    input.readFully(bytes);
+                    stdin.write(bytes);
+                }
+                new DaemonProtocol.FrameOutputStream(output, DaemonProtocol.STDOUT).write(stdin.toByteArray());
+                new DaemonProtocol.FrameOutputStream(output, DaemonProtocol.STDERR).write("error".getBytes(StandardCharsets.UTF_8));
+                output.writeByte(DaemonProtocol.EXIT);
+                output.writeInt(request.getArgs().size());
+                output.flush();
+                return request;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    @Test
+    public void testRunsRequestInsideDaemon() throws Exception {
+        CompletableFuture<DaemonProtocol.Request> served = serveOneRequest();
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+        Integer exitCode;
+        try (DaemonClient client = DaemonClient.connect(daemonFile,
+                new ByteArrayInputStream("input".getBytes(StandardCharsets.UTF_8)),
+                new PrintStream(stdout), new PrintStream(stderr))) {
+            Assertions.assertNotNull(client);
+            exitCode = client.run(new DaemonProtocol.Request(
+                Arrays.asList("a", "b"), "/work", Collections.singletonMap("HOME", "/home")));
+        }
+        Assertions.assertEquals(Integer.valueOf(2), exitCode);
+        Assertions.assertEquals("input", new String(stdout.toByteArray(), StandardCharsets.UTF_8));
+        Assertions.assertEquals("error", new String(stderr.toByteArray(), StandardCharsets.UTF_8));
+
+        DaemonProtocol.Request request = served.get(10, TimeUnit.SECONDS);
+        Assertions.assertEquals(Arrays.asList("a", "b"), request.getArgs());
+        Assertions.assertEquals("/work", request.getWorkingDirectory());
+        Assertions.assertEquals(Collections.singletonMap("HOME", "/home"), request.getEnvironment());
+    }
+
+    @Test
+    public void testDaemonRefusesWrongToken() throws Exception {
+        writeDaemonFile("wrong");
+        CompletableFuture<DaemonProtocol.Request> served = serveOneRequest();
+        Assertions.assertNull(DaemonClient.connect(daemonFile));
+        Assertions.assertNull(served.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testNoDaemon() throws IOException {
+        Files.delete(daemonFile);
+        Assertions.assertNull(DaemonClient.connect(daemonFile));
+    }
+
+    /**
+     * Starts a real daemon in its own JVM, for the {@link DaemonTestApplication}.
+     */
+    private Process startDaemon(Path realDaemonFile) throws IOException, InterruptedException {
+        JavaProcessBuilder builder = new JavaProcessBuilder();
+        builder.setClasspath(Arrays.asList(System.getProperty("java.class.path").split(File.pathSeparator)));
+        builder.setMainClassName(Flask.Constants.DAEMON_MAIN_CLASS);
+        builder.setCliArgs(Arrays.asList(
+            DaemonTestApplication.class.getName(), realDaemonFile.toString(), DAEMON_IDLE_TIMEOUT_SECONDS));
+        if (javaFeatureVersion() >= SECURITY_MANAGER_OPT_IN_JAVA_VERSION) {
+            builder.getJvmArgs().add("-Djava.security.manager=allow");
+        }
+        Process process = builder.build()
+            .redirectErrorStream(true)
+            .redirectOutput(testDir.resolve("daemon.log").toFile())
+            .start();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DAEMON_START_TIMEOUT_MILLIS);
+        while (!Files.exists(realDaemonFile)) {
+            Assertions.assertTrue(process.isAlive(), "Flask daemon has exited");
+            Assertions.assertTrue(System.nanoTime() < deadline, "Flask daemon has not started");
+            Thread.sleep(10);
+        }
+        return process;
+    }
+
+    private static List<String> runRequest(Path realDaemonFile, String name, int expectedExitCode) throws IOException {
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        Integer exitCode;
+        try (DaemonClient client = DaemonClient.connect(realDaemonFile,
+                new ByteArrayInputStream(new byte[0]), new PrintStream(stdout, true), System.err)) {
+            Assertions.assertNotNull(client);
+            exitCode = client.run(new DaemonProtocol.Request(
+                Collections.singletonList(name), System.getProperty("user.dir"), DaemonProtocol.environment()));
+        }
+        Assertions.assertEquals(Integer.valueOf(expectedExitCode), exitCode);
+        return Arrays.asList(new String(stdout.toByteArray(), StandardCharsets.UTF_8).split("\\R"));
+    }
+
+    private static void assertOutputOfRequest(List<String> output, String name) {
+        Assertions.assertTrue(output.contains("pool " + name), () -> "No output from pooled thread: " + output);
+        Assertions.assertTrue(output.contains("async " + name), () -> "No output from asynchronous task: " + output);
+        for (int idx = 0; idx < DaemonTestApplication.PARALLEL_COUNT; ++idx) {
+            String line = "parallel " + name + ' ' + idx;
+            Assertions.assertTrue(output.contains(line), () -> "No '" + line + "' from parallel stream: " + output);
+        }
+    }
+
+    @Test
+    public void testRequestsReceiveOutputOfOtherThreads() throws Exception {
+        Assumptions.assumeTrue(javaFeatureVersion() < NO_SECURITY_MANAGER_JAVA_VERSION);
+        Path realDaemonFile = testDir.resolve("real-daemon.xml");
+        Process daemon = startDaemon(realDaemonFile);
+        try {
+            // The second request's pooled thread belongs to the first request.
+            assertOutputOfRequest(runRequest(realDaemonFile, "first", 0), "first");
+            assertOutputOfRequest(runRequest(realDaemonFile, "second", 0), "second");
+
+            // The request only exits once its background thread calls System.exit.
+            Assertions.assertEquals(Collections.singletonList("background"),
+                runRequest(realDaemonFile, "background", DaemonTestApplication.BACKGROUND_EXIT_CODE));
+        } finally {
+            daemon.destroyForcibly().waitFor();
+        }
+    }
+}
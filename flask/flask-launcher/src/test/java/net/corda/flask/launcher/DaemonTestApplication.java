@@ -0,0 +1,52 @@
+package net.corda.flask.launcher;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.IntStream;
+
+/**
+ * An application for {@link DaemonClientTest} to run inside a real Flask daemon, which prints
+ * from threads that do not belong to its request. Its first argument names the request.
+ */
+public class DaemonTestApplication {
+    static final int PARALLEL_COUNT = 64;
+    static final int BACKGROUND_EXIT_CODE = 3;
+    private static final long BACKGROUND_DELAY_MILLIS = 500;
+
+    /**
+     * The first request to use this pool creates its thread, which then runs every later request's tasks.
+     */
+    private static ExecutorService pool;
+
+    private static synchronized ExecutorService pool() {
+        if (pool == null) {
+            pool = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, "test-pool");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return pool;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String name = args[0];
+        if ("background".equals(name)) {
+            // The request must not exit when its main method returns.
+            new Thread(() -> {
+                try {
+                    Thread.sleep(BACKGROUND_DELAY_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                System.out.println("background");
+                System.exit(BACKGROUND_EXIT_CODE);
+            }, "background").start();
+            return;
+        }
+        pool().submit(() -> System.out.println("pool " + name)).get();
+        IntStream.range(0, PARALLEL_COUNT).parallel().forEach(idx -> System.out.println("parallel " + name + ' ' + idx));
+        CompletableFuture.runAsync(() -> System.out.println("async " + name)).join();
+    }
+}
@@ -0,0 +1,306 @@
+package net.corda.flask.launcher;
+
+import net.corda.flask.common.Flask;
+import net.corda.flask.common.LockFile;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+public class JarCacheTest {
+
+    private static final int LIBRARY_SIZE = 0x40000;
+
+    @TempDir
+    public Path testDir;
+
+    private Path cacheDir;
+    private JarCache cache;
+    private final Map<String, byte[]> libraries = new TreeMap<>();
+
+    /**
+     * Extracts the libraries of the flask jar in its first argument, as a separate process would.
+     */
+    public static final class Extract {
+        public static void main(String[] args) throws IOException {
+            Path flaskJar = Paths.get(args[0]);
+            Manifest manifest;
+            try (JarFile jarFile = new JarFile(flaskJar.toFile())) {
+                manifest = jarFile.getManifest();
+            }
+            new JarCache("flask-test").extract(flaskJar, manifest);
+        }
+    }
+
+    @BeforeEach
+    public void setup() throws IOException {
+        cacheDir = testDir.resolve("cache");
+        System.setProperty(Flask.JvmProperties.CACHE_DIR, cacheDir.toString());
+        cache = new JarCache("flask-test");
+    }
+
+    @AfterEach
+    public void teardown() {
+        System.clearProperty(Flask.JvmProperties.CACHE_DIR);
+    }
+
+    @Test
+    public void testPidFileIsLockedWhenPublished() throws IOException {
+        Assertions.assertNull(cache.getPidFile());
+        try (LockFile processLock = cache.lockPidFile()) {
+            Path pidFile = cache.getPidFile();
+            Assertions.assertEquals(cache.getPidDir(), pidFile.getParent());
+            Assertions.assertTrue(Files.isRegularFile(pidFile));
+            Assertions.assertFalse(Files.exists(JarCache.unpublishedPidFile(pidFile)));
+            Assertions.assertThrows(OverlappingFileLockException.class, () -> LockFile.tryAcquire(pidFile, true));
+
+            // The lock only covers a byte beyond the libraries that the pid file lists.
+            processLock.getChannel().write(ByteBuffer.wrap("a b".getBytes(StandardCharsets.UTF_8)), 0);
+            Assertions.assertEquals("a b", new String(Files.readAllBytes(pidFile), StandardCharsets.UTF_8));
+        }
+    }
+
+    private static byte[] sha256(byte[] bytes) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(bytes);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Creates a flask jar with these random libraries, stored uncompressed as the plugin stores them.
+     */
+    private Path createFlaskJar(int libraryCount) throws IOException {
+        Random random = new Random(libraryCount);
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        for (int i = 0; i < libraryCount; ++i) {
+            byte[] content = new byte[LIBRARY_SIZE];
+            random.nextBytes(content);
+            String entryName = Flask.Constants.LIBRARIES_FOLDER + "/library-" + i + ".jar";
+            libraries.put(entryName, content);
+            Attributes attributes = new Attributes();
+            attributes.putValue(Flask.ManifestAttributes.ENTRY_HASH, Base64.getEncoder().encodeToString(sha256(content)));
+            manifest.getEntries().put(entryName, attributes);
+        }
+        Path flaskJar = testDir.resolve("flask.jar");
+        try (JarOutputStream jar = new JarOutputStream(Files.newOutputStream(flaskJar), manifest)) {
+            for (Map.Entry<String, byte[]> library : libraries.entrySet()) {
+                byte[] content = library.getValue();
+                CRC32 crc32 = new CRC32();
+                crc32.update(content);
+                ZipEntry entry = new ZipEntry(library.getKey());
+                entry.setMethod(ZipEntry.STORED);
+                entry.setSize(content.length);
+                entry.setCompressedSize(content.length);
+                entry.setCrc(crc32.getValue());
+                jar.putNextEntry(entry);
+                jar.write(content);
+                jar.closeEntry();
+            }
+        }
+        return flaskJar;
+    }
+
+    private static Manifest manifestOf(Path flaskJar) throws IOException {
+        try (JarFile jarFile = new JarFile(flaskJar.toFile())) {
+            return jarFile.getManifest();
+        }
+    }
+
+    private static List<String> listFileNames(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.map(file -> file.getFileName().toString()).sorted().collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Checks that each library was extracted exactly once, with its complete contents.
+     */
+    private void assertLibrariesIntact(Map<String, Path> extractedLibraries) throws IOException {
+        Assertions.assertEquals(libraries.size(), extractedLibraries.size());
+        for (Map.Entry<String, byte[]> library : libraries.entrySet()) {
+            String hash = Flask.bytes2Hex(sha256(library.getValue()));
+            String jarName = library.getKey().substring(library.getKey().lastIndexOf('/') + 1);
+            Path destination = extractedLibraries.get(hash);
+            Assertions.assertEquals(cache.getLibDir().resolve(hash).resolve(jarName), destination);
+            Assertions.assertArrayEquals(library.getValue(), Files.readAllBytes(destination));
+            List<String> files = new ArrayList<>(listFileNames(destination.getParent()));
+            files.remove("extract.lock");
+            Assertions.assertEquals(1, files.size(), files::toString);
+        }
+    }
+
+    @Test
+    public void testConcurrentExtractionsCreateOneCopyOfEachLibrary() throws Exception {
+        Path flaskJar = createFlaskJar(16);
+        // File locks only exclude other processes, and so each extraction needs its own JVM.
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<Process> processes = new ArrayList<>();
+        try {
+            for (int i = 0; i < 4; ++i) {
+                processes.add(new ProcessBuilder(java,
+                    "-D" + Flask.JvmProperties.CACHE_DIR + "=" + cacheDir,
+                    "-cp", System.getProperty("java.class.path"),
+                    Extract.class.getName(), flaskJar.toString())
+                    .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start());
+            }
+            for (Process process : processes) {
+                Assertions.assertTrue(process.waitFor(1, TimeUnit.MINUTES));
+                Assertions.assertEquals(0, process.exitValue());
+            }
+        } finally {
+            for (Process process : processes) {
+                process.destroyForcibly();
+            }
+        }
+
+        assertLibrariesIntact(cache.extract(flaskJar, manifestOf(flaskJar), false));
+    }
+
+    private Path indexFile() throws IOException {
+        Path indexDir = cacheDir.resolve("index");
+        List<String> indexes = listFileNames(indexDir);
+        Assertions.assertEquals(1, indexes.size(), indexes::toString);
+        return indexDir.resolve(indexes.get(0));
+    }
+
+    @Test
+    public void testCorruptIndexFallsBackToExtraction() throws IOException {
+        Path flaskJar = createFlaskJar(4);
+        Manifest manifest = manifestOf(flaskJar);
+        Map<String, Path> extractedLibraries = cache.extract(flaskJar, manifest);
+        Path indexFile = indexFile();
+        Files.write(indexFile, "not an index".getBytes(StandardCharsets.UTF_8));
+        Path missingLibrary = extractedLibraries.values().iterator().next();
+        JarCache.deletePath(missingLibrary.getParent());
+
+        assertLibrariesIntact(new JarCache("flask-test").extract(flaskJar, manifest));
+        // The extraction has also replaced the corrupt index.
+        Assertions.assertNotEquals("not an index", new String(Files.readAllBytes(indexFile), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testEvictionDiscardsIndex() throws IOException {
+        Path flaskJar = createFlaskJar(4);
+        Manifest manifest = manifestOf(flaskJar);
+        cache.extract(flaskJar, manifest);
+        indexFile();
+
+        cache.wipeLibDir();
+        Assertions.assertFalse(Files.exists(cacheDir.resolve("index")));
+        Assertions.assertEquals(0, listFileNames(cache.getLibDir()).size());
+
+        assertLibrariesIntact(new JarCache("flask-test").extract(flaskJar, manifest));
+        indexFile();
+    }
+
+    /**
+     * Creates a Java home whose tools never create anything, and just record that they ran and then fail.
+     */
+    private Path createFailingJavaHome(String... tools) throws IOException {
+        Path bin = Files.createDirectories(testDir.resolve("failing-jdk").resolve("bin"));
+        for (String tool : tools) {
+            Path script = Files.write(bin.resolve(tool), "#!/bin/sh\necho \"$0\" >> \"$0.runs\"\nexit 1\n".getBytes(StandardCharsets.UTF_8));
+            Files.setPosixFilePermissions(script, PosixFilePermissions.fromString("rwxr-xr-x"));
+        }
+        return bin.getParent();
+    }
+
+    private void assertNoCdsArchive(Path classList, Path archive) throws IOException {
+        Assertions.assertFalse(Files.exists(archive));
+        Assertions.assertFalse(Files.exists(classList));
+        // Nothing remains of the failed attempt.
+        Assertions.assertEquals(Collections.emptyList(), listFileNames(archive.getParent()));
+    }
+
+    @Test
+    public void testCdsArchiveSkippedWithoutJava() throws Exception {
+        Path javaHome = Files.createDirectories(testDir.resolve("empty-jdk"));
+        List<String> classpath = Collections.singletonList(testDir.resolve("application.jar").toString());
+        Path archive = cache.getCdsArchive(javaHome.toString(), classpath);
+        try (LockFile ignored = cache.lockPidFile()) {
+            Path classList = Files.write(cache.getCdsClassListFile(archive), Collections.singletonList("java/lang/Object"));
+
+            cache.createCdsArchive(javaHome.toString(), classpath, classList, archive);
+            assertNoCdsArchive(classList, archive);
+        }
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    public void testFailedCdsDumpLeavesNoArchive() throws Exception {
+        Path javaHome = createFailingJavaHome("java");
+        List<String> classpath = Collections.singletonList(testDir.resolve("application.jar").toString());
+        Path archive = cache.getCdsArchive(javaHome.toString(), classpath);
+        try (LockFile ignored = cache.lockPidFile()) {
+            Path classList = Files.write(cache.getCdsClassListFile(archive), Collections.singletonList("java/lang/Object"));
+
+            cache.createCdsArchive(javaHome.toString(), classpath, classList, archive);
+            assertNoCdsArchive(classList, archive);
+        }
+    }
+
+    @Test
+    public void testRuntimeImageSkippedWithoutJlink() throws Exception {
+        Path javaHome = Files.createDirectories(testDir.resolve("empty-jdk"));
+        Assertions.assertNull(cache.getRuntimeImage(javaHome, Arrays.asList("java.base", "java.logging")));
+        Assertions.assertFalse(Files.exists(cacheDir.resolve("runtime")));
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    public void testFailedJlinkIsNotRetried() throws Exception {
+        Path javaHome = createFailingJavaHome("jlink");
+        List<String> modules = Arrays.asList("java.base", "java.logging");
+        Assertions.assertNull(cache.getRuntimeImage(javaHome, modules));
+        List<String> runtimeFiles = listFileNames(cacheDir.resolve("runtime"));
+        // Only jlink's output and the image's lock remain, and no partial image.
+        Assertions.assertEquals(2, runtimeFiles.size(), runtimeFiles::toString);
+        Path failure = cacheDir.resolve("runtime").resolve(runtimeFiles.stream()
+            .filter(name -> name.endsWith(".failed"))
+            .findFirst()
+            .orElseThrow(AssertionError::new));
+
+        // The failure record stops us from running jlink again.
+        Assertions.assertNull(cache.getRuntimeImage(javaHome, modules));
+        Assertions.assertTrue(Files.exists(failure));
+        Assertions.assertEquals(1, Files.readAllLines(javaHome.resolve("bin").resolve("jlink.runs")).size());
+    }
+}
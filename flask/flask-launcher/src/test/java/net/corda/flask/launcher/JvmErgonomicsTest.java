@@ -0,0 +1,98 @@
+package net.corda.flask.launcher;
+
+import net.corda.flask.common.JvmProfile;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class JvmErgonomicsTest {
+
+    private static final long GIGABYTE = 1024L * 1024 * 1024;
+
+    @TempDir
+    public Path testDir;
+
+    private Path write(String path, String content) throws IOException {
+        Path file = testDir.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    @Test
+    public void testCgroupV2Limits() throws IOException {
+        Path procCgroup = write("proc/cgroup", "0::/system.slice/app.service\n");
+        write("cgroup/system.slice/memory.max", "2147483648\n");
+        write("cgroup/system.slice/app.service/memory.max", "max\n");
+        write("cgroup/system.slice/app.service/cpu.max", "150000 100000\n");
+        JvmErgonomics.Resources resources = JvmErgonomics.detect(procCgroup, testDir.resolve("cgroup"), 64 * GIGABYTE, 32);
+        Assertions.assertEquals(2 * GIGABYTE, resources.memory);
+        Assertions.assertEquals(2, resources.processors);
+    }
+
+    @Test
+    public void testCgroupV1LimitsInsideContainer() throws IOException {
+        // The container's namespace makes its own cgroup the root of each hierarchy.
+        Path procCgroup = write("proc/cgroup",
+            "12:memory:/docker/0123456789\n"
+            + "11:cpu,cpuacct:/docker/0123456789\n");
+        write("cgroup/memory/memory.limit_in_bytes", Long.toString(GIGABYTE));
+        write("cgroup/cpu,cpuacct/cpu.cfs_quota_us", "-1");
+        write("cgroup/cpu,cpuacct/cpu.cfs_period_us", "100000");
+        JvmErgonomics.Resources resources = JvmErgonomics.detect(procCgroup, testDir.resolve("cgroup"), 64 * GIGABYTE, 32);
+        Assertions.assertEquals(GIGABYTE, resources.memory);
+        Assertions.assertEquals(32, resources.processors);
+    }
+
+    @Test
+    public void testNoCgroups() {
+        JvmErgonomics.Resources resources = JvmErgonomics.detect(
+            testDir.resolve("missing"), testDir.resolve("cgroup"), 8 * GIGABYTE, 4);
+        Assertions.assertEquals(8 * GIGABYTE, resources.memory);
+        Assertions.assertEquals(4, resources.processors);
+    }
+
+    @Test
+    public void testProfilesOnLargeHost() {
+        JvmErgonomics.Resources resources = new JvmErgonomics.Resources(64 * GIGABYTE, 16, 16);
+        Assertions.assertEquals(
+            Arrays.asList("-Xmx49152m", "-XX:+UseParallelGC", "-XX:ParallelGCThreads=13"),
+            JvmErgonomics.jvmArgs(JvmProfile.THROUGHPUT, 75, resources, Collections.emptyList(), 11));
+        Assertions.assertEquals(
+            Arrays.asList("-Xmx49152m", "-Xms49152m", "-XX:+UseG1GC", "-XX:ConcGCThreads=3", "-XX:ParallelGCThreads=13"),
+            JvmErgonomics.jvmArgs(JvmProfile.LATENCY, 75, resources, Collections.emptyList(), 11));
+        Assertions.assertEquals(
+            Arrays.asList("-Xmx32768m", "-XX:+UseSerialGC"),
+            JvmErgonomics.jvmArgs(JvmProfile.FOOTPRINT, 50, resources, Collections.emptyList(), 11));
+    }
+
+    @Test
+    public void testSmallContainerUsesSerialCollector() {
+        JvmErgonomics.Resources resources = new JvmErgonomics.Resources(GIGABYTE, 1, 8);
+        Assertions.assertEquals(
+            Arrays.asList("-Xmx768m", "-Xms768m", "-XX:+UseSerialGC", "-XX:ActiveProcessorCount=1"),
+            JvmErgonomics.jvmArgs(JvmProfile.LATENCY, 75, resources, Collections.emptyList(), 11));
+        // Java 8 may not recognise -XX:ActiveProcessorCount.
+        Assertions.assertEquals(
+            Arrays.asList("-Xmx768m", "-Xms768m", "-XX:+UseSerialGC"),
+            JvmErgonomics.jvmArgs(JvmProfile.LATENCY, 75, resources, Collections.emptyList(), 8));
+    }
+
+    @Test
+    public void testExplicitArgumentsWin() {
+        JvmErgonomics.Resources resources = new JvmErgonomics.Resources(16 * GIGABYTE, 8, 8);
+        List<String> jvmArgs = Arrays.asList("-Xmx1g", "-XX:+UseZGC");
+        Assertions.assertEquals(Collections.emptyList(),
+            JvmErgonomics.jvmArgs(JvmProfile.THROUGHPUT, 75, resources, jvmArgs, 17));
+        Assertions.assertEquals(Arrays.asList("-XX:+UseG1GC", "-XX:ConcGCThreads=2", "-XX:ParallelGCThreads=8"),
+            JvmErgonomics.jvmArgs(JvmProfile.LATENCY, 75, resources, Collections.singletonList("-XX:MaxRAMPercentage=50"), 17));
+    }
+}
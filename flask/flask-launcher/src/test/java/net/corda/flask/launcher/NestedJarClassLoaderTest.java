@@ -0,0 +1,120 @@
+package net.corda.flask.launcher;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class NestedJarClassLoaderTest {
+
+    private static final String LIBRARY_NAME = "LIB-INF/library.jar";
+    private static final String RESOURCE_NAME = "net/corda/flask/launcher/resource.txt";
+    private static final byte[] RESOURCE_DATA = "Hello, nested world!".getBytes(StandardCharsets.UTF_8);
+
+    public static class NestedExample {
+    }
+
+    @TempDir
+    public Path testDir;
+
+    private NestedJar library;
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = is.read(buffer)) >= 0) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] createLibrary() throws IOException {
+        String className = NestedExample.class.getName().replace('.', '/') + ".class";
+        byte[] bytecode;
+        try (InputStream is = NestedJarClassLoaderTest.class.getClassLoader().getResourceAsStream(className)) {
+            bytecode = readAll(is);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zos = new ZipOutputStream(bytes)) {
+            zos.putNextEntry(new ZipEntry(className));
+            zos.write(bytecode);
+            zos.closeEntry();
+            zos.putNextEntry(new ZipEntry(RESOURCE_NAME));
+            zos.write(RESOURCE_DATA);
+            zos.closeEntry();
+        }
+        return bytes.toByteArray();
+    }
+
+    @BeforeEach
+    public void setup() throws IOException {
+        byte[] libraryData = createLibrary();
+        Path flaskJar = testDir.resolve("flask.jar");
+        try (ZipOutputStream zos = new ZipOutputStream(Files.newOutputStream(flaskJar))) {
+            ZipEntry entry = new ZipEntry(LIBRARY_NAME);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(libraryData.length);
+            entry.setCompressedSize(libraryData.length);
+            CRC32 crc32 = new CRC32();
+            crc32.update(libraryData);
+            entry.setCrc(crc32.getValue());
+            zos.putNextEntry(entry);
+            zos.write(libraryData);
+            zos.closeEntry();
+        }
+        try (ZipChannel zipChannel = new ZipChannel(flaskJar)) {
+            library = new NestedJar(LIBRARY_NAME, zipChannel.map(LIBRARY_NAME));
+        }
+    }
+
+    private ClassLoader createClassLoader() {
+        List<NestedJar> libraries = Collections.singletonList(library);
+        Map<String, List<String>> packageIndex = NestedJarClassLoader.indexPackages(libraries);
+        return new NestedJarClassLoader(libraries, packageIndex, ClassLoader.getSystemClassLoader().getParent());
+    }
+
+    @Test
+    public void testIndexPackages() {
+        Map<String, List<String>> packageIndex = NestedJarClassLoader.indexPackages(Collections.singletonList(library));
+        Assertions.assertEquals(
+            Collections.singletonMap("net/corda/flask/launcher", Collections.singletonList(LIBRARY_NAME)),
+            packageIndex);
+    }
+
+    @Test
+    public void testLoadClassFromNestedJar() throws ClassNotFoundException {
+        ClassLoader classLoader = createClassLoader();
+        Class<?> nestedClass = Class.forName(NestedExample.class.getName(), false, classLoader);
+        Assertions.assertSame(classLoader, nestedClass.getClassLoader());
+        Assertions.assertNotSame(NestedExample.class, nestedClass);
+        Assertions.assertThrows(ClassNotFoundException.class,
+            () -> Class.forName(NestedJarClassLoaderTest.class.getName(), false, classLoader));
+    }
+
+    @Test
+    public void testLoadResourceFromNestedJar() throws IOException {
+        ClassLoader classLoader = createClassLoader();
+        URL resource = classLoader.getResource(RESOURCE_NAME);
+        Assertions.assertNotNull(resource);
+        try (InputStream is = resource.openStream()) {
+            Assertions.assertArrayEquals(RESOURCE_DATA, readAll(is));
+        }
+        Assertions.assertNull(classLoader.getResource("net/corda/flask/launcher/missing.txt"));
+        Assertions.assertNull(classLoader.getResource("missing.txt"));
+    }
+}
@@ -0,0 +1,86 @@
+package net.corda.flask.launcher;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class ZipChannelTest {
+
+    private static final byte[] STORED_DATA = "Hello, stored world!".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] DEFLATED_DATA = "Hello, deflated world!".getBytes(StandardCharsets.UTF_8);
+
+    @TempDir
+    public Path testDir;
+
+    private Path zipFile;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        zipFile = testDir.resolve("test.zip");
+        try (ZipOutputStream zos = new ZipOutputStream(Files.newOutputStream(zipFile))) {
+            ZipEntry storedEntry = new ZipEntry("LIB-INF/stored.jar");
+            storedEntry.setMethod(ZipEntry.STORED);
+            storedEntry.setSize(STORED_DATA.length);
+            storedEntry.setCompressedSize(STORED_DATA.length);
+            CRC32 crc32 = new CRC32();
+            crc32.update(STORED_DATA);
+            storedEntry.setCrc(crc32.getValue());
+            storedEntry.setExtra(new byte[] { 0x01, 0x7f, 0x02, 0x00, 0x00, 0x00 });
+            zos.putNextEntry(storedEntry);
+            zos.write(STORED_DATA);
+            zos.closeEntry();
+
+            zos.putNextEntry(new ZipEntry("LIB-INF/deflated.jar"));
+            zos.write(DEFLATED_DATA);
+            zos.closeEntry();
+            zos.setComment("Test comment");
+        }
+    }
+
+    @Test
+    public void testTransferStoredEntry() throws IOException {
+        Path destination = Files.createFile(testDir.resolve("stored.jar"));
+        try (OutputStream os = Files.newOutputStream(destination)) {
+            // This existing content must be overwritten.
+            os.write(DEFLATED_DATA);
+        }
+        try (ZipChannel zipChannel = new ZipChannel(zipFile)) {
+            Assertions.assertTrue(zipChannel.transferTo("LIB-INF/stored.jar", destination));
+        }
+        Assertions.assertArrayEquals(STORED_DATA, Files.readAllBytes(destination));
+    }
+
+    @Test
+    public void testCompressedAndMissingEntriesAreNotTransferred() throws IOException {
+        Path destination = Files.createFile(testDir.resolve("other.jar"));
+        try (ZipChannel zipChannel = new ZipChannel(zipFile)) {
+            Assertions.assertFalse(zipChannel.transferTo("LIB-INF/deflated.jar", destination));
+            Assertions.assertFalse(zipChannel.transferTo("LIB-INF/missing.jar", destination));
+        }
+        Assertions.assertEquals(0L, Files.size(destination));
+    }
+
+    @Test
+    public void testTransferFromArchiveAfterShellStub() throws IOException {
+        Path executable = testDir.resolve("executable.jar");
+        try (OutputStream os = Files.newOutputStream(executable)) {
+            os.write("#!/bin/sh\nexit 0\n".getBytes(StandardCharsets.UTF_8));
+            Files.copy(zipFile, os);
+        }
+        Path destination = Files.createFile(testDir.resolve("stored.jar"));
+        try (ZipChannel zipChannel = new ZipChannel(executable)) {
+            Assertions.assertTrue(zipChannel.transferTo("LIB-INF/stored.jar", destination));
+        }
+        Assertions.assertArrayEquals(STORED_DATA, Files.readAllBytes(destination));
+    }
+}
@@ -1,7 +1,10 @@
 package net.corda.gradle.flask;
 
 import net.corda.flask.common.Flask;
-import net.corda.flask.common.ThrowingSupplier;
+import net.corda.flask.common.JvmProfile;
+import net.corda.flask.common.ThrowingFunction;
+import net.corda.gradle.flask.digest.DigestCache;
+import net.corda.gradle.flask.digest.DigestService;
 import org.gradle.api.Action;
 import org.gradle.api.GradleException;
 import org.gradle.api.NamedDomainObjectCollection;
@@ -14,8 +17,12 @@ import org.gradle.api.model.ObjectFactory;
 import org.gradle.api.plugins.BasePluginConvention;
 import org.gradle.api.provider.ListProperty;
 import org.gradle.api.provider.Property;
+import org.gradle.api.provider.SetProperty;
 import org.gradle.api.provider.Provider;
+import org.gradle.api.resources.ReadableResource;
+import org.gradle.api.tasks.CacheableTask;
 import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.Internal;
 import org.gradle.api.tasks.Nested;
 import org.gradle.api.tasks.WorkResult;
 import org.gradle.api.tasks.bundling.AbstractArchiveTask;
@@ -23,26 +30,47 @@ import org.gradle.util.GradleVersion;
 
 import javax.annotation.Nonnull;
 import javax.inject.Inject;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.UncheckedIOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Comparator;
+import java.util.Enumeration;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.Attributes;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
 
 import static java.util.zip.Deflater.BEST_COMPRESSION;
-import static java.util.zip.Deflater.NO_COMPRESSION;
 import static net.corda.flask.common.Flask.Constants.BUFFER_SIZE;
 import static net.corda.flask.common.Flask.Constants.DEFAULT_LAUNCHER_NAME;
 import static net.corda.flask.common.Flask.Constants.GRADLE_TASK_GROUP;
@@ -50,12 +78,24 @@ import static net.corda.flask.common.Flask.Constants.JAVA_AGENTS_FILE;
 import static net.corda.flask.common.Flask.Constants.JVM_ARGUMENT_FILE;
 import static net.corda.flask.common.Flask.Constants.LIBRARIES_FOLDER;
 import static net.corda.flask.common.Flask.Constants.METADATA_FOLDER;
+import static net.corda.flask.common.Flask.Constants.PACKAGE_INDEX_FILE;
+import static net.corda.flask.common.Flask.Constants.PACKAGE_INDEX_SEPARATOR;
 import static net.corda.flask.common.Flask.Constants.ZIP_ENTRIES_DEFAULT_TIMESTAMP;
 
+/**
+ * Creates the flask jar. By default, the same inputs always produce exactly the same flask jar,
+ * which means that Gradle's build cache can provide it instead.
+ */
+@CacheableTask
 @SuppressWarnings({ "UnstableApiUsage", "unused" })
 public class FlaskJarTask extends AbstractArchiveTask {
 
     private static final String MINIMUM_GRADLE_VERSION = "6.0";
+    private static final String SHA256 = "SHA-256";
+    private static final String SHELL_STUB_RESOURCE = "flask-stub.sh";
+    private static final int MANIFEST_LINE_LENGTH = 72;
+    private static final byte[] MANIFEST_LINE_SEPARATOR = { '\r', '\n' };
+    private static final Map<ReadableResource, String> resourceHashes = new ConcurrentHashMap<>();
 
     static {
         if (GradleVersion.current().compareTo(GradleVersion.version(MINIMUM_GRADLE_VERSION)) < 0) {
@@ -85,6 +125,97 @@ public class FlaskJarTask extends AbstractArchiveTask {
         return jvmArgs;
     }
 
+    private final Property<Boolean> inProcess;
+
+    /**
+     * Whether the application runs inside the launcher's own JVM by default,
+     * instead of inside a child JVM.
+     */
+    @Input
+    public Property<Boolean> getInProcess() {
+        return inProcess;
+    }
+
+    private final Property<Boolean> daemon;
+
+    /**
+     * Whether the application runs inside a long-lived daemon JVM by default,
+     * which later launches reuse instead of starting a new child JVM.
+     */
+    @Input
+    public Property<Boolean> getDaemon() {
+        return daemon;
+    }
+
+    private final Property<Boolean> jlink;
+
+    /**
+     * Whether the launcher starts the application from a minimal runtime image,
+     * containing only the JDK modules that the libraries need.
+     */
+    @Input
+    public Property<Boolean> getJlink() {
+        return jlink;
+    }
+
+    private final SetProperty<String> jlinkModules;
+
+    /**
+     * Any further modules for the runtime image, such as
+     * those that the libraries only load reflectively.
+     */
+    @Input
+    public SetProperty<String> getJlinkModules() {
+        return jlinkModules;
+    }
+
+    private final Provider<String> jlinkToolVersion;
+
+    /**
+     * The version of the JDK whose jdeps finds the runtime image's modules, which is Gradle's own.
+     * This only applies when {@link #getJlink()} is set.
+     */
+    @org.gradle.api.tasks.Optional
+    @Input
+    public Provider<String> getJlinkToolVersion() {
+        return jlinkToolVersion;
+    }
+
+    private final Property<Boolean> executable;
+
+    /**
+     * Whether to begin the jar with a POSIX shell script, which lets the jar run as an executable
+     * that replaces itself with the application's JVM, without a launcher JVM staying resident.
+     */
+    @Input
+    public Property<Boolean> getExecutable() {
+        return executable;
+    }
+
+    private final Property<String> jvmProfile;
+
+    /**
+     * The name of the {@link JvmProfile} that sizes the child JVM for the memory and
+     * processors available when it launches, including any container limits.
+     */
+    @org.gradle.api.tasks.Optional
+    @Input
+    public Property<String> getJvmProfile() {
+        return jvmProfile;
+    }
+
+    private final Property<Integer> heapPercentage;
+
+    /**
+     * The share of memory, in percent, that the child JVM's heap may use,
+     * instead of the {@link JvmProfile}'s own.
+     */
+    @org.gradle.api.tasks.Optional
+    @Input
+    public Property<Integer> getHeapPercentage() {
+        return heapPercentage;
+    }
+
     public void includeLibraries(Object... files) {
         into(LIBRARIES_FOLDER, (copySpec) -> copySpec.from(files));
     }
@@ -108,10 +239,22 @@ public class FlaskJarTask extends AbstractArchiveTask {
         getDestinationDirectory().set(basePluginConvention.getLibsDirectory());
         getArchiveBaseName().convention(getProject().getName());
         getArchiveExtension().convention("jar");
+        setPreserveFileTimestamps(false);
+        setReproducibleFileOrder(true);
         launcherClassName = objects.property(String.class).convention(DEFAULT_LAUNCHER_NAME);
         mainClassName = objects.property(String.class);
         jvmArgs = objects.listProperty(String.class);
+        inProcess = objects.property(Boolean.class).convention(false);
+        daemon = objects.property(Boolean.class).convention(false);
+        jlink = objects.property(Boolean.class).convention(false);
+        jlinkModules = objects.setProperty(String.class);
+        jlinkToolVersion = jlink.map(enabled -> enabled ? System.getProperty("java.version") : null);
+        executable = objects.property(Boolean.class).convention(false);
+        jvmProfile = objects.property(String.class);
+        heapPercentage = objects.property(Integer.class);
         javaAgents = objects.domainObjectContainer(JavaAgent.class);
+        digestService = objects.property(DigestService.class).convention(DigestService.register(getProject().getGradle()));
+        usesService(digestService);
         from(getProject().tarTree(LauncherResource.instance), copySpec -> exclude(JarFile.MANIFEST_NAME));
 
         Provider<File> heartbeatJarProvider = getProject().provider(() -> {
@@ -124,86 +267,365 @@ public class FlaskJarTask extends AbstractArchiveTask {
         includeLibraries(heartbeatJarProvider);
     }
 
+    /**
+     * Our resources cannot change while Gradle has this plugin
+     * loaded, and so we only need to hash each of them once.
+     */
+    private static String hashOf(ReadableResource resource) {
+        return resourceHashes.computeIfAbsent(resource, (ThrowingFunction<ReadableResource, String>) it ->
+            Flask.bytes2Hex(Flask.computeSHA256Digest(it::read)));
+    }
+
     @Input
-    public String getLauncherArchiveHash() throws IOException, NoSuchAlgorithmException {
-        return Flask.bytes2Hex(Flask.computeSHA256Digest(LauncherResource.instance::read));
+    public String getLauncherArchiveHash() {
+        return hashOf(LauncherResource.instance);
     }
 
     @Input
-    public String getHeartbeatAgentHash() throws IOException, NoSuchAlgorithmException {
-        return Flask.bytes2Hex(Flask.computeSHA256Digest(HeartbeatAgentResource.instance::read));
+    public String getHeartbeatAgentHash() {
+        return hashOf(HeartbeatAgentResource.instance);
     }
 
-    private static class StreamAction implements CopyActionProcessingStreamAction {
+    private final Property<DigestService> digestService;
 
-        private final ZipOutputStream zoos;
-        private final Manifest manifest;
-        private final MessageDigest md;
-        private final ZipEntryFactory zipEntryFactory;
-        private final byte[] buffer;
-
-        StreamAction(
-            ZipOutputStream zoos,
-            Manifest manifest,
-            MessageDigest md,
-            ZipEntryFactory zipEntryFactory,
-            byte[] buffer
-        ) {
-            this.zoos = zoos;
-            this.manifest = manifest;
-            this.md = md;
-            this.zipEntryFactory = zipEntryFactory;
-            this.buffer = buffer;
+    @Internal
+    public Property<DigestService> getDigestService() {
+        return digestService;
+    }
+
+    /**
+     * An entry of the flask jar. We compute the digests and CRCs of all entries before writing
+     * any of them, so that the manifest can be the first entry and every entry is written only once.
+     */
+    private static final class ArchiveEntry {
+        final String name;
+        final long lastModified;
+        final File file;
+        final boolean stored;
+        byte[] digest;
+        long size;
+        long crc;
+        Set<String> packages;
+        PreviousArchive.Entry previous;
+
+        /**
+         * @param file the contents of this entry, or null if it is a directory
+         */
+        ArchiveEntry(String name, long lastModified, File file, boolean stored) {
+            this.name = name;
+            this.lastModified = lastModified;
+            this.file = file;
+            this.stored = stored;
         }
 
-        @Override
-        public void processFile(FileCopyDetailsInternal fileCopyDetails) {
-            try {
-                String entryName = fileCopyDetails.getRelativePath().toString();
-                if (!fileCopyDetails.isDirectory() && entryName.startsWith(LIBRARIES_FOLDER)) {
-                    ThrowingSupplier<InputStream> streamSupplier = () -> Flask.read(fileCopyDetails.getFile(), false);
-                    Attributes attr = manifest.getEntries().computeIfAbsent(entryName, it -> new Attributes());
-                    md.reset();
-                    attr.putValue(Flask.ManifestAttributes.ENTRY_HASH,
-                            Base64.getEncoder().encodeToString(Flask.computeDigest(streamSupplier, md, buffer)));
+        boolean isLibrary() {
+            return file != null && name.startsWith(LIBRARIES_FOLDER);
+        }
+
+        /**
+         * Finds both this entry's SHA-256 digest if it is a library and its size and CRC if it
+         * is stored. The digest cache only reads the file if it has changed since it was last hashed.
+         * A library that the previous archive already contains with the same digest and compression
+         * keeps its packages from there, and we later copy its data from there too.
+         */
+        void analyse(DigestCache digestCache, PreviousArchive previousArchive) throws IOException {
+            List<String> algorithms = new ArrayList<>(2);
+            if (isLibrary()) {
+                algorithms.add(SHA256);
+            }
+            if (stored) {
+                algorithms.add(DigestCache.CRC32);
+            }
+            if (!algorithms.isEmpty()) {
+                Map<String, byte[]> digests = digestCache.digestsOf(file, algorithms);
+                digest = digests.get(SHA256);
+                if (stored) {
+                    size = file.length();
+                    crc = ByteBuffer.wrap(digests.get(DigestCache.CRC32)).getInt() & 0xFFFFFFFFL;
                 }
-                if (METADATA_FOLDER.equals(entryName)) return;
-                if (fileCopyDetails.isDirectory()) {
-                    ZipEntry zipEntry = zipEntryFactory.createDirectoryEntry(entryName, fileCopyDetails.getLastModified());
-                    zoos.putNextEntry(zipEntry);
-                } else {
-                    ZipEntry zipEntry = zipEntryFactory.createZipEntry(entryName, fileCopyDetails.getLastModified());
-                    boolean compressed = Flask.splitExtension(fileCopyDetails.getSourceName())
-                            .map(entry -> ".jar".equals(entry.getValue()))
-                            .orElse(false);
-                    if (!compressed) {
-                        zipEntry.setMethod(ZipEntry.DEFLATED);
-                    } else {
-                        try (InputStream is = Flask.read(fileCopyDetails.getFile(), false)) {
-                            Flask.computeSizeAndCrc32(zipEntry, is, buffer);
-                        }
-                        zipEntry.setMethod(ZipEntry.STORED);
+            }
+            if (isLibrary() && previousArchive != null) {
+                PreviousArchive.Entry entry = previousArchive.find(name, digest);
+                if (entry != null && entry.method == (stored ? ZipEntry.STORED : ZipEntry.DEFLATED)) {
+                    previous = entry;
+                    if (name.endsWith(".jar")) {
+                        packages = previousArchive.packagesOf(name);
                     }
-                    zoos.putNextEntry(zipEntry);
-                    try (InputStream is = Flask.read(fileCopyDetails.getFile(), false)) {
-                        Flask.write2Stream(is, zoos, buffer);
+                    return;
+                }
+            }
+            if (isLibrary() && name.endsWith(".jar")) {
+                packages = packagesOf(file);
+            }
+        }
+
+        /**
+         * Records which packages this library contains, so that an in-process launch
+         * only needs to look for each class inside the libraries containing its package.
+         */
+        private static Set<String> packagesOf(File library) throws IOException {
+            Set<String> packages = new TreeSet<>();
+            try (ZipFile zipFile = new ZipFile(library)) {
+                Enumeration<? extends ZipEntry> entries = zipFile.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    if (!entry.isDirectory()) {
+                        int idx = entry.getName().lastIndexOf('/');
+                        packages.add(idx < 0 ? "" : entry.getName().substring(0, idx));
                     }
                 }
-            } catch (IOException e) {
-                throw new UncheckedIOException(e);
+            } catch (ZipException e) {
+                // Not a jar, and so not on the classpath either.
+                return null;
             }
+            return packages;
         }
     }
 
+    private static class StreamAction implements CopyActionProcessingStreamAction {
+
+        private final List<ArchiveEntry> entries;
+
+        StreamAction(List<ArchiveEntry> entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        public void processFile(FileCopyDetailsInternal fileCopyDetails) {
+            String entryName = fileCopyDetails.getRelativePath().toString();
+            if (METADATA_FOLDER.equals(entryName)) return;
+            if (fileCopyDetails.isDirectory()) {
+                entries.add(new ArchiveEntry(entryName, fileCopyDetails.getLastModified(), null, false));
+            } else {
+                boolean stored = Flask.splitExtension(fileCopyDetails.getSourceName())
+                        .map(entry -> ".jar".equals(entry.getValue()))
+                        .orElse(false);
+                entries.add(new ArchiveEntry(entryName, fileCopyDetails.getLastModified(), fileCopyDetails.getFile(), stored));
+            }
+        }
+    }
+
+    /**
+     * Analyses the entries in parallel, because hashing the libraries
+     * is the most expensive part of creating the flask jar.
+     */
+    private static void analyseAll(List<ArchiveEntry> entries, DigestCache digestCache, PreviousArchive previousArchive) throws IOException {
+        int threads = Math.max(Math.min(entries.size(), Runtime.getRuntime().availableProcessors()), 1);
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "flask-hash-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<Void>> futures = new ArrayList<>(entries.size());
+            for (ArchiveEntry entry : entries) {
+                if (entry.file != null) {
+                    futures.add(executor.submit(() -> {
+                        entry.analyse(digestCache, previousArchive);
+                        return null;
+                    }));
+                }
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new RuntimeException(cause.getMessage(), cause);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while hashing flask jar entries", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * A library that the project builds itself goes into the last layer of the archive, after every
+     * other entry. We extract the heartbeat agent into the task's temporary directory, but it only
+     * changes along with this plugin.
+     */
+    private static int layerOf(ArchiveEntry entry, Path rootDir, Path temporaryDir) {
+        if (!entry.isLibrary()) {
+            return 0;
+        }
+        Path path = entry.file.toPath().toAbsolutePath();
+        return path.startsWith(rootDir) && !path.startsWith(temporaryDir) ? 2 : 1;
+    }
+
+    /**
+     * The flask jar from the previous build, if there is one, saves us from compressing
+     * and indexing its unchanged libraries again.
+     */
+    private PreviousArchive openPreviousArchive(File archive) {
+        if (!archive.isFile()) {
+            return null;
+        }
+        try {
+            return PreviousArchive.open(archive);
+        } catch (IOException | RuntimeException e) {
+            getLogger().info("Unable to reuse the entries of '{}': {}", archive, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Runs a JDK tool inside Gradle's own JVM. The tool API only exists from Java 9 onwards.
+     */
+    private static String runTool(String name, List<String> args) {
+        Class<?> toolProviderClass;
+        try {
+            toolProviderClass = Class.forName("java.util.spi.ToolProvider");
+        } catch (ClassNotFoundException e) {
+            throw new GradleException("The jlink option needs Gradle to run on JDK 11 or newer", e);
+        }
+        try {
+            Optional<?> tool = (Optional<?>) toolProviderClass.getMethod("findFirst", String.class).invoke(null, name);
+            if (!tool.isPresent()) {
+                throw new GradleException("The jlink option needs Gradle to run on a JDK that includes " + name);
+            }
+            StringWriter output = new StringWriter();
+            PrintWriter writer = new PrintWriter(output);
+            int exitCode = (Integer) toolProviderClass.getMethod("run", PrintWriter.class, PrintWriter.class, String[].class)
+                .invoke(tool.get(), writer, writer, args.toArray(new String[0]));
+            writer.flush();
+            if (exitCode != 0) {
+                throw new GradleException(name + " failed with exit code " + exitCode + ":\n" + output);
+            }
+            return output.toString();
+        } catch (ReflectiveOperationException e) {
+            throw new GradleException("Unable to run " + name + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Writes the manifest as {@link Manifest#write} does, except that its attributes and sections are
+     * sorted by name, whereas {@link Manifest} keeps them in hash maps whose order may vary.
+     */
+    private static void writeManifest(Manifest manifest, OutputStream outputStream) throws IOException {
+        Attributes mainAttributes = manifest.getMainAttributes();
+        writeManifestLine(outputStream, Attributes.Name.MANIFEST_VERSION + ": " + mainAttributes.getValue(Attributes.Name.MANIFEST_VERSION));
+        for (Map.Entry<String, String> attribute : sortedAttributes(mainAttributes).entrySet()) {
+            if (!Attributes.Name.MANIFEST_VERSION.toString().equalsIgnoreCase(attribute.getKey())) {
+                writeManifestLine(outputStream, attribute.getKey() + ": " + attribute.getValue());
+            }
+        }
+        outputStream.write(MANIFEST_LINE_SEPARATOR);
+        for (Map.Entry<String, Attributes> entry : new TreeMap<>(manifest.getEntries()).entrySet()) {
+            writeManifestLine(outputStream, "Name: " + entry.getKey());
+            for (Map.Entry<String, String> attribute : sortedAttributes(entry.getValue()).entrySet()) {
+                writeManifestLine(outputStream, attribute.getKey() + ": " + attribute.getValue());
+            }
+            outputStream.write(MANIFEST_LINE_SEPARATOR);
+        }
+    }
+
+    private static Map<String, String> sortedAttributes(Attributes attributes) {
+        Map<String, String> result = new TreeMap<>();
+        for (Map.Entry<Object, Object> attribute : attributes.entrySet()) {
+            result.put(attribute.getKey().toString(), attribute.getValue().toString());
+        }
+        return result;
+    }
+
+    /**
+     * Manifest lines cannot be longer than 72 bytes, and so we continue longer
+     * lines on the next line, which begins with a space.
+     */
+    private static void writeManifestLine(OutputStream outputStream, String line) throws IOException {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, MANIFEST_LINE_LENGTH);
+        outputStream.write(bytes, 0, length);
+        for (int offset = length; offset < bytes.length; offset += length) {
+            length = Math.min(bytes.length - offset, MANIFEST_LINE_LENGTH - 1);
+            outputStream.write(MANIFEST_LINE_SEPARATOR);
+            outputStream.write(' ');
+            outputStream.write(bytes, offset, length);
+        }
+        outputStream.write(MANIFEST_LINE_SEPARATOR);
+    }
+
+    /**
+     * The shell stub identifies this jar by a digest of its manifest, JVM arguments and Java agents,
+     * because the child JVM's command line depends upon nothing else inside the jar.
+     */
+    private byte[] shellStub(Manifest manifest) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance(SHA256);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+        ByteArrayOutputStream manifestBytes = new ByteArrayOutputStream();
+        writeManifest(manifest, manifestBytes);
+        md.update(manifestBytes.toByteArray());
+        for (String jvmArg : jvmArgs.get()) {
+            md.update((jvmArg + '\n').getBytes(StandardCharsets.UTF_8));
+        }
+        for (JavaAgent javaAgent : javaAgents) {
+            md.update((javaAgent.getName() + '=' + javaAgent.getArgs().getOrElse("") + '\n').getBytes(StandardCharsets.UTF_8));
+        }
+        ByteArrayOutputStream template = new ByteArrayOutputStream();
+        try (InputStream is = FlaskJarTask.class.getResourceAsStream(SHELL_STUB_RESOURCE)) {
+            if (is == null) {
+                throw new IllegalStateException("Resource '" + SHELL_STUB_RESOURCE + "' is missing");
+            }
+            Flask.write2Stream(is, template);
+        }
+        return new String(template.toByteArray(), StandardCharsets.UTF_8)
+            .replace("@FLASK_ID@", Flask.bytes2Hex(md.digest()))
+            .getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Asks jdeps which JDK modules the libraries need. The launcher always
+     * starts its child with the heartbeat agent, which needs java.instrument.
+     */
+    private Set<String> requiredModules(List<ArchiveEntry> entries) {
+        Set<String> modules = new TreeSet<>(jlinkModules.get());
+        modules.add("java.instrument");
+        List<String> jars = new ArrayList<>();
+        for (ArchiveEntry entry : entries) {
+            if (entry.isLibrary() && entry.name.endsWith(".jar")) {
+                jars.add(entry.file.getAbsolutePath());
+            }
+        }
+        if (jars.isEmpty()) {
+            return modules;
+        }
+        String javaVersion = System.getProperty("java.specification.version");
+        List<String> args = new ArrayList<>();
+        args.add("--print-module-deps");
+        args.add("--ignore-missing-deps");
+        args.add("--multi-release");
+        args.add(javaVersion.startsWith("1.") ? javaVersion.substring(2) : javaVersion);
+        args.add("--class-path");
+        args.add(String.join(File.pathSeparator, jars));
+        args.addAll(jars);
+        String[] lines = runTool("jdeps", args).trim().split("\\R");
+        // Any warnings come before the list of modules.
+        for (String module : lines[lines.length - 1].split(",")) {
+            if (!module.trim().isEmpty()) {
+                modules.add(module.trim());
+            }
+        }
+        return modules;
+    }
+
     @SuppressWarnings("SameParameterValue")
     private static final class ZipEntryFactory {
 
         private final boolean isPreserveFileTimestamps;
-        private final long defaultLastModifiedTime;
 
-        ZipEntryFactory(boolean isPreserveFileTimestamps, long defaultLastModifiedTime) {
+        ZipEntryFactory(boolean isPreserveFileTimestamps) {
             this.isPreserveFileTimestamps = isPreserveFileTimestamps;
-            this.defaultLastModifiedTime = defaultLastModifiedTime;
         }
 
         @Nonnull
@@ -213,9 +635,14 @@ public class FlaskJarTask extends AbstractArchiveTask {
             return zipEntry;
         }
 
+        /**
+         * An entry that we generate has no file, and so no timestamp to preserve.
+         */
         @Nonnull
         ZipEntry createZipEntry(String entryName) {
-            return createZipEntry(entryName, defaultLastModifiedTime);
+            ZipEntry zipEntry = new ZipEntry(entryName);
+            zipEntry.setTime(ZIP_ENTRIES_DEFAULT_TIMESTAMP);
+            return zipEntry;
         }
 
         @Nonnull
@@ -230,21 +657,7 @@ public class FlaskJarTask extends AbstractArchiveTask {
 
         @Nonnull
         ZipEntry createDirectoryEntry(@Nonnull String entryName) {
-            return createDirectoryEntry(entryName, defaultLastModifiedTime);
-        }
-
-        @Nonnull
-        ZipEntry copyOf(@Nonnull ZipEntry zipEntry) {
-            if (zipEntry.getMethod() == ZipEntry.STORED) {
-                return new ZipEntry(zipEntry);
-            } else {
-                ZipEntry newEntry = new ZipEntry(zipEntry.getName());
-                newEntry.setMethod(ZipEntry.DEFLATED);
-                newEntry.setTime(zipEntry.getTime());
-                newEntry.setExtra(zipEntry.getExtra());
-                newEntry.setComment(zipEntry.getComment());
-                return newEntry;
-            }
+            return createDirectoryEntry(entryName, ZIP_ENTRIES_DEFAULT_TIMESTAMP);
         }
     }
 
@@ -252,9 +665,11 @@ public class FlaskJarTask extends AbstractArchiveTask {
     @Nonnull
     protected CopyAction createCopyAction() {
         File destination = getArchiveFile().get().getAsFile();
+        Path rootDir = getProject().getRootDir().toPath();
+        Path temporaryDir = getTemporaryDir().toPath();
         return new CopyAction() {
 
-            private final ZipEntryFactory zipEntryFactory = new ZipEntryFactory(isPreserveFileTimestamps(), System.currentTimeMillis());
+            private final ZipEntryFactory zipEntryFactory = new ZipEntryFactory(isPreserveFileTimestamps());
 
             @Override
             @Nonnull
@@ -266,6 +681,29 @@ public class FlaskJarTask extends AbstractArchiveTask {
                     mainAttributes.put(Attributes.Name.MAIN_CLASS, DEFAULT_LAUNCHER_NAME);
                     mainAttributes.putValue(Flask.ManifestAttributes.LAUNCHER_CLASS, launcherClassName.get());
                     mainAttributes.putValue(Flask.ManifestAttributes.PREMAIN_CLASS, DEFAULT_LAUNCHER_NAME);
+                    if (inProcess.get()) {
+                        mainAttributes.putValue(Flask.ManifestAttributes.IN_PROCESS, Boolean.TRUE.toString());
+                    }
+                    if (daemon.get()) {
+                        mainAttributes.putValue(Flask.ManifestAttributes.DAEMON, Boolean.TRUE.toString());
+                    }
+                    if (jvmProfile.isPresent()) {
+                        JvmProfile profile;
+                        try {
+                            profile = JvmProfile.forName(jvmProfile.get());
+                        } catch (IllegalArgumentException e) {
+                            throw new GradleException(e.getMessage(), e);
+                        }
+                        mainAttributes.putValue(Flask.ManifestAttributes.JVM_PROFILE, profile.getName());
+                        if (heapPercentage.isPresent()) {
+                            int percentage = heapPercentage.get();
+                            if (percentage <= 0 || percentage > 100) {
+                                throw new GradleException(String.format(
+                                    "Heap percentage must be between 1 and 100, not %d", percentage));
+                            }
+                            mainAttributes.putValue(Flask.ManifestAttributes.HEAP_PERCENTAGE, Integer.toString(percentage));
+                        }
+                    }
 
                     /**
                      * {@link mainClassName} can never be null as its getter is annotated with @Input and
@@ -273,85 +711,136 @@ public class FlaskJarTask extends AbstractArchiveTask {
                      */
                     String mainClass = mainClassName.getOrNull();
                     mainAttributes.putValue(Flask.ManifestAttributes.APPLICATION_CLASS, mainClass);
-                    MessageDigest md = MessageDigest.getInstance("SHA-256");
                     byte[] buffer = new byte[BUFFER_SIZE];
-                    mainAttributes.putValue(Flask.ManifestAttributes.HEARTBEAT_AGENT_HASH,
-                        Flask.bytes2Hex(Flask.computeDigest(HeartbeatAgentResource.instance::read, md, buffer)));
+                    mainAttributes.putValue(Flask.ManifestAttributes.HEARTBEAT_AGENT_HASH, hashOf(HeartbeatAgentResource.instance));
 
                     /**
                      * The manifest has to be the first zip entry in a jar archive, as an example,
                      * {@link java.util.jar.JarInputStream} assumes the manifest is the first (or second at most)
                      * entry in the jar and simply returns a null manifest if that is not the case.
-                     * In this case the manifest has to contain the hash of all the jar entries, so it cannot
-                     * be computed in advance, we write all the entries to a temporary zip archive while computing the manifest,
-                     * then we write the manifest to the final zip file as the first entry and, finally,
-                     * we copy all the other entries from the temporary archive.
-                     *
-                     * The {@link org.gradle.api.Task#getTemporaryDir} directory is guaranteed
-                     * to be unique per instance of this task.
+                     * In this case the manifest has to contain the hash of all the jar entries, and so we
+                     * collect every entry first and hash them all in parallel. We can then write the manifest
+                     * as the first entry, followed by every other entry exactly once. Stored entries already
+                     * know their sizes and CRCs, and so their files are only read once more, to copy them.
                      */
-                    File temporaryJar = new File(getTemporaryDir(), "premature.zip");
-                    try (ZipOutputStream zipOutputStream = new ZipOutputStream(Flask.write(temporaryJar, true))) {
-                        zipOutputStream.setLevel(NO_COMPRESSION);
-                        StreamAction streamAction = new StreamAction(zipOutputStream, manifest, md, zipEntryFactory, buffer);
-                        copyActionProcessingStream.process(streamAction);
-                    }
+                    List<ArchiveEntry> entries = new ArrayList<>();
+                    copyActionProcessingStream.process(new StreamAction(entries));
+                    DigestCache digestCache = digestService.get().getCache();
+                    File tmpFile = new File(destination.getParentFile(), destination.getName() + ".tmp");
+                    try (PreviousArchive previousArchive = openPreviousArchive(destination)) {
+                        analyseAll(entries, digestCache, previousArchive);
+                        if (jlink.get()) {
+                            Set<String> modules = requiredModules(entries);
+                            getLogger().info("Flask runtime image modules: {}", modules);
+                            mainAttributes.putValue(Flask.ManifestAttributes.RUNTIME_MODULES, String.join(",", modules));
+                        }
 
-                    try (ZipOutputStream zipOutputStream = new ZipOutputStream(Flask.write(destination, true));
-                         ZipInputStream zipInputStream = new ZipInputStream(Flask.read(temporaryJar, true))) {
-                        zipOutputStream.setLevel(BEST_COMPRESSION);
-                        ZipEntry zipEntry = zipEntryFactory.createDirectoryEntry(METADATA_FOLDER);
-                        zipOutputStream.putNextEntry(zipEntry);
-                        zipEntry = zipEntryFactory.createZipEntry(JarFile.MANIFEST_NAME);
-                        zipEntry.setMethod(ZipEntry.DEFLATED);
-                        zipOutputStream.putNextEntry(zipEntry);
-                        manifest.write(zipOutputStream);
-
-                        List<String> df = Optional.ofNullable(jvmArgs.getOrNull())
-                                .filter(it -> !it.isEmpty()).orElse(null);
-                        if (df != null) {
-                            Properties jvmArgsPropertyFile = new Properties();
-                            for (int i = 0; i < df.size(); i++) {
-                                String jvmArg = df.get(i);
-                                jvmArgsPropertyFile.setProperty(Integer.toString(i), jvmArg);
+                        Map<String, List<String>> packageIndex = new TreeMap<>();
+                        for (ArchiveEntry entry : entries) {
+                            if (entry.isLibrary()) {
+                                manifest.getEntries().computeIfAbsent(entry.name, it -> new Attributes())
+                                    .putValue(Flask.ManifestAttributes.ENTRY_HASH, Base64.getEncoder().encodeToString(entry.digest));
+                                if (entry.packages != null) {
+                                    for (String packageName : entry.packages) {
+                                        packageIndex.computeIfAbsent(packageName, it -> new ArrayList<>()).add(entry.name);
+                                    }
+                                }
                             }
-                            zipEntry = zipEntryFactory.createZipEntry(JVM_ARGUMENT_FILE);
-                            zipEntry.setMethod(ZipEntry.DEFLATED);
-                            zipOutputStream.putNextEntry(zipEntry);
-                            Flask.storeProperties(jvmArgsPropertyFile, zipOutputStream);
                         }
 
-                        if (!javaAgents.isEmpty()) {
-                            Properties javaAgentPropertyFile = new Properties();
-                            int index = 0;
-                            for(JavaAgent javaAgent : javaAgents) {
-                                md.reset();
-                                ThrowingSupplier<InputStream> streamSupplier = () -> Flask.read(javaAgent.getJar().get().getAsFile(), false);
-                                StringBuilder sb = new StringBuilder();
-                                sb.append(Flask.bytes2Hex(Flask.computeDigest(streamSupplier, md, buffer)));
-                                if (javaAgent.getArgs().isPresent()) {
-                                    sb.append('=');
-                                    sb.append(javaAgent.getArgs().get());
+                        /*
+                         * The libraries that the project builds itself change far more often than its
+                         * dependencies, and so they come last, after a layer of dependencies that is
+                         * identical between builds.
+                         */
+                        entries.sort(Comparator.comparingInt(entry -> layerOf(entry, rootDir, temporaryDir)));
+
+                        try (FileChannel channel = FileChannel.open(tmpFile.toPath(),
+                                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                            if (executable.get()) {
+                                ByteBuffer stub = ByteBuffer.wrap(shellStub(manifest));
+                                while (stub.hasRemaining()) {
+                                    channel.write(stub);
                                 }
-                                javaAgentPropertyFile.setProperty(Integer.toString(index++), sb.toString());
                             }
-                            zipEntry = zipEntryFactory.createZipEntry(JAVA_AGENTS_FILE);
-                            zipEntry.setMethod(ZipEntry.DEFLATED);
-                            zipOutputStream.putNextEntry(zipEntry);
-                            Flask.storeProperties(javaAgentPropertyFile, zipOutputStream);
-                        }
+                            ZipWriter zipWriter = new ZipWriter(channel, BEST_COMPRESSION);
+                            zipWriter.putDirectory(zipEntryFactory.createDirectoryEntry(METADATA_FOLDER));
+                            zipWriter.putDeflated(zipEntryFactory.createZipEntry(JarFile.MANIFEST_NAME), os -> writeManifest(manifest, os));
+
+                            List<String> df = Optional.ofNullable(jvmArgs.getOrNull())
+                                    .filter(it -> !it.isEmpty()).orElse(null);
+                            if (df != null) {
+                                Properties jvmArgsPropertyFile = new Properties();
+                                for (int i = 0; i < df.size(); i++) {
+                                    String jvmArg = df.get(i);
+                                    jvmArgsPropertyFile.setProperty(Integer.toString(i), jvmArg);
+                                }
+                                zipWriter.putDeflated(zipEntryFactory.createZipEntry(JVM_ARGUMENT_FILE),
+                                    os -> Flask.storeProperties(jvmArgsPropertyFile, os));
+                            }
 
-                        while (true) {
-                            zipEntry = zipInputStream.getNextEntry();
-                            if (zipEntry == null) break;
-                            // Create a new ZipEntry explicitly, without relying on
-                            // subtle (undocumented?) behaviour of ZipInputStream.
-                            zipOutputStream.putNextEntry(zipEntryFactory.copyOf(zipEntry));
-                            Flask.write2Stream(zipInputStream, zipOutputStream, buffer);
+                            if (!javaAgents.isEmpty()) {
+                                Properties javaAgentPropertyFile = new Properties();
+                                int index = 0;
+                                for(JavaAgent javaAgent : javaAgents) {
+                                    File agentJar = javaAgent.getJar().get().getAsFile();
+                                    StringBuilder sb = new StringBuilder();
+                                    sb.append(Flask.bytes2Hex(digestCache.digestOf(agentJar, SHA256)));
+                                    if (javaAgent.getArgs().isPresent()) {
+                                        sb.append('=');
+                                        sb.append(javaAgent.getArgs().get());
+                                    }
+                                    javaAgentPropertyFile.setProperty(Integer.toString(index++), sb.toString());
+                                }
+                                zipWriter.putDeflated(zipEntryFactory.createZipEntry(JAVA_AGENTS_FILE),
+                                    os -> Flask.storeProperties(javaAgentPropertyFile, os));
+                            }
+
+                            if (!packageIndex.isEmpty()) {
+                                Properties packageIndexPropertyFile = new Properties();
+                                for (Map.Entry<String, List<String>> entry : packageIndex.entrySet()) {
+                                    packageIndexPropertyFile.setProperty(entry.getKey(), String.join(PACKAGE_INDEX_SEPARATOR, entry.getValue()));
+                                }
+                                zipWriter.putDeflated(zipEntryFactory.createZipEntry(PACKAGE_INDEX_FILE),
+                                    os -> Flask.storeProperties(packageIndexPropertyFile, os));
+                            }
+
+                            for (ArchiveEntry entry : entries) {
+                                if (entry.file == null) {
+                                    zipWriter.putDirectory(zipEntryFactory.createDirectoryEntry(entry.name, entry.lastModified));
+                                    continue;
+                                }
+                                ZipEntry zipEntry = zipEntryFactory.createZipEntry(entry.name, entry.lastModified);
+                                if (entry.previous != null) {
+                                    PreviousArchive.Entry previous = entry.previous;
+                                    long position = previousArchive.dataPosition(previous);
+                                    if (entry.stored) {
+                                        zipWriter.putStored(zipEntry, previous.crc, previous.size, previousArchive.getChannel(), position);
+                                    } else {
+                                        zipWriter.putDeflated(zipEntry, previous.crc, previous.compressedSize, previous.size,
+                                            previousArchive.getChannel(), position);
+                                    }
+                                } else if (entry.stored) {
+                                    try (FileChannel source = FileChannel.open(entry.file.toPath(), StandardOpenOption.READ)) {
+                                        zipWriter.putStored(zipEntry, entry.crc, entry.size, source, 0);
+                                    }
+                                } else {
+                                    zipWriter.putDeflated(zipEntry, os -> {
+                                        try (InputStream is = Flask.read(entry.file, false)) {
+                                            Flask.write2Stream(is, os, buffer);
+                                        }
+                                    });
+                                }
+                            }
+                            zipWriter.finish();
                         }
-                        return () -> true;
                     }
-                } catch (NoSuchAlgorithmException | IOException e) {
+                    Files.move(tmpFile.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    if (executable.get() && !destination.setExecutable(true)) {
+                        getLogger().warn("Unable to make '{}' executable", destination);
+                    }
+                    return () -> true;
+                } catch (IOException e) {
                     throw new RuntimeException(e.getMessage(), e);
                 }
             }
@@ -0,0 +1,246 @@
+package net.corda.gradle.flask;
+
+import net.corda.flask.common.Flask;
+
+import javax.annotation.Nonnull;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+import static net.corda.flask.common.Flask.Constants.PACKAGE_INDEX_FILE;
+import static net.corda.flask.common.Flask.Constants.PACKAGE_INDEX_SEPARATOR;
+import static net.corda.gradle.flask.ZipWriter.CENTRAL_HEADER_SIGNATURE;
+import static net.corda.gradle.flask.ZipWriter.CENTRAL_HEADER_SIZE;
+import static net.corda.gradle.flask.ZipWriter.END_SIGNATURE;
+import static net.corda.gradle.flask.ZipWriter.END_SIZE;
+import static net.corda.gradle.flask.ZipWriter.LOCAL_HEADER_SIGNATURE;
+import static net.corda.gradle.flask.ZipWriter.LOCAL_HEADER_SIZE;
+import static net.corda.gradle.flask.ZipWriter.ZIP64_END_SIGNATURE;
+import static net.corda.gradle.flask.ZipWriter.ZIP64_END_SIZE;
+import static net.corda.gradle.flask.ZipWriter.ZIP64_EXTRA_ID;
+import static net.corda.gradle.flask.ZipWriter.ZIP64_LOCATOR_SIGNATURE;
+import static net.corda.gradle.flask.ZipWriter.ZIP64_LOCATOR_SIZE;
+import static net.corda.gradle.flask.ZipWriter.ZIP64_MAGIC;
+import static net.corda.gradle.flask.ZipWriter.ZIP64_MAGIC_COUNT;
+
+/**
+ * The flask jar that a previous build created, whose libraries we can copy into the new flask jar
+ * without compressing or indexing them again. Its manifest records each library's SHA-256 digest,
+ * and its package index records the packages inside each library.
+ * <p>
+ * The archive may follow a shell stub, and so we find its entries relative to its end header.
+ */
+final class PreviousArchive implements Closeable {
+
+    static final class Entry {
+        final int method;
+        final long crc;
+        final long compressedSize;
+        final long size;
+        private final long localHeaderPosition;
+
+        Entry(int method, long crc, long compressedSize, long size, long localHeaderPosition) {
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderPosition = localHeaderPosition;
+        }
+    }
+
+    private final FileChannel channel;
+    private final Map<String, Entry> entries;
+    private final Map<String, String> digests;
+    private final Map<String, Set<String>> packages;
+
+    private PreviousArchive(FileChannel channel, Map<String, Entry> entries, Map<String, String> digests, Map<String, Set<String>> packages) {
+        this.channel = channel;
+        this.entries = entries;
+        this.digests = digests;
+        this.packages = packages;
+    }
+
+    @Nonnull
+    static PreviousArchive open(@Nonnull File file) throws IOException {
+        Map<String, String> digests = new HashMap<>();
+        Map<String, Set<String>> packages = new HashMap<>();
+        try (JarFile jarFile = new JarFile(file, false)) {
+            Manifest manifest = jarFile.getManifest();
+            if (manifest == null) {
+                throw new ZipException("No manifest");
+            }
+            for (Map.Entry<String, Attributes> entry : manifest.getEntries().entrySet()) {
+                String digest = entry.getValue().getValue(Flask.ManifestAttributes.ENTRY_HASH);
+                if (digest != null) {
+                    digests.put(entry.getKey(), digest);
+                }
+            }
+            ZipEntry packageIndexEntry = jarFile.getEntry(PACKAGE_INDEX_FILE);
+            if (packageIndexEntry != null) {
+                Properties packageIndex = new Properties();
+                try (InputStream is = jarFile.getInputStream(packageIndexEntry)) {
+                    Flask.loadProperties(packageIndex, is);
+                }
+                for (String packageName : packageIndex.stringPropertyNames()) {
+                    for (String library : packageIndex.getProperty(packageName).split(PACKAGE_INDEX_SEPARATOR)) {
+                        packages.computeIfAbsent(library, it -> new TreeSet<>()).add(packageName);
+                    }
+                }
+            }
+        }
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            return new PreviousArchive(channel, readEntries(channel), digests, packages);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Finds this library in the previous archive, provided that it has the same digest there.
+     */
+    Entry find(@Nonnull String name, @Nonnull byte[] digest) {
+        String previousDigest = digests.get(name);
+        if (previousDigest == null || !previousDigest.equals(Base64.getEncoder().encodeToString(digest))) {
+            return null;
+        }
+        return entries.get(name);
+    }
+
+    /**
+     * The packages of a library that {@link #find} returned.
+     */
+    @Nonnull
+    Set<String> packagesOf(@Nonnull String name) {
+        return packages.getOrDefault(name, Collections.emptySet());
+    }
+
+    @Nonnull
+    FileChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * An entry's data follows its local header, whose extra field may differ from its central header's.
+     */
+    long dataPosition(@Nonnull Entry entry) throws IOException {
+        ByteBuffer header = read(channel, entry.localHeaderPosition, LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new ZipException("Invalid local header");
+        }
+        return entry.localHeaderPosition + LOCAL_HEADER_SIZE
+            + Short.toUnsignedInt(header.getShort(26)) + Short.toUnsignedInt(header.getShort(28));
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static Map<String, Entry> readEntries(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        int tailSize = (int) Math.min(fileSize, END_SIZE + 0xFFFF);
+        ByteBuffer tail = read(channel, fileSize - tailSize, tailSize);
+        int endPosition = -1;
+        for (int i = tailSize - END_SIZE; i >= 0; --i) {
+            if (tail.getInt(i) == END_SIGNATURE && i + END_SIZE + Short.toUnsignedInt(tail.getShort(i + 20)) == tailSize) {
+                endPosition = i;
+                break;
+            }
+        }
+        if (endPosition < 0) {
+            throw new ZipException("No end header");
+        }
+        long count = Short.toUnsignedInt(tail.getShort(endPosition + 10));
+        long centralSize = Integer.toUnsignedLong(tail.getInt(endPosition + 12));
+        long centralOffset = Integer.toUnsignedLong(tail.getInt(endPosition + 16));
+        long end = fileSize - tailSize + endPosition;
+        if (count == ZIP64_MAGIC_COUNT || centralSize == ZIP64_MAGIC || centralOffset == ZIP64_MAGIC) {
+            end -= ZIP64_LOCATOR_SIZE + ZIP64_END_SIZE;
+            ByteBuffer zip64End = read(channel, end, ZIP64_END_SIZE + ZIP64_LOCATOR_SIZE);
+            if (zip64End.getInt(0) != ZIP64_END_SIGNATURE || zip64End.getInt(ZIP64_END_SIZE) != ZIP64_LOCATOR_SIGNATURE) {
+                throw new ZipException("Invalid Zip64 end header");
+            }
+            count = zip64End.getLong(32);
+            centralSize = zip64End.getLong(40);
+            centralOffset = zip64End.getLong(48);
+        }
+        if (centralSize > Integer.MAX_VALUE) {
+            throw new ZipException("Central directory is too large");
+        }
+        // Every offset is relative to the start of the archive, which follows any shell stub.
+        long base = end - centralSize - centralOffset;
+        ByteBuffer central = read(channel, base + centralOffset, (int) centralSize);
+        Map<String, Entry> entries = new HashMap<>();
+        int position = 0;
+        for (long i = 0; i < count; ++i) {
+            if (central.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+                throw new ZipException("Invalid central header");
+            }
+            int method = Short.toUnsignedInt(central.getShort(position + 10));
+            long crc = Integer.toUnsignedLong(central.getInt(position + 16));
+            long compressedSize = Integer.toUnsignedLong(central.getInt(position + 20));
+            long size = Integer.toUnsignedLong(central.getInt(position + 24));
+            int nameLength = Short.toUnsignedInt(central.getShort(position + 28));
+            int extraLength = Short.toUnsignedInt(central.getShort(position + 30));
+            int commentLength = Short.toUnsignedInt(central.getShort(position + 32));
+            long offset = Integer.toUnsignedLong(central.getInt(position + 42));
+            byte[] name = new byte[nameLength];
+            central.position(position + CENTRAL_HEADER_SIZE);
+            central.get(name);
+            int extra = position + CENTRAL_HEADER_SIZE + nameLength;
+            int extraEnd = extra + extraLength;
+            while (extra + 4 <= extraEnd) {
+                int id = Short.toUnsignedInt(central.getShort(extra));
+                int dataSize = Short.toUnsignedInt(central.getShort(extra + 2));
+                if (id == ZIP64_EXTRA_ID) {
+                    int field = extra + 4;
+                    if (size == ZIP64_MAGIC) {
+                        size = central.getLong(field);
+                        field += 8;
+                    }
+                    if (compressedSize == ZIP64_MAGIC) {
+                        compressedSize = central.getLong(field);
+                        field += 8;
+                    }
+                    if (offset == ZIP64_MAGIC) {
+                        offset = central.getLong(field);
+                    }
+                }
+                extra += 4 + dataSize;
+            }
+            entries.put(new String(name, StandardCharsets.UTF_8), new Entry(method, crc, compressedSize, size, base + offset));
+            position = extraEnd + commentLength;
+        }
+        return entries;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new ZipException("Unexpected end of archive");
+            }
+        }
+        return buffer;
+    }
+}
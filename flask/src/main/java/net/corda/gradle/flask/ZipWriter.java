@@ -0,0 +1,363 @@
+package net.corda.gradle.flask;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+import static net.corda.flask.common.Flask.Constants.BUFFER_SIZE;
+
+/**
+ * Writes a zip archive in the same layout as {@link java.util.zip.ZipOutputStream}, except that it can
+ * also copy an entry's compressed data unchanged from another archive, and it transfers the contents
+ * of stored entries from file to file without copying them through the Java heap. A copied entry
+ * is written exactly as if it had been compressed again.
+ */
+final class ZipWriter {
+    static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    static final int END_SIGNATURE = 0x06054b50;
+    static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    static final int ZIP64_EXTRA_ID = 0x0001;
+    static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+    static final int LOCAL_HEADER_SIZE = 30;
+    static final int CENTRAL_HEADER_SIZE = 46;
+    static final int END_SIZE = 22;
+    static final int ZIP64_END_SIZE = 56;
+    static final int ZIP64_LOCATOR_SIZE = 20;
+
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int DATA_DESCRIPTOR_FLAG = 0x08;
+    private static final int UTF8_FLAG = 0x800;
+    private static final int STORED_VERSION = 10;
+    private static final int DEFLATED_VERSION = 20;
+    private static final int ZIP64_VERSION = 45;
+
+    /**
+     * Writes the uncompressed contents of an entry.
+     */
+    interface Content {
+        void write(OutputStream outputStream) throws IOException;
+    }
+
+    private static final class CentralEntry {
+        final byte[] name;
+        final int flags;
+        final int method;
+        final long dosTime;
+        final long crc;
+        final long compressedSize;
+        final long size;
+        final long offset;
+
+        CentralEntry(byte[] name, int flags, int method, long dosTime, long crc, long compressedSize, long size, long offset) {
+            this.name = name;
+            this.flags = flags;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.offset = offset;
+        }
+    }
+
+    private final FileChannel channel;
+    private final long start;
+    private final int level;
+    private final List<CentralEntry> entries = new ArrayList<>();
+    private final Set<String> names = new HashSet<>();
+
+    /**
+     * @param channel the archive, which begins at the channel's current position
+     * @param level the compression level of deflated entries
+     */
+    ZipWriter(@Nonnull FileChannel channel, int level) throws IOException {
+        this.channel = channel;
+        this.start = channel.position();
+        this.level = level;
+    }
+
+    void putDirectory(@Nonnull ZipEntry entry) throws IOException {
+        putStored(entry, 0, 0, null, 0);
+    }
+
+    /**
+     * Transfers a stored entry's contents from this channel, which must already know the entry's CRC.
+     */
+    void putStored(@Nonnull ZipEntry entry, long crc, long size, FileChannel source, long position) throws IOException {
+        long offset = channel.position() - start;
+        byte[] name = nameOf(entry);
+        long dosTime = dosTime(entry.getTime());
+        writeLocalHeader(name, UTF8_FLAG, ZipEntry.STORED, dosTime, crc, size, size);
+        if (size > 0) {
+            transfer(source, position, size, entry);
+        }
+        entries.add(new CentralEntry(name, UTF8_FLAG, ZipEntry.STORED, dosTime, crc, size, size, offset));
+    }
+
+    /**
+     * Compresses an entry's contents, which means that we only know its CRC and sizes afterwards,
+     * and so we write them into a data descriptor after the compressed data.
+     */
+    void putDeflated(@Nonnull ZipEntry entry, @Nonnull Content content) throws IOException {
+        long offset = channel.position() - start;
+        byte[] name = nameOf(entry);
+        long dosTime = dosTime(entry.getTime());
+        int flags = UTF8_FLAG | DATA_DESCRIPTOR_FLAG;
+        writeLocalHeader(name, flags, ZipEntry.DEFLATED, dosTime, 0, 0, 0);
+        CRC32 crc = new CRC32();
+        Deflater deflater = new Deflater(level, true);
+        try {
+            DeflaterOutputStream deflaterStream = new DeflaterOutputStream(new UnclosableOutputStream(channel), deflater, BUFFER_SIZE);
+            content.write(new CheckedOutputStream(deflaterStream, crc));
+            deflaterStream.finish();
+            writeDataDescriptor(crc.getValue(), deflater.getBytesWritten(), deflater.getBytesRead());
+            entries.add(new CentralEntry(name, flags, ZipEntry.DEFLATED, dosTime,
+                crc.getValue(), deflater.getBytesWritten(), deflater.getBytesRead(), offset));
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Copies a deflated entry's compressed data, which we would otherwise have to compress again.
+     */
+    void putDeflated(@Nonnull ZipEntry entry, long crc, long compressedSize, long size, @Nonnull FileChannel source, long position) throws IOException {
+        long offset = channel.position() - start;
+        byte[] name = nameOf(entry);
+        long dosTime = dosTime(entry.getTime());
+        int flags = UTF8_FLAG | DATA_DESCRIPTOR_FLAG;
+        writeLocalHeader(name, flags, ZipEntry.DEFLATED, dosTime, 0, 0, 0);
+        transfer(source, position, compressedSize, entry);
+        writeDataDescriptor(crc, compressedSize, size);
+        entries.add(new CentralEntry(name, flags, ZipEntry.DEFLATED, dosTime, crc, compressedSize, size, offset));
+    }
+
+    /**
+     * Writes the central directory, as well as the Zip64 end records if the archive needs them.
+     * The channel remains open.
+     */
+    void finish() throws IOException {
+        long centralOffset = channel.position() - start;
+        for (CentralEntry entry : entries) {
+            writeCentralHeader(entry);
+        }
+        long centralSize = channel.position() - start - centralOffset;
+        boolean zip64 = entries.size() >= ZIP64_MAGIC_COUNT || centralOffset >= ZIP64_MAGIC || centralSize >= ZIP64_MAGIC;
+        if (zip64) {
+            long zip64EndOffset = channel.position() - start;
+            ByteBuffer buffer = allocate(ZIP64_END_SIZE + ZIP64_LOCATOR_SIZE);
+            buffer.putInt(ZIP64_END_SIGNATURE);
+            buffer.putLong(ZIP64_END_SIZE - 12);
+            buffer.putShort((short) ZIP64_VERSION);
+            buffer.putShort((short) ZIP64_VERSION);
+            buffer.putInt(0);
+            buffer.putInt(0);
+            buffer.putLong(entries.size());
+            buffer.putLong(entries.size());
+            buffer.putLong(centralSize);
+            buffer.putLong(centralOffset);
+            buffer.putInt(ZIP64_LOCATOR_SIGNATURE);
+            buffer.putInt(0);
+            buffer.putLong(zip64EndOffset);
+            buffer.putInt(1);
+            write(buffer);
+        }
+        ByteBuffer buffer = allocate(END_SIZE);
+        buffer.putInt(END_SIGNATURE);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) Math.min(entries.size(), ZIP64_MAGIC_COUNT));
+        buffer.putShort((short) Math.min(entries.size(), ZIP64_MAGIC_COUNT));
+        buffer.putInt((int) Math.min(centralSize, ZIP64_MAGIC));
+        buffer.putInt((int) Math.min(centralOffset, ZIP64_MAGIC));
+        buffer.putShort((short) 0);
+        write(buffer);
+    }
+
+    private byte[] nameOf(ZipEntry entry) throws ZipException {
+        if (!names.add(entry.getName())) {
+            throw new ZipException("duplicate entry: " + entry.getName());
+        }
+        return entry.getName().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Entries with a data descriptor leave their CRC and sizes as zero here. A stored entry of 4GB or more
+     * has its sizes inside a Zip64 extra field instead.
+     */
+    private void writeLocalHeader(byte[] name, int flags, int method, long dosTime, long crc, long compressedSize, long size) throws IOException {
+        boolean zip64 = size >= ZIP64_MAGIC || compressedSize >= ZIP64_MAGIC;
+        ByteBuffer buffer = allocate(LOCAL_HEADER_SIZE + name.length + (zip64 ? 20 : 0));
+        buffer.putInt(LOCAL_HEADER_SIGNATURE);
+        buffer.putShort((short) (zip64 ? ZIP64_VERSION : versionOf(method)));
+        buffer.putShort((short) flags);
+        buffer.putShort((short) method);
+        buffer.putInt((int) dosTime);
+        buffer.putInt((int) crc);
+        buffer.putInt((int) (zip64 ? ZIP64_MAGIC : compressedSize));
+        buffer.putInt((int) (zip64 ? ZIP64_MAGIC : size));
+        buffer.putShort((short) name.length);
+        buffer.putShort((short) (zip64 ? 20 : 0));
+        buffer.put(name);
+        if (zip64) {
+            buffer.putShort((short) ZIP64_EXTRA_ID);
+            buffer.putShort((short) 16);
+            buffer.putLong(size);
+            buffer.putLong(compressedSize);
+        }
+        write(buffer);
+    }
+
+    private void writeDataDescriptor(long crc, long compressedSize, long size) throws IOException {
+        boolean zip64 = size >= ZIP64_MAGIC || compressedSize >= ZIP64_MAGIC;
+        ByteBuffer buffer = allocate(zip64 ? 24 : 16);
+        buffer.putInt(DATA_DESCRIPTOR_SIGNATURE);
+        buffer.putInt((int) crc);
+        if (zip64) {
+            buffer.putLong(compressedSize);
+            buffer.putLong(size);
+        } else {
+            buffer.putInt((int) compressedSize);
+            buffer.putInt((int) size);
+        }
+        write(buffer);
+    }
+
+    /**
+     * The Zip64 extra field contains only those of the sizes and offset that are too large for the header.
+     */
+    private void writeCentralHeader(CentralEntry entry) throws IOException {
+        int extraSize = 0;
+        if (entry.size >= ZIP64_MAGIC) {
+            extraSize += 8;
+        }
+        if (entry.compressedSize >= ZIP64_MAGIC) {
+            extraSize += 8;
+        }
+        if (entry.offset >= ZIP64_MAGIC) {
+            extraSize += 8;
+        }
+        int version = extraSize > 0 ? ZIP64_VERSION : versionOf(entry.method);
+        ByteBuffer buffer = allocate(CENTRAL_HEADER_SIZE + entry.name.length + (extraSize > 0 ? extraSize + 4 : 0));
+        buffer.putInt(CENTRAL_HEADER_SIGNATURE);
+        buffer.putShort((short) version);
+        buffer.putShort((short) version);
+        buffer.putShort((short) entry.flags);
+        buffer.putShort((short) entry.method);
+        buffer.putInt((int) entry.dosTime);
+        buffer.putInt((int) entry.crc);
+        buffer.putInt((int) Math.min(entry.compressedSize, ZIP64_MAGIC));
+        buffer.putInt((int) Math.min(entry.size, ZIP64_MAGIC));
+        buffer.putShort((short) entry.name.length);
+        buffer.putShort((short) (extraSize > 0 ? extraSize + 4 : 0));
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putInt(0);
+        buffer.putInt((int) Math.min(entry.offset, ZIP64_MAGIC));
+        buffer.put(entry.name);
+        if (extraSize > 0) {
+            buffer.putShort((short) ZIP64_EXTRA_ID);
+            buffer.putShort((short) extraSize);
+            if (entry.size >= ZIP64_MAGIC) {
+                buffer.putLong(entry.size);
+            }
+            if (entry.compressedSize >= ZIP64_MAGIC) {
+                buffer.putLong(entry.compressedSize);
+            }
+            if (entry.offset >= ZIP64_MAGIC) {
+                buffer.putLong(entry.offset);
+            }
+        }
+        write(buffer);
+    }
+
+    private void transfer(FileChannel source, long position, long count, ZipEntry entry) throws IOException {
+        long end = position + count;
+        while (position < end) {
+            long transferred = source.transferTo(position, end - position, channel);
+            if (transferred <= 0) {
+                throw new ZipException("Entry '" + entry.getName() + "' is shorter than its expected size of " + count + " bytes");
+            }
+            position += transferred;
+        }
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static ByteBuffer allocate(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static int versionOf(int method) {
+        return method == ZipEntry.DEFLATED ? DEFLATED_VERSION : STORED_VERSION;
+    }
+
+    /**
+     * Converts a time into the MS-DOS format of zip headers, in the local time zone as
+     * {@link java.util.zip.ZipOutputStream} does. MS-DOS times begin in 1980.
+     */
+    static long dosTime(long time) {
+        LocalDateTime dateTime = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault());
+        if (dateTime.getYear() < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (long) (dateTime.getYear() - 1980) << 25
+            | dateTime.getMonthValue() << 21
+            | dateTime.getDayOfMonth() << 16
+            | dateTime.getHour() << 11
+            | dateTime.getMinute() << 5
+            | dateTime.getSecond() >> 1;
+    }
+
+    /**
+     * Writes to the channel without ever closing it.
+     */
+    private static final class UnclosableOutputStream extends OutputStream {
+        private final OutputStream delegate;
+
+        UnclosableOutputStream(FileChannel channel) {
+            this.delegate = Channels.newOutputStream(channel);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            delegate.write(b);
+        }
+
+        @Override
+        public void write(@Nonnull byte[] b, int off, int len) throws IOException {
+            delegate.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
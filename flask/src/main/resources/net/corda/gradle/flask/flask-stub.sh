@@ -0,0 +1,105 @@
+#!/bin/sh
+# This flask jar is also a shell script, which replaces itself with the application's JVM instead of starting
+# a launcher JVM that stays resident for as long as the application runs. It only starts the launcher to extract
+# libraries and to prepare the application JVM's command line, whenever these are missing from the cache.
+# The jar itself follows this script.
+
+flask_id=@FLASK_ID@
+
+case "$0" in
+    /*) flask_jar="$0" ;;
+    *) flask_jar="$(pwd)/$0" ;;
+esac
+if [ -n "$JAVA_HOME" ]; then
+    flask_java="$JAVA_HOME/bin/java"
+else
+    flask_java=java
+fi
+flask_cache="${FLASK_CACHE_DIR:-${XDG_CACHE_HOME:-$HOME/.cache}/flask_cache}"
+
+# The command line depends upon the java executable, the launcher's options and any extra JVM arguments.
+flask_key="$flask_java $FLASK_OPTS"
+for flask_arg do
+    case "$flask_arg" in
+        -flaskJvmArg=*) flask_key="$flask_key
+$flask_arg" ;;
+    esac
+done
+flask_command="$flask_cache/index/$flask_id-$(printf '%s' "$flask_key" | cksum | cut -d ' ' -f 1)"
+
+# The pid file's name must be unique across every PID namespace that shares this cache, e.g. between containers.
+flask_pid_file="$(mktemp -u "$flask_cache/pid/exec-XXXXXXXX").pid" || exit
+
+flask_prepare() {
+    # shellcheck disable=SC2086
+    "$flask_java" -Xmx32m -XX:+UseSerialGC -XX:TieredStopAtLevel=1 $FLASK_OPTS \
+        -Dnet.corda.flask.cache.dir="$flask_cache" -Dnet.corda.flask.exec.command="$flask_command" \
+        -jar "$flask_jar" "$@"
+}
+
+# The launcher must evict libraries once the last eviction is older than the launcher's eviction interval.
+flask_prepared=
+if [ ! -f "$flask_command.launcher" ]; then
+    flask_interval=
+    if [ -f "$flask_command.interval" ]; then
+        read -r flask_interval < "$flask_command.interval"
+    fi
+    if [ ! -f "$flask_command.args" ] || [ -z "$flask_interval" ] \
+            || [ -z "$(find "$flask_cache/cleanup.timestamp" -mmin "-$flask_interval" 2>/dev/null)" ]; then
+        flask_prepare "$@" || exit
+        flask_prepared=1
+    fi
+fi
+
+# The pid file lists the libraries that the application uses, which protects them from eviction. It keeps its
+# unpublished name until the application's heartbeat agent has locked it, and the exec keeps this process's pid.
+# We cannot lock the cache, and so we only check that the libraries still exist once the pid file does, and
+# while no eviction runs. Any eviction that starts later will see the pid file.
+flask_launcher=
+while [ ! -f "$flask_command.launcher" ]; do
+    mkdir -p "$flask_cache/pid" || exit
+    flask_hashes="$(cat "$flask_command.hashes")" || exit
+    printf '%s' "$flask_hashes" > "$flask_pid_file.new" || exit
+    flask_ready=
+    if [ ! -e "$flask_cache/eviction.running" ]; then
+        read -r flask_child_java < "$flask_command.java"
+        if [ -x "$flask_child_java" ]; then
+            flask_ready=1
+            while IFS= read -r flask_library; do
+                if [ ! -f "$flask_library" ]; then
+                    flask_ready=
+                    break
+                fi
+            done < "$flask_command.libraries"
+        fi
+    fi
+    if [ -n "$flask_ready" ]; then
+        break
+    fi
+    rm -f "$flask_pid_file.new"
+    if [ -n "$flask_prepared" ]; then
+        # Another launch is evicting libraries, and so our launcher must run the application instead.
+        flask_launcher=1
+        break
+    fi
+    flask_prepare "$@" || exit
+    flask_prepared=1
+done
+
+if [ -n "$flask_launcher" ] || [ -f "$flask_command.launcher" ]; then
+    # This application needs its launcher, e.g. because it runs in-process or inside a daemon.
+    # shellcheck disable=SC2086
+    exec "$flask_java" $FLASK_OPTS -Dnet.corda.flask.cache.dir="$flask_cache" -jar "$flask_jar" "$@"
+fi
+
+printf '%s000 %s\n' "$(date +%s)" "$flask_hashes" >> "$flask_cache/access.journal"
+
+# The argument file already contains the extra JVM arguments, which the application must not receive.
+for flask_arg do
+    shift
+    case "$flask_arg" in
+        -flaskJvmArg=*) ;;
+        *) set -- "$@" "$flask_arg" ;;
+    esac
+done
+exec "$flask_child_java" -Dnet.corda.flask.pid.file="$flask_pid_file" "@$flask_command.args" "$@"
@@ -3,21 +3,34 @@ package net.corda.gradle.flask
 
 import groovy.transform.CompileStatic
 import net.corda.flask.common.Flask
+import org.gradle.testkit.runner.BuildResult
 import org.gradle.testkit.runner.GradleRunner
+import org.gradle.testkit.runner.TaskOutcome
 import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.DisplayName
 import org.junit.jupiter.api.Test
 import org.junit.jupiter.api.Timeout
+import org.junit.jupiter.api.condition.DisabledOnOs
+import org.junit.jupiter.api.condition.OS
 import org.junit.jupiter.api.io.TempDir
 
 import java.nio.file.Files
 import java.nio.file.Path
 import java.nio.file.StandardCopyOption
 import java.security.MessageDigest
+import java.util.zip.CRC32
 import java.util.zip.ZipEntry
+import java.util.jar.JarEntry
+import java.util.jar.JarFile
+import java.util.jar.JarInputStream
+import java.util.jar.Manifest
+import java.util.stream.Collectors
+import java.util.zip.ZipFile
 import java.util.zip.ZipInputStream
 
 import static net.corda.flask.common.Flask.Constants.BUFFER_SIZE
+import static net.corda.flask.common.Flask.Constants.LIBRARIES_FOLDER
+import static net.corda.flask.common.Flask.ManifestAttributes.ENTRY_HASH
 import static net.corda.flask.common.Flask.Constants.ZIP_ENTRIES_DEFAULT_TIMESTAMP
 import static org.assertj.core.api.Assertions.assertThat
 import static org.junit.jupiter.api.Assertions.assertArrayEquals
@@ -72,23 +85,34 @@ class FlaskPluginTest {
     @BeforeEach
     void setup() {
         buildFile = testProjectDir.resolve("build.gradle")
-        installResource("testProject", "build.gradle", testProjectDir)
-        installResource("testProject", "settings.gradle", testProjectDir)
-        installResource("testProject","src/main/java/net/corda/gradle/flask/test/Main.java", testProjectDir)
-        installResource("testProject","src/main/java/net/corda/gradle/flask/test/AlternativeMain.java", testProjectDir)
-        installResource("testProject","src/main/java/net/corda/gradle/flask/test/HangingMain.java", testProjectDir)
-        installResource("testProject","src/flask/java/net/corda/gradle/flask/test/TestLauncher.java", testProjectDir)
-        installResource("testProject", "testAgent/build.gradle", testProjectDir)
-        installResource("testProject", "testAgent/src/main/java/net/corda/gradle/flask/test/agent/JavaAgent.java", testProjectDir)
+        installProject(testProjectDir)
+    }
+
+    private void installProject(Path projectDir) {
+        installResource("testProject", "build.gradle", projectDir)
+        installResource("testProject", "settings.gradle", projectDir)
+        installResource("testProject","src/main/java/net/corda/gradle/flask/test/Main.java", projectDir)
+        installResource("testProject","src/main/java/net/corda/gradle/flask/test/AlternativeMain.java", projectDir)
+        installResource("testProject","src/main/java/net/corda/gradle/flask/test/HangingMain.java", projectDir)
+        installResource("testProject","src/main/java/net/corda/gradle/flask/test/EchoMain.java", projectDir)
+        installResource("testProject","src/flask/java/net/corda/gradle/flask/test/TestLauncher.java", projectDir)
+        installResource("testProject", "testAgent/build.gradle", projectDir)
+        installResource("testProject", "testAgent/src/main/java/net/corda/gradle/flask/test/agent/JavaAgent.java", projectDir)
     }
 
     void invokeGradle(String... taskName) {
+        invokeGradle(testProjectDir, taskName)
+    }
+
+    BuildResult invokeGradle(Path projectDir, String... taskName) {
         GradleRunner runner = GradleRunner.create()
                 .withDebug(true)
-                .withProjectDir(testProjectDir.toFile())
+                .withProjectDir(projectDir.toFile())
                 .withArguments(taskName + ["-s", "--info", "-g", testGradleHomeDir])
                 .withPluginClasspath()
-        println(runner.build().getOutput())
+        BuildResult result = runner.build()
+        println(result.getOutput())
+        return result
     }
 
     static long consumeEntry(InputStream input) {
@@ -134,6 +158,25 @@ class FlaskPluginTest {
         }
     }
 
+    @Test
+    void libraryHashesMatchLibraries() {
+        invokeGradle("flaskJar")
+        Path flaskJar = testProjectDir.resolve("build/flask.jar")
+        new JarFile(flaskJar.toFile()).withCloseable { JarFile jarFile ->
+            Manifest manifest = jarFile.manifest
+            List<JarEntry> libraries = Collections.list(jarFile.entries()).findAll { JarEntry entry ->
+                !entry.directory && entry.name.startsWith(LIBRARIES_FOLDER + '/')
+            }
+            assertThat(libraries).isNotEmpty()
+            byte[] buffer = new byte[BUFFER_SIZE]
+            for (JarEntry library : libraries) {
+                MessageDigest md = MessageDigest.getInstance("SHA-256")
+                byte[] digest = Flask.computeDigest( { jarFile.getInputStream(library) }, md, buffer)
+                assertEquals(Base64.encoder.encodeToString(digest), manifest.getAttributes(library.name)?.getValue(ENTRY_HASH), library.name)
+            }
+        }
+    }
+
     @Test
     void compareFlaskJars() {
         invokeGradle("flaskJar")
@@ -150,6 +193,117 @@ class FlaskPluginTest {
         assertArrayEquals(digest1, digest2)
     }
 
+    /**
+     * Two copies of the same project, in different places, must build the same flask jar.
+     * Both copies have the same directory name, and so their own jars have the same name.
+     */
+    @Test
+    void compareFlaskJarsOfProjectCopies() {
+        Path firstDir = testProjectDir.resolve("first/project")
+        Path secondDir = testProjectDir.resolve("second/project")
+        installProject(firstDir)
+        installProject(secondDir)
+        invokeGradle(firstDir, "flaskJar")
+        invokeGradle(secondDir, "flaskJar")
+        assertArrayEquals(Files.readAllBytes(firstDir.resolve("build/flask.jar")), Files.readAllBytes(secondDir.resolve("build/flask.jar")))
+    }
+
+    @Test
+    void restoreFlaskJarFromBuildCache() {
+        Path firstDir = testProjectDir.resolve("first/project")
+        Path secondDir = testProjectDir.resolve("second/project")
+        installProject(firstDir)
+        installProject(secondDir)
+        invokeGradle(firstDir, "flaskJar", "--build-cache")
+        BuildResult result = invokeGradle(secondDir, "flaskJar", "--build-cache")
+        assertEquals(TaskOutcome.FROM_CACHE, result.task(":flaskJar")?.outcome)
+        assertArrayEquals(Files.readAllBytes(firstDir.resolve("build/flask.jar")), Files.readAllBytes(secondDir.resolve("build/flask.jar")))
+
+        result = invokeGradle(secondDir, "clean", "flaskJar", "--build-cache")
+        assertEquals(TaskOutcome.FROM_CACHE, result.task(":flaskJar")?.outcome)
+    }
+
+    /**
+     * Builds the executable jar, changes one of its libraries and builds it again, so that the second
+     * build copies its unchanged entries out of the first archive. Both builds may or may not begin
+     * with a shell stub, which shifts every entry of the archive.
+     */
+    private void rebuildExecutableJar(boolean executableBefore, boolean executableAfter) {
+        Path jarFile = testProjectDir.resolve("build/libs/executable.jar")
+        invokeGradle("executableJar", "-Pexecutable=$executableBefore".toString())
+        assertEquals(executableBefore, startsWithStub(jarFile))
+        Path changedResource = testProjectDir.resolve("src/main/resources/changed.txt")
+        Files.createDirectories(changedResource.parent)
+        Files.write(changedResource, "changed".getBytes("UTF-8"))
+        invokeGradle("executableJar", "-Pexecutable=$executableAfter".toString())
+        assertEquals(executableAfter, startsWithStub(jarFile))
+
+        // Every entry, whether copied from the first archive or not, must match its CRC and size.
+        byte[] buffer = new byte[BUFFER_SIZE]
+        new ZipFile(jarFile.toFile()).withCloseable { ZipFile zipFile ->
+            for (ZipEntry entry : Collections.<ZipEntry>list(zipFile.entries() as Enumeration<ZipEntry>)) {
+                CRC32 crc = new CRC32()
+                long size = 0
+                zipFile.getInputStream(entry).withCloseable { InputStream input ->
+                    int bytesRead
+                    while ((bytesRead = input.read(buffer)) != EOF) {
+                        crc.update(buffer, 0, bytesRead)
+                        size += bytesRead
+                    }
+                }
+                assertEquals(entry.crc, crc.value, entry.name)
+                assertEquals(entry.size, size, entry.name)
+            }
+        }
+
+        // Every library must match its hash, and one of them must now contain the changed resource.
+        new JarFile(jarFile.toFile()).withCloseable { JarFile jar ->
+            Manifest manifest = jar.manifest
+            List<JarEntry> libraries = Collections.list(jar.entries()).findAll { JarEntry entry ->
+                !entry.directory && entry.name.startsWith(LIBRARIES_FOLDER + '/')
+            }
+            assertThat(libraries).hasSizeGreaterThan(1)
+            boolean changed = false
+            for (JarEntry library : libraries) {
+                MessageDigest md = MessageDigest.getInstance("SHA-256")
+                byte[] digest = Flask.computeDigest( { jar.getInputStream(library) }, md, buffer)
+                assertEquals(Base64.encoder.encodeToString(digest), manifest.getAttributes(library.name)?.getValue(ENTRY_HASH), library.name)
+                new JarInputStream(jar.getInputStream(library)).withCloseable { JarInputStream input ->
+                    JarEntry entry
+                    while ((entry = input.nextJarEntry) != null) {
+                        changed |= entry.name == "changed.txt"
+                    }
+                }
+            }
+            assertTrue(changed)
+        }
+
+        // Building the same jar from scratch must not make any difference.
+        MessageDigest md = MessageDigest.getInstance("SHA-256")
+        byte[] rebuiltDigest = Flask.computeDigest( { Files.newInputStream(jarFile) }, md, buffer)
+        invokeGradle("clean", "executableJar", "-Pexecutable=$executableAfter".toString())
+        md.reset()
+        assertArrayEquals(rebuiltDigest, Flask.computeDigest( { Files.newInputStream(jarFile) }, md, buffer))
+    }
+
+    private static boolean startsWithStub(Path jarFile) {
+        byte[] prefix = new byte[2]
+        Files.newInputStream(jarFile).withCloseable { InputStream input ->
+            new DataInputStream(input).readFully(prefix)
+        }
+        return new String(prefix, "US-ASCII") == "#!"
+    }
+
+    @Test
+    void rebuildExecutableJarAsPlainJar() {
+        rebuildExecutableJar(true, false)
+    }
+
+    @Test
+    void rebuildPlainJarAsExecutableJar() {
+        rebuildExecutableJar(false, true)
+    }
+
     @Test
     void runFlaskJar() {
         invokeGradle("flaskRun")
@@ -205,4 +359,138 @@ class FlaskPluginTest {
         assertNotEquals(0, returnCode)
         assertThat(testProjectDir.resolve("shutdown-hook-executed")).doesNotExist()
     }
+
+    /**
+     * Runs an executable flask jar through its shell stub, with its own cache.
+     */
+    private Process startExecutableJar(Path jarFile, Path cacheDir, String... args) {
+        List<String> command = ["sh", jarFile.toString()]
+        command.addAll(args)
+        ProcessBuilder builder = new ProcessBuilder(command)
+            .directory(testProjectDir.toFile())
+            .redirectError(ProcessBuilder.Redirect.INHERIT)
+        builder.environment().put("JAVA_HOME", System.getProperty("java.home"))
+        builder.environment().put("FLASK_CACHE_DIR", cacheDir.toString())
+        return builder.start()
+    }
+
+    private static List<String> listFileNames(Path dir) {
+        return Files.list(dir).withCloseable { files ->
+            files.map { it.fileName.toString() }.collect(Collectors.toList())
+        }
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    void runExecutableFlaskJar() {
+        invokeGradle("executableJar")
+        Path jarFile = testProjectDir.resolve("build/libs/executable.jar")
+        Path cacheDir = testProjectDir.resolve("flask-cache")
+
+        // The first two runs prepare the command line, the first because there is none and the second because
+        // the cache has never been evicted. The third runs the command line, and the fourth must leave the
+        // application to its launcher, because an eviction appears to be running.
+        for (int run = 0; run < 4; ++run) {
+            if (run == 3) {
+                Files.createFile(cacheDir.resolve("eviction.running"))
+            }
+            Process process = startExecutableJar(jarFile, cacheDir, "3", "hello", "world")
+            String output = process.inputStream.text
+            assertEquals(3, process.waitFor())
+            assertEquals("3 hello world", output.trim())
+        }
+
+        List<String> index = listFileNames(cacheDir.resolve("index"))
+        assertThat(index).anyMatch { String name -> name.endsWith(".args") }
+        Path intervalFile = cacheDir.resolve("index").resolve(index.find { String name -> name.endsWith(".interval") })
+        assertEquals(Flask.Constants.DEFAULT_CACHE_EVICTION_INTERVAL_HOURS.toLong() * 60, new String(Files.readAllBytes(intervalFile)).trim().toLong())
+        assertThat(cacheDir.resolve("cleanup.timestamp")).exists()
+        // Every application has exited, and so has deleted its pid file.
+        assertThat(listFileNames(cacheDir.resolve("pid"))).isEmpty()
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    void evictionKeepsLibrariesOfExecutedFlaskJar() {
+        invokeGradle("hangingExecutableJar", "executableJar")
+        Path cacheDir = testProjectDir.resolve("flask-cache")
+        Path libDir = cacheDir.resolve("lib")
+        Path testFile = testProjectDir.resolve("shutdown-hook-executed")
+        Process process = startExecutableJar(testProjectDir.resolve("build/libs/hangingExecutable.jar"), cacheDir)
+        try {
+            int totalWait = 0
+            final int timeoutMillis = 10000
+            while (!Files.exists(testFile)) {
+                int loopWait = 100
+                totalWait += loopWait
+                assertTrue(totalWait < timeoutMillis, "Failed to create test file '$testFile'")
+                Thread.sleep(loopWait)
+            }
+
+            // The application's heartbeat agent has locked its pid file and published it.
+            List<String> pidFiles = listFileNames(cacheDir.resolve("pid"))
+            assertThat(pidFiles).hasSize(1).allMatch { String name -> name.endsWith(".pid") }
+            List<String> hashes = new String(Files.readAllBytes(cacheDir.resolve("pid").resolve(pidFiles[0]))).split(" ").toList()
+            assertThat(hashes).isNotEmpty()
+            // Eviction deletes each hash folder, and so would also delete these markers.
+            for (String hash : hashes) {
+                Files.createFile(libDir.resolve(hash).resolve("marker"))
+            }
+
+            String javaExecutable = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java"
+            Process wipe = new ProcessBuilder(javaExecutable,
+                "-Dnet.corda.flask.cache.dir=$cacheDir".toString(),
+                "-Dnet.corda.flask.cache.wipe=true",
+                "-jar", testProjectDir.resolve("build/libs/executable.jar").toString(), "0")
+                .inheritIO()
+                .start()
+            assertEquals(0, wipe.waitFor())
+
+            for (String hash : hashes) {
+                assertThat(libDir.resolve(hash).resolve("marker")).exists()
+            }
+            assertTrue(process.isAlive())
+        } finally {
+            process.destroy()
+            process.waitFor()
+        }
+        assertThat(listFileNames(cacheDir.resolve("pid"))).isEmpty()
+    }
+
+    @Test
+    @DisplayName("Check that a daemon routes each launch's output and exit code to that launch")
+    void daemonRoutesEachSession() {
+        invokeGradle("executableJar")
+        Path cacheDir = testProjectDir.resolve("flask-cache")
+        String javaExecutable = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java"
+        Closure<Process> launch = { List<String> args ->
+            List<String> command = [javaExecutable,
+                "-Dnet.corda.flask.cache.dir=$cacheDir".toString(),
+                "-Dnet.corda.flask.daemon=true",
+                "-Dnet.corda.flask.daemon.idle.timeout.seconds=5",
+                "-jar", testProjectDir.resolve("build/libs/executable.jar").toString()]
+            command.addAll(args)
+            new ProcessBuilder(command)
+                .directory(testProjectDir.toFile())
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start()
+        }
+
+        // The first launch starts the daemon, and the next two run inside it at the same time.
+        Process first = launch(["3", "first"])
+        assertEquals("3 first", first.inputStream.text.trim())
+        assertEquals(3, first.waitFor())
+        Path daemonDir = Files.list(cacheDir.resolve("daemon")).withCloseable { dirs -> dirs.findFirst().get() }
+        assertThat(daemonDir.resolve("daemon.xml")).exists()
+
+        Process second = launch(["4", "second"])
+        Process third = launch(["5", "third"])
+        assertEquals("4 second", second.inputStream.text.trim())
+        assertEquals("5 third", third.inputStream.text.trim())
+        assertEquals(4, second.waitFor())
+        assertEquals(5, third.waitFor())
+        // A single daemon has served every launch.
+        List<String> daemonLog = Files.readAllLines(daemonDir.resolve("daemon.log"))
+        assertEquals(1, daemonLog.count { String line -> line.startsWith("Flask daemon listening") })
+    }
 }
@@ -0,0 +1,11 @@
+package net.corda.gradle.flask.test;
+
+/**
+ * Prints its arguments, and then exits with the status that its first argument names.
+ */
+public class EchoMain {
+    public static void main(String[] args) {
+        System.out.println(String.join(" ", args));
+        System.exit(args.length == 0 ? 0 : Integer.parseInt(args[0]));
+    }
+}
@@ -0,0 +1,98 @@
+package net.corda.gradle.jarfilter
+
+import kotlinx.metadata.Flag
+import kotlinx.metadata.KmClass
+import kotlinx.metadata.KmFunction
+import kotlinx.metadata.KmPackage
+import kotlinx.metadata.KmProperty
+import kotlinx.metadata.jvm.getterSignature
+import kotlinx.metadata.jvm.setterSignature
+import kotlinx.metadata.jvm.signature
+import org.gradle.api.logging.LogLevel
+import org.gradle.api.logging.Logger
+import org.objectweb.asm.ClassReader.SKIP_CODE
+import org.objectweb.asm.ClassReader.SKIP_DEBUG
+import org.objectweb.asm.ClassReader.SKIP_FRAMES
+import java.nio.ByteBuffer
+
+/**
+ * The methods whose byte-code is still part of a jar's ABI, because
+ * they are Kotlin inline functions. The Kotlin compiler copies the
+ * byte-code of an inline function into every caller.
+ */
+class AbiElements(private val inlineMethods: Map<String, Set<MethodElement>>) {
+    fun isInline(className: String, method: MethodElement): Boolean = inlineMethods[className]?.contains(method) ?: false
+}
+
+/**
+ * Reads the [kotlin.Metadata] of every class inside a jar to discover
+ * its Kotlin inline functions and inline property accessors. These must
+ * survive when [FilterTransformer] reduces the jar to its ABI.
+ */
+class AbiAnalyser(private val logger: Logger) {
+    private companion object {
+        private const val SCAN_FLAGS = SKIP_CODE or SKIP_DEBUG or SKIP_FRAMES
+    }
+
+    private val inlineMethods = mutableMapOf<String, MutableSet<MethodElement>>()
+
+    fun add(entryName: String, data: ByteBuffer) {
+        if (entryName.endsWith(".class")) {
+            data.toClassReader().accept(ScanningVisitor(), SCAN_FLAGS)
+        }
+    }
+
+    fun analyse(): AbiElements {
+        logger.info("- Found inline functions inside {} classes", inlineMethods.size)
+        return AbiElements(inlineMethods)
+    }
+
+    private inner class ScanningVisitor : KotlinBeforeProcessor(ASM_API, MetadataReader, logger, mutableMapOf()) {
+        override val level: LogLevel = LogLevel.DEBUG
+        private lateinit var className: String
+
+        override fun visit(version: Int, access: Int, clsName: String, signature: String?, superName: String?, interfaces: Array<String>?) {
+            className = clsName
+            super.visit(version, access, clsName, signature, superName, interfaces)
+        }
+
+        override fun processClassMetadata(kmClass: KmClass): KmClass? {
+            val classDescriptor = "L$className;"
+            kmClass.functions.forEach { function -> addFunction(function, classDescriptor) }
+            kmClass.properties.forEach(::addProperty)
+            return null
+        }
+
+        override fun processPackageMetadata(kmPackage: KmPackage): KmPackage? {
+            kmPackage.functions.forEach { function -> addFunction(function, "") }
+            kmPackage.properties.forEach(::addProperty)
+            return null
+        }
+
+        private fun addFunction(function: KmFunction, classDescriptor: String) {
+            if (Flag.Function.IS_INLINE(function.flags)) {
+                val method = function.signature?.toMethodElement() ?: return
+                addInline(method)
+
+                // The compiler also inlines the synthetic `$default` function.
+                if (function.valueParameters.hasAnyDefaultValues) {
+                    method.asKotlinDefaultFunction(classDescriptor)?.also(::addInline)
+                }
+            }
+        }
+
+        private fun addProperty(property: KmProperty) {
+            if (Flag.PropertyAccessor.IS_INLINE(property.getterFlags)) {
+                property.getterSignature?.toMethodElement()?.also(::addInline)
+            }
+            if (Flag.PropertyAccessor.IS_INLINE(property.setterFlags)) {
+                property.setterSignature?.toMethodElement()?.also(::addInline)
+            }
+        }
+
+        private fun addInline(method: MethodElement) {
+            logger.debug("-- inline method {}.{}{}", className, method.name, method.descriptor)
+            inlineMethods.getOrPut(className, ::mutableSetOf).add(method)
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package net.corda.gradle.jarfilter
+
+import org.gradle.api.logging.Logger
+import org.objectweb.asm.ClassReader
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption.REPLACE_EXISTING
+import kotlin.math.max
+
+/**
+ * Filters the classes inside directories, rather than inside a jar, and writes
+ * them into [outputDir]. Every other file is copied into [outputDir] unchanged.
+ *
+ * An incremental build only filters the classes that have changed since the
+ * previous build, and then any other classes that either refer to, or are
+ * referred to by, a class whose unwanted elements have changed as a result.
+ * A class is always filtered together with its nested classes, i.e. as a
+ * "group". The unwanted elements and class references from the previous
+ * build are preserved in [stateFile].
+ *
+ * Reachability depends upon every class, and so shrinking by [KeepRules]
+ * always filters every class. However, a class's ABI only depends upon
+ * its own group.
+ */
+class ClassDirectoryFilter(
+    private val logger: Logger,
+    private val annotationValues: FilterAnnotations.Values,
+    private val keepValues: KeepRules.Values,
+    private val abiOnly: Boolean,
+    maxPasses: Int,
+    private val outputDir: Path,
+    private val stateFile: Path
+) {
+    private companion object {
+        private const val CLASS_SUFFIX = ".class"
+
+        private val String.isClass: Boolean get() = endsWith(CLASS_SUFFIX)
+        private val String.className: String get() = removeSuffix(CLASS_SUFFIX)
+        private val String.groupName: String get() = substringBefore('$')
+    }
+
+    private val maxPasses = max(maxPasses, 1)
+
+    /**
+     * @param sources Every file inside the input directories, keyed by its relative path.
+     * @param changes The relative paths of every file that has been added, modified or
+     * removed since the previous build, or `null` if every file must be filtered again.
+     */
+    fun run(sources: Map<String, Path>, changes: Set<String>?) {
+        val previous = if (changes == null || !keepValues.isEmpty) null else FilterState.read(stateFile, logger)
+        val changedPaths = if (previous == null) {
+            logger.info("Filtering every class into {}", outputDir)
+            cleanOutputDir()
+            sources.keys
+        } else {
+            logger.info("Filtering {} changed files into {}", changes!!.size, outputDir)
+            changes
+        }
+
+        for (path in changedPaths.filterNot { it.isClass }) {
+            val target = outputDir.resolve(path)
+            val source = sources[path]
+            if (source == null) {
+                Files.deleteIfExists(target)
+            } else {
+                Files.createDirectories(target.parent)
+                Files.copy(source, target, REPLACE_EXISTING)
+            }
+        }
+
+        val classes = sources.filterKeys { it.isClass }.mapKeys { it.key.className }
+        val removedClasses = changedPaths.filter { it.isClass }.map { it.className }.filterNot(classes::containsKey)
+        val state = previous ?: FilterState()
+        val references = HashMap(state.references)
+        val reachableElements = if (keepValues.isEmpty) null else analyseReachability(sources)
+        val groups = changedPaths.filter { it.isClass }.mapTo(HashSet()) { it.className.groupName }
+
+        while (true) {
+            val unwantedElements = state.toUnwantedCache(excludeGroups = groups)
+            val filtered = filterGroups(classes.filterKeys { it.groupName in groups }, unwantedElements, reachableElements, references)
+            val affected = state.affectedGroups(unwantedElements, references, removedClasses)
+                .filterTo(HashSet()) { group -> group !in groups && classes.keys.any { it.groupName == group } }
+            if (affected.isEmpty()) {
+                removedClasses.forEach { name ->
+                    references.remove(name)
+                    Files.deleteIfExists(outputDir.resolve(name + CLASS_SUFFIX))
+                }
+                writeClasses(filtered)
+                FilterState(unwantedElements.classes, unwantedElements.classMethods, references).write(stateFile)
+                break
+            }
+
+            logger.info("Also filtering {} classes affected by these changes: {}", affected.size, affected.sorted())
+            groups.addAll(affected)
+        }
+    }
+
+    private fun cleanOutputDir() {
+        Files.deleteIfExists(stateFile)
+        if (Files.isDirectory(outputDir)) {
+            Files.walk(outputDir).use { paths ->
+                paths.sorted(Comparator.reverseOrder()).filter { it != outputDir }.forEach(Files::delete)
+            }
+        }
+    }
+
+    private fun analyseReachability(sources: Map<String, Path>): ReachableElements {
+        val analyser = ReachabilityAnalyser(logger, keepValues)
+        for ((path, file) in sources) {
+            analyser.add(path, ByteBuffer.wrap(Files.readAllBytes(file)))
+        }
+        return analyser.analyse()
+    }
+
+    /**
+     * Filters these classes from their original byte-code, in exactly
+     * the same way as the passes over a jar. Deleted classes have
+     * empty byte-code.
+     */
+    private fun filterGroups(
+        classes: Map<String, Path>,
+        unwantedElements: UnwantedCache,
+        reachableElements: ReachableElements?,
+        references: MutableMap<String, Set<String>>
+    ): Map<String, ByteArray> {
+        val current = sortedMapOf<String, ByteArray>()
+        for ((name, file) in classes) {
+            val bytecode = Files.readAllBytes(file)
+            references[name] = ByteBuffer.wrap(bytecode).referencedClassNames()
+            current[name] = bytecode
+        }
+        val abiElements = if (abiOnly) analyseAbi(current) else null
+        val classFilter = ClassFilter(logger, annotationValues, unwantedElements, reachableElements, abiElements)
+
+        if (classFilter.isSanitising) {
+            current.entries.forEach { entry -> entry.setValue(classFilter.sanitise(ClassReader(entry.value))) }
+        }
+
+        var passes = 1
+        while (true) {
+            logger.debug("Pass {}", passes)
+            classFilter.isModified = false
+            for (entry in current.entries) {
+                if (entry.value.isNotEmpty()) {
+                    entry.setValue(classFilter.filter(ClassReader(entry.value)))
+                }
+            }
+
+            if (!classFilter.isModified) {
+                logger.info("No changes after latest pass - exiting.")
+                break
+            } else if (++passes > maxPasses) {
+                logger.warn("Exceeded maximum number of passes ({}) - aborting!", maxPasses)
+                break
+            }
+        }
+        return current
+    }
+
+    private fun analyseAbi(classes: Map<String, ByteArray>): AbiElements {
+        val analyser = AbiAnalyser(logger)
+        for ((name, bytecode) in classes) {
+            analyser.add(name + CLASS_SUFFIX, ByteBuffer.wrap(bytecode))
+        }
+        return analyser.analyse()
+    }
+
+    private fun writeClasses(classes: Map<String, ByteArray>) {
+        for ((name, bytecode) in classes) {
+            val target = outputDir.resolve(name + CLASS_SUFFIX)
+            if (bytecode.isEmpty()) {
+                Files.deleteIfExists(target)
+            } else {
+                Files.createDirectories(target.parent)
+                Files.write(target, bytecode)
+            }
+        }
+    }
+
+    /**
+     * The unwanted elements and class references from the previous build.
+     */
+    private class FilterState(
+        val unwantedClasses: Set<String> = emptySet(),
+        val unwantedMethods: Map<String, Set<MethodElement>> = emptyMap(),
+        val references: Map<String, Set<String>> = emptyMap()
+    ) {
+        companion object {
+            private const val VERSION = 1
+
+            fun read(stateFile: Path, logger: Logger): FilterState? {
+                if (!Files.isRegularFile(stateFile)) {
+                    return null
+                }
+                return try {
+                    DataInputStream(Files.newInputStream(stateFile).buffered()).use { input ->
+                        if (input.readInt() != VERSION) {
+                            return null
+                        }
+                        val unwantedClasses = input.readStrings()
+                        val unwantedMethods = (0 until input.readInt()).associate {
+                            input.readUTF() to (0 until input.readInt()).mapTo(LinkedHashSet<MethodElement>()) {
+                                MethodElement(input.readUTF(), input.readUTF())
+                            }
+                        }
+                        val references = (0 until input.readInt()).associate {
+                            input.readUTF() to input.readStrings()
+                        }
+                        FilterState(unwantedClasses, unwantedMethods, references)
+                    }
+                } catch (e: IOException) {
+                    logger.warn("Cannot read {}: {}", stateFile, e.message)
+                    null
+                }
+            }
+
+            private fun DataInputStream.readStrings(): Set<String> = (0 until readInt()).mapTo(LinkedHashSet()) { readUTF() }
+            private fun DataOutputStream.writeStrings(values: Collection<String>) {
+                writeInt(values.size)
+                values.forEach(::writeUTF)
+            }
+        }
+
+        fun write(stateFile: Path) {
+            Files.createDirectories(stateFile.parent)
+            DataOutputStream(Files.newOutputStream(stateFile).buffered()).use { output ->
+                output.writeInt(VERSION)
+                output.writeStrings(unwantedClasses)
+                output.writeInt(unwantedMethods.size)
+                for ((className, methods) in unwantedMethods) {
+                    output.writeUTF(className)
+                    output.writeInt(methods.size)
+                    for (method in methods) {
+                        output.writeUTF(method.name)
+                        output.writeUTF(method.descriptor)
+                    }
+                }
+                output.writeInt(references.size)
+                for ((className, names) in references) {
+                    output.writeUTF(className)
+                    output.writeStrings(names)
+                }
+            }
+        }
+
+        /**
+         * Everything that we know is unwanted, apart from
+         * those elements that we are about to filter again.
+         */
+        fun toUnwantedCache(excludeGroups: Set<String>): UnwantedCache {
+            val cache = UnwantedCache()
+            unwantedClasses.filterNot { it.groupName in excludeGroups }.forEach { cache.addClass(it) }
+            for ((className, methods) in unwantedMethods) {
+                if (className.groupName !in excludeGroups) {
+                    methods.forEach { method -> cache.addMethod(className, method) }
+                }
+            }
+            return cache
+        }
+
+        /**
+         * The groups of classes that refer to those classes whose unwanted
+         * elements have changed. The groups that an unwanted class refers
+         * to are also affected, e.g. its permitted subclasses.
+         */
+        fun affectedGroups(
+            unwantedElements: UnwantedCache,
+            currentReferences: Map<String, Set<String>>,
+            removedClasses: Collection<String>
+        ): Set<String> {
+            val candidates = unwantedClasses + unwantedElements.classes + unwantedMethods.keys + unwantedElements.classMethods.keys
+            val changedClasses = candidates.filterTo(HashSet()) { name ->
+                (name in unwantedClasses) != unwantedElements.containsClass(name)
+            }
+            val changedNames = candidates.filterTo(HashSet(changedClasses)) { name ->
+                (unwantedMethods[name] ?: emptySet<MethodElement>()) != (unwantedElements.classMethods[name] ?: emptySet<MethodElement>())
+            }
+            changedNames.addAll(removedClasses)
+
+            val groups = changedNames.mapTo(HashSet()) { it.groupName }
+            for (name in changedClasses) {
+                references[name]?.mapTo(groups) { it.groupName }
+                currentReferences[name]?.mapTo(groups) { it.groupName }
+            }
+            for ((name, names) in currentReferences) {
+                if (names.any(changedNames::contains)) {
+                    groups.add(name.groupName)
+                }
+            }
+            return groups
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package net.corda.gradle.jarfilter
+
+import org.gradle.api.logging.Logger
+import org.objectweb.asm.ClassReader
+import org.objectweb.asm.ClassReader.SKIP_DEBUG
+import org.objectweb.asm.ClassWriter
+import org.objectweb.asm.ClassWriter.COMPUTE_MAXS
+
+/**
+ * Applies the [SanitisingTransformer] and the [FilterTransformer] to
+ * individual classes, which all share the same [UnwantedCache]. This
+ * is the same for classes inside a jar and classes inside a directory.
+ * Reducing classes to their ABI also discards their debugging information.
+ */
+class ClassFilter(
+    private val logger: Logger,
+    annotationValues: FilterAnnotations.Values,
+    private val unwantedElements: UnwantedCache,
+    private val reachableElements: ReachableElements?,
+    private val abiElements: AbiElements? = null
+) {
+    private val initialUnwanted: UnwantedMap = mutableMapOf()
+    private val descriptorsForRemove = toDescriptors(annotationValues.forRemove)
+    private val descriptorsForDelete = toDescriptors(annotationValues.forDelete)
+    private val descriptorsForStub = toDescriptors(annotationValues.forStub)
+    private val descriptorsForSanitising = toDescriptors(annotationValues.forSanitise)
+    private val filterFlags = if (abiElements == null) FILTER_FLAGS else SKIP_DEBUG
+
+    val isSanitising: Boolean get() = descriptorsForSanitising.isNotEmpty()
+
+    /**
+     * Whether any class has been modified since this flag was last reset.
+     */
+    var isModified: Boolean = false
+
+    fun sanitise(input: ClassReader): ByteArray {
+        return ClassWriter(0).let { writer ->
+            val transformer = SanitisingTransformer(writer, logger, descriptorsForSanitising, initialUnwanted)
+            input.accept(transformer, FILTER_FLAGS)
+            isModified = isModified or transformer.isModified
+            writer.toByteArray()
+        }
+    }
+
+    /**
+     * Returns the filtered byte-code, or an empty array if the entire class is unwanted.
+     */
+    fun filter(input: ClassReader): ByteArray {
+        var reader = input
+        var writer = ClassWriter(COMPUTE_MAXS)
+        var transformer = FilterTransformer(
+            visitor = writer,
+            logger = logger,
+            importExtra = initialUnwanted::remove,
+            removeAnnotations = descriptorsForRemove,
+            deleteAnnotations = descriptorsForDelete,
+            stubAnnotations = descriptorsForStub,
+            unwantedElements = unwantedElements,
+            reachableElements = reachableElements,
+            abiElements = abiElements
+        )
+
+        /*
+         * First pass: This might not find anything to remove!
+         */
+        reader.accept(transformer, filterFlags)
+
+        if (transformer.isUnwantedClass || transformer.hasUnwantedElements) {
+            isModified = true
+
+            do {
+                /*
+                 * Rewrite the class without any of the unwanted elements.
+                 * If we're deleting the class then make sure we identify all of
+                 * its inner classes too, for the next filter pass to delete.
+                 */
+                reader = ClassReader(writer.toByteArray())
+                writer = ClassWriter(COMPUTE_MAXS)
+                transformer = transformer.recreate(writer)
+                reader.accept(transformer, filterFlags)
+            } while (!transformer.isUnwantedClass && transformer.hasUnwantedElements)
+        }
+
+        return if (transformer.isUnwantedClass) {
+            // The entire class is unwanted, so don't write it out.
+            logger.info("Deleting class {}", transformer.className)
+            byteArrayOf()
+        } else {
+            writer.toByteArray()
+        }
+    }
+}
@@ -1,8 +1,11 @@
 package net.corda.gradle.jarfilter
 
 import kotlinx.metadata.ClassName
+import kotlinx.metadata.Flag
 import kotlinx.metadata.KmClass
 import kotlinx.metadata.KmPackage
+import kotlinx.metadata.KmProperty
+import kotlinx.metadata.jvm.fieldSignature
 import org.gradle.api.InvalidUserDataException
 import org.gradle.api.logging.Logger
 import org.objectweb.asm.AnnotationVisitor
@@ -11,6 +14,8 @@ import org.objectweb.asm.FieldVisitor
 import org.objectweb.asm.Label
 import org.objectweb.asm.MethodVisitor
 import org.objectweb.asm.Opcodes.ACC_ABSTRACT
+import org.objectweb.asm.Opcodes.ACC_NATIVE
+import org.objectweb.asm.Opcodes.ACC_PRIVATE
 import org.objectweb.asm.Opcodes.ACONST_NULL
 import org.objectweb.asm.Opcodes.ATHROW
 import org.objectweb.asm.Opcodes.BIPUSH
@@ -39,6 +44,10 @@ import org.objectweb.asm.Type
  *
  * This Visitor is applied to the byte-code repeatedly until it has removed
  * everything that is no longer wanted.
+ *
+ * Given [AbiElements], this Visitor also reduces the class to its ABI. It
+ * stubs out every method except Kotlin inline functions, and deletes all
+ * private members and any private, local or anonymous inner classes.
  */
 class FilterTransformer private constructor (
     visitor: ClassVisitor,
@@ -49,7 +58,10 @@ class FilterTransformer private constructor (
     private val deleteAnnotations: Set<String>,
     private val stubAnnotations: Set<String>,
     private val unwantedElements: UnwantedCache,
+    private val reachableElements: ReachableElements?,
+    private val abiElements: AbiElements?,
     private val unwantedFields: MutableSet<FieldElement>,
+    private val abiFields: MutableSet<FieldElement>,
     private val deletedMethods: MutableSet<MethodElement>,
     private val stubbedMethods: MutableSet<MethodElement>
 ) : KotlinAfterProcessor(ASM_API, visitor, logger, kotlinMetadata), Repeatable<FilterTransformer> {
@@ -60,7 +72,9 @@ class FilterTransformer private constructor (
         removeAnnotations: Set<String>,
         deleteAnnotations: Set<String>,
         stubAnnotations: Set<String>,
-        unwantedElements: UnwantedCache
+        unwantedElements: UnwantedCache,
+        reachableElements: ReachableElements? = null,
+        abiElements: AbiElements? = null
     ) : this(
         visitor = visitor,
         logger = logger,
@@ -70,13 +84,17 @@ class FilterTransformer private constructor (
         deleteAnnotations = deleteAnnotations,
         stubAnnotations = stubAnnotations,
         unwantedElements = unwantedElements,
+        reachableElements = reachableElements,
+        abiElements = abiElements,
         unwantedFields = mutableSetOf(),
+        abiFields = mutableSetOf(),
         deletedMethods = mutableSetOf(),
         stubbedMethods = mutableSetOf()
     )
 
     var className: String = "(unknown)"
         private set
+    private var enclosingMethod: Pair<String, MethodElement>? = null
 
     val isUnwantedClass: Boolean get() = isUnwantedClass(className)
     override val hasUnwantedElements: Boolean
@@ -92,6 +110,33 @@ class FilterTransformer private constructor (
         val type = Type.getMethodType(descriptor)
         return listOf(type.returnType, *type.argumentTypes).any(::isUnwantedClass)
     }
+    private fun isUnreachable(field: FieldElement): Boolean {
+        return reachableElements != null && !isUnwantedClass && !reachableElements.isReachable(className, field)
+    }
+    private fun isUnreachable(method: MethodElement): Boolean {
+        return reachableElements != null && !isUnwantedClass && !reachableElements.isReachable(className, method)
+    }
+    private fun isOutsideAbi(access: Int): Boolean {
+        return abiElements != null && !isUnwantedClass && (access and ACC_PRIVATE) != 0
+    }
+    private fun isOutsideAbi(outerName: String?, innerName: String?, access: Int): Boolean {
+        return when {
+            abiElements == null -> false
+            (access and ACC_PRIVATE) != 0 -> true
+            outerName != null && innerName != null -> false
+
+            /*
+             * Local and anonymous classes are only part of the
+             * ABI when they belong to a Kotlin inline function.
+             */
+            else -> enclosingMethod?.let { (owner, method) -> !abiElements.isInline(owner, method) } ?: true
+        }
+    }
+    private fun isStubbedForAbi(method: MethodElement): Boolean {
+        return abiElements != null && !isUnwantedClass
+            && (method.access and (ACC_ABSTRACT or ACC_NATIVE)) == 0
+            && !abiElements.isInline(className, method)
+    }
     private fun hasDeletedAnnotationsMethod(clsName: String): Boolean = deletedMethods.any { method ->
         clsName.startsWith("$className\$${method.visibleName}\$") && method.isKotlinSynthetic("annotations")
     }
@@ -105,7 +150,10 @@ class FilterTransformer private constructor (
         deleteAnnotations = deleteAnnotations,
         stubAnnotations = stubAnnotations,
         unwantedElements = unwantedElements,
+        reachableElements = reachableElements,
+        abiElements = abiElements,
         unwantedFields = unwantedFields,
+        abiFields = abiFields,
         deletedMethods = deletedMethods,
         stubbedMethods = stubbedMethods
     )
@@ -113,6 +161,9 @@ class FilterTransformer private constructor (
     override fun visit(version: Int, access: Int, clsName: String, signature: String?, superName: String?, interfaces: Array<String>?) {
         className = clsName
         logger.info("Class {}", clsName)
+        if (reachableElements != null && !reachableElements.isReachable(clsName) && unwantedElements.addClass(clsName)) {
+            logger.info("- Identified class {} as unreachable", clsName)
+        }
         super.visit(version, access, clsName, signature, superName, interfaces)
     }
 
@@ -131,7 +182,7 @@ class FilterTransformer private constructor (
     override fun visitRecordComponent(name: String, descriptor: String, signature: String?): RecordComponentVisitor? {
         val component = FieldElement(name, descriptor)
         logger.debug("--- record component ---> {},{}", name, descriptor)
-        if (unwantedFields.contains(component) || isUnwantedClassType(descriptor)) {
+        if ((unwantedFields.contains(component) && !abiFields.contains(component)) || isUnwantedClassType(descriptor)) {
             if (unwantedElements.addClass(className)) {
                 logger.info("- Identified record {} as unwanted by component {},{}", className, name, descriptor)
             }
@@ -149,6 +200,11 @@ class FilterTransformer private constructor (
             return null
         } else if (isUnwantedClassType(descriptor) && unwantedFields.add(field)) {
             logger.info("- Identified field {},{} as unwanted", field.name, field.descriptor)
+        } else if (isUnreachable(field) && unwantedFields.add(field)) {
+            logger.info("- Identified field {},{} as unreachable", field.name, field.descriptor)
+        } else if (isOutsideAbi(access) && unwantedFields.add(field)) {
+            logger.info("- Identified field {},{} as outside the ABI", field.name, field.descriptor)
+            abiFields.add(field)
         }
         val fv = super.visitField(access, fieldName, descriptor, signature, value) ?: return null
         return if (isUnwantedClass) fv else UnwantedFieldAdapter(fv, field)
@@ -164,6 +220,10 @@ class FilterTransformer private constructor (
             return null
         } else if (isUnwantedMethodType(descriptor) && deletedMethods.add(method)) {
             logger.info("- Identified method {}{} for deletion", method.name, method.descriptor)
+        } else if (isUnreachable(method) && deletedMethods.add(method)) {
+            logger.info("- Identified method {}{} as unreachable", method.name, method.descriptor)
+        } else if (isOutsideAbi(access) && !method.isObjectConstructor && deletedMethods.add(method)) {
+            logger.info("- Identified method {}{} as outside the ABI", method.name, method.descriptor)
         }
 
         /**
@@ -175,6 +235,14 @@ class FilterTransformer private constructor (
             logger.info("- Stubbed out method {}{}", method.name, method.descriptor)
             stubbedMethods.expire(method)
             return if (method.isVoidFunction) VoidStubMethodAdapter(mv) else ThrowingStubMethodAdapter(mv)
+        } else if (isStubbedForAbi(method)) {
+            /*
+             * The ABI does not need the original byte-code, and so
+             * there is no point examining it for unwanted references.
+             */
+            logger.debug("- Stubbed out method {}{} for the ABI", method.name, method.descriptor)
+            val stub = if (method.isVoidFunction || method.isClassConstructor) VoidStubMethodAdapter(mv) else ThrowingStubMethodAdapter(mv)
+            return UnwantedMethodAdapter(stub, method, inspectCode = false)
         }
 
         return if (isUnwantedClass) mv else UnwantedMethodAdapter(mv, method)
@@ -182,6 +250,9 @@ class FilterTransformer private constructor (
 
     override fun visitInnerClass(clsName: String, outerName: String?, innerName: String?, access: Int) {
         logger.debug("--- inner class {} [outer: {}, inner: {}]", clsName, outerName, innerName)
+        if (clsName == className && isOutsideAbi(outerName, innerName, access) && unwantedElements.addClass(className)) {
+            logger.info("- Identified class {} as outside the ABI", className)
+        }
         if (isUnwantedClass || hasDeletedAnnotationsMethod(clsName)) {
             if (unwantedElements.addClass(clsName)) {
                 logger.info("- Deleted inner class {}", clsName)
@@ -195,6 +266,9 @@ class FilterTransformer private constructor (
 
     override fun visitOuterClass(outerName: String, methodName: String?, methodDescriptor: String?) {
         logger.debug("--- outer class {} [enclosing method {},{}]", outerName, methodName, methodDescriptor)
+        if (methodName != null && methodDescriptor != null) {
+            enclosingMethod = outerName to MethodElement(methodName, methodDescriptor)
+        }
         if (unwantedElements.containsMethod(outerName, methodName, methodDescriptor)) {
             if (unwantedElements.addClass(className)) {
                 logger.info("- Identified class {} as unwanted by its outer class", className)
@@ -277,7 +351,7 @@ class FilterTransformer private constructor (
         val prefix = "$className\$"
         return ClassMetadataTransformer(
                 logger = logger,
-                deletedFields = unwantedFields,
+                deletedFields = deletedFieldsFor(kmClass.properties),
                 deletedFunctions = partitioned[false] ?: emptyList(),
                 deletedConstructors = partitioned[true] ?: emptyList(),
                 deletedNestedClasses = unwantedElements.classes.filter { it.startsWith(prefix) }.map { it.drop(prefix.length) },
@@ -295,7 +369,7 @@ class FilterTransformer private constructor (
     override fun processPackageMetadata(kmPackage: KmPackage): KmPackage? {
         return PackageMetadataTransformer(
                 logger = logger,
-                deletedFields = unwantedFields,
+                deletedFields = deletedFieldsFor(kmPackage.properties),
                 deletedFunctions = deletedMethods,
                 handleExtraMethod = ::delete,
                 handleExtraField = ::delete,
@@ -304,6 +378,20 @@ class FilterTransformer private constructor (
             .transform()
     }
 
+    /**
+     * A private field can still be the backing field for a Kotlin property
+     * that belongs to the ABI, and which we must therefore not delete.
+     */
+    private fun deletedFieldsFor(properties: List<KmProperty>): Collection<FieldElement> {
+        if (abiFields.isEmpty()) {
+            return unwantedFields
+        }
+        val abiPropertyFields = properties.filterNot { Flag.IS_PRIVATE(it.flags) }.mapNotNullTo(HashSet()) {
+            it.fieldSignature?.toFieldElement()
+        }
+        return unwantedFields.filterNot { it in abiFields && it in abiPropertyFields }
+    }
+
     /**
      * Callback function to mark extra methods for deletion.
      * This will override a request for stubbing.
@@ -391,6 +479,7 @@ class FilterTransformer private constructor (
                 if (unwantedFields.add(field)) {
                     logger.info("- Identified field {},{} as unwanted", field.name, field.descriptor)
                 }
+                abiFields.remove(field)
             }
             return super.visitAnnotation(descriptor, visible)
         }
@@ -399,7 +488,11 @@ class FilterTransformer private constructor (
     /**
      * Analyses the method to decide whether it should be deleted.
      */
-    private inner class UnwantedMethodAdapter(mv: MethodVisitor, private val method: MethodElement) : MethodVisitor(api, mv) {
+    private inner class UnwantedMethodAdapter(
+        mv: MethodVisitor,
+        private val method: MethodElement,
+        private val inspectCode: Boolean = true
+    ) : MethodVisitor(api, mv) {
         override fun visitAnnotation(descriptor: String, visible: Boolean): AnnotationVisitor? {
             if (removeAnnotations.contains(descriptor)) {
                 logger.info("- Removing annotation {} from method {}{}", descriptor, method.name, method.descriptor)
@@ -423,7 +516,7 @@ class FilterTransformer private constructor (
         }
 
         override fun visitMethodInsn(opcode: Int, ownerName: String, methodName: String, descriptor: String, isInterface: Boolean) {
-            if ((isUnwantedClass(ownerName) || (ownerName == className && deletedMethods.contains(MethodElement(methodName, descriptor))))
+            if (inspectCode && (isUnwantedClass(ownerName) || (ownerName == className && deletedMethods.contains(MethodElement(methodName, descriptor))))
                     && !stubbedMethods.contains(method)) {
                 if (deletedMethods.add(method)) {
                     logger.info("- Unwanted invocation of method {},{}{} from method {}{}", ownerName, methodName, descriptor, method.name, method.descriptor)
@@ -433,7 +526,7 @@ class FilterTransformer private constructor (
          }
 
         override fun visitFieldInsn(opcode: Int, ownerName: String, fieldName: String, descriptor: String) {
-            if ((isUnwantedClass(ownerName) || (ownerName == className && unwantedFields.contains(FieldElement(fieldName, descriptor))))
+            if (inspectCode && (isUnwantedClass(ownerName) || (ownerName == className && unwantedFields.contains(FieldElement(fieldName, descriptor))))
                     && !stubbedMethods.contains(method)) {
                 if (method.isConstructor) {
                     when (opcode) {
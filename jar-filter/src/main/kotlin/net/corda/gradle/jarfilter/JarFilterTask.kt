@@ -8,34 +8,47 @@ import org.gradle.api.file.Directory
 import org.gradle.api.file.DirectoryProperty
 import org.gradle.api.file.FileCollection
 import org.gradle.api.file.FileSystemLocation
+import org.gradle.api.file.FileType.DIRECTORY
 import org.gradle.api.file.ProjectLayout
 import org.gradle.api.file.RegularFile
 import org.gradle.api.model.ObjectFactory
 import org.gradle.api.provider.Property
+import org.gradle.api.provider.Provider
 import org.gradle.api.tasks.Console
 import org.gradle.api.tasks.Input
 import org.gradle.api.tasks.InputFiles
 import org.gradle.api.tasks.Internal
+import org.gradle.api.tasks.LocalState
 import org.gradle.api.tasks.Nested
+import org.gradle.api.tasks.Optional
+import org.gradle.api.tasks.OutputDirectory
 import org.gradle.api.tasks.OutputFiles
 import org.gradle.api.tasks.PathSensitive
 import org.gradle.api.tasks.PathSensitivity.RELATIVE
 import org.gradle.api.tasks.SkipWhenEmpty
 import org.gradle.api.tasks.TaskAction
+import org.gradle.work.ChangeType.REMOVED
+import org.gradle.work.Incremental
+import org.gradle.work.InputChanges
 import org.objectweb.asm.ClassReader
-import org.objectweb.asm.ClassWriter
-import org.objectweb.asm.ClassWriter.COMPUTE_MAXS
 import java.io.Closeable
 import java.io.File
 import java.io.IOException
+import java.nio.ByteBuffer
 import java.nio.file.Files
 import java.nio.file.Path
 import java.nio.file.StandardCopyOption.REPLACE_EXISTING
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executor
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.atomic.AtomicInteger
 import java.util.zip.Deflater.BEST_COMPRESSION
-import java.util.zip.ZipFile
-import java.util.zip.ZipOutputStream
 import javax.inject.Inject
 import kotlin.math.max
+import kotlin.math.min
 
 @Suppress("Unused", "UnstableApiUsage")
 open class JarFilterTask @Inject constructor(objects: ObjectFactory, layouts: ProjectLayout) : DefaultTask() {
@@ -52,6 +65,7 @@ open class JarFilterTask @Inject constructor(objects: ObjectFactory, layouts: Pr
     val jars: FileCollection
         @PathSensitive(RELATIVE)
         @SkipWhenEmpty
+        @Incremental
         @InputFiles
         get() = _jars
 
@@ -63,6 +77,22 @@ open class JarFilterTask @Inject constructor(objects: ObjectFactory, layouts: Pr
 
     fun jars(inputs: Any?) = setJars(inputs)
 
+    private val _classes: ConfigurableFileCollection = objects.fileCollection()
+    val classes: FileCollection
+        @PathSensitive(RELATIVE)
+        @SkipWhenEmpty
+        @Incremental
+        @InputFiles
+        get() = _classes
+
+    @Suppress("MemberVisibilityCanBePrivate")
+    fun setClasses(inputs: Any?) {
+        val files = inputs ?: return
+        _classes.setFrom(files)
+    }
+
+    fun classes(inputs: Any?) = setClasses(inputs)
+
     @get:Nested
     val annotations: FilterAnnotations = objects.newInstance(FilterAnnotations::class.java)
 
@@ -70,6 +100,13 @@ open class JarFilterTask @Inject constructor(objects: ObjectFactory, layouts: Pr
         action.execute(annotations)
     }
 
+    @get:Nested
+    val keep: KeepRules = objects.newInstance(KeepRules::class.java)
+
+    fun keep(action: Action<in KeepRules>) {
+        action.execute(keep)
+    }
+
     @get:Console
     val verbose: Property<Boolean> = objects.property(Boolean::class.javaObjectType).convention(false)
 
@@ -79,6 +116,22 @@ open class JarFilterTask @Inject constructor(objects: ObjectFactory, layouts: Pr
     @get:Input
     val preserveTimestamps: Property<Boolean> = objects.property(Boolean::class.javaObjectType).convention(true)
 
+    /**
+     * Reduces every class to its ABI, for use on compile classpaths.
+     */
+    @get:Input
+    val abiOnly: Property<Boolean> = objects.property(Boolean::class.javaObjectType).convention(false)
+
+    /**
+     * Filters all of the [jars] together as a single program, so that
+     * deleting an element from one jar also deletes its uses from the others.
+     */
+    @get:Input
+    val wholeProgram: Property<Boolean> = objects.property(Boolean::class.javaObjectType).convention(false)
+
+    @get:Input
+    val compressionLevel: Property<Int> = objects.property(Int::class.javaObjectType).convention(BEST_COMPRESSION)
+
     @get:Internal
     val outputDir: DirectoryProperty = objects.directoryProperty().convention(layouts.buildDirectory.dir("filtered-libs"))
 
@@ -99,6 +152,32 @@ open class JarFilterTask @Inject constructor(objects: ObjectFactory, layouts: Pr
         @OutputFiles
         get() = _filtered
 
+    @get:Internal
+    val classesOutputDir: DirectoryProperty = objects.directoryProperty().convention(layouts.buildDirectory.dir("filtered-classes"))
+
+    fun classesOutputDir(dir: File) {
+        classesOutputDir.set(dir)
+    }
+
+    /**
+     * Only exists when this task is filtering [classes].
+     */
+    @get:Optional
+    @get:OutputDirectory
+    val filteredClasses: Provider<Directory> = _classes.elements.flatMap { dirs ->
+        if (dirs.isEmpty()) {
+            objects.directoryProperty()
+        } else {
+            classesOutputDir
+        }
+    }
+
+    /**
+     * What we discovered while filtering [classes] last time.
+     */
+    @get:LocalState
+    val classesState: Provider<RegularFile> = layouts.buildDirectory.file("tmp/$name/filtered-classes.bin")
+
     private fun toFiltered(dir: Directory, source: File): RegularFile {
         return dir.file(source.name.replace(JAR_PATTERN, "-filtered\$1"))
     }
@@ -106,7 +185,7 @@ open class JarFilterTask @Inject constructor(objects: ObjectFactory, layouts: Pr
     private fun toFiltered(dir: Directory, source: FileSystemLocation): RegularFile = toFiltered(dir, source.asFile)
 
     @TaskAction
-    fun filterJars() {
+    fun filterJars(inputChanges: InputChanges) {
         logger.info("JarFiltering:")
         val annotationValues = annotations.values.get()
         with(annotationValues.forDelete) {
@@ -129,15 +208,187 @@ open class JarFilterTask @Inject constructor(objects: ObjectFactory, layouts: Pr
                 logger.info("- Annotations '{}' will be removed from primary constructors", joinToString())
             }
         }
+        val keepValues = keep.values.get()
+        if (!keepValues.isEmpty) {
+            logger.info("- Elements unreachable from classes '{}', packages '{}' or annotations '{}' will be deleted",
+                keepValues.classes.joinToString(), keepValues.packages.joinToString(), keepValues.annotations.joinToString())
+        }
+        if (abiOnly.get()) {
+            logger.info("- Classes will be reduced to their ABI")
+        }
+        if (wholeProgram.get()) {
+            logger.info("- Jars will be filtered together as a single program")
+        }
         checkDistinctAnnotations(annotationValues)
+        val level = compressionLevel.get()
+        if (!ParallelZipWriter.isValidCompressionLevel(level)) {
+            failWith("Invalid compression level $level")
+        }
+        val executor = ParallelZipWriter.createExecutor()
         try {
-            for (jar in jars) {
-                logger.info("Filtering {}", jar)
-                Filter(jar, annotationValues).run()
+            val changed = changedJars(inputChanges)
+            if (wholeProgram.get()) {
+                if (changed.isNotEmpty()) {
+                    filterProgram(changed, annotationValues, keepValues, executor, level)
+                }
+            } else {
+                for (jar in changed) {
+                    logger.info("Filtering {}", jar)
+                    Filter(jar, annotationValues, keepValues, executor, level).run()
+                }
+            }
+            if (!_classes.isEmpty) {
+                filterClasses(inputChanges, annotationValues, keepValues)
             }
         } catch (e: Exception) {
             throw e.asUncheckedException()
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+
+    /**
+     * Each jar is filtered independently of every other jar, and so
+     * we only need to filter those jars that have changed. We can
+     * also delete the filtered versions of any jars we've lost.
+     * A whole program must be filtered again after any change.
+     */
+    private fun changedJars(inputChanges: InputChanges): Collection<File> {
+        if (!inputChanges.isIncremental) {
+            return jars.files
         }
+        val dir = outputDir.get()
+        var isChanged = false
+        val changed = inputChanges.getFileChanges(jars).mapNotNull { change ->
+            isChanged = true
+            if (change.changeType == REMOVED) {
+                Files.deleteIfExists(toFiltered(dir, change.file).asFile.toPath())
+                null
+            } else {
+                change.file
+            }
+        }
+        return if (isChanged && wholeProgram.get()) jars.files else changed
+    }
+
+    /**
+     * Filters every jar in rounds, where each round filters its jars in
+     * parallel from their original sources, and each jar starts from a
+     * copy of everything that the previous rounds have found unwanted.
+     * Only those jars which refer to a class that another jar updated
+     * during the last round need filtering again, and we have reached
+     * the global fixpoint once a round updates nothing.
+     */
+    private fun filterProgram(
+        jars: Collection<File>,
+        annotationValues: FilterAnnotations.Values,
+        keepValues: KeepRules.Values,
+        executor: Executor,
+        level: Int
+    ) {
+        val reachableElements = if (keepValues.isEmpty) null else analyseReachability(jars, keepValues)
+        val unwantedElements = UnwantedCache()
+        val references = jars.associateWith { jar -> referencedClasses(jar.toPath()) }
+        val pool = createJarExecutor(jars.size)
+        try {
+            var pending = jars
+            var round = 1
+            while (pending.isNotEmpty()) {
+                logger.info("Round {}: filtering {} jars", round, pending.size)
+                val results = pending.associateWith { jar ->
+                    val filter = Filter(jar, annotationValues, keepValues, executor, level, unwantedElements.copy(), reachableElements)
+                    pool.submit(Callable { filter.run() })
+                }.mapValues { result -> await(result.value) }
+
+                val updates = results.mapValues { result -> unwantedElements.addAll(result.value) }
+                pending = jars.filter { jar ->
+                    val referenced = references.getValue(jar)
+                    updates.any { update -> update.key != jar && update.value.any(referenced::contains) }
+                }
+                ++round
+            }
+        } finally {
+            pool.shutdownNow()
+        }
+    }
+
+    /**
+     * Reachability is computed once from the original jars, and
+     * then applied by every subsequent filter pass.
+     */
+    private fun analyseReachability(jars: Collection<File>, keepValues: KeepRules.Values): ReachableElements {
+        val analyser = ReachabilityAnalyser(logger, keepValues)
+        ZipBuffers().use { zipBuffers ->
+            for (jar in jars) {
+                verbose("Analysing reachability of {}", jar)
+                scan(jar.toPath(), zipBuffers, analyser::add)
+            }
+        }
+        return analyser.analyse()
+    }
+
+    private fun referencedClasses(jar: Path): Set<String> {
+        val names = HashSet<String>()
+        ZipBuffers().use { zipBuffers ->
+            scan(jar, zipBuffers) { entryName, data ->
+                if (entryName.endsWith(".class")) {
+                    names.addAll(data.referencedClassNames())
+                }
+            }
+        }
+        return names
+    }
+
+    private fun scan(input: Path, zipBuffers: ZipBuffers, action: (String, ByteBuffer) -> Unit) {
+        MappedZipFile(input, zipBuffers).use { inJar ->
+            for (entry in inJar.entries) {
+                if (!entry.isDirectory) {
+                    action(entry.name, inJar.read(entry))
+                }
+            }
+        }
+    }
+
+    /**
+     * Jars need their own threads, because each one
+     * waits for the [ParallelZipWriter] threads.
+     */
+    private fun createJarExecutor(jarCount: Int): ExecutorService {
+        val threadCount = AtomicInteger()
+        return Executors.newFixedThreadPool(min(jarCount, Runtime.getRuntime().availableProcessors())) { task ->
+            Thread(task, "jar-filter-${threadCount.incrementAndGet()}").apply { isDaemon = true }
+        }
+    }
+
+    private fun <T> await(future: Future<T>): T {
+        return try {
+            future.get()
+        } catch (e: ExecutionException) {
+            throw e.cause ?: e
+        }
+    }
+
+    private fun filterClasses(inputChanges: InputChanges, annotationValues: FilterAnnotations.Values, keepValues: KeepRules.Values) {
+        val sources = LinkedHashMap<String, Path>()
+        _classes.asFileTree.visit { file ->
+            if (!file.isDirectory) {
+                sources[file.relativePath.pathString] = file.file.toPath()
+            }
+        }
+        val changes: Set<String>? = if (inputChanges.isIncremental) {
+            inputChanges.getFileChanges(classes).filter { it.fileType != DIRECTORY }.mapTo(LinkedHashSet<String>()) { it.normalizedPath }
+        } else {
+            null
+        }
+        ClassDirectoryFilter(
+            logger = logger,
+            annotationValues = annotationValues,
+            keepValues = keepValues,
+            abiOnly = abiOnly.get(),
+            maxPasses = maxPasses.get(),
+            outputDir = classesOutputDir.get().asFile.toPath(),
+            stateFile = classesState.get().asFile.toPath()
+        ).run(sources, changes)
     }
 
     private fun checkDistinctAnnotations(annotationValues: FilterAnnotations.Values) = with(annotationValues) {
@@ -166,27 +417,37 @@ open class JarFilterTask @Inject constructor(objects: ObjectFactory, layouts: Pr
         }
     }
 
-    private inner class Filter(inFile: File, private val annotationValues: FilterAnnotations.Values) {
-        private val unwantedElements = UnwantedCache()
-        private val initialUnwanted: UnwantedMap = mutableMapOf()
+    private inner class Filter(
+        inFile: File,
+        private val annotationValues: FilterAnnotations.Values,
+        private val keepValues: KeepRules.Values,
+        private val executor: Executor,
+        private val compressionLevel: Int,
+        private val unwantedElements: UnwantedCache = UnwantedCache(),
+        private val reachableElements: ReachableElements? = null
+    ) {
+        private val zipBuffers = ZipBuffers()
         private val source: Path = inFile.toPath()
         private val target: Path = outputDir.map { dir -> toFiltered(dir, inFile) }.get().asFile.toPath()
-
-        private val descriptorsForRemove = toDescriptors(annotationValues.forRemove)
-        private val descriptorsForDelete = toDescriptors(annotationValues.forDelete)
-        private val descriptorsForStub = toDescriptors(annotationValues.forStub)
-        private val descriptorsForSanitising = toDescriptors(annotationValues.forSanitise)
+        private lateinit var classFilter: ClassFilter
 
         init {
             Files.deleteIfExists(target)
         }
 
-        fun run() {
+        /**
+         * @return everything that this jar's filter found unwanted.
+         */
+        fun run(): UnwantedCache {
             logger.info("Filtering to: {}", target)
             var input = source
 
             try {
-                if (descriptorsForSanitising.isNotEmpty() && SanitisingPass(input).use(Pass::run)) {
+                val reachableElements = reachableElements ?: if (keepValues.isEmpty) null else analyseReachability(input)
+                val abiElements = if (abiOnly.get()) analyseAbi(input) else null
+                classFilter = ClassFilter(logger, annotationValues, unwantedElements, reachableElements, abiElements)
+
+                if (classFilter.isSanitising && SanitisingPass(input).use(Pass::run)) {
                     input = target.moveToInput()
                 }
 
@@ -206,13 +467,39 @@ open class JarFilterTask @Inject constructor(objects: ObjectFactory, layouts: Pr
 
                     input = target.moveToInput()
                 }
+                return unwantedElements
             } catch (e: Exception) {
                 val filterAnnotations = arrayListOf(annotationValues.forRemove) + annotationValues.forDelete + annotationValues.forStub
                 logger.error("Error filtering '{}' elements from {}", filterAnnotations, input)
                 throw e
+            } finally {
+                zipBuffers.close()
             }
         }
 
+        /**
+         * Reachability is computed once from the original jar, and
+         * then applied by every subsequent filter pass.
+         */
+        private fun analyseReachability(input: Path): ReachableElements {
+            verbose("Analysing reachability of {}", input)
+            val analyser = ReachabilityAnalyser(logger, keepValues)
+            scan(input, analyser::add)
+            return analyser.analyse()
+        }
+
+        /**
+         * The ABI includes the byte-code for every Kotlin inline function.
+         */
+        private fun analyseAbi(input: Path): AbiElements {
+            verbose("Analysing ABI of {}", input)
+            val analyser = AbiAnalyser(logger)
+            scan(input, analyser::add)
+            return analyser.analyse()
+        }
+
+        private fun scan(input: Path, action: (String, ByteBuffer) -> Unit) = scan(input, zipBuffers, action)
+
         private fun Path.moveToInput(): Path {
             return Files.move(this, Files.createTempFile(parent, "filter-", ".tmp"), REPLACE_EXISTING).also {
                 verbose("New input JAR: {}", it)
@@ -221,12 +508,12 @@ open class JarFilterTask @Inject constructor(objects: ObjectFactory, layouts: Pr
 
         private abstract inner class Pass(input: Path): Closeable {
             /**
-             * Use [ZipFile] instead of [JarInputStream][java.util.jar.JarInputStream] because
-             * JarInputStream consumes MANIFEST.MF when it's the first or second entry.
+             * Use [MappedZipFile] instead of [JarInputStream][java.util.jar.JarInputStream] because
+             * JarInputStream consumes MANIFEST.MF when it's the first or second entry. Every pass
+             * shares the same [ZipBuffers] for inflating the contents of compressed entries.
              */
-            @JvmField protected val inJar = ZipFile(input.toFile())
-            @JvmField protected val outJar = ZipOutputStream(Files.newOutputStream(target).buffered())
-            @JvmField protected var isModified = false
+            @JvmField protected val inJar = MappedZipFile(input, zipBuffers)
+            @JvmField protected val outJar = ParallelZipWriter(target, executor, compressionLevel)
 
             @Throws(IOException::class)
             override fun close() {
@@ -235,89 +522,37 @@ open class JarFilterTask @Inject constructor(objects: ObjectFactory, layouts: Pr
                 }
             }
 
-            abstract fun transform(inBytes: ByteArray): ByteArray
+            abstract fun transform(input: ClassReader): ByteArray
 
             fun run(): Boolean {
-                outJar.setLevel(BEST_COMPRESSION)
-                outJar.setComment(inJar.comment)
-
-                for (entry in inJar.entries()) {
-                    inJar.getInputStream(entry).use { entryData ->
-                        if (entry.isDirectory || !entry.name.endsWith(".class")) {
-                            // This entry's byte contents have not changed,
-                            // but may still need to be recompressed.
-                            outJar.putNextEntry(entry.copy().withFileTimestamps(preserveTimestamps.get()))
-                            entryData.copyTo(outJar)
-                        } else {
-                            val classData = transform(entryData.readBytes())
-                            if (classData.isNotEmpty()) {
-                                // This entry's byte contents have almost certainly
-                                // changed, and will be stored compressed.
-                                outJar.putNextEntry(entry.asCompressed().withFileTimestamps(preserveTimestamps.get()))
-                                outJar.write(classData)
-                            }
-                            return@use
+                classFilter.isModified = false
+                outJar.comment = inJar.comment
+
+                for (entry in inJar.entries) {
+                    val entryData = inJar.read(entry)
+                    if (entry.isDirectory || !entry.name.endsWith(".class")) {
+                        // This entry's byte contents have not changed,
+                        // but may still need to be recompressed.
+                        outJar.putEntry(entry.toZipEntry().copy().withFileTimestamps(preserveTimestamps.get()), entryData)
+                    } else {
+                        val classData = transform(entryData.toClassReader())
+                        if (classData.isNotEmpty()) {
+                            // This entry's byte contents have almost certainly
+                            // changed, and will be stored compressed.
+                            outJar.putEntry(entry.toZipEntry().asCompressed().withFileTimestamps(preserveTimestamps.get()), classData)
                         }
                     }
                 }
-                return isModified
+                return classFilter.isModified
             }
         }
 
         private inner class SanitisingPass(input: Path) : Pass(input) {
-            override fun transform(inBytes: ByteArray): ByteArray {
-                return ClassWriter(0).let { writer ->
-                    val transformer = SanitisingTransformer(writer, logger, descriptorsForSanitising, initialUnwanted)
-                    ClassReader(inBytes).accept(transformer, FILTER_FLAGS)
-                    isModified = isModified or transformer.isModified
-                    writer.toByteArray()
-                }
-            }
+            override fun transform(input: ClassReader): ByteArray = classFilter.sanitise(input)
         }
 
         private inner class FilterPass(input: Path) : Pass(input) {
-            override fun transform(inBytes: ByteArray): ByteArray {
-                var reader = ClassReader(inBytes)
-                var writer = ClassWriter(COMPUTE_MAXS)
-                var transformer = FilterTransformer(
-                    visitor = writer,
-                    logger = logger,
-                    importExtra = initialUnwanted::remove,
-                    removeAnnotations = descriptorsForRemove,
-                    deleteAnnotations = descriptorsForDelete,
-                    stubAnnotations = descriptorsForStub,
-                    unwantedElements = unwantedElements
-                )
-
-                /*
-                 * First pass: This might not find anything to remove!
-                 */
-                reader.accept(transformer, FILTER_FLAGS)
-
-                if (transformer.isUnwantedClass || transformer.hasUnwantedElements) {
-                    isModified = true
-
-                    do {
-                        /*
-                         * Rewrite the class without any of the unwanted elements.
-                         * If we're deleting the class then make sure we identify all of
-                         * its inner classes too, for the next filter pass to delete.
-                         */
-                        reader = ClassReader(writer.toByteArray())
-                        writer = ClassWriter(COMPUTE_MAXS)
-                        transformer = transformer.recreate(writer)
-                        reader.accept(transformer, FILTER_FLAGS)
-                    } while (!transformer.isUnwantedClass && transformer.hasUnwantedElements)
-                }
-
-                return if (transformer.isUnwantedClass) {
-                    // The entire class is unwanted, so don't write it out.
-                    logger.info("Deleting class {}", transformer.className)
-                    byteArrayOf()
-                } else {
-                    writer.toByteArray()
-                }
-            }
+            override fun transform(input: ClassReader): ByteArray = classFilter.filter(input)
         }
     }
 }
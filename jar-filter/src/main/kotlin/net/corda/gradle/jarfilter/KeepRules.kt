@@ -0,0 +1,51 @@
+package net.corda.gradle.jarfilter
+
+import org.gradle.api.model.ObjectFactory
+import org.gradle.api.provider.Provider
+import org.gradle.api.provider.SetProperty
+import org.gradle.api.tasks.Input
+import org.gradle.api.tasks.Internal
+import javax.inject.Inject
+
+/**
+ * The entry points for JarFilter's reachability-based shrinking.
+ * When any of these are set, JarFilter deletes every class, method
+ * and field that cannot be reached from them.
+ */
+@Suppress("UnstableApiUsage")
+open class KeepRules @Inject constructor(objects: ObjectFactory) {
+    /**
+     * Fully-qualified names of classes to keep, along with all of their members.
+     */
+    @get:Input
+    val classes: SetProperty<String> = objects.setProperty(String::class.java)
+
+    /**
+     * Names of packages whose classes are kept, including all sub-packages.
+     */
+    @get:Input
+    val packages: SetProperty<String> = objects.setProperty(String::class.java)
+
+    /**
+     * Annotations that mark a class, method or field to be kept.
+     */
+    @get:Input
+    val annotations: SetProperty<String> = objects.setProperty(String::class.java)
+
+    @get:Internal
+    val values: Provider<Values> = classes.flatMap { cls ->
+        packages.flatMap { pkg ->
+            annotations.map { ann ->
+                Values(cls, pkg, ann)
+            }
+        }
+    }
+
+    class Values(
+        val classes: Set<String>,
+        val packages: Set<String>,
+        val annotations: Set<String>
+    ) {
+        val isEmpty: Boolean get() = classes.isEmpty() && packages.isEmpty() && annotations.isEmpty()
+    }
+}
@@ -206,3 +206,16 @@ abstract class KotlinBeforeProcessor(
      */
     final override fun processKotlinAnnotation() = processMetadata()
 }
+
+/**
+ * A [ClassVisitor] whose only purpose is to allow [KotlinAwareVisitor]
+ * to read the [kotlin.Metadata] annotation.
+ */
+internal object MetadataReader : ClassVisitor(ASM_API) {
+    override fun visitAnnotation(descriptor: String, visible: Boolean): AnnotationVisitor = DiscardingAnnotationVisitor
+}
+
+private object DiscardingAnnotationVisitor : AnnotationVisitor(ASM_API) {
+    override fun visitAnnotation(name: String?, descriptor: String): AnnotationVisitor = this
+    override fun visitArray(name: String?): AnnotationVisitor = this
+}
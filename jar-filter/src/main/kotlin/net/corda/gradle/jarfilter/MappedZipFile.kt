@@ -0,0 +1,312 @@
+package net.corda.gradle.jarfilter
+
+import java.io.Closeable
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder.LITTLE_ENDIAN
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.channels.FileChannel.MapMode.READ_ONLY
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption.READ
+import java.util.zip.DataFormatException
+import java.util.zip.Inflater
+import java.util.zip.ZipEntry
+import java.util.zip.ZipEntry.DEFLATED
+import java.util.zip.ZipEntry.STORED
+import java.util.zip.ZipException
+import kotlin.math.max
+
+/**
+ * A read-only zip archive that is memory-mapped in its entirety and whose
+ * central directory is parsed exactly once. Each entry's contents are
+ * returned as a [ByteBuffer]:
+ * - [STORED][ZipEntry.STORED] entries are slices of the mapped file,
+ *   and so are never copied onto the heap.
+ * - [DEFLATED][ZipEntry.DEFLATED] entries are inflated into the
+ *   reusable arrays of the [ZipBuffers] object.
+ *
+ * Either way, a buffer is only valid until the next call to [read],
+ * and until this archive is closed.
+ *
+ * Note that the JVM only releases a file mapping once the mapped buffer
+ * has been garbage-collected, which may prevent the file from being
+ * deleted on Windows until then.
+ */
+class MappedZipFile(file: Path, private val buffers: ZipBuffers) : Closeable {
+    private companion object {
+        private const val LOCAL_HEADER_SIGNATURE = 0x04034b50
+        private const val LOCAL_HEADER_SIZE = 30
+        private const val CENTRAL_HEADER_SIGNATURE = 0x02014b50
+        private const val CENTRAL_HEADER_SIZE = 46
+        private const val END_HEADER_SIGNATURE = 0x06054b50
+        private const val END_HEADER_SIZE = 22
+        private const val ZIP64_END_HEADER_SIGNATURE = 0x06064b50
+        private const val ZIP64_LOCATOR_SIGNATURE = 0x07064b50
+        private const val ZIP64_LOCATOR_SIZE = 20
+        private const val ZIP64_EXTRA_ID = 0x0001
+        private const val MAX_COMMENT_SIZE = 0xffff
+        private const val ZIP64_MAGIC = 0xffffffffL
+        private const val ZIP64_MAGIC_COUNT = 0xffff
+
+        private fun ByteBuffer.unsignedShort(index: Int): Int = getShort(index).toInt() and 0xffff
+        private fun ByteBuffer.unsignedInt(index: Int): Long = getInt(index).toLong() and ZIP64_MAGIC
+
+        private fun ByteBuffer.string(index: Int, length: Int): String {
+            val bytes = ByteArray(length)
+            (duplicate().position(index) as ByteBuffer).get(bytes)
+            return String(bytes, Charsets.UTF_8)
+        }
+
+        private fun ByteBuffer.bytes(index: Int, length: Int): ByteArray? {
+            return if (length == 0) {
+                null
+            } else {
+                ByteArray(length).also { bytes -> (duplicate().position(index) as ByteBuffer).get(bytes) }
+            }
+        }
+    }
+
+    private val channel: FileChannel = FileChannel.open(file, READ)
+    private val mapped: MappedByteBuffer
+    val comment: String?
+    val entries: List<Entry>
+
+    init {
+        try {
+            val fileSize = channel.size()
+            if (fileSize > Int.MAX_VALUE) {
+                throw ZipException("$file is too large to be memory-mapped")
+            }
+            mapped = channel.map(READ_ONLY, 0, fileSize)
+            mapped.order(LITTLE_ENDIAN)
+
+            val endPosition = findEndHeader() ?: throw ZipException("$file has no zip END header")
+            val commentLength = mapped.unsignedShort(endPosition + 20)
+            comment = if (commentLength == 0) null else mapped.string(endPosition + END_HEADER_SIZE, commentLength)
+
+            var entryCount = mapped.unsignedShort(endPosition + 10).toLong()
+            var directorySize = mapped.unsignedInt(endPosition + 12)
+            var directoryOffset = mapped.unsignedInt(endPosition + 16)
+            if (entryCount == ZIP64_MAGIC_COUNT.toLong() || directorySize == ZIP64_MAGIC || directoryOffset == ZIP64_MAGIC) {
+                val locatorPosition = endPosition - ZIP64_LOCATOR_SIZE
+                if (locatorPosition >= 0 && mapped.getInt(locatorPosition) == ZIP64_LOCATOR_SIGNATURE) {
+                    val zip64EndPosition = checkedPosition(mapped.getLong(locatorPosition + 8))
+                    if (mapped.getInt(zip64EndPosition) != ZIP64_END_HEADER_SIGNATURE) {
+                        throw ZipException("$file has an invalid ZIP64 END header")
+                    }
+                    entryCount = mapped.getLong(zip64EndPosition + 32)
+                    directorySize = mapped.getLong(zip64EndPosition + 40)
+                    directoryOffset = mapped.getLong(zip64EndPosition + 48)
+                }
+            }
+            entries = readCentralDirectory(checkedPosition(directoryOffset), checkedPosition(directoryOffset + directorySize), entryCount)
+        } catch (e: Exception) {
+            channel.close()
+            throw e
+        }
+    }
+
+    @Throws(IOException::class)
+    override fun close() {
+        channel.close()
+    }
+
+    private fun checkedPosition(position: Long): Int {
+        if (position < 0 || position > mapped.limit()) {
+            throw ZipException("Invalid zip offset $position")
+        }
+        return position.toInt()
+    }
+
+    private fun findEndHeader(): Int? {
+        val lowest = max(mapped.limit() - END_HEADER_SIZE - MAX_COMMENT_SIZE, 0)
+        var position = mapped.limit() - END_HEADER_SIZE
+        while (position >= lowest) {
+            if (mapped.getInt(position) == END_HEADER_SIGNATURE
+                    && position + END_HEADER_SIZE + mapped.unsignedShort(position + 20) == mapped.limit()) {
+                return position
+            }
+            --position
+        }
+        return null
+    }
+
+    private fun readCentralDirectory(start: Int, end: Int, expectedCount: Long): List<Entry> {
+        val result = ArrayList<Entry>(expectedCount.coerceIn(0L, ((end - start) / CENTRAL_HEADER_SIZE).toLong()).toInt())
+        var position = start
+        while (position < end) {
+            if (mapped.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+                throw ZipException("Invalid zip CEN header at offset $position")
+            }
+            val nameLength = mapped.unsignedShort(position + 28)
+            val extraLength = mapped.unsignedShort(position + 30)
+            val commentLength = mapped.unsignedShort(position + 32)
+            val nameOffset = position + CENTRAL_HEADER_SIZE
+
+            var compressedSize = mapped.unsignedInt(position + 20)
+            var size = mapped.unsignedInt(position + 24)
+            var headerOffset = mapped.unsignedInt(position + 42)
+            val extra = mapped.bytes(nameOffset + nameLength, extraLength)
+            if (extra != null && (compressedSize == ZIP64_MAGIC || size == ZIP64_MAGIC || headerOffset == ZIP64_MAGIC)) {
+                val zip64 = findZip64Extra(ByteBuffer.wrap(extra).order(LITTLE_ENDIAN))
+                if (zip64 != null) {
+                    if (size == ZIP64_MAGIC) {
+                        size = zip64.long
+                    }
+                    if (compressedSize == ZIP64_MAGIC) {
+                        compressedSize = zip64.long
+                    }
+                    if (headerOffset == ZIP64_MAGIC) {
+                        headerOffset = zip64.long
+                    }
+                }
+            }
+
+            result.add(Entry(
+                name = mapped.string(nameOffset, nameLength),
+                method = mapped.unsignedShort(position + 10),
+                dosTime = mapped.unsignedInt(position + 12),
+                crc = mapped.unsignedInt(position + 16),
+                compressedSize = compressedSize,
+                size = size,
+                extra = extra,
+                comment = if (commentLength == 0) null else mapped.string(nameOffset + nameLength + extraLength, commentLength),
+                headerOffset = checkedPosition(headerOffset)
+            ))
+            position = nameOffset + nameLength + extraLength + commentLength
+        }
+        return result
+    }
+
+    private fun findZip64Extra(extra: ByteBuffer): ByteBuffer? {
+        while (extra.remaining() >= 4) {
+            val id = extra.short.toInt() and 0xffff
+            val length = extra.short.toInt() and 0xffff
+            if (length > extra.remaining()) {
+                break
+            } else if (id == ZIP64_EXTRA_ID) {
+                return (extra.slice().limit(length) as ByteBuffer).order(LITTLE_ENDIAN)
+            }
+            extra.position(extra.position() + length)
+        }
+        return null
+    }
+
+    /**
+     * Returns the uncompressed contents of this [entry]. The
+     * buffer is only valid until the next invocation.
+     */
+    @Throws(IOException::class)
+    fun read(entry: Entry): ByteBuffer {
+        val headerOffset = entry.headerOffset
+        if (mapped.getInt(headerOffset) != LOCAL_HEADER_SIGNATURE) {
+            throw ZipException("Invalid zip LOC header for ${entry.name}")
+        }
+        val dataOffset = headerOffset + LOCAL_HEADER_SIZE + mapped.unsignedShort(headerOffset + 26) + mapped.unsignedShort(headerOffset + 28)
+        val dataEnd = checkedPosition(dataOffset + entry.compressedSize)
+        val data = (mapped.duplicate().position(dataOffset).limit(dataEnd) as ByteBuffer).slice()
+        return when (entry.method) {
+            STORED -> data
+            DEFLATED -> buffers.inflate(data, entry)
+            else -> throw ZipException("Unsupported compression method ${entry.method} for ${entry.name}")
+        }
+    }
+
+    /**
+     * A zip entry, as described by the archive's central directory.
+     */
+    class Entry internal constructor(
+        val name: String,
+        val method: Int,
+        private val dosTime: Long,
+        val crc: Long,
+        val compressedSize: Long,
+        val size: Long,
+        private val extra: ByteArray?,
+        val comment: String?,
+        internal val headerOffset: Int
+    ) {
+        val isDirectory: Boolean get() = name.endsWith('/')
+
+        /**
+         * Creates a [ZipEntry] with the same properties as this
+         * entry, which can be written to a [java.util.zip.ZipOutputStream].
+         */
+        fun toZipEntry(): ZipEntry {
+            return ZipEntry(name).also { entry ->
+                entry.time = dosToJavaTime(dosTime)
+                entry.method = method
+                entry.crc = crc
+                entry.size = size
+                entry.compressedSize = compressedSize
+                entry.comment = comment
+                // This also applies any extended timestamps to the entry.
+                entry.extra = extra
+            }
+        }
+
+        override fun toString(): String = name
+    }
+}
+
+/**
+ * The reusable state for inflating entries from [MappedZipFile] objects.
+ * It can be shared by successive archives, e.g. by each of JarFilter's
+ * passes, but not by archives being read concurrently.
+ */
+class ZipBuffers : Closeable {
+    private companion object {
+        private const val INITIAL_SIZE = 64 * 1024
+    }
+
+    private val inflater = Inflater(true)
+    private var input = ByteArray(INITIAL_SIZE)
+    private var output = ByteArray(INITIAL_SIZE)
+
+    private fun ensureCapacity(buffer: ByteArray, size: Long, name: String): ByteArray {
+        return when {
+            size > Int.MAX_VALUE -> throw ZipException("Zip entry $name is too large")
+            size > buffer.size -> ByteArray(max(size.toInt(), buffer.size * 2))
+            else -> buffer
+        }
+    }
+
+    /**
+     * [Inflater] can only accept input from a [ByteArray] on Java 8,
+     * and so we must still copy the compressed data onto the heap.
+     */
+    @Throws(IOException::class)
+    internal fun inflate(compressed: ByteBuffer, entry: MappedZipFile.Entry): ByteBuffer {
+        val compressedSize = compressed.remaining()
+        input = ensureCapacity(input, compressedSize + 1L, entry.name)
+        compressed.get(input, 0, compressedSize)
+        output = ensureCapacity(output, entry.size, entry.name)
+
+        inflater.reset()
+        // Zlib may require an extra dummy byte when the inflater has "nowrap" set.
+        input[compressedSize] = 0
+        inflater.setInput(input, 0, compressedSize + 1)
+        val expectedSize = entry.size.toInt()
+        var size = 0
+        try {
+            while (size < expectedSize && !inflater.finished()) {
+                val count = inflater.inflate(output, size, expectedSize - size)
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break
+                }
+                size += count
+            }
+        } catch (e: DataFormatException) {
+            throw ZipException("Invalid compressed data for ${entry.name}: ${e.message}")
+        }
+        if (size != expectedSize) {
+            throw ZipException("Zip entry ${entry.name} inflated to $size bytes, expected $expectedSize")
+        }
+        return ByteBuffer.wrap(output, 0, size)
+    }
+
+    override fun close() {
+        inflater.end()
+    }
+}
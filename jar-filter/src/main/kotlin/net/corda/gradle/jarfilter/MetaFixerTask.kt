@@ -1,6 +1,7 @@
 package net.corda.gradle.jarfilter
 
 import org.gradle.api.DefaultTask
+import org.gradle.api.InvalidUserDataException
 import org.gradle.api.file.ConfigurableFileCollection
 import org.gradle.api.file.Directory
 import org.gradle.api.file.DirectoryProperty
@@ -22,12 +23,9 @@ import org.gradle.api.tasks.TaskAction
 import java.io.Closeable
 import java.io.File
 import java.io.IOException
-import java.nio.file.Files
 import java.nio.file.Path
+import java.util.concurrent.Executor
 import java.util.zip.Deflater.BEST_COMPRESSION
-import java.util.zip.ZipEntry
-import java.util.zip.ZipFile
-import java.util.zip.ZipOutputStream
 import javax.inject.Inject
 
 @Suppress("Unused", "UnstableApiUsage")
@@ -67,6 +65,9 @@ open class MetaFixerTask @Inject constructor(objects: ObjectFactory, layouts: Pr
     @get:Input
     val preserveTimestamps: Property<Boolean> = objects.property(Boolean::class.javaObjectType).convention(true)
 
+    @get:Input
+    val compressionLevel: Property<Int> = objects.property(Int::class.javaObjectType).convention(BEST_COMPRESSION)
+
     private val _metafixed = objects.fileCollection().apply {
         setFrom(outputDir.flatMap { dir ->
             _jars.elements.map { files ->
@@ -89,25 +90,38 @@ open class MetaFixerTask @Inject constructor(objects: ObjectFactory, layouts: Pr
     @TaskAction
     fun fixMetadata() {
         logger.info("Fixing Kotlin @Metadata")
+        val level = compressionLevel.get()
+        if (!ParallelZipWriter.isValidCompressionLevel(level)) {
+            throw InvalidUserDataException("Invalid compression level $level")
+        }
+        val executor = ParallelZipWriter.createExecutor()
         try {
-            for (jar in jars) {
-                logger.info("Reading from {}", jar)
-                MetaFix(jar).use(MetaFix::run)
+            ZipBuffers().use { zipBuffers ->
+                for (jar in jars) {
+                    logger.info("Reading from {}", jar)
+                    MetaFix(jar, zipBuffers, executor, level).use(MetaFix::run)
+                }
             }
         } catch (e: Exception) {
             throw e.asUncheckedException()
+        } finally {
+            executor.shutdownNow()
         }
     }
 
-    private inner class MetaFix(inFile: File) : Closeable {
+    private inner class MetaFix(
+        inFile: File,
+        zipBuffers: ZipBuffers,
+        executor: Executor,
+        compressionLevel: Int
+    ) : Closeable {
         /**
-         * Use [ZipFile] instead of [java.util.jar.JarInputStream] because
+         * Use [MappedZipFile] instead of [java.util.jar.JarInputStream] because
          * JarInputStream consumes MANIFEST.MF when it's the first or second entry.
          */
         private val target: Path = outputDir.flatMap { dir -> toMetaFixed(dir, inFile) }.get().asFile.toPath()
-        private val inJar = ZipFile(inFile)
-        // Default options for newOutputStream() are CREATE, TRUNCATE_EXISTING.
-        private val outJar = ZipOutputStream(Files.newOutputStream(target).buffered())
+        private val inJar = MappedZipFile(inFile.toPath(), zipBuffers)
+        private val outJar = ParallelZipWriter(target, executor, compressionLevel)
 
         @Throws(IOException::class)
         override fun close() {
@@ -118,30 +132,26 @@ open class MetaFixerTask @Inject constructor(objects: ObjectFactory, layouts: Pr
 
         fun run() {
             logger.info("Writing to {}", target)
-            outJar.setLevel(BEST_COMPRESSION)
-            outJar.setComment(inJar.comment)
-
-            val classNames = inJar.entries().asSequence().namesEndingWith(".class")
-            for (entry in inJar.entries()) {
-                inJar.getInputStream(entry).use { entryData ->
-                    if (entry.isDirectory || !entry.name.endsWith(".class")) {
-                        // This entry's byte contents have not changed,
-                        // but may still need to be recompressed.
-                        outJar.putNextEntry(entry.copy().withFileTimestamps(preserveTimestamps.get()))
-                        entryData.copyTo(outJar)
-                    } else {
-                        // This entry's byte contents have almost certainly
-                        // changed, and will be stored compressed.
-                        val classData = entryData.readBytes().fixMetadata(logger, classNames)
-                        outJar.putNextEntry(entry.asCompressed().withFileTimestamps(preserveTimestamps.get()))
-                        outJar.write(classData)
-                    }
+            outJar.comment = inJar.comment
+
+            val classNames = inJar.entries.namesEndingWith(".class")
+            for (entry in inJar.entries) {
+                val entryData = inJar.read(entry)
+                if (entry.isDirectory || !entry.name.endsWith(".class")) {
+                    // This entry's byte contents have not changed,
+                    // but may still need to be recompressed.
+                    outJar.putEntry(entry.toZipEntry().copy().withFileTimestamps(preserveTimestamps.get()), entryData)
+                } else {
+                    // This entry's byte contents have almost certainly
+                    // changed, and will be stored compressed.
+                    val classData = entryData.toClassReader().fixMetadata(logger, classNames)
+                    outJar.putEntry(entry.toZipEntry().asCompressed().withFileTimestamps(preserveTimestamps.get()), classData)
                 }
             }
         }
     }
 
-    private fun Sequence<ZipEntry>.namesEndingWith(suffix: String): Set<String> {
+    private fun Iterable<MappedZipFile.Entry>.namesEndingWith(suffix: String): Set<String> {
         return filter { it.name.endsWith(suffix) }.mapTo(LinkedHashSet()) { it.name.dropLast(suffix.length) }
     }
 }
@@ -0,0 +1,430 @@
+package net.corda.gradle.jarfilter
+
+import java.io.Closeable
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder.LITTLE_ENDIAN
+import java.nio.channels.FileChannel
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption.CREATE
+import java.nio.file.StandardOpenOption.TRUNCATE_EXISTING
+import java.nio.file.StandardOpenOption.WRITE
+import java.nio.file.attribute.FileTime
+import java.util.ArrayDeque
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executor
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit.SECONDS
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.function.Supplier
+import java.util.zip.CRC32
+import java.util.zip.Deflater
+import java.util.zip.Deflater.BEST_COMPRESSION
+import java.util.zip.Deflater.DEFAULT_COMPRESSION
+import java.util.zip.ZipEntry
+import java.util.zip.ZipEntry.DEFLATED
+import java.util.zip.ZipEntry.STORED
+import java.util.zip.ZipException
+
+/**
+ * Writes a zip archive whose entries are compressed concurrently by
+ * the [executor]. The compressed entries are still written in the same
+ * order that they were added, and so the archive's contents are exactly
+ * the same regardless of how many threads are compressing them.
+ *
+ * Each [ZipEntry] supplies the name, method, comment, extra field and
+ * timestamps of an entry, in the same way as for [java.util.zip.ZipOutputStream].
+ * Its CRC and sizes are always computed from the entry's contents.
+ */
+class ParallelZipWriter(
+    target: Path,
+    private val executor: Executor,
+    private val compressionLevel: Int,
+    private val maxPending: Int = DEFAULT_MAX_PENDING
+) : Closeable {
+    companion object {
+        private const val DEFAULT_MAX_PENDING = 64
+
+        private const val LOCAL_HEADER_SIGNATURE = 0x04034b50
+        private const val LOCAL_HEADER_SIZE = 30
+        private const val CENTRAL_HEADER_SIGNATURE = 0x02014b50
+        private const val CENTRAL_HEADER_SIZE = 46
+        private const val END_HEADER_SIGNATURE = 0x06054b50
+        private const val END_HEADER_SIZE = 22
+        private const val ZIP64_END_HEADER_SIGNATURE = 0x06064b50
+        private const val ZIP64_END_HEADER_SIZE = 56
+        private const val ZIP64_LOCATOR_SIGNATURE = 0x07064b50
+        private const val ZIP64_LOCATOR_SIZE = 20
+        private const val ZIP64_EXTRA_ID = 0x0001
+        private const val EXTENDED_TIMESTAMP_ID = 0x5455
+        private const val EXTENDED_TIMESTAMP_MODIFIED = 0x01
+        private const val EXTENDED_TIMESTAMP_ACCESSED = 0x02
+        private const val EXTENDED_TIMESTAMP_CREATED = 0x04
+        private const val ZIP64_MAGIC = 0xffffffffL
+        private const val ZIP64_MAGIC_COUNT = 0xffff
+        private const val UTF8_FLAG = 0x0800
+        private const val VERSION_STORED = 10
+        private const val VERSION_DEFLATED = 20
+        private const val VERSION_ZIP64 = 45
+        private const val MIN_OUTPUT_SIZE = 1024
+
+        /**
+         * Creates a pool of daemon threads for compressing entries,
+         * with one thread for each available processor.
+         */
+        fun createExecutor(): ExecutorService {
+            val threadCount = AtomicInteger()
+            return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()) { task ->
+                Thread(task, "zip-writer-${threadCount.incrementAndGet()}").apply { isDaemon = true }
+            }
+        }
+
+        /**
+         * Checks that [level] is a valid argument for [Deflater.setLevel].
+         */
+        fun isValidCompressionLevel(level: Int): Boolean = level in DEFAULT_COMPRESSION..BEST_COMPRESSION
+
+        private fun FileTime.toUnixTime(): Int = to(SECONDS).toInt()
+
+        /**
+         * Returns the entry's extra field without any extended timestamp
+         * or Zip64 data, both of which we always write for ourselves.
+         */
+        private fun ZipEntry.strippedExtra(): ByteArray {
+            val extra = extra ?: return ByteArray(0)
+            val buffer = ByteBuffer.wrap(extra).order(LITTLE_ENDIAN)
+            val result = ByteBuffer.allocate(extra.size).order(LITTLE_ENDIAN)
+            while (buffer.remaining() >= 4) {
+                val id = buffer.short.toInt() and 0xffff
+                val size = buffer.short.toInt() and 0xffff
+                if (size > buffer.remaining()) {
+                    break
+                }
+                if (id != EXTENDED_TIMESTAMP_ID && id != ZIP64_EXTRA_ID) {
+                    result.putShort(id.toShort()).putShort(size.toShort())
+                    result.put(extra, buffer.position(), size)
+                }
+                buffer.position(buffer.position() + size)
+            }
+            return result.array().copyOf(result.position())
+        }
+
+        private fun ZipEntry.hasExtendedTimestamp(): Boolean {
+            val extra = extra ?: return false
+            val buffer = ByteBuffer.wrap(extra).order(LITTLE_ENDIAN)
+            while (buffer.remaining() >= 4) {
+                val id = buffer.short.toInt() and 0xffff
+                val size = buffer.short.toInt() and 0xffff
+                if (id == EXTENDED_TIMESTAMP_ID) {
+                    return true
+                } else if (size > buffer.remaining()) {
+                    break
+                }
+                buffer.position(buffer.position() + size)
+            }
+            return false
+        }
+
+        private fun ByteBuffer.putUnsignedShort(value: Int): ByteBuffer = putShort(value.toShort())
+        private fun ByteBuffer.putUnsignedInt(value: Long): ByteBuffer = putInt(value.toInt())
+    }
+
+    private val channel = FileChannel.open(target, CREATE, TRUNCATE_EXISTING, WRITE)
+    private val pending = ArrayDeque<CompletableFuture<CompressedEntry>>()
+    private val written = mutableListOf<WrittenEntry>()
+    private val names = HashSet<String>()
+    private val deflaters = ConcurrentLinkedQueue<Deflater>()
+    private var offset = 0L
+    private var isClosed = false
+
+    var comment: String? = null
+
+    /**
+     * Adds an entry whose contents are the [data] buffer's remaining bytes.
+     * Direct buffers, such as the slices of a [MappedZipFile], must remain
+     * valid until this writer is closed. Heap buffers are copied, because
+     * [ZipBuffers] reuses its arrays for every entry.
+     */
+    fun putEntry(entry: ZipEntry, data: ByteBuffer) {
+        val contents = if (data.isDirect) {
+            data.duplicate()
+        } else {
+            ByteBuffer.wrap(ByteArray(data.remaining()).also { bytes -> data.duplicate().get(bytes) })
+        }
+        submit(entry, contents)
+    }
+
+    /**
+     * Adds an entry whose contents are the [data] array,
+     * which must not be modified afterwards.
+     */
+    fun putEntry(entry: ZipEntry, data: ByteArray) {
+        submit(entry, ByteBuffer.wrap(data))
+    }
+
+    private fun submit(entry: ZipEntry, contents: ByteBuffer) {
+        if (isClosed) {
+            throw IOException("Zip writer is closed")
+        }
+        if (!names.add(entry.name)) {
+            throw ZipException("duplicate entry: ${entry.name}")
+        }
+        pending.add(CompletableFuture.supplyAsync(Supplier { compress(entry, contents) }, executor))
+
+        // Write every entry that is already compressed, but
+        // block once we have too many entries held in memory.
+        while (pending.isNotEmpty() && (pending.size > maxPending || pending.peek().isDone)) {
+            write(await(pending.poll()))
+        }
+    }
+
+    private fun compress(entry: ZipEntry, contents: ByteBuffer): CompressedEntry {
+        val crc = CRC32().apply { update(contents.duplicate()) }.value
+        val size = contents.remaining()
+        return if (entry.method == STORED) {
+            CompressedEntry(entry, STORED, crc, size, contents)
+        } else {
+            val deflater = deflaters.poll() ?: Deflater(compressionLevel, true)
+            try {
+                CompressedEntry(entry, DEFLATED, crc, size, deflate(deflater, contents))
+            } finally {
+                deflater.reset()
+                deflaters.add(deflater)
+            }
+        }
+    }
+
+    private fun deflate(deflater: Deflater, contents: ByteBuffer): ByteBuffer {
+        val input = if (contents.hasArray()) {
+            contents
+        } else {
+            ByteBuffer.wrap(ByteArray(contents.remaining()).also { bytes -> contents.duplicate().get(bytes) })
+        }
+        deflater.setInput(input.array(), input.arrayOffset() + input.position(), input.remaining())
+        deflater.finish()
+
+        var output = ByteArray(maxOf(MIN_OUTPUT_SIZE, input.remaining() / 2))
+        var length = 0
+        while (!deflater.finished()) {
+            if (length == output.size) {
+                output = output.copyOf(output.size * 2)
+            }
+            length += deflater.deflate(output, length, output.size - length)
+        }
+        return ByteBuffer.wrap(output, 0, length)
+    }
+
+    private fun await(future: CompletableFuture<CompressedEntry>): CompressedEntry {
+        return try {
+            future.get()
+        } catch (e: ExecutionException) {
+            throw e.cause ?: e
+        } catch (e: CompletionException) {
+            throw e.cause ?: e
+        }
+    }
+
+    private fun write(compressed: CompressedEntry) {
+        val entry = compressed.entry
+        val name = entry.name.toByteArray(Charsets.UTF_8)
+        val version = if (compressed.method == STORED) VERSION_STORED else VERSION_DEFLATED
+        val dosTime = javaToDosTime(entry.time)
+        val extra = entry.strippedExtra()
+        val timestamps = ExtendedTimestamps(entry, dosTime)
+
+        val header = ByteBuffer.allocate(LOCAL_HEADER_SIZE + name.size + extra.size + timestamps.localSize).order(LITTLE_ENDIAN)
+            .putInt(LOCAL_HEADER_SIGNATURE)
+            .putUnsignedShort(version)
+            .putUnsignedShort(UTF8_FLAG)
+            .putUnsignedShort(compressed.method)
+            .putUnsignedInt(dosTime)
+            .putUnsignedInt(compressed.crc)
+            .putInt(compressed.compressedSize)
+            .putInt(compressed.size)
+            .putUnsignedShort(name.size)
+            .putUnsignedShort(extra.size + timestamps.localSize)
+            .put(name)
+            .put(extra)
+        timestamps.putLocal(header)
+        header.flip()
+
+        written.add(WrittenEntry(compressed, version, dosTime, extra, timestamps, offset))
+        offset += header.remaining() + compressed.compressedSize
+        header.writeTo(channel)
+        compressed.data.duplicate().writeTo(channel)
+    }
+
+    private fun writeCentralDirectory() {
+        val start = offset
+        for (entry in written) {
+            val compressed = entry.compressed
+            val name = compressed.entry.name.toByteArray(Charsets.UTF_8)
+            val comment = compressed.entry.comment?.toByteArray(Charsets.UTF_8) ?: ByteArray(0)
+            val isZip64 = entry.offset >= ZIP64_MAGIC
+            val zip64Size = if (isZip64) 12 else 0
+            val version = if (isZip64) VERSION_ZIP64 else entry.version
+            val header = ByteBuffer.allocate(
+                CENTRAL_HEADER_SIZE + name.size + zip64Size + entry.extra.size + entry.timestamps.centralSize + comment.size
+            ).order(LITTLE_ENDIAN)
+                .putInt(CENTRAL_HEADER_SIGNATURE)
+                .putUnsignedShort(version)
+                .putUnsignedShort(version)
+                .putUnsignedShort(UTF8_FLAG)
+                .putUnsignedShort(compressed.method)
+                .putUnsignedInt(entry.dosTime)
+                .putUnsignedInt(compressed.crc)
+                .putInt(compressed.compressedSize)
+                .putInt(compressed.size)
+                .putUnsignedShort(name.size)
+                .putUnsignedShort(zip64Size + entry.extra.size + entry.timestamps.centralSize)
+                .putUnsignedShort(comment.size)
+                .putUnsignedShort(0)
+                .putUnsignedShort(0)
+                .putUnsignedInt(0)
+                .putUnsignedInt(if (isZip64) ZIP64_MAGIC else entry.offset)
+                .put(name)
+            if (isZip64) {
+                header.putUnsignedShort(ZIP64_EXTRA_ID).putUnsignedShort(8).putLong(entry.offset)
+            }
+            header.put(entry.extra)
+            entry.timestamps.putCentral(header)
+            header.put(comment)
+            header.flip()
+            offset += header.remaining()
+            header.writeTo(channel)
+        }
+        writeEndHeader(start, offset - start)
+    }
+
+    private fun writeEndHeader(start: Long, length: Long) {
+        val comment = comment?.toByteArray(Charsets.UTF_8) ?: ByteArray(0)
+        val count = written.size
+        val isZip64 = count >= ZIP64_MAGIC_COUNT || start >= ZIP64_MAGIC || length >= ZIP64_MAGIC
+        val header = ByteBuffer.allocate(
+            (if (isZip64) ZIP64_END_HEADER_SIZE + ZIP64_LOCATOR_SIZE else 0) + END_HEADER_SIZE + comment.size
+        ).order(LITTLE_ENDIAN)
+        if (isZip64) {
+            header.putInt(ZIP64_END_HEADER_SIGNATURE)
+                .putLong(ZIP64_END_HEADER_SIZE - 12L)
+                .putUnsignedShort(VERSION_ZIP64)
+                .putUnsignedShort(VERSION_ZIP64)
+                .putInt(0)
+                .putInt(0)
+                .putLong(count.toLong())
+                .putLong(count.toLong())
+                .putLong(length)
+                .putLong(start)
+                .putInt(ZIP64_LOCATOR_SIGNATURE)
+                .putInt(0)
+                .putLong(start + length)
+                .putInt(1)
+        }
+        header.putInt(END_HEADER_SIGNATURE)
+            .putUnsignedShort(0)
+            .putUnsignedShort(0)
+            .putUnsignedShort(minOf(count, ZIP64_MAGIC_COUNT))
+            .putUnsignedShort(minOf(count, ZIP64_MAGIC_COUNT))
+            .putUnsignedInt(minOf(length, ZIP64_MAGIC))
+            .putUnsignedInt(minOf(start, ZIP64_MAGIC))
+            .putUnsignedShort(comment.size)
+            .put(comment)
+        header.flip()
+        header.writeTo(channel)
+    }
+
+    @Throws(IOException::class)
+    override fun close() {
+        if (isClosed) {
+            return
+        }
+        isClosed = true
+        try {
+            while (pending.isNotEmpty()) {
+                write(await(pending.poll()))
+            }
+            writeCentralDirectory()
+        } finally {
+            try {
+                channel.close()
+            } finally {
+                releaseDeflaters()
+            }
+        }
+    }
+
+    /**
+     * Entries that are still being compressed after a failure will
+     * return their [Deflater] to the queue when they finish. Wait for
+     * them before releasing every [Deflater]'s native memory.
+     */
+    private fun releaseDeflaters() {
+        while (pending.isNotEmpty()) {
+            try {
+                pending.poll().join()
+            } catch (_: Exception) {
+            }
+        }
+        while (true) {
+            (deflaters.poll() ?: break).end()
+        }
+    }
+
+    private class CompressedEntry(
+        val entry: ZipEntry,
+        val method: Int,
+        val crc: Long,
+        val size: Int,
+        val data: ByteBuffer
+    ) {
+        val compressedSize: Int = data.remaining()
+    }
+
+    private class WrittenEntry(
+        val compressed: CompressedEntry,
+        val version: Int,
+        val dosTime: Long,
+        val extra: ByteArray,
+        val timestamps: ExtendedTimestamps,
+        val offset: Long
+    )
+
+    /**
+     * The extended timestamp field records the entry's times in UTC. We write this
+     * field whenever the source entry had one, or when its last-modified time is not
+     * exactly what the MS-DOS time says it is. This is the case for the constant
+     * timestamp that replaces the original ones.
+     */
+    private class ExtendedTimestamps(entry: ZipEntry, dosTime: Long) {
+        private val modified: FileTime? = entry.lastModifiedTime?.takeIf { modified ->
+            entry.hasExtendedTimestamp() || modified.toMillis() != dosToJavaTime(dosTime)
+        }
+        private val accessed: FileTime? = entry.lastAccessTime
+        private val created: FileTime? = entry.creationTime
+        private val flags = (if (modified != null) EXTENDED_TIMESTAMP_MODIFIED else 0) or
+                            (if (accessed != null) EXTENDED_TIMESTAMP_ACCESSED else 0) or
+                            (if (created != null) EXTENDED_TIMESTAMP_CREATED else 0)
+
+        val localSize: Int = if (flags == 0) 0 else 5 + 4 * listOfNotNull(modified, accessed, created).size
+        val centralSize: Int = if (flags == 0) 0 else 5 + (if (modified != null) 4 else 0)
+
+        fun putLocal(buffer: ByteBuffer) {
+            if (flags != 0) {
+                buffer.putUnsignedShort(EXTENDED_TIMESTAMP_ID).putUnsignedShort(localSize - 4).put(flags.toByte())
+                modified?.also { buffer.putInt(it.toUnixTime()) }
+                accessed?.also { buffer.putInt(it.toUnixTime()) }
+                created?.also { buffer.putInt(it.toUnixTime()) }
+            }
+        }
+
+        fun putCentral(buffer: ByteBuffer) {
+            if (flags != 0) {
+                buffer.putUnsignedShort(EXTENDED_TIMESTAMP_ID).putUnsignedShort(centralSize - 4).put(flags.toByte())
+                modified?.also { buffer.putInt(it.toUnixTime()) }
+            }
+        }
+    }
+}
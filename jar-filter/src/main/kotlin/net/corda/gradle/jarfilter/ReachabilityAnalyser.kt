@@ -0,0 +1,639 @@
+package net.corda.gradle.jarfilter
+
+import kotlinx.metadata.KmClass
+import kotlinx.metadata.KmConstructor
+import kotlinx.metadata.KmFunction
+import kotlinx.metadata.KmPackage
+import kotlinx.metadata.KmProperty
+import kotlinx.metadata.jvm.fieldSignature
+import kotlinx.metadata.jvm.getterSignature
+import kotlinx.metadata.jvm.setterSignature
+import kotlinx.metadata.jvm.signature
+import kotlinx.metadata.jvm.syntheticMethodForAnnotations
+import org.gradle.api.logging.LogLevel
+import org.gradle.api.logging.Logger
+import org.objectweb.asm.AnnotationVisitor
+import org.objectweb.asm.ClassVisitor
+import org.objectweb.asm.ConstantDynamic
+import org.objectweb.asm.FieldVisitor
+import org.objectweb.asm.Handle
+import org.objectweb.asm.Label
+import org.objectweb.asm.MethodVisitor
+import org.objectweb.asm.Opcodes.ACC_ANNOTATION
+import org.objectweb.asm.Opcodes.ACC_ENUM
+import org.objectweb.asm.Opcodes.ACC_PRIVATE
+import org.objectweb.asm.Opcodes.ACC_STATIC
+import org.objectweb.asm.Opcodes.H_PUTSTATIC
+import org.objectweb.asm.RecordComponentVisitor
+import org.objectweb.asm.Type
+import org.objectweb.asm.signature.SignatureReader
+import org.objectweb.asm.signature.SignatureVisitor
+import java.io.ByteArrayInputStream
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets.UTF_8
+import java.util.ArrayDeque
+import java.util.jar.Attributes.Name.MAIN_CLASS
+import java.util.jar.JarFile.MANIFEST_NAME
+import java.util.jar.Manifest
+
+/**
+ * The classes, methods and fields that [ReachabilityAnalyser] found
+ * to be reachable from JarFilter's [KeepRules]. Everything else is
+ * unwanted, and will be deleted by the [FilterTransformer].
+ */
+class ReachableElements(
+    private val classes: Set<String>,
+    private val methods: Map<String, Set<MethodElement>>,
+    private val fields: Map<String, Set<FieldElement>>
+) {
+    val classCount: Int get() = classes.size
+
+    fun isReachable(className: String): Boolean = classes.contains(className)
+    fun isReachable(className: String, method: MethodElement): Boolean = methods[className]?.contains(method) ?: false
+    fun isReachable(className: String, field: FieldElement): Boolean = fields[className]?.contains(field) ?: false
+}
+
+/**
+ * Inventories every class inside a jar, along with everything that each
+ * class and member refers to, and then computes which of them are reachable
+ * from a set of "entry points". The entry points are the [KeepRules], any
+ * service providers declared under `META-INF/services`, and the jar's
+ * `Main-Class`.
+ *
+ * A virtual method is considered reachable whenever its class is reachable
+ * and either the method's signature is invoked anywhere reachable, or the
+ * class has a super-type which does not belong to this jar. Kotlin properties
+ * and functions are kept or deleted as a whole, along with their synthetic
+ * methods, so that the [MetadataTransformer] can keep [kotlin.Metadata]
+ * consistent with the byte-code.
+ */
+class ReachabilityAnalyser(
+    private val logger: Logger,
+    private val keepRules: KeepRules.Values
+) {
+    private companion object {
+        private const val CLASS_SUFFIX = ".class"
+        private const val SERVICES_PREFIX = "META-INF/services/"
+        private const val OBJECT_NAME = "java/lang/Object"
+        private const val NO_ARG_CONSTRUCTOR = "()V"
+        private const val MAIN_DESCRIPTOR = "([Ljava/lang/String;)V"
+
+        /**
+         * Methods that the JVM or its libraries can invoke without there being
+         * any reference to them inside the jar, e.g. by reflection.
+         */
+        private val IMPLICIT_METHODS = setOf(
+            "equals(Ljava/lang/Object;)Z",
+            "hashCode()I",
+            "toString()Ljava/lang/String;",
+            "finalize()V",
+            "clone()Ljava/lang/Object;",
+            "writeObject(Ljava/io/ObjectOutputStream;)V",
+            "readObject(Ljava/io/ObjectInputStream;)V",
+            "readObjectNoData()V",
+            "writeReplace()Ljava/lang/Object;",
+            "readResolve()Ljava/lang/Object;"
+        )
+        private val IMPLICIT_FIELDS = setOf(
+            FieldElement("serialVersionUID", "J"),
+            FieldElement("serialPersistentFields", "[Ljava/io/ObjectStreamField;")
+        )
+
+        private fun Type.className(): String? {
+            val type = underlyingType
+            return if (type.sort == Type.OBJECT) type.internalName else null
+        }
+    }
+
+    private val classes = LinkedHashMap<String, ClassInfo>()
+    private val serviceProviders = mutableSetOf<String>()
+    private val mainClasses = LinkedHashSet<String>()
+
+    private val classDescriptorsForKeep = toDescriptors(keepRules.annotations)
+    private val classNamesForKeep = keepRules.classes.mapTo(HashSet(), String::toPathFormat)
+    private val packagesForKeep = keepRules.packages.map { pkg -> pkg.toPathFormat + '/' }
+
+    private val reachableClasses = LinkedHashSet<String>()
+    private val reachableMethods = HashMap<String, MutableSet<MethodElement>>()
+    private val reachableFields = HashMap<String, MutableSet<FieldElement>>()
+    private val liveSignatures = HashSet<String>()
+    private val externalAncestry = HashMap<String, Boolean>()
+    private val pendingClasses = ArrayDeque<ClassInfo>()
+    private val pendingMethods = ArrayDeque<MethodInfo>()
+    private val pendingFields = ArrayDeque<FieldInfo>()
+
+    /**
+     * Indexes every virtual method in the jar by its signature, so that
+     * we can find all overriding methods as soon as a signature is invoked.
+     */
+    private val methodsBySignature = HashMap<String, MutableList<MethodInfo>>()
+
+    /**
+     * Records a single entry from the jar being analysed.
+     */
+    fun add(entryName: String, data: ByteBuffer) {
+        when {
+            entryName.endsWith(CLASS_SUFFIX) -> {
+                data.toClassReader().accept(ScanningVisitor(), FILTER_FLAGS)
+            }
+            entryName.startsWith(SERVICES_PREFIX) && !entryName.endsWith('/') -> {
+                readProviders(UTF_8.decode(data.duplicate()).toString())
+            }
+            entryName.equals(MANIFEST_NAME, ignoreCase = true) -> {
+                val manifest = Manifest(ByteArrayInputStream(data.toByteArray()))
+                manifest.mainAttributes.getValue(MAIN_CLASS)?.toPathFormat?.also { mainClasses.add(it) }
+            }
+        }
+    }
+
+    private fun ByteBuffer.toByteArray(): ByteArray = ByteArray(remaining()).also { duplicate().get(it) }
+
+    private fun readProviders(providers: String) {
+        for (line in providers.lineSequence()) {
+            val provider = line.substringBefore('#').trim()
+            if (provider.isNotEmpty()) {
+                serviceProviders.add(provider.toPathFormat)
+            }
+        }
+    }
+
+    fun analyse(): ReachableElements {
+        for (info in classes.values) {
+            when {
+                classNamesForKeep.contains(info.name) -> keepAll(info, "class")
+                packagesForKeep.any { pkg -> info.name.startsWith(pkg) } -> keepAll(info, "package")
+                info.annotations.any(classDescriptorsForKeep::contains) -> keepAll(info, "annotation")
+                else -> {
+                    info.methods.values.filter { it.annotations.any(classDescriptorsForKeep::contains) }.forEach(::markMethod)
+                    info.fields.values.filter { it.annotations.any(classDescriptorsForKeep::contains) }.forEach(::markField)
+                }
+            }
+        }
+        for (provider in serviceProviders) {
+            val info = classes[provider] ?: continue
+            logger.info("- Keeping service provider {}", provider)
+            markMethod(info, MethodElement("<init>", NO_ARG_CONSTRUCTOR))
+        }
+        for (info in mainClasses.mapNotNull(classes::get)) {
+            logger.info("- Keeping main class {}", info.name)
+            markMethod(info, MethodElement("main", MAIN_DESCRIPTOR))
+        }
+
+        while (pendingClasses.isNotEmpty() || pendingMethods.isNotEmpty() || pendingFields.isNotEmpty()) {
+            pendingClasses.poll()?.also(::processClass)
+            pendingMethods.poll()?.also(::processMethod)
+            pendingFields.poll()?.also(::processField)
+        }
+
+        logger.info("- {} of {} classes are reachable", reachableClasses.size, classes.size)
+        return ReachableElements(reachableClasses, reachableMethods, reachableFields)
+    }
+
+    private fun keepAll(info: ClassInfo, reason: String) {
+        logger.info("- Keeping {} by {}", info.name, reason)
+        markClass(info.name)
+        info.methods.values.forEach(::markMethod)
+        info.fields.values.forEach(::markField)
+    }
+
+    private fun markClass(className: String) {
+        val info = classes[className] ?: return
+        if (reachableClasses.add(className)) {
+            pendingClasses.add(info)
+        }
+    }
+
+    private fun markMethod(info: ClassInfo, method: MethodElement) {
+        info.methods[method]?.also(::markMethod)
+    }
+
+    private fun markMethod(method: MethodInfo) {
+        if (reachableMethods.getOrPut(method.owner.name, ::HashSet).add(method.element)) {
+            markClass(method.owner.name)
+            pendingMethods.add(method)
+        }
+    }
+
+    private fun markField(info: ClassInfo, field: FieldElement) {
+        info.fields[field]?.also(::markField)
+    }
+
+    private fun markField(field: FieldInfo) {
+        if (reachableFields.getOrPut(field.owner.name, ::HashSet).add(field.element)) {
+            markClass(field.owner.name)
+            pendingFields.add(field)
+        }
+    }
+
+    private fun markLive(signature: String) {
+        if (liveSignatures.add(signature)) {
+            methodsBySignature[signature]?.forEach { method ->
+                if (reachableClasses.contains(method.owner.name)) {
+                    markMethod(method)
+                }
+            }
+        }
+    }
+
+    private fun processClass(info: ClassInfo) {
+        info.references.forEach(::markClass)
+        info.superName?.also(::markClass)
+        info.interfaces.forEach(::markClass)
+        info.enclosingMethod?.also { (owner, method) ->
+            classes[owner]?.also { outer -> markMethod(outer, method) }
+        }
+
+        markMethod(info, MethodElement("<clinit>", NO_ARG_CONSTRUCTOR))
+        IMPLICIT_FIELDS.forEach { field -> markField(info, field) }
+        info.recordComponents.forEach { component ->
+            markField(info, component)
+            markMethod(info, MethodElement(component.name, "()" + component.descriptor))
+        }
+        if ((info.access and ACC_ANNOTATION) != 0) {
+            info.methods.values.forEach(::markMethod)
+        } else if ((info.access and ACC_ENUM) != 0) {
+            markMethod(info, MethodElement("values", "()[L${info.name};"))
+            markMethod(info, MethodElement("valueOf", "(Ljava/lang/String;)L${info.name};"))
+        }
+
+        val hasExternalAncestor = hasExternalAncestor(info)
+        for (method in info.methods.values) {
+            if (IMPLICIT_METHODS.contains(method.element.signature)
+                    || (method.isVirtual && (hasExternalAncestor || liveSignatures.contains(method.element.signature)))) {
+                markMethod(method)
+            }
+        }
+    }
+
+    private fun processMethod(method: MethodInfo) {
+        method.classReferences.forEach(::markClass)
+        method.group.forEach { member -> member.mark() }
+        for (ref in method.methodReferences) {
+            markClass(ref.owner)
+            resolveMethod(ref.owner, ref.element)
+            if (!ref.element.isConstructor) {
+                markLive(ref.element.signature)
+            }
+        }
+        for (ref in method.fieldReferences) {
+            markClass(ref.owner)
+            resolveField(ref.owner, ref.element)
+        }
+        if (method.isVirtual) {
+            markLive(method.element.signature)
+        }
+    }
+
+    private fun processField(field: FieldInfo) {
+        field.classReferences.forEach(::markClass)
+        field.group.forEach { member -> member.mark() }
+    }
+
+    private fun Member.mark() {
+        when (this) {
+            is MethodInfo -> markMethod(this)
+            is FieldInfo -> markField(this)
+        }
+    }
+
+    private fun resolveMethod(owner: String, method: MethodElement): Boolean {
+        val info = classes[owner] ?: return false
+        val target = info.methods[method]
+        return if (target != null) {
+            markMethod(target)
+            true
+        } else {
+            (info.superName?.let { resolveMethod(it, method) } ?: false)
+                || info.interfaces.any { resolveMethod(it, method) }
+        }
+    }
+
+    private fun resolveField(owner: String, field: FieldElement): Boolean {
+        val info = classes[owner] ?: return false
+        val target = info.fields[field]
+        return if (target != null) {
+            markField(target)
+            true
+        } else {
+            info.interfaces.any { resolveField(it, field) }
+                || (info.superName?.let { resolveField(it, field) } ?: false)
+        }
+    }
+
+    /**
+     * A class inheriting from something outside of this jar may be overriding
+     * any of that type's methods, and so we must keep all of its virtual methods.
+     * Every class inherits from [java.lang.Object], of course, but we already
+     * know which of its methods can be overridden.
+     */
+    private fun hasExternalAncestor(info: ClassInfo): Boolean {
+        return externalAncestry[info.name] ?: run {
+            externalAncestry[info.name] = false
+            val supertypes = listOfNotNull(info.superName) + info.interfaces
+            supertypes.any { supertype ->
+                val superInfo = classes[supertype]
+                if (superInfo == null) {
+                    supertype != OBJECT_NAME
+                } else {
+                    hasExternalAncestor(superInfo)
+                }
+            }.also { externalAncestry[info.name] = it }
+        }
+    }
+
+    private class ClassInfo(
+        val name: String,
+        val access: Int,
+        val superName: String?,
+        val interfaces: List<String>
+    ) {
+        val references: MutableSet<String> = HashSet()
+        val annotations: MutableSet<String> = HashSet()
+        val methods: MutableMap<MethodElement, MethodInfo> = LinkedHashMap()
+        val fields: MutableMap<FieldElement, FieldInfo> = LinkedHashMap()
+        val recordComponents: MutableList<FieldElement> = mutableListOf()
+        var enclosingMethod: Pair<String, MethodElement>? = null
+    }
+
+    private abstract class Member(val owner: ClassInfo, val access: Int) {
+        val classReferences: MutableSet<String> = HashSet()
+        val annotations: MutableSet<String> = HashSet()
+
+        /**
+         * The other members which belong to the same Kotlin property or function.
+         */
+        var group: List<Member> = emptyList()
+    }
+
+    private class MethodInfo(owner: ClassInfo, val element: MethodElement, access: Int) : Member(owner, access) {
+        val isVirtual: Boolean get() = (access and (ACC_STATIC or ACC_PRIVATE)) == 0 && !element.isConstructor
+        val methodReferences: MutableSet<Reference<MethodElement>> = LinkedHashSet()
+        val fieldReferences: MutableSet<Reference<FieldElement>> = LinkedHashSet()
+    }
+
+    private class FieldInfo(owner: ClassInfo, val element: FieldElement, access: Int) : Member(owner, access)
+
+    private data class Reference<T : Element>(val owner: String, val element: T)
+
+    private inner class ScanningVisitor : KotlinBeforeProcessor(ASM_API, MetadataReader, logger, mutableMapOf()) {
+        override val level: LogLevel = LogLevel.DEBUG
+        private lateinit var info: ClassInfo
+        private val kotlinGroups = mutableListOf<KotlinGroup>()
+
+        override fun visit(version: Int, access: Int, clsName: String, signature: String?, superName: String?, interfaces: Array<String>?) {
+            info = ClassInfo(clsName, access, superName, interfaces?.toList() ?: emptyList())
+            classes[clsName] = info
+            info.references.addSignature(signature)
+            super.visit(version, access, clsName, signature, superName, interfaces)
+        }
+
+        override fun visitAnnotation(descriptor: String, visible: Boolean): AnnotationVisitor? {
+            val av = super.visitAnnotation(descriptor, visible)
+            return if (descriptor == KOTLIN_METADATA_DESC) {
+                av
+            } else {
+                info.annotations.add(descriptor)
+                info.references.addDescriptor(descriptor)
+                ReferencingAnnotationVisitor(info.references)
+            }
+        }
+
+        override fun visitOuterClass(owner: String, name: String?, descriptor: String?) {
+            info.references.add(owner)
+            if (name != null && descriptor != null) {
+                info.enclosingMethod = owner to MethodElement(name, descriptor)
+            }
+        }
+
+        override fun visitInnerClass(name: String, outerName: String?, innerName: String?, access: Int) {
+            if (name == info.name && outerName != null) {
+                info.references.add(outerName)
+            }
+        }
+
+        override fun visitNestHost(nestHost: String) {
+            info.references.add(nestHost)
+        }
+
+        override fun visitRecordComponent(name: String, descriptor: String, signature: String?): RecordComponentVisitor? {
+            info.recordComponents.add(FieldElement(name, descriptor))
+            info.references.addDescriptor(descriptor)
+            info.references.addSignature(signature)
+            return null
+        }
+
+        override fun visitField(access: Int, fieldName: String, descriptor: String, signature: String?, value: Any?): FieldVisitor? {
+            val field = FieldInfo(info, FieldElement(fieldName, descriptor, access), access)
+            info.fields[field.element] = field
+            field.classReferences.addDescriptor(descriptor)
+            field.classReferences.addSignature(signature)
+            return object : FieldVisitor(api) {
+                override fun visitAnnotation(descriptor: String, visible: Boolean): AnnotationVisitor? {
+                    field.annotations.add(descriptor)
+                    field.classReferences.addDescriptor(descriptor)
+                    return ReferencingAnnotationVisitor(field.classReferences)
+                }
+            }
+        }
+
+        override fun visitMethod(access: Int, methodName: String, descriptor: String, signature: String?, exceptions: Array<String>?): MethodVisitor? {
+            val method = MethodInfo(info, MethodElement(methodName, descriptor, access), access)
+            info.methods[method.element] = method
+            if (method.isVirtual) {
+                methodsBySignature.getOrPut(method.element.signature, ::ArrayList).add(method)
+            }
+            with(method.classReferences) {
+                addMethodDescriptor(descriptor)
+                addSignature(signature)
+                exceptions?.also { addAll(it) }
+            }
+            return ReferencingMethodVisitor(method)
+        }
+
+        override fun visitEnd() {
+            super.visitEnd()
+            for (group in kotlinGroups) {
+                val members = group.methods.mapNotNull(info.methods::get) + group.fields.mapNotNull(info.fields::get)
+                members.forEach { member -> member.group = members }
+            }
+        }
+
+        override fun processClassMetadata(kmClass: KmClass): KmClass? {
+            val classDescriptor = "L${info.name};"
+            kmClass.companionObject?.also { companion -> info.references.add("${info.name}\$$companion") }
+            kmClass.constructors.forEach(::groupConstructor)
+            kmClass.functions.forEach { function -> groupFunction(function, classDescriptor) }
+            kmClass.properties.forEach(::groupProperty)
+            return null
+        }
+
+        override fun processPackageMetadata(kmPackage: KmPackage): KmPackage? {
+            kmPackage.functions.forEach { function -> groupFunction(function, "") }
+            kmPackage.properties.forEach(::groupProperty)
+            return null
+        }
+
+        private fun groupConstructor(constructor: KmConstructor) {
+            val method = constructor.signature?.toMethodElement() ?: return
+            val synthetic = if (constructor.valueParameters.hasAnyDefaultValues) method.asKotlinDefaultConstructor() else null
+            kotlinGroups.add(KotlinGroup(listOfNotNull(method, synthetic), emptyList()))
+        }
+
+        private fun groupFunction(function: KmFunction, classDescriptor: String) {
+            val method = function.signature?.toMethodElement() ?: return
+            val synthetic = if (function.valueParameters.hasAnyDefaultValues) method.asKotlinDefaultFunction(classDescriptor) else null
+            kotlinGroups.add(KotlinGroup(listOfNotNull(method, synthetic), emptyList()))
+        }
+
+        private fun groupProperty(property: KmProperty) {
+            kotlinGroups.add(KotlinGroup(
+                methods = listOfNotNull(
+                    property.getterSignature?.toMethodElement(),
+                    property.setterSignature?.toMethodElement(),
+                    property.syntheticMethodForAnnotations?.toMethodElement()
+                ),
+                fields = listOfNotNull(property.fieldSignature?.toFieldElement())
+            ))
+        }
+    }
+
+    private class KotlinGroup(val methods: List<MethodElement>, val fields: List<FieldElement>)
+
+    private inner class ReferencingMethodVisitor(private val method: MethodInfo) : MethodVisitor(ASM_API) {
+        private val references = method.classReferences
+
+        override fun visitAnnotation(descriptor: String, visible: Boolean): AnnotationVisitor? {
+            method.annotations.add(descriptor)
+            references.addDescriptor(descriptor)
+            return ReferencingAnnotationVisitor(references)
+        }
+
+        override fun visitParameterAnnotation(parameter: Int, descriptor: String, visible: Boolean): AnnotationVisitor? {
+            references.addDescriptor(descriptor)
+            return ReferencingAnnotationVisitor(references)
+        }
+
+        override fun visitAnnotationDefault(): AnnotationVisitor? = ReferencingAnnotationVisitor(references)
+
+        override fun visitTypeInsn(opcode: Int, type: String) {
+            references.addTypeName(type)
+        }
+
+        override fun visitFieldInsn(opcode: Int, owner: String, name: String, descriptor: String) {
+            references.addTypeName(owner)
+            references.addDescriptor(descriptor)
+            if (!owner.startsWith('[')) {
+                method.fieldReferences.add(Reference(owner, FieldElement(name, descriptor)))
+            }
+        }
+
+        override fun visitMethodInsn(opcode: Int, owner: String, name: String, descriptor: String, isInterface: Boolean) {
+            addMethodReference(owner, name, descriptor)
+        }
+
+        override fun visitInvokeDynamicInsn(name: String, descriptor: String, bootstrapMethod: Handle, vararg bootstrapArguments: Any?) {
+            references.addMethodDescriptor(descriptor)
+            addConstant(bootstrapMethod)
+            bootstrapArguments.forEach(::addConstant)
+        }
+
+        override fun visitLdcInsn(value: Any?) = addConstant(value)
+
+        override fun visitMultiANewArrayInsn(descriptor: String, numDimensions: Int) {
+            references.addDescriptor(descriptor)
+        }
+
+        override fun visitTryCatchBlock(start: Label, end: Label, handler: Label, type: String?) {
+            type?.let(references::add)
+        }
+
+        override fun visitFrame(type: Int, numLocal: Int, local: Array<out Any?>?, numStack: Int, stack: Array<out Any?>?) {
+            local?.forEach { item -> if (item is String) references.addTypeName(item) }
+            stack?.forEach { item -> if (item is String) references.addTypeName(item) }
+        }
+
+        private fun addMethodReference(owner: String, name: String, descriptor: String) {
+            references.addTypeName(owner)
+            references.addMethodDescriptor(descriptor)
+            if (!owner.startsWith('[')) {
+                method.methodReferences.add(Reference(owner, MethodElement(name, descriptor)))
+            }
+        }
+
+        private fun addConstant(value: Any?) {
+            when (value) {
+                is Type -> if (value.sort == Type.METHOD) {
+                    references.addMethodDescriptor(value.descriptor)
+                } else {
+                    value.className()?.let(references::add)
+                }
+                is Handle -> if (value.tag <= H_PUTSTATIC) {
+                    references.addTypeName(value.owner)
+                    references.addDescriptor(value.desc)
+                    method.fieldReferences.add(Reference(value.owner, FieldElement(value.name, value.desc)))
+                } else {
+                    addMethodReference(value.owner, value.name, value.desc)
+                }
+                is ConstantDynamic -> {
+                    references.addDescriptor(value.descriptor)
+                    addConstant(value.bootstrapMethod)
+                    for (idx in 0 until value.bootstrapMethodArgumentCount) {
+                        addConstant(value.getBootstrapMethodArgument(idx))
+                    }
+                }
+            }
+        }
+    }
+
+    private class ReferencingAnnotationVisitor(private val references: MutableSet<String>) : AnnotationVisitor(ASM_API) {
+        override fun visit(name: String?, value: Any?) {
+            if (value is Type) {
+                value.className()?.let(references::add)
+            }
+        }
+
+        override fun visitEnum(name: String?, descriptor: String, value: String) {
+            references.addDescriptor(descriptor)
+        }
+
+        override fun visitAnnotation(name: String?, descriptor: String): AnnotationVisitor {
+            references.addDescriptor(descriptor)
+            return this
+        }
+
+        override fun visitArray(name: String?): AnnotationVisitor = this
+    }
+}
+
+private fun MutableSet<String>.addDescriptor(descriptor: String) {
+    val type = Type.getType(descriptor).underlyingType
+    if (type.sort == Type.OBJECT) {
+        add(type.internalName)
+    }
+}
+
+private fun MutableSet<String>.addMethodDescriptor(descriptor: String) {
+    val type = Type.getMethodType(descriptor)
+    addDescriptor(type.returnType.descriptor)
+    type.argumentTypes.forEach { arg -> addDescriptor(arg.descriptor) }
+}
+
+/**
+ * Type instructions and member owners can either be internal class names or array descriptors.
+ */
+private fun MutableSet<String>.addTypeName(typeName: String) {
+    if (typeName.startsWith('[')) {
+        addDescriptor(typeName)
+    } else {
+        add(typeName)
+    }
+}
+
+private fun MutableSet<String>.addSignature(signature: String?) {
+    signature ?: return
+    SignatureReader(signature).accept(object : SignatureVisitor(ASM_API) {
+        override fun visitClassType(name: String) {
+            add(name)
+        }
+    })
+}
@@ -42,4 +42,25 @@ class UnwantedCache {
         return containsClass(className) ||
                 (methodName != null && methodDescriptor != null && containsMethod(className, MethodElement(methodName, methodDescriptor)))
     }
+
+    fun copy(): UnwantedCache = UnwantedCache().also { it.addAll(this) }
+
+    /**
+     * Merges everything from [other] into this cache, and returns the
+     * names of those classes which gained unwanted classes or methods.
+     */
+    fun addAll(other: UnwantedCache): Set<String> {
+        val changed = LinkedHashSet<String>()
+        for (className in other._classes) {
+            if (addClass(className)) {
+                changed.add(className)
+            }
+        }
+        for ((className, methods) in other._classMethods) {
+            if (!containsClass(className) && _classMethods.getOrPut(className) { mutableSetOf() }.addAll(methods)) {
+                changed.add(className)
+            }
+        }
+        return changed
+    }
 }
@@ -10,8 +10,16 @@ import org.objectweb.asm.ClassVisitor
 import org.objectweb.asm.ClassWriter
 import org.objectweb.asm.Opcodes.ASM9
 import org.objectweb.asm.Type
+import java.nio.ByteBuffer
+import java.nio.channels.WritableByteChannel
 import java.nio.file.attribute.FileTime
+import java.util.Calendar.DAY_OF_MONTH
 import java.util.Calendar.FEBRUARY
+import java.util.Calendar.HOUR_OF_DAY
+import java.util.Calendar.MINUTE
+import java.util.Calendar.MONTH
+import java.util.Calendar.SECOND
+import java.util.Calendar.YEAR
 import java.util.GregorianCalendar
 import java.util.TimeZone
 import java.util.zip.ZipEntry
@@ -29,6 +37,9 @@ const val ASM_API = ASM9
 @JvmField
 val JAR_PATTERN = "(\\.jar)\$".toRegex(IGNORE_CASE)
 
+// The earliest MS-DOS time, i.e. 1st January 1980.
+private const val DOS_TIME_MIN = ((1 shl 21) or (1 shl 16)).toLong()
+
 // Use the same constant file timestamp as Gradle.
 private val CONSTANT_TIME: FileTime = FileTime.fromMillis(
     GregorianCalendar(1980, FEBRUARY, 1).apply { timeZone = TimeZone.getTimeZone("UTC") }.timeInMillis
@@ -82,6 +93,94 @@ fun ZipEntry.withFileTimestamps(preserveTimestamps: Boolean): ZipEntry {
     return this
 }
 
+/**
+ * Converts an MS-DOS date and time into Java time, using the
+ * default time-zone exactly as [ZipEntry.getTime] does.
+ */
+internal fun dosToJavaTime(dosTime: Long): Long {
+    return GregorianCalendar(
+        ((dosTime shr 25) and 0x7f).toInt() + 1980,
+        ((dosTime shr 21) and 0x0f).toInt() - 1,
+        ((dosTime shr 16) and 0x1f).toInt(),
+        ((dosTime shr 11) and 0x1f).toInt(),
+        ((dosTime shr 5) and 0x3f).toInt(),
+        ((dosTime shl 1) and 0x3e).toInt()
+    ).timeInMillis
+}
+
+/**
+ * Converts Java time into an MS-DOS date and time, using
+ * the default time-zone exactly as [ZipEntry.setTime] does.
+ */
+internal fun javaToDosTime(time: Long): Long {
+    val calendar = GregorianCalendar().apply { timeInMillis = time }
+    val year = calendar.get(YEAR)
+    return if (year < 1980) {
+        DOS_TIME_MIN
+    } else {
+        (((year - 1980) shl 25)
+            or ((calendar.get(MONTH) + 1) shl 21)
+            or (calendar.get(DAY_OF_MONTH) shl 16)
+            or (calendar.get(HOUR_OF_DAY) shl 11)
+            or (calendar.get(MINUTE) shl 5)
+            or (calendar.get(SECOND) shr 1)).toLong()
+    }
+}
+
+/**
+ * Writes all of this buffer's remaining bytes to the [channel].
+ */
+fun ByteBuffer.writeTo(channel: WritableByteChannel) {
+    while (hasRemaining()) {
+        channel.write(this)
+    }
+}
+
+/**
+ * Creates a [ClassReader] for this buffer's remaining bytes,
+ * without copying them if the buffer is backed by an array.
+ */
+fun ByteBuffer.toClassReader(): ClassReader {
+    return if (hasArray()) {
+        ClassReader(array(), arrayOffset() + position(), remaining())
+    } else {
+        ClassReader(ByteArray(remaining()).also { bytes -> duplicate().get(bytes) })
+    }
+}
+
+private const val CONSTANT_UTF8 = 1
+private const val CONSTANT_CLASS = 7
+private val DESCRIPTOR_CLASS = "L([^;<]+)[;<]".toRegex()
+
+/**
+ * Every class name inside this class's constant pool, including those
+ * that only appear inside descriptors and generic signatures. This is
+ * an over-estimate, which is safe.
+ */
+fun ByteBuffer.referencedClassNames(): Set<String> {
+    val bytecode = if (hasArray()) array() else ByteArray(remaining()).also { bytes -> duplicate().get(bytes) }
+    val reader = if (hasArray()) ClassReader(bytecode, arrayOffset() + position(), remaining()) else ClassReader(bytecode)
+    val names = HashSet<String>()
+    val buffer = CharArray(reader.maxStringLength)
+    for (idx in 1 until reader.itemCount) {
+        val offset = reader.getItem(idx)
+        if (offset == 0) {
+            continue
+        }
+        when (reader.readByte(offset - 1)) {
+            CONSTANT_CLASS -> names.add(reader.readUTF8(offset, buffer))
+            CONSTANT_UTF8 -> {
+                val length = reader.readUnsignedShort(offset)
+                val value = String(bytecode, offset + 2, length, Charsets.UTF_8)
+                if (value.indexOf('L') >= 0) {
+                    DESCRIPTOR_CLASS.findAll(value).mapTo(names) { match -> match.groupValues[1] }
+                }
+            }
+        }
+    }
+    return names
+}
+
 /**
  * Converts Java class names to Java descriptors.
  */
@@ -98,21 +197,27 @@ val String.descriptor: String get() = "L${toPathFormat};"
  * Used by [MetaFixerVisitor], but also by some of the test visitors.
  */
 fun <T> ByteArray.execute(flags: Int, passes: Int = 2, visitor: (ClassVisitor) -> T): ByteArray
+    where T : ClassVisitor,
+          T : Repeatable<T> = ClassReader(this).execute(flags, passes, visitor)
+
+fun <T> ClassReader.execute(flags: Int, passes: Int = 2, visitor: (ClassVisitor) -> T): ByteArray
     where T : ClassVisitor,
           T : Repeatable<T> {
-    var bytecode = this
+    var reader = this
     var writer = ClassWriter(flags)
     var transformer = visitor(writer)
     var count = max(passes, 1)
+    var bytecode: ByteArray
 
-    while (--count >= 0) {
-        ClassReader(bytecode).accept(transformer, FILTER_FLAGS)
+    while (true) {
+        reader.accept(transformer, FILTER_FLAGS)
         bytecode = writer.toByteArray()
 
-        if (!transformer.hasUnwantedElements) {
+        if (--count <= 0 || !transformer.hasUnwantedElements) {
             break
         }
 
+        reader = ClassReader(bytecode)
         writer = ClassWriter(flags)
         transformer = transformer.recreate(writer)
     }
@@ -121,4 +226,7 @@ fun <T> ByteArray.execute(flags: Int, passes: Int = 2, visitor: (ClassVisitor) -
 }
 
 fun ByteArray.fixMetadata(logger: Logger, classNames: Set<String>): ByteArray
+        = ClassReader(this).fixMetadata(logger, classNames)
+
+fun ClassReader.fixMetadata(logger: Logger, classNames: Set<String>): ByteArray
         = execute(0) { writer -> MetaFixerVisitor(writer, logger, classNames) }
@@ -0,0 +1,144 @@
+package net.corda.gradle.jarfilter
+
+import net.corda.gradle.jarfilter.asm.bytecode
+import net.corda.gradle.jarfilter.asm.classMetadata
+import net.corda.gradle.jarfilter.asm.resourceName
+import net.corda.gradle.jarfilter.asm.toClass
+import org.assertj.core.api.Assertions.assertThat
+import org.gradle.api.logging.Logger
+import org.junit.jupiter.api.BeforeAll
+import org.junit.jupiter.api.Test
+import org.objectweb.asm.ClassReader
+import org.objectweb.asm.ClassVisitor
+import org.objectweb.asm.Label
+import org.objectweb.asm.MethodVisitor
+import org.objectweb.asm.Opcodes.ATHROW
+import java.nio.ByteBuffer
+import kotlin.reflect.full.declaredMemberFunctions
+import kotlin.reflect.full.declaredMemberProperties
+
+class AbiOnlyTest {
+    companion object {
+        private val logger: Logger = StdOutLogging(AbiOnlyTest::class)
+        private val noAnnotations = FilterAnnotations.Values(emptySet(), emptySet(), emptySet(), emptySet())
+
+        private val ANONYMOUS_CLASS = "${AbiExample::class.java.name}\$run\$1"
+        private val INLINE_ANONYMOUS_CLASS = "${AbiExample::class.java.name}\$wrap\$1"
+        private val HIDDEN_CLASS = "${AbiExample::class.java.name}\$Hidden"
+
+        private lateinit var filtered: Map<String, ByteArray>
+
+        private fun bytecodeOf(className: String): ByteArray {
+            return AbiOnlyTest::class.java.classLoader.getResourceAsStream("${className.toPathFormat}.class")!!.use { it.readBytes() }
+        }
+
+        /**
+         * Filter these classes in the same way as the classes inside a jar.
+         */
+        @BeforeAll
+        @JvmStatic
+        fun setup() {
+            val classes = listOf(AbiExample::class.java.name, AbiExample.Nested::class.java.name, HIDDEN_CLASS, ANONYMOUS_CLASS, INLINE_ANONYMOUS_CLASS)
+                .associateWithTo(LinkedHashMap(), ::bytecodeOf)
+            val abiElements = AbiAnalyser(logger).apply {
+                add(AbiExample::class.java.resourceName, ByteBuffer.wrap(AbiExample::class.java.bytecode))
+            }.analyse()
+            val classFilter = ClassFilter(logger, noAnnotations, UnwantedCache(), null, abiElements)
+            do {
+                classFilter.isModified = false
+                for (entry in classes.entries) {
+                    if (entry.value.isNotEmpty()) {
+                        entry.setValue(classFilter.filter(ClassReader(entry.value)))
+                    }
+                }
+            } while (classFilter.isModified)
+            filtered = classes.filterValues(ByteArray::isNotEmpty)
+        }
+
+        private fun ByteArray.throwingMethods(): Set<String> {
+            val methods = LinkedHashSet<String>()
+            ClassReader(this).accept(object : ClassVisitor(ASM_API) {
+                override fun visitMethod(access: Int, name: String, descriptor: String, signature: String?, exceptions: Array<String>?): MethodVisitor {
+                    return object : MethodVisitor(api) {
+                        override fun visitInsn(opcode: Int) {
+                            if (opcode == ATHROW) {
+                                methods.add(name)
+                            }
+                        }
+                    }
+                }
+            }, 0)
+            return methods
+        }
+
+        private fun ByteArray.hasLocalVariables(): Boolean {
+            var found = false
+            ClassReader(this).accept(object : ClassVisitor(ASM_API) {
+                override fun visitMethod(access: Int, name: String, descriptor: String, signature: String?, exceptions: Array<String>?): MethodVisitor {
+                    return object : MethodVisitor(api) {
+                        override fun visitLocalVariable(name: String, descriptor: String, signature: String?, start: Label, end: Label, index: Int) {
+                            found = true
+                        }
+                    }
+                }
+            }, 0)
+            return found
+        }
+    }
+
+    @Test
+    fun deleteClassesOutsideAbi() {
+        assertThat(filtered.keys).containsExactlyInAnyOrder(
+            AbiExample::class.java.name,
+            AbiExample.Nested::class.java.name,
+            INLINE_ANONYMOUS_CLASS
+        )
+    }
+
+    @Test
+    fun stubMethodsExceptInlineFunctions() {
+        with(filtered.getValue(AbiExample::class.java.name)) {
+            assertThat(throwingMethods()).contains("<init>", "compute", "getVisible", "run").doesNotContain("wrap")
+            assertThat(hasLocalVariables()).isFalse()
+        }
+    }
+
+    @Test
+    fun deletePrivateMembers() {
+        val abiClass = filtered.getValue(AbiExample::class.java.name).toClass<AbiExample, Any>()
+        with(abiClass) {
+            assertThat(declaredMethods.map { it.name }).contains("compute", "getVisible", "run", "wrap").doesNotContain("secretFunction")
+            assertThat(declaredFields.map { it.name }).doesNotContain("secret", "counter")
+            assertThat(kotlin.declaredMemberProperties.map { it.name }).containsExactly("visible")
+            assertThat(kotlin.declaredMemberFunctions.map { it.name }).contains("compute", "run", "wrap").doesNotContain("secretFunction")
+            assertThat(classMetadata.nestedClasses).containsExactly(AbiExample.Nested::class.java.name)
+        }
+    }
+}
+
+@Suppress("unused")
+class AbiExample {
+    private val secret: String = "secret"
+    private var counter: Int = 0
+    val visible: String = "visible"
+
+    private class Hidden
+
+    class Nested {
+        fun nested(): Int = 1
+    }
+
+    private fun secretFunction(): String = secret
+
+    fun compute(x: Int): Int = x * 2 + secretFunction().length
+
+    fun run(): Runnable = object : Runnable {
+        override fun run() {
+            ++counter
+        }
+    }
+
+    inline fun wrap(crossinline action: () -> Unit): Runnable = object : Runnable {
+        override fun run() = action()
+    }
+}
@@ -0,0 +1,155 @@
+package net.corda.gradle.jarfilter
+
+import net.corda.gradle.jarfilter.asm.accept
+import net.corda.gradle.jarfilter.asm.bytecode
+import net.corda.gradle.jarfilter.asm.descriptor
+import net.corda.gradle.jarfilter.asm.resourceName
+import org.assertj.core.api.Assertions.assertThat
+import org.gradle.api.logging.Logger
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import org.objectweb.asm.AnnotationVisitor
+import org.objectweb.asm.ClassReader
+import org.objectweb.asm.ClassVisitor
+import org.objectweb.asm.MethodVisitor
+import org.objectweb.asm.Opcodes.ASM9
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.stream.Collectors.toList
+
+class ClassDirectoryFilterTest {
+    private companion object {
+        private const val RESOURCE_NAME = "META-INF/resource.txt"
+        private val logger: Logger = StdOutLogging(ClassDirectoryFilterTest::class)
+
+        private val annotationValues = FilterAnnotations.Values(
+            forDelete = setOf(DirectoryDeleteMe::class.java.name),
+            forStub = emptySet(),
+            forRemove = emptySet(),
+            forSanitise = emptySet()
+        )
+        private val keepValues = KeepRules.Values(emptySet(), emptySet(), emptySet())
+
+        private val wantedBytecode: ByteArray = DirectoryData::class.java.bytecode.accept { writer ->
+            object : ClassVisitor(ASM9, writer) {
+                override fun visitAnnotation(descriptor: String, visible: Boolean): AnnotationVisitor? {
+                    return if (descriptor == DirectoryDeleteMe::class.java.descriptor) {
+                        null
+                    } else {
+                        super.visitAnnotation(descriptor, visible)
+                    }
+                }
+            }
+        }
+
+        private fun Path.methodNames(): Set<String> {
+            val names = LinkedHashSet<String>()
+            ClassReader(Files.readAllBytes(this)).accept(object : ClassVisitor(ASM9) {
+                override fun visitMethod(access: Int, name: String, descriptor: String, signature: String?, exceptions: Array<String>?): MethodVisitor? {
+                    names.add(name)
+                    return null
+                }
+            }, 0)
+            return names
+        }
+    }
+
+    private lateinit var sourceDir: Path
+    private lateinit var outputDir: Path
+    private lateinit var stateFile: Path
+
+    @BeforeEach
+    fun setup(@TempDir testDir: Path) {
+        sourceDir = Files.createDirectories(testDir.resolve("classes"))
+        outputDir = testDir.resolve("filtered")
+        stateFile = testDir.resolve("state.bin")
+
+        writeSource(DirectoryData::class.java.resourceName, wantedBytecode)
+        writeSource(UsesDirectoryData::class.java.resourceName, UsesDirectoryData::class.java.bytecode)
+        writeSource(UnrelatedToDirectoryData::class.java.resourceName, UnrelatedToDirectoryData::class.java.bytecode)
+        writeSource(RESOURCE_NAME, "Hello".toByteArray())
+    }
+
+    private fun writeSource(path: String, data: ByteArray) {
+        val target = sourceDir.resolve(path)
+        Files.createDirectories(target.parent)
+        Files.write(target, data)
+    }
+
+    private fun sources(): Map<String, Path> {
+        return Files.walk(sourceDir).use { paths ->
+            paths.filter { Files.isRegularFile(it) }.collect(toList())
+                .associateBy { sourceDir.relativize(it).toString().replace('\\', '/') }
+        }
+    }
+
+    private fun filter(changes: Set<String>?) {
+        ClassDirectoryFilter(logger, annotationValues, keepValues, false, 5, outputDir, stateFile).run(sources(), changes)
+    }
+
+    private val dataClass: Path get() = outputDir.resolve(DirectoryData::class.java.resourceName)
+    private val usesDataClass: Path get() = outputDir.resolve(UsesDirectoryData::class.java.resourceName)
+    private val unrelatedClass: Path get() = outputDir.resolve(UnrelatedToDirectoryData::class.java.resourceName)
+
+    @Test
+    fun testFullFilter() {
+        writeSource(DirectoryData::class.java.resourceName, DirectoryData::class.java.bytecode)
+        filter(null)
+
+        assertThat(dataClass).doesNotExist()
+        assertThat(usesDataClass.methodNames()).contains("unrelated").doesNotContain("useData")
+        assertThat(unrelatedClass).isRegularFile
+        assertThat(outputDir.resolve(RESOURCE_NAME)).hasContent("Hello")
+        assertThat(stateFile).isRegularFile
+    }
+
+    @Test
+    fun testChangesAffectReferringClasses() {
+        filter(null)
+        assertThat(dataClass).isRegularFile
+        assertThat(usesDataClass.methodNames()).contains("unrelated", "useData")
+        val unrelatedModified = Files.getLastModifiedTime(unrelatedClass)
+
+        // Only DirectoryData has changed, but UsesDirectoryData must also be filtered again.
+        writeSource(DirectoryData::class.java.resourceName, DirectoryData::class.java.bytecode)
+        filter(setOf(DirectoryData::class.java.resourceName))
+        assertThat(dataClass).doesNotExist()
+        assertThat(usesDataClass.methodNames()).contains("unrelated").doesNotContain("useData")
+        assertThat(Files.getLastModifiedTime(unrelatedClass)).isEqualTo(unrelatedModified)
+
+        // And now change DirectoryData back again.
+        writeSource(DirectoryData::class.java.resourceName, wantedBytecode)
+        filter(setOf(DirectoryData::class.java.resourceName))
+        assertThat(dataClass).isRegularFile
+        assertThat(usesDataClass.methodNames()).contains("unrelated", "useData")
+    }
+
+    @Test
+    fun testRemovedFiles() {
+        filter(null)
+        assertThat(unrelatedClass).isRegularFile
+        assertThat(outputDir.resolve(RESOURCE_NAME)).isRegularFile
+
+        Files.delete(sourceDir.resolve(UnrelatedToDirectoryData::class.java.resourceName))
+        Files.delete(sourceDir.resolve(RESOURCE_NAME))
+        filter(setOf(UnrelatedToDirectoryData::class.java.resourceName, RESOURCE_NAME))
+        assertThat(unrelatedClass).doesNotExist()
+        assertThat(outputDir.resolve(RESOURCE_NAME)).doesNotExist()
+        assertThat(usesDataClass.methodNames()).contains("unrelated", "useData")
+    }
+}
+
+@Target(AnnotationTarget.CLASS)
+annotation class DirectoryDeleteMe
+
+@DirectoryDeleteMe
+class DirectoryData
+
+@Suppress("unused", "UNUSED_PARAMETER")
+class UsesDirectoryData {
+    fun useData(data: DirectoryData) {}
+    fun unrelated(): UnrelatedToDirectoryData = UnrelatedToDirectoryData()
+}
+
+class UnrelatedToDirectoryData
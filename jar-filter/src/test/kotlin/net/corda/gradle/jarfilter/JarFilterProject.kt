@@ -27,7 +27,7 @@ class JarFilterProject(private val projectDir: Path, private val name: String) {
     var output: List<String> = emptyList()
         private set
 
-    fun build(): JarFilterProject {
+    fun build(vararg args: String): JarFilterProject {
         projectDir.installResources(
             "$name/build.gradle",
             "repositories.gradle",
@@ -40,7 +40,7 @@ class JarFilterProject(private val projectDir: Path, private val name: String) {
         val result = GradleRunner.create()
             .withProjectDir(projectDir.toFile())
             .withGradleVersion(gradleVersion.version)
-            .withArguments(getGradleArgsForTasks("jarFilter"))
+            .withArguments(getGradleArgsForTasks("jarFilter").apply { addAll(args) })
             .withDebug(isDebuggable(gradleVersion))
             .withPluginClasspath()
             .build()
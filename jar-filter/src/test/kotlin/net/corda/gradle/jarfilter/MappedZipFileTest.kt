@@ -0,0 +1,117 @@
+package net.corda.gradle.jarfilter
+
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.zip.CRC32
+import java.util.zip.ZipEntry
+import java.util.zip.ZipEntry.DEFLATED
+import java.util.zip.ZipEntry.STORED
+import java.util.zip.ZipFile
+import java.util.zip.ZipOutputStream
+
+class MappedZipFileTest {
+    private companion object {
+        private const val COMMENT = "Zip Comment"
+        private const val TEXT = "Hello, Mapped World!"
+        private const val BINARY_SIZE = 200_000
+
+        private fun stored(name: String, data: ByteArray) = ZipEntry(name).apply {
+            method = STORED
+            size = data.size.toLong()
+            compressedSize = size
+            crc = CRC32().let { crc ->
+                crc.update(data)
+                crc.value
+            }
+        }
+
+        private fun ByteBuffer.toBytes(): ByteArray = ByteArray(remaining()).also { duplicate().get(it) }
+    }
+
+    private lateinit var zipPath: Path
+    private lateinit var buffers: ZipBuffers
+    private val binary = arrayOfJunk(BINARY_SIZE)
+
+    @BeforeEach
+    fun setup(@TempDir testDir: Path) {
+        zipPath = testDir.resolve("test.zip")
+        ZipOutputStream(Files.newOutputStream(zipPath)).use { zip ->
+            zip.setComment(COMMENT)
+            zip.putNextEntry(ZipEntry("directory/").apply {
+                method = STORED
+                size = 0
+                compressedSize = 0
+                crc = 0
+            })
+            zip.putNextEntry(ZipEntry("directory/binary.dat").apply { method = DEFLATED })
+            zip.write(binary)
+            val text = TEXT.toByteArray()
+            zip.putNextEntry(stored("directory/text.txt", text))
+            zip.write(text)
+            zip.putNextEntry(ZipEntry("empty.dat").apply { method = DEFLATED })
+        }
+        buffers = ZipBuffers()
+    }
+
+    @AfterEach
+    fun done() {
+        buffers.close()
+    }
+
+    @Test
+    fun testCentralDirectory() {
+        ZipFile(zipPath.toFile()).use { expected ->
+            MappedZipFile(zipPath, buffers).use { zip ->
+                assertThat(zip.comment).isEqualTo(COMMENT)
+                assertThat(zip.entries.map(MappedZipFile.Entry::name))
+                    .containsExactly("directory/", "directory/binary.dat", "directory/text.txt", "empty.dat")
+
+                for (entry in zip.entries) {
+                    val expectedEntry = expected.getEntry(entry.name)
+                    val actualEntry = entry.toZipEntry()
+                    assertThat(actualEntry.isDirectory).isEqualTo(expectedEntry.isDirectory)
+                    assertThat(actualEntry.method).isEqualTo(expectedEntry.method)
+                    assertThat(actualEntry.crc).isEqualTo(expectedEntry.crc)
+                    assertThat(actualEntry.size).isEqualTo(expectedEntry.size)
+                    assertThat(actualEntry.compressedSize).isEqualTo(expectedEntry.compressedSize)
+                    assertThat(actualEntry.time).isEqualTo(expectedEntry.time)
+                }
+            }
+        }
+    }
+
+    @Test
+    fun testReadingEntries() {
+        MappedZipFile(zipPath, buffers).use { zip ->
+            val entries = zip.entries.associateBy(MappedZipFile.Entry::name)
+            assertThat(zip.read(entries.getValue("directory/")).remaining()).isZero()
+            assertThat(zip.read(entries.getValue("empty.dat")).remaining()).isZero()
+
+            val text = zip.read(entries.getValue("directory/text.txt"))
+            assertThat(text.isDirect).isTrue()
+            assertThat(String(text.toBytes())).isEqualTo(TEXT)
+
+            val data = zip.read(entries.getValue("directory/binary.dat"))
+            assertThat(data.hasArray()).isTrue()
+            assertThat(data.toBytes()).isEqualTo(binary)
+        }
+    }
+
+    @Test
+    fun testReusingBuffersForSecondArchive() {
+        MappedZipFile(zipPath, buffers).use { zip ->
+            val entry = zip.entries.single { it.name == "directory/binary.dat" }
+            assertThat(zip.read(entry).toBytes()).isEqualTo(binary)
+        }
+        MappedZipFile(zipPath, buffers).use { zip ->
+            val entry = zip.entries.single { it.name == "directory/binary.dat" }
+            assertThat(zip.read(entry).toBytes()).isEqualTo(binary)
+        }
+    }
+}
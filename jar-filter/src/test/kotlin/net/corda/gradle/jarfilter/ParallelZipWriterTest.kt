@@ -0,0 +1,143 @@
+package net.corda.gradle.jarfilter
+
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.FileTime
+import java.util.Calendar.FEBRUARY
+import java.util.GregorianCalendar
+import java.util.TimeZone
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.zip.Deflater.BEST_COMPRESSION
+import java.util.zip.Deflater.BEST_SPEED
+import java.util.zip.ZipEntry
+import java.util.zip.ZipEntry.DEFLATED
+import java.util.zip.ZipEntry.STORED
+import java.util.zip.ZipException
+import java.util.zip.ZipFile
+import java.util.zip.ZipInputStream
+import kotlin.test.assertFailsWith
+
+class ParallelZipWriterTest {
+    private companion object {
+        private const val COMMENT = "Zip Comment"
+        private const val ENTRY_COMMENT = "Entry Comment"
+        private const val ENTRY_COUNT = 100
+        private const val ENTRY_SIZE = 10_000
+
+        private val CONSTANT_TIME: FileTime = FileTime.fromMillis(
+            GregorianCalendar(1980, FEBRUARY, 1).apply {
+                timeZone = TimeZone.getTimeZone("UTC")
+            }.timeInMillis
+        )
+    }
+
+    private lateinit var executor: ExecutorService
+    private lateinit var testDir: Path
+    private val contents = (0 until ENTRY_COUNT).map { idx ->
+        // Compressible, but different for every entry.
+        ByteArray(ENTRY_SIZE) { pos -> ((pos % (idx + 7)) + idx).toByte() }
+    }
+
+    @BeforeEach
+    fun setup(@TempDir testDir: Path) {
+        this.testDir = testDir
+        executor = ParallelZipWriter.createExecutor()
+    }
+
+    @AfterEach
+    fun done() {
+        executor.shutdownNow()
+    }
+
+    private fun writeZip(name: String, executor: ExecutorService, level: Int = BEST_COMPRESSION): Path {
+        val zipPath = testDir.resolve(name)
+        ParallelZipWriter(zipPath, executor, level, maxPending = 8).use { zip ->
+            zip.comment = COMMENT
+            zip.putEntry(ZipEntry("directory/").apply { method = STORED }, ByteArray(0))
+            contents.forEachIndexed { idx, data ->
+                zip.putEntry(ZipEntry("directory/entry-$idx.dat").apply { comment = ENTRY_COMMENT }, data)
+            }
+            zip.putEntry(ZipEntry("stored.txt").apply { method = STORED }, ByteBuffer.wrap("Hello, World!".toByteArray()))
+            zip.putEntry(ZipEntry("constant.txt").withFileTimestamps(false), "Constant".toByteArray())
+        }
+        return zipPath
+    }
+
+    @Test
+    fun testEntriesAreReadable() {
+        val zipPath = writeZip("test.zip", executor)
+
+        ZipFile(zipPath.toFile()).use { zip ->
+            assertThat(zip.comment).isEqualTo(COMMENT)
+            assertThat(zip.entries().toList().map(ZipEntry::getName)).containsExactlyElementsOf(
+                listOf("directory/") + contents.indices.map { idx -> "directory/entry-$idx.dat" } + listOf("stored.txt", "constant.txt")
+            )
+            contents.forEachIndexed { idx, data ->
+                val entry = zip.getEntry("directory/entry-$idx.dat")
+                assertThat(entry.method).isEqualTo(DEFLATED)
+                assertThat(entry.comment).isEqualTo(ENTRY_COMMENT)
+                assertThat(entry.compressedSize).isLessThan(entry.size)
+                assertThat(zip.getInputStream(entry).use { it.readBytes() }).isEqualTo(data)
+            }
+            with(zip.getEntry("stored.txt")) {
+                assertThat(method).isEqualTo(STORED)
+                assertThat(zip.getInputStream(this).use { it.readBytes() }).isEqualTo("Hello, World!".toByteArray())
+            }
+            with(zip.getEntry("constant.txt")) {
+                assertThat(lastModifiedTime).isEqualTo(CONSTANT_TIME)
+                assertThat(lastAccessTime).isNull()
+                assertThat(creationTime).isNull()
+            }
+        }
+
+        // Local headers must contain the same information as the central directory.
+        ZipInputStream(Files.newInputStream(zipPath)).use { zip ->
+            var count = 0
+            while (true) {
+                val entry = zip.nextEntry ?: break
+                if (entry.name == "constant.txt") {
+                    assertThat(entry.lastModifiedTime).isEqualTo(CONSTANT_TIME)
+                }
+                zip.readBytes()
+                ++count
+            }
+            assertThat(count).isEqualTo(ENTRY_COUNT + 3)
+        }
+    }
+
+    @Test
+    fun testOutputIsDeterministic() {
+        val parallel = writeZip("parallel.zip", executor)
+        val singleThreaded = Executors.newSingleThreadExecutor()
+        val serial = try {
+            writeZip("serial.zip", singleThreaded)
+        } finally {
+            singleThreaded.shutdownNow()
+        }
+        assertThat(Files.readAllBytes(parallel)).isEqualTo(Files.readAllBytes(serial))
+    }
+
+    @Test
+    fun testCompressionLevel() {
+        val best = writeZip("best.zip", executor, BEST_COMPRESSION)
+        val fastest = writeZip("fastest.zip", executor, BEST_SPEED)
+        assertThat(Files.size(best)).isLessThan(Files.size(fastest))
+        assertThat(ParallelZipWriter.isValidCompressionLevel(BEST_SPEED)).isTrue()
+        assertThat(ParallelZipWriter.isValidCompressionLevel(BEST_COMPRESSION + 1)).isFalse()
+    }
+
+    @Test
+    fun testDuplicateEntry() {
+        ParallelZipWriter(testDir.resolve("duplicate.zip"), executor, BEST_COMPRESSION).use { zip ->
+            zip.putEntry(ZipEntry("entry.txt"), ByteArray(0))
+            assertFailsWith<ZipException> { zip.putEntry(ZipEntry("entry.txt"), ByteArray(0)) }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package net.corda.gradle.jarfilter
+
+import net.corda.gradle.jarfilter.asm.bytecode
+import net.corda.gradle.jarfilter.asm.resourceName
+import org.assertj.core.api.Assertions.assertThat
+import org.gradle.api.logging.Logger
+import org.junit.jupiter.api.Test
+import java.nio.ByteBuffer
+import java.util.jar.JarFile.MANIFEST_NAME
+
+class ReachabilityAnalyserTest {
+    private companion object {
+        private val logger: Logger = StdOutLogging(ReachabilityAnalyserTest::class)
+
+        private val Class<*>.internalName: String get() = name.toPathFormat
+
+        private fun ReachabilityAnalyser.add(vararg types: Class<*>): ReachabilityAnalyser {
+            types.forEach { type -> add(type.resourceName, ByteBuffer.wrap(type.bytecode)) }
+            return this
+        }
+
+        private fun ReachabilityAnalyser.add(entryName: String, text: String): ReachabilityAnalyser {
+            add(entryName, ByteBuffer.wrap(text.toByteArray()))
+            return this
+        }
+
+        private fun rules(classes: Set<String> = emptySet(), annotations: Set<String> = emptySet())
+            = KeepRules.Values(classes, emptySet(), annotations)
+    }
+
+    @Test
+    fun testKeepClass() {
+        val reachable = ReachabilityAnalyser(logger, rules(classes = setOf(KeepEntry::class.java.name)))
+            .add(KeepEntry::class.java, ReachableHelper::class.java, UnreachableHelper::class.java)
+            .analyse()
+
+        assertThat(reachable.isReachable(KeepEntry::class.java.internalName)).isTrue()
+        assertThat(reachable.isReachable(ReachableHelper::class.java.internalName)).isTrue()
+        assertThat(reachable.isReachable(UnreachableHelper::class.java.internalName)).isFalse()
+
+        with(ReachableHelper::class.java.internalName) {
+            assertThat(reachable.isReachable(this, MethodElement("<init>", "()V"))).isTrue()
+            assertThat(reachable.isReachable(this, MethodElement("help", "()Ljava/lang/String;"))).isTrue()
+            assertThat(reachable.isReachable(this, MethodElement("toString", "()Ljava/lang/String;"))).isTrue()
+            assertThat(reachable.isReachable(this, MethodElement("notCalled", "()I"))).isFalse()
+
+            // Reading a Kotlin property keeps the entire property.
+            assertThat(reachable.isReachable(this, MethodElement("getCount", "()I"))).isTrue()
+            assertThat(reachable.isReachable(this, MethodElement("setCount", "(I)V"))).isTrue()
+            assertThat(reachable.isReachable(this, FieldElement("count", "I"))).isTrue()
+            assertThat(reachable.isReachable(this, MethodElement("getUnused", "()J"))).isFalse()
+            assertThat(reachable.isReachable(this, FieldElement("unused", "J"))).isFalse()
+        }
+    }
+
+    @Test
+    fun testKeepAnnotatedMember() {
+        val reachable = ReachabilityAnalyser(logger, rules(annotations = setOf(KeepMe::class.java.name)))
+            .add(KeepEntry::class.java, ReachableHelper::class.java, UnreachableHelper::class.java)
+            .analyse()
+
+        assertThat(reachable.isReachable(KeepEntry::class.java.internalName)).isTrue()
+        assertThat(reachable.isReachable(ReachableHelper::class.java.internalName)).isFalse()
+        assertThat(reachable.isReachable(UnreachableHelper::class.java.internalName)).isFalse()
+        with(KeepEntry::class.java.internalName) {
+            assertThat(reachable.isReachable(this, MethodElement("kept", "()I"))).isTrue()
+            assertThat(reachable.isReachable(this, MethodElement("run", "()Ljava/lang/String;"))).isFalse()
+        }
+    }
+
+    @Test
+    fun testServiceProviderAndMainClass() {
+        val reachable = ReachabilityAnalyser(logger, rules())
+            .add(KeepEntry::class.java, ReachableHelper::class.java, UnreachableHelper::class.java)
+            .add("META-INF/services/java.lang.Runnable", "# Providers\n${UnreachableHelper::class.java.name}\n")
+            .add(MANIFEST_NAME, "Manifest-Version: 1.0\nMain-Class: ${ReachableHelper::class.java.name}\n\n")
+            .analyse()
+
+        assertThat(reachable.isReachable(KeepEntry::class.java.internalName)).isFalse()
+        with(UnreachableHelper::class.java.internalName) {
+            assertThat(reachable.isReachable(this)).isTrue()
+            assertThat(reachable.isReachable(this, MethodElement("<init>", "()V"))).isTrue()
+
+            // Runnable is not inside this jar, and so we keep all of its methods.
+            assertThat(reachable.isReachable(this, MethodElement("run", "()V"))).isTrue()
+        }
+        with(ReachableHelper::class.java.internalName) {
+            assertThat(reachable.isReachable(this, MethodElement("main", "([Ljava/lang/String;)V"))).isTrue()
+            assertThat(reachable.isReachable(this, MethodElement("help", "()Ljava/lang/String;"))).isFalse()
+        }
+    }
+}
+
+@Target(AnnotationTarget.FUNCTION)
+annotation class KeepMe
+
+@Suppress("unused")
+class KeepEntry {
+    fun run(): String = ReachableHelper().help() + ReachableHelper().count
+
+    @KeepMe
+    fun kept(): Int = 1
+}
+
+@Suppress("unused")
+class ReachableHelper {
+    companion object {
+        @JvmStatic
+        fun main(args: Array<String>) {}
+    }
+
+    var count: Int = 0
+    val unused: Long = 0
+
+    fun help(): String = "help"
+    fun notCalled(): Int = 0
+    override fun toString(): String = "helper"
+}
+
+@Suppress("unused")
+class UnreachableHelper : Runnable {
+    override fun run() {}
+}
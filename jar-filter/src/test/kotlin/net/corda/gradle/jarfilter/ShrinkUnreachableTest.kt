@@ -0,0 +1,56 @@
+package net.corda.gradle.jarfilter
+
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.BeforeAll
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.nio.file.Path
+import kotlin.reflect.full.declaredMemberFunctions
+import kotlin.test.assertFailsWith
+
+class ShrinkUnreachableTest {
+    companion object {
+        private const val PACKAGE_NAME = "net.corda.gradle.shrink"
+        private const val ENTRY_CLASS = "$PACKAGE_NAME.Entry"
+        private const val GREETER_CLASS = "$PACKAGE_NAME.Greeter"
+        private const val UNUSED_CLASS = "$PACKAGE_NAME.Unused"
+
+        private lateinit var testProject: JarFilterProject
+
+        @BeforeAll
+        @JvmStatic
+        fun setup(@TempDir testProjectDir: Path) {
+            testProject = JarFilterProject(testProjectDir, "shrink-unreachable").build()
+        }
+    }
+
+    @Test
+    fun deleteUnreachableClass() {
+        assertThat(testProject.sourceJar.getClassNames(PACKAGE_NAME))
+            .containsExactlyInAnyOrder(ENTRY_CLASS, GREETER_CLASS, UNUSED_CLASS)
+        assertThat(testProject.filteredJar.getClassNames(PACKAGE_NAME))
+            .containsExactlyInAnyOrder(ENTRY_CLASS, GREETER_CLASS)
+    }
+
+    @Test
+    fun deleteUnreachableFunction() {
+        classLoaderFor(testProject.sourceJar).use { cl ->
+            cl.load<Any>(GREETER_CLASS).apply {
+                getDeclaredMethod("unusedFunction")
+                assertThat(kotlin.declaredMemberFunctions).anyMatch { it.name == "unusedFunction" }
+            }
+        }
+
+        classLoaderFor(testProject.filteredJar).use { cl ->
+            cl.load<Any>(GREETER_CLASS).apply {
+                assertFailsWith<NoSuchMethodException> { getDeclaredMethod("unusedFunction") }
+                assertThat(kotlin.declaredMemberFunctions).noneMatch { it.name == "unusedFunction" }
+            }
+            cl.load<Any>(ENTRY_CLASS).apply {
+                val entry = getDeclaredConstructor().newInstance()
+                assertEquals("Hello, World", getDeclaredMethod("greet", String::class.java).invoke(entry, "World"))
+            }
+        }
+    }
+}
@@ -10,6 +10,7 @@ import org.junit.jupiter.api.Test
 class UnwantedCacheTest {
     private companion object {
         private const val CLASS_NAME = "org.testing.MyClass"
+        private const val OTHER_CLASS_NAME = "org.testing.OtherClass"
         private const val LONG_ARG = "(J)V"
         private const val NO_ARG = "()V"
     }
@@ -54,4 +55,29 @@ class UnwantedCacheTest {
         assertTrue(cache.containsMethod(CLASS_NAME, "<init>", LONG_ARG))
         assertEquals(0, cache.classMethods.size)
     }
-}
\ No newline at end of file
+
+    @Test
+    fun testMergingCaches() {
+        val other = UnwantedCache()
+        other.addClass(OTHER_CLASS_NAME)
+        other.addMethod(CLASS_NAME, MethodElement("<init>", LONG_ARG))
+        cache.addMethod(CLASS_NAME, MethodElement("<init>", NO_ARG))
+
+        assertEquals(setOf(OTHER_CLASS_NAME, CLASS_NAME), cache.addAll(other))
+        assertTrue(cache.containsClass(OTHER_CLASS_NAME))
+        assertTrue(cache.containsMethod(CLASS_NAME, "<init>", LONG_ARG))
+        assertTrue(cache.containsMethod(CLASS_NAME, "<init>", NO_ARG))
+
+        // Merging the same cache again changes nothing.
+        assertEquals(emptySet<String>(), cache.addAll(other))
+    }
+
+    @Test
+    fun testCopyIsIndependent() {
+        cache.addMethod(CLASS_NAME, MethodElement("<init>", LONG_ARG))
+        val copy = cache.copy()
+        copy.addClass(OTHER_CLASS_NAME)
+        assertTrue(copy.containsMethod(CLASS_NAME, "<init>", LONG_ARG))
+        assertFalse(cache.containsClass(OTHER_CLASS_NAME))
+    }
+}
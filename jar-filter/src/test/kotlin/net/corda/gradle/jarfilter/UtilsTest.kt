@@ -1,13 +1,27 @@
 package net.corda.gradle.jarfilter
 
+import net.corda.gradle.jarfilter.asm.bytecode
 import org.assertj.core.api.Assertions.assertThat
 import org.gradle.api.InvalidUserCodeException
 import org.gradle.api.InvalidUserDataException
 import org.junit.jupiter.api.Test
 import java.io.IOException
+import java.nio.ByteBuffer
 import kotlin.test.assertFailsWith
 
 class UtilsTest {
+    private companion object {
+        private const val PADDING = 7
+
+        private val referencingBytecode: ByteArray = Referencing::class.java.bytecode
+    }
+
+    @Suppress("unused")
+    private class Referencing(val values: List<Map<String, Long>>) {
+        @Throws(IOException::class)
+        fun check(): Any = throw IOException(values.toString())
+    }
+
     @Test
     fun testRethrowingCheckedException() {
         val ex = assertFailsWith<InvalidUserCodeException> { throw IOException(MESSAGE).asUncheckedException() }
@@ -39,4 +53,46 @@ class UtilsTest {
             .hasMessage(MESSAGE)
             .hasNoCause()
     }
+
+    @Test
+    fun testReferencedClassNames() {
+        assertThat(ByteBuffer.wrap(referencingBytecode).referencedClassNames()).contains(
+            "java/io/IOException",
+            "java/lang/Long",
+            "java/lang/String",
+            "java/util/List",
+            "java/util/Map",
+            "net/corda/gradle/jarfilter/UtilsTest\$Referencing"
+        )
+    }
+
+    @Test
+    fun testReferencedClassNamesWithArrayOffset() {
+        val padded = ByteArray(referencingBytecode.size + 2 * PADDING) { 0x5A }
+        System.arraycopy(referencingBytecode, 0, padded, PADDING, referencingBytecode.size)
+        val slice = ByteBuffer.wrap(padded, PADDING, referencingBytecode.size).slice()
+        assertThat(slice.arrayOffset()).isEqualTo(PADDING)
+
+        assertThat(slice.referencedClassNames())
+            .isEqualTo(ByteBuffer.wrap(referencingBytecode).referencedClassNames())
+        assertThat(slice.position()).isZero()
+    }
+
+    @Test
+    fun testReferencedClassNamesWithPosition() {
+        val padded = ByteArray(referencingBytecode.size + 2 * PADDING) { 0x5A }
+        System.arraycopy(referencingBytecode, 0, padded, PADDING, referencingBytecode.size)
+        val buffer = ByteBuffer.wrap(padded, PADDING, referencingBytecode.size)
+        assertThat(buffer.arrayOffset()).isZero()
+
+        assertThat(buffer.referencedClassNames())
+            .isEqualTo(ByteBuffer.wrap(referencingBytecode).referencedClassNames())
+    }
+
+    @Test
+    fun testReferencedClassNamesWithDirectBuffer() {
+        val direct = ByteBuffer.allocateDirect(referencingBytecode.size).put(referencingBytecode).flip() as ByteBuffer
+        assertThat(direct.referencedClassNames())
+            .isEqualTo(ByteBuffer.wrap(referencingBytecode).referencedClassNames())
+    }
 }
@@ -0,0 +1,89 @@
+package net.corda.gradle.jarfilter
+
+import net.corda.gradle.jarfilter.matcher.isMethod
+import net.corda.gradle.jarfilter.matcher.javaDeclaredMethods
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.core.IsEqual.equalTo
+import org.hamcrest.core.IsIterableContaining.hasItem
+import org.hamcrest.core.IsNot.not
+import org.junit.jupiter.api.BeforeAll
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.net.URLClassLoader
+import java.nio.file.Path
+import java.util.zip.ZipFile
+import kotlin.test.assertFailsWith
+
+class WholeProgramTest {
+    companion object {
+        private const val USES_OTHER_JAR = "net.corda.gradle.wholeprogram.UsesOtherJar"
+        private const val UNWANTED_CLASS = "net.corda.gradle.wholeprogram.data.UnwantedData"
+        private const val WANTED_CLASS = "net.corda.gradle.wholeprogram.data.WantedData"
+
+        private val unwantedMethod = isMethod(equalTo("unwanted"), equalTo(String::class.java.name), equalTo(UNWANTED_CLASS))
+        private val wantedMethod = isMethod(equalTo("wanted"), equalTo(String::class.java.name), equalTo(WANTED_CLASS))
+
+        private lateinit var testProjectDir: Path
+        private lateinit var testProject: JarFilterProject
+        private lateinit var sourceDataJar: Path
+        private lateinit var filteredDataJar: Path
+
+        @BeforeAll
+        @JvmStatic
+        fun setup(@TempDir testProjectDir: Path) {
+            this.testProjectDir = testProjectDir
+            testProject = JarFilterProject(testProjectDir, "whole-program").build()
+            sourceDataJar = testProjectDir.pathOf("build", "libs", "whole-program-data.jar")
+            filteredDataJar = testProjectDir.pathOf("build", "filtered-libs", "whole-program-data-filtered.jar")
+        }
+
+        private fun classLoaderFor(vararg jars: Path) = URLClassLoader(
+            jars.map { jar -> jar.toUri().toURL() }.toTypedArray(),
+            WholeProgramTest::class.java.classLoader
+        )
+
+        private fun contentsOf(jar: Path): Map<String, ByteArray> {
+            return ZipFile(jar.toFile()).use { zip ->
+                zip.entries().asSequence().associate { entry ->
+                    entry.name to zip.getInputStream(entry).use { it.readBytes() }
+                }
+            }
+        }
+    }
+
+    @Test
+    fun deleteUsesOfClassFromOtherJar() {
+        classLoaderFor(testProject.sourceJar, sourceDataJar).use { cl ->
+            cl.load<Any>(UNWANTED_CLASS)
+            cl.load<Any>(USES_OTHER_JAR).apply {
+                assertThat("unwanted() not found", javaDeclaredMethods, hasItem(unwantedMethod))
+                assertThat("wanted() not found", javaDeclaredMethods, hasItem(wantedMethod))
+            }
+        }
+
+        classLoaderFor(testProject.filteredJar, filteredDataJar).use { cl ->
+            assertFailsWith<ClassNotFoundException> { cl.load<Any>(UNWANTED_CLASS) }
+            cl.load<Any>(USES_OTHER_JAR).apply {
+                assertThat("unwanted() still exists", javaDeclaredMethods, not(hasItem(unwantedMethod)))
+                assertThat("wanted() not found", javaDeclaredMethods, hasItem(wantedMethod))
+            }
+        }
+    }
+
+    @Test
+    fun filteringAgainChangesNothing() {
+        val filteredJars = listOf(testProject.filteredJar, filteredDataJar)
+        val firstContents = filteredJars.map(::contentsOf)
+
+        // Run the whole program filter again, for the same input jars.
+        JarFilterProject(testProjectDir, "whole-program").build("--rerun-tasks")
+        val secondContents = filteredJars.map(::contentsOf)
+
+        for ((first, second) in firstContents.zip(secondContents)) {
+            assertThat(second.keys, equalTo(first.keys))
+            for ((name, bytes) in first) {
+                assertThat("$name has changed", second.getValue(name).contentEquals(bytes), equalTo(true))
+            }
+        }
+    }
+}
@@ -0,0 +1,14 @@
+@file:Suppress("unused", "PackageDirectoryMismatch")
+package net.corda.gradle.shrink
+
+class Entry {
+    fun greet(name: String): String = Greeter(name).greeting
+}
+
+class Greeter(private val name: String) {
+    val greeting: String get() = "Hello, $name"
+
+    fun unusedFunction(): String = Unused().toString()
+}
+
+class Unused
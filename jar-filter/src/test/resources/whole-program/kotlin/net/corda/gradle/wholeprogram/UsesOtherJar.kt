@@ -0,0 +1,11 @@
+@file:Suppress("unused", "PackageDirectoryMismatch")
+package net.corda.gradle.wholeprogram
+
+import net.corda.gradle.wholeprogram.data.UnwantedData
+import net.corda.gradle.wholeprogram.data.WantedData
+
+class UsesOtherJar {
+    fun unwanted(input: UnwantedData): String = input.stringVal
+
+    fun wanted(input: WantedData): String = input.stringVal
+}
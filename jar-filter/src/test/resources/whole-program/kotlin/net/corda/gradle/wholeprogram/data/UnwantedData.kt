@@ -0,0 +1,10 @@
+@file:Suppress("unused", "PackageDirectoryMismatch")
+package net.corda.gradle.wholeprogram.data
+
+import net.corda.gradle.jarfilter.DeleteMe
+import net.corda.gradle.unwanted.HasStringVal
+
+@DeleteMe
+class UnwantedData(override val stringVal: String) : HasStringVal
+
+class WantedData(override val stringVal: String) : HasStringVal